@@ -0,0 +1,368 @@
+package com.pheiffware.lib.geometry;
+
+import com.pheiffware.lib.geometry.intersect.IntersectCalc;
+import com.pheiffware.lib.geometry.shapes.LineSegment;
+
+/**
+ * A bounding volume hierarchy over a fixed set of 2D line segments (edges). Each edge is flattened into primitive
+ * arrays, along with its pre-computed direction, normal and length, so it can be tested without touching any
+ * LineSegment objects. Edges keep the index they were given at construction.
+ *
+ * Queries cost O(log(numEdges)) plus the number of edges found. Queries do not allocate and do not modify the tree, so
+ * any number of threads may query at once.
+ */
+public class EdgeTree
+{
+	private static final int MAX_LEAF_SIZE = 4;
+
+	public final int numEdges;
+
+	// End points
+	public final double[] p1x, p1y, p2x, p2y;
+
+	// Unit vector in direction of each edge
+	public final double[] directionX, directionY;
+
+	// Unit vector perpendicular to each edge
+	public final double[] normalX, normalY;
+
+	public final double[] length;
+
+	// Edge indices, arranged so each leaf covers a contiguous range
+	private final int[] order;
+
+	private int numNodes;
+
+	// Node bounds
+	private final double[] nodeMinX, nodeMinY, nodeMaxX, nodeMaxY;
+
+	// For leaves, the start of the node's range in order. For internal nodes, the index of the 1st child (the 2nd
+	// child follows it).
+	private final int[] nodeStart;
+
+	// Number of edges in a leaf. 0 for internal nodes.
+	private final int[] nodeCount;
+
+	public EdgeTree(LineSegment[] lineSegments)
+	{
+		numEdges = lineSegments.length;
+		p1x = new double[numEdges];
+		p1y = new double[numEdges];
+		p2x = new double[numEdges];
+		p2y = new double[numEdges];
+		directionX = new double[numEdges];
+		directionY = new double[numEdges];
+		normalX = new double[numEdges];
+		normalY = new double[numEdges];
+		length = new double[numEdges];
+		order = new int[numEdges];
+
+		double[] centerX = new double[numEdges];
+		double[] centerY = new double[numEdges];
+		for (int i = 0; i < numEdges; i++)
+		{
+			LineSegment lineSegment = lineSegments[i];
+			p1x[i] = lineSegment.p1.x;
+			p1y[i] = lineSegment.p1.y;
+			p2x[i] = lineSegment.p2.x;
+			p2y[i] = lineSegment.p2.y;
+			directionX[i] = lineSegment.direction.x;
+			directionY[i] = lineSegment.direction.y;
+			normalX[i] = lineSegment.unitNormal.x;
+			normalY[i] = lineSegment.unitNormal.y;
+			length[i] = lineSegment.length;
+			centerX[i] = (p1x[i] + p2x[i]) * 0.5;
+			centerY[i] = (p1y[i] + p2y[i]) * 0.5;
+			order[i] = i;
+		}
+
+		int maxNodes = Math.max(1, 2 * numEdges);
+		nodeMinX = new double[maxNodes];
+		nodeMinY = new double[maxNodes];
+		nodeMaxX = new double[maxNodes];
+		nodeMaxY = new double[maxNodes];
+		nodeStart = new int[maxNodes];
+		nodeCount = new int[maxNodes];
+		numNodes = 1;
+		build(0, 0, numEdges, centerX, centerY);
+	}
+
+	/**
+	 * Builds the given node over the edges order[start, end), splitting at the median center along the longest axis.
+	 */
+	private void build(int node, int start, int end, double[] centerX, double[] centerY)
+	{
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		double centerMinX = Double.POSITIVE_INFINITY;
+		double centerMinY = Double.POSITIVE_INFINITY;
+		double centerMaxX = Double.NEGATIVE_INFINITY;
+		double centerMaxY = Double.NEGATIVE_INFINITY;
+		for (int i = start; i < end; i++)
+		{
+			int edge = order[i];
+			minX = Math.min(minX, Math.min(p1x[edge], p2x[edge]));
+			minY = Math.min(minY, Math.min(p1y[edge], p2y[edge]));
+			maxX = Math.max(maxX, Math.max(p1x[edge], p2x[edge]));
+			maxY = Math.max(maxY, Math.max(p1y[edge], p2y[edge]));
+			centerMinX = Math.min(centerMinX, centerX[edge]);
+			centerMinY = Math.min(centerMinY, centerY[edge]);
+			centerMaxX = Math.max(centerMaxX, centerX[edge]);
+			centerMaxY = Math.max(centerMaxY, centerY[edge]);
+		}
+		nodeMinX[node] = minX;
+		nodeMinY[node] = minY;
+		nodeMaxX[node] = maxX;
+		nodeMaxY[node] = maxY;
+
+		int count = end - start;
+		if (count <= MAX_LEAF_SIZE)
+		{
+			nodeStart[node] = start;
+			nodeCount[node] = count;
+			return;
+		}
+
+		double[] splitCenters = (centerMaxX - centerMinX >= centerMaxY - centerMinY) ? centerX : centerY;
+		int middle = (start + end) / 2;
+		select(start, end - 1, middle, splitCenters);
+
+		int child = numNodes;
+		numNodes += 2;
+		nodeStart[node] = child;
+		nodeCount[node] = 0;
+		build(child, start, middle, centerX, centerY);
+		build(child + 1, middle, end, centerX, centerY);
+	}
+
+	/**
+	 * Partially sorts order[left, right] so that the edge at index k has the k-th smallest key and everything before
+	 * it is no larger (quickselect).
+	 */
+	private void select(int left, int right, int k, double[] keys)
+	{
+		while (left < right)
+		{
+			double pivot = keys[order[(left + right) >>> 1]];
+			int i = left;
+			int j = right;
+			while (i <= j)
+			{
+				while (keys[order[i]] < pivot)
+				{
+					i++;
+				}
+				while (keys[order[j]] > pivot)
+				{
+					j--;
+				}
+				if (i <= j)
+				{
+					int temp = order[i];
+					order[i] = order[j];
+					order[j] = temp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+			{
+				right = j;
+			}
+			else if (k >= i)
+			{
+				left = i;
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds all edges whose bounding rectangle overlaps the given rectangle. Indices of found edges are written to
+	 * results, in no particular order.
+	 *
+	 * @return The number of edges found. If this is larger than results.length, only the 1st results.length were
+	 *         written and the query should be repeated with a larger array.
+	 */
+	public int queryRect(double minX, double minY, double maxX, double maxY, int[] results)
+	{
+		return queryRect(minX, minY, maxX, maxY, results, 0);
+	}
+
+	/**
+	 * As queryRect(), but found edges are written after the 1st numFound results.
+	 *
+	 * @return numFound plus the number of edges found.
+	 */
+	public int queryRect(double minX, double minY, double maxX, double maxY, int[] results, int numFound)
+	{
+		if (numEdges == 0)
+		{
+			return numFound;
+		}
+		return queryRect(0, minX, minY, maxX, maxY, results, numFound);
+	}
+
+	private int queryRect(int node, double minX, double minY, double maxX, double maxY, int[] results, int numFound)
+	{
+		if (nodeMinX[node] > maxX || nodeMaxX[node] < minX || nodeMinY[node] > maxY || nodeMaxY[node] < minY)
+		{
+			return numFound;
+		}
+		int count = nodeCount[node];
+		if (count == 0)
+		{
+			numFound = queryRect(nodeStart[node], minX, minY, maxX, maxY, results, numFound);
+			return queryRect(nodeStart[node] + 1, minX, minY, maxX, maxY, results, numFound);
+		}
+		int end = nodeStart[node] + count;
+		for (int i = nodeStart[node]; i < end; i++)
+		{
+			int edge = order[i];
+			if (Math.min(p1x[edge], p2x[edge]) <= maxX && Math.max(p1x[edge], p2x[edge]) >= minX && Math.min(p1y[edge], p2y[edge]) <= maxY
+					&& Math.max(p1y[edge], p2y[edge]) >= minY)
+			{
+				if (numFound < results.length)
+				{
+					results[numFound] = edge;
+				}
+				numFound++;
+			}
+		}
+		return numFound;
+	}
+
+	/**
+	 * Finds the 1st edge crossed by a ray. Nodes are visited nearest first, and skipped once they are further than the
+	 * closest edge found, so long rays cost little more than short ones.
+	 *
+	 * @param originX
+	 * @param originY
+	 * @param directionX
+	 *            direction must be a unit vector
+	 * @param directionY
+	 * @param maxDistance
+	 *            edges this far or further along the ray are ignored
+	 * @return the edge hit, or -1 if none is. See calcRayDistance() for the distance to it.
+	 */
+	public int castRay(double originX, double originY, double directionX, double directionY, double maxDistance)
+	{
+		if (numEdges == 0 || !(calcRayDistanceToNode(0, originX, originY, directionX, directionY) < maxDistance))
+		{
+			return -1;
+		}
+		return castRay(0, originX, originY, directionX, directionY, maxDistance, -1);
+	}
+
+	/**
+	 * Finds the 1st edge under node hit closer than maxDistance. The node itself must be closer.
+	 *
+	 * @return that edge, or hitEdge if there is none.
+	 */
+	private int castRay(int node, double originX, double originY, double directionX, double directionY, double maxDistance, int hitEdge)
+	{
+		int count = nodeCount[node];
+		if (count == 0)
+		{
+			int child1 = nodeStart[node];
+			int child2 = child1 + 1;
+			double distance1 = calcRayDistanceToNode(child1, originX, originY, directionX, directionY);
+			double distance2 = calcRayDistanceToNode(child2, originX, originY, directionX, directionY);
+			if (distance2 < distance1)
+			{
+				int tempNode = child1;
+				child1 = child2;
+				child2 = tempNode;
+				double tempDistance = distance1;
+				distance1 = distance2;
+				distance2 = tempDistance;
+			}
+			if (distance1 < maxDistance)
+			{
+				int edge = castRay(child1, originX, originY, directionX, directionY, maxDistance, hitEdge);
+				if (edge != hitEdge)
+				{
+					hitEdge = edge;
+					maxDistance = calcRayDistance(edge, originX, originY, directionX, directionY);
+				}
+			}
+			if (distance2 < maxDistance)
+			{
+				hitEdge = castRay(child2, originX, originY, directionX, directionY, maxDistance, hitEdge);
+			}
+			return hitEdge;
+		}
+		int end = nodeStart[node] + count;
+		for (int i = nodeStart[node]; i < end; i++)
+		{
+			int edge = order[i];
+			double distance = calcRayDistance(edge, originX, originY, directionX, directionY);
+			if (distance < maxDistance)
+			{
+				maxDistance = distance;
+				hitEdge = edge;
+			}
+		}
+		return hitEdge;
+	}
+
+	private double calcRayDistanceToNode(int node, double originX, double originY, double directionX, double directionY)
+	{
+		return Geocalc.rayDistanceToRect2D(originX, originY, directionX, directionY, nodeMinX[node], nodeMinY[node], nodeMaxX[node],
+				nodeMaxY[node]);
+	}
+
+	/**
+	 * Calculates the distance along a ray to where it crosses the given edge. See Geocalc.rayDistanceToSegment2D().
+	 *
+	 * @return the distance or Double.NaN if the ray misses
+	 */
+	public final double calcRayDistance(int edge, double originX, double originY, double directionX, double directionY)
+	{
+		return Geocalc.rayDistanceToSegment2D(originX, originY, directionX, directionY, p1x[edge], p1y[edge], p2x[edge], p2y[edge]);
+	}
+
+	/**
+	 * Calculates the intersection between the given edge and a circle. See
+	 * IntersectCalc.calcIntersect2D(LineSegment,Sphere).
+	 *
+	 * @param edge
+	 * @param centerX
+	 * @param centerY
+	 * @param radius
+	 * @param collisionNormal
+	 *            Filled in with the normal of the intersection, facing toward the circle, if there is one.
+	 * @return The penetration depth or -1 if there is no intersection.
+	 */
+	public final double calcIntersect(int edge, double centerX, double centerY, double radius, Vec3D collisionNormal)
+	{
+		return IntersectCalc.calcIntersect2D(p1x[edge], p1y[edge], p2x[edge], p2y[edge],
+				directionX[edge], directionY[edge], normalX[edge], normalY[edge], length[edge], centerX, centerY, radius, collisionNormal);
+	}
+
+	/**
+	 * Calculates when a moving circle first touches the given edge. See
+	 * IntersectCalc.calcTimeOfImpact2D(LineSegment,Vec3D,Vec3D,double,Vec3D).
+	 *
+	 * @param edge
+	 * @param startX
+	 * @param startY
+	 * @param movementX
+	 * @param movementY
+	 * @param radius
+	 * @param collisionNormal
+	 *            Filled in with the normal of the contact, facing toward the circle, if there is one.
+	 * @return The time of impact in [0,1] or -1 if there is none.
+	 */
+	public final double calcTimeOfImpact(int edge, double startX, double startY, double movementX, double movementY, double radius,
+			Vec3D collisionNormal)
+	{
+		return IntersectCalc.calcTimeOfImpact2D(p1x[edge], p1y[edge], p2x[edge], p2y[edge], directionX[edge], directionY[edge], normalX[edge],
+				normalY[edge], length[edge], startX, startY, movementX, movementY, radius, collisionNormal);
+	}
+}
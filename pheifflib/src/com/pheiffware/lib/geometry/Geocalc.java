@@ -1,10 +1,17 @@
 package com.pheiffware.lib.geometry;
 
+import java.util.Random;
+
 import com.pheiffware.lib.geometry.shapes.LineSegment;
 import com.pheiffware.lib.geometry.shapes.Sphere;
 
 public class Geocalc
 {
+	// Points are shuffled with a fixed seed so the same points always give the same circle
+	private static final long ENCLOSING_CIRCLE_SEED = 0x5DEECE66DL;
+
+	// How far, relative to the radius squared, a point may be outside a circle before it counts as outside
+	private static final double ENCLOSING_CIRCLE_TOLERANCE = 1e-10;
 	/**
 	 * Projects where a point would fall on a given ray's line.  The projection point may be behind the origin (not technically on the ray).
 	 * @param point
@@ -114,4 +121,321 @@ public class Geocalc
 		}
 		return distanceRayToLine;
 	}
+
+	/**
+	 * Calculates the distance along a ray, in 2 dimensions, to where it enters a circle. Unlike rayIntersectSphere(),
+	 * this allocates nothing. A ray starting inside the circle does not hit it.
+	 * @param originX
+	 * @param originY
+	 * @param directionX direction must be a unit vector
+	 * @param directionY
+	 * @param centerX
+	 * @param centerY
+	 * @param radius
+	 * @return the distance or Double.NaN if the ray misses
+	 */
+	public static double rayDistanceToCircle2D(double originX, double originY, double directionX, double directionY, double centerX,
+			double centerY, double radius)
+	{
+		double offsetX = originX - centerX;
+		double offsetY = originY - centerY;
+		double c = offsetX * offsetX + offsetY * offsetY - radius * radius;
+		double halfB = offsetX * directionX + offsetY * directionY;
+		// Inside, or outside and facing away
+		if (c < 0 || halfB > 0)
+		{
+			return Double.NaN;
+		}
+		double discriminant = halfB * halfB - c;
+		if (discriminant < 0)
+		{
+			return Double.NaN;
+		}
+		return -halfB - Math.sqrt(discriminant);
+	}
+
+	/**
+	 * Calculates the distance along a ray, in 2 dimensions, to where it crosses a line segment. Unlike
+	 * distanceRayToLineSegment2D(), this allocates nothing. A ray parallel to the segment never hits it.
+	 * @param originX
+	 * @param originY
+	 * @param directionX direction must be a unit vector
+	 * @param directionY
+	 * @param x1
+	 * @param y1
+	 * @param x2
+	 * @param y2
+	 * @return the distance or Double.NaN if the ray misses
+	 */
+	public static double rayDistanceToSegment2D(double originX, double originY, double directionX, double directionY, double x1,
+			double y1, double x2, double y2)
+	{
+		double edgeX = x2 - x1;
+		double edgeY = y2 - y1;
+		double denominator = directionX * edgeY - directionY * edgeX;
+		if (denominator == 0)
+		{
+			return Double.NaN;
+		}
+		double offsetX = x1 - originX;
+		double offsetY = y1 - originY;
+		double distance = (offsetX * edgeY - offsetY * edgeX) / denominator;
+		double position = (offsetX * directionY - offsetY * directionX) / denominator;
+		if (distance < 0 || position < 0 || position > 1)
+		{
+			return Double.NaN;
+		}
+		return distance;
+	}
+
+	/**
+	 * Calculates the distance along a ray, in 2 dimensions, to where it enters an axis aligned rectangle.
+	 * @param originX
+	 * @param originY
+	 * @param directionX direction must be a unit vector
+	 * @param directionY
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @return the distance, 0 if the origin is inside, or Double.NaN if the ray misses
+	 */
+	public static double rayDistanceToRect2D(double originX, double originY, double directionX, double directionY, double minX,
+			double minY, double maxX, double maxY)
+	{
+		double entry = 0;
+		double exit = Double.POSITIVE_INFINITY;
+		if (directionX == 0)
+		{
+			if (originX < minX || originX > maxX)
+			{
+				return Double.NaN;
+			}
+		}
+		else
+		{
+			double distance1 = (minX - originX) / directionX;
+			double distance2 = (maxX - originX) / directionX;
+			entry = Math.max(entry, Math.min(distance1, distance2));
+			exit = Math.min(exit, Math.max(distance1, distance2));
+		}
+		if (directionY == 0)
+		{
+			if (originY < minY || originY > maxY)
+			{
+				return Double.NaN;
+			}
+		}
+		else
+		{
+			double distance1 = (minY - originY) / directionY;
+			double distance2 = (maxY - originY) / directionY;
+			entry = Math.max(entry, Math.min(distance1, distance2));
+			exit = Math.min(exit, Math.max(distance1, distance2));
+		}
+		return entry <= exit ? entry : Double.NaN;
+	}
+
+	/**
+	 * Calculates the squared distance from a point to the closest point of a line segment, in 2 dimensions.
+	 * @param pointX
+	 * @param pointY
+	 * @param x1
+	 * @param y1
+	 * @param x2
+	 * @param y2
+	 * @return
+	 */
+	public static double distanceSquaredPointToSegment2D(double pointX, double pointY, double x1, double y1, double x2, double y2)
+	{
+		double edgeX = x2 - x1;
+		double edgeY = y2 - y1;
+		double offsetX = pointX - x1;
+		double offsetY = pointY - y1;
+		double lengthSquared = edgeX * edgeX + edgeY * edgeY;
+		double position = 0;
+		if (lengthSquared > 0)
+		{
+			position = Math.max(0, Math.min(1, (offsetX * edgeX + offsetY * edgeY) / lengthSquared));
+		}
+		double xdiff = offsetX - edgeX * position;
+		double ydiff = offsetY - edgeY * position;
+		return xdiff * xdiff + ydiff * ydiff;
+	}
+
+	/**
+	 * Does a line segment touch an axis aligned rectangle, in 2 dimensions?
+	 * @param x1
+	 * @param y1
+	 * @param x2
+	 * @param y2
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @return
+	 */
+	public static boolean segmentOverlapsRect2D(double x1, double y1, double x2, double y2, double minX, double minY, double maxX,
+			double maxY)
+	{
+		// Clip the segment, as x1,y1 + t * (x2 - x1, y2 - y1) for t in [0,1], to each pair of sides
+		double start = 0;
+		double end = 1;
+		double edgeX = x2 - x1;
+		double edgeY = y2 - y1;
+		if (edgeX == 0)
+		{
+			if (x1 < minX || x1 > maxX)
+			{
+				return false;
+			}
+		}
+		else
+		{
+			double t1 = (minX - x1) / edgeX;
+			double t2 = (maxX - x1) / edgeX;
+			start = Math.max(start, Math.min(t1, t2));
+			end = Math.min(end, Math.max(t1, t2));
+		}
+		if (edgeY == 0)
+		{
+			if (y1 < minY || y1 > maxY)
+			{
+				return false;
+			}
+		}
+		else
+		{
+			double t1 = (minY - y1) / edgeY;
+			double t2 = (maxY - y1) / edgeY;
+			start = Math.max(start, Math.min(t1, t2));
+			end = Math.min(end, Math.max(t1, t2));
+		}
+		return start <= end;
+	}
+
+	/**
+	 * Calculates the smallest circle, in the x-y plane, which contains all the given points (Welzl's algorithm). Points
+	 * are visited in a shuffled order, which makes the expected running time O(n).
+	 * @param points must not be empty
+	 * @return a sphere whose center has the z coordinate of the 1st point
+	 */
+	public static Sphere calcEnclosingCircle2D(Vec3D[] points)
+	{
+		int numPoints = points.length;
+		double[] x = new double[numPoints];
+		double[] y = new double[numPoints];
+		for (int i = 0; i < numPoints; i++)
+		{
+			x[i] = points[i].x;
+			y[i] = points[i].y;
+		}
+		Random random = new Random(ENCLOSING_CIRCLE_SEED);
+		for (int i = numPoints - 1; i > 0; i--)
+		{
+			int j = random.nextInt(i + 1);
+			double temp = x[i];
+			x[i] = x[j];
+			x[j] = temp;
+			temp = y[i];
+			y[i] = y[j];
+			y[j] = temp;
+		}
+
+		// circle holds center x, center y and radius squared
+		double[] circle = { x[0], y[0], 0 };
+		for (int i = 1; i < numPoints; i++)
+		{
+			if (isOutsideCircle(circle, x[i], y[i]))
+			{
+				// Point i must be on the boundary
+				circle[0] = x[i];
+				circle[1] = y[i];
+				circle[2] = 0;
+				for (int j = 0; j < i; j++)
+				{
+					if (isOutsideCircle(circle, x[j], y[j]))
+					{
+						// Points i and j must be on the boundary
+						calcDiameterCircle(x[i], y[i], x[j], y[j], circle);
+						for (int k = 0; k < j; k++)
+						{
+							if (isOutsideCircle(circle, x[k], y[k]))
+							{
+								calcCircumcircle(x[i], y[i], x[j], y[j], x[k], y[k], circle);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		// Rounding can leave a point just outside, so make sure the radius reaches every point
+		double radiusSquared = circle[2];
+		for (int i = 0; i < numPoints; i++)
+		{
+			double xdiff = x[i] - circle[0];
+			double ydiff = y[i] - circle[1];
+			radiusSquared = Math.max(radiusSquared, xdiff * xdiff + ydiff * ydiff);
+		}
+		return new Sphere(new Vec3D(circle[0], circle[1], points[0].z), Math.sqrt(radiusSquared));
+	}
+
+	private static boolean isOutsideCircle(double[] circle, double x, double y)
+	{
+		double xdiff = x - circle[0];
+		double ydiff = y - circle[1];
+		return xdiff * xdiff + ydiff * ydiff > circle[2] * (1 + ENCLOSING_CIRCLE_TOLERANCE);
+	}
+
+	/**
+	 * Fills in circle with the circle whose diameter runs from point 1 to point 2.
+	 */
+	private static void calcDiameterCircle(double x1, double y1, double x2, double y2, double[] circle)
+	{
+		double xdiff = x2 - x1;
+		double ydiff = y2 - y1;
+		circle[0] = (x1 + x2) * 0.5;
+		circle[1] = (y1 + y2) * 0.5;
+		circle[2] = (xdiff * xdiff + ydiff * ydiff) * 0.25;
+	}
+
+	/**
+	 * Fills in circle with the circle passing through all 3 points. If they are (nearly) collinear, this is instead the
+	 * circle whose diameter joins the 2 furthest apart.
+	 */
+	private static void calcCircumcircle(double x1, double y1, double x2, double y2, double x3, double y3, double[] circle)
+	{
+		double bx = x2 - x1;
+		double by = y2 - y1;
+		double cx = x3 - x1;
+		double cy = y3 - y1;
+		double bLengthSquared = bx * bx + by * by;
+		double cLengthSquared = cx * cx + cy * cy;
+		double determinant = 2 * (bx * cy - by * cx);
+		double ux = (cy * bLengthSquared - by * cLengthSquared) / determinant;
+		double uy = (bx * cLengthSquared - cx * bLengthSquared) / determinant;
+		if (determinant == 0 || Double.isInfinite(ux) || Double.isInfinite(uy))
+		{
+			double xdiff = x3 - x2;
+			double ydiff = y3 - y2;
+			double aLengthSquared = xdiff * xdiff + ydiff * ydiff;
+			if (aLengthSquared >= bLengthSquared && aLengthSquared >= cLengthSquared)
+			{
+				calcDiameterCircle(x2, y2, x3, y3, circle);
+			}
+			else if (bLengthSquared >= cLengthSquared)
+			{
+				calcDiameterCircle(x1, y1, x2, y2, circle);
+			}
+			else
+			{
+				calcDiameterCircle(x1, y1, x3, y3, circle);
+			}
+			return;
+		}
+		circle[0] = x1 + ux;
+		circle[1] = y1 + uy;
+		circle[2] = ux * ux + uy * uy;
+	}
 }
@@ -115,4 +115,296 @@ public class IntersectCalc
 			return null;
 		}
 	}
+
+	/**
+	 * Version of calcIntersect2D(LineSegment, Sphere) which allocates nothing.
+	 * 
+	 * @param collisionNormal
+	 *            Filled in with the normal of the intersection (facing toward
+	 *            the sphere) if there is one. z is set to 0.
+	 * @return The penetration depth or -1 if there is no intersection.
+	 */
+	public static double calcIntersect2D(LineSegment lineSegment,
+			double centerX, double centerY, double radius,
+			Vec3D collisionNormal)
+	{
+		return calcIntersect2D(lineSegment.p1.x, lineSegment.p1.y,
+				lineSegment.p2.x, lineSegment.p2.y, lineSegment.direction.x,
+				lineSegment.direction.y, lineSegment.unitNormal.x,
+				lineSegment.unitNormal.y, lineSegment.length, centerX,
+				centerY, radius, collisionNormal);
+	}
+
+	/**
+	 * Primitive version of calcIntersect2D(LineSegment, Sphere), for line
+	 * segments which have been flattened into arrays. Only x and y are
+	 * considered.
+	 * 
+	 * @param collisionNormal
+	 *            Filled in with the normal of the intersection (facing toward
+	 *            the sphere) if there is one. z is set to 0.
+	 * @return The penetration depth or -1 if there is no intersection.
+	 */
+	public static double calcIntersect2D(double p1x, double p1y, double p2x,
+			double p2y, double directionX, double directionY,
+			double normalX, double normalY, double length, double centerX,
+			double centerY, double radius, Vec3D collisionNormal)
+	{
+		double centerToLineDistance = (centerX - p1x) * normalX
+				+ (centerY - p1y) * normalY;
+
+		// The center of the sphere is actually past the line.
+		if (centerToLineDistance < 0)
+		{
+			return -1;
+		}
+
+		double linePenetration = radius - centerToLineDistance;
+		if (linePenetration <= 0)
+		{
+			return -1;
+		}
+
+		// Distance, projected along line, from p1 (can be negative)
+		double positionOnLine = (centerX - p1x) * directionX
+				+ (centerY - p1y) * directionY;
+		if (positionOnLine <= -radius || positionOnLine >= length + radius)
+		{
+			return -1;
+		}
+
+		double endX;
+		double endY;
+		if (positionOnLine < 0)
+		{
+			endX = p1x;
+			endY = p1y;
+		}
+		else if (positionOnLine > length)
+		{
+			endX = p2x;
+			endY = p2y;
+		}
+		else
+		{
+			collisionNormal.x = normalX;
+			collisionNormal.y = normalY;
+			collisionNormal.z = 0;
+			return linePenetration;
+		}
+
+		// Touching an end point
+		double diffX = centerX - endX;
+		double diffY = centerY - endY;
+		double distance = Math.sqrt(diffX * diffX + diffY * diffY);
+		double penetration = radius - distance;
+		if (penetration < 0)
+		{
+			return -1;
+		}
+		double invDistance = 1.0f / distance;
+		collisionNormal.x = diffX * invDistance;
+		collisionNormal.y = diffY * invDistance;
+		collisionNormal.z = 0;
+		return penetration;
+	}
+
+	/**
+	 * Calculates when a sphere, moving in a straight line, first touches a
+	 * line segment in 2D (assumes z's are equal). Like calcIntersect2D(), only
+	 * contact from the normal side of the line segment is considered.
+	 * 
+	 * @param lineSegment
+	 * @param start
+	 *            The center of the sphere at time 0.
+	 * @param movement
+	 *            How far the center moves between time 0 and 1.
+	 * @param radius
+	 * @param collisionNormal
+	 *            Filled in with the normal of the contact (facing toward the
+	 *            sphere) if there is one.
+	 * @return The time of impact in [0,1] or -1 if the sphere does not touch
+	 *         the line segment. A sphere which already touches the line
+	 *         segment at time 0 (ex: resting on it) and is moving toward it
+	 *         hits it at time 0.
+	 */
+	public static double calcTimeOfImpact2D(LineSegment lineSegment,
+			Vec3D start, Vec3D movement, double radius, Vec3D collisionNormal)
+	{
+		return calcTimeOfImpact2D(lineSegment.p1.x, lineSegment.p1.y,
+				lineSegment.p2.x, lineSegment.p2.y, lineSegment.direction.x,
+				lineSegment.direction.y, lineSegment.unitNormal.x,
+				lineSegment.unitNormal.y, lineSegment.length, start.x,
+				start.y, movement.x, movement.y, radius, collisionNormal);
+	}
+
+	/**
+	 * Primitive version of calcTimeOfImpact2D(LineSegment, ...), for line
+	 * segments which have been flattened into arrays.
+	 * 
+	 * @return The time of impact in [0,1] or -1.
+	 */
+	public static double calcTimeOfImpact2D(double p1x, double p1y,
+			double p2x, double p2y, double directionX, double directionY,
+			double normalX, double normalY, double length, double startX,
+			double startY, double movementX, double movementY,
+			double radius, Vec3D collisionNormal)
+	{
+		double startToLineDistance = (startX - p1x) * normalX
+				+ (startY - p1y) * normalY;
+
+		// Starts behind the line
+		if (startToLineDistance < 0)
+		{
+			return -1;
+		}
+		double approachSpeed = -(movementX * normalX + movementY * normalY);
+		if (approachSpeed <= 0)
+		{
+			return -1;
+		}
+
+		// Time when the sphere touches the infinite line. If it already
+		// touches it, this is 0.
+		double time = Math.max(0, (startToLineDistance - radius)
+				/ approachSpeed);
+		if (time > 1)
+		{
+			return -1;
+		}
+		double positionOnLine = (startX + movementX * time - p1x)
+				* directionX + (startY + movementY * time - p1y) * directionY;
+		if (positionOnLine >= 0 && positionOnLine <= length)
+		{
+			collisionNormal.x = normalX;
+			collisionNormal.y = normalY;
+			collisionNormal.z = 0;
+			return time;
+		}
+
+		// Missed the middle of the segment, so the earliest possible contact
+		// is with one of the end points.
+		double time1 = calcTimeOfImpact2D(p1x, p1y, startX, startY,
+				movementX, movementY, radius);
+		double time2 = calcTimeOfImpact2D(p2x, p2y, startX, startY,
+				movementX, movementY, radius);
+		double endX;
+		double endY;
+		if (time1 >= 0 && (time2 < 0 || time1 <= time2))
+		{
+			time = time1;
+			endX = p1x;
+			endY = p1y;
+		}
+		else if (time2 >= 0)
+		{
+			time = time2;
+			endX = p2x;
+			endY = p2y;
+		}
+		else
+		{
+			return -1;
+		}
+		double diffX = startX + movementX * time - endX;
+		double diffY = startY + movementY * time - endY;
+		if (time == 0)
+		{
+			// Already overlapping the end point, so not exactly radius away
+			double distance = Math.sqrt(diffX * diffX + diffY * diffY);
+			if (distance == 0)
+			{
+				return -1;
+			}
+			collisionNormal.x = diffX / distance;
+			collisionNormal.y = diffY / distance;
+		}
+		else
+		{
+			collisionNormal.x = diffX / radius;
+			collisionNormal.y = diffY / radius;
+		}
+		collisionNormal.z = 0;
+		return time;
+	}
+
+	/**
+	 * Calculates when a moving circle first touches a point.
+	 * 
+	 * @return The time of impact in [0,1] or -1.
+	 */
+	private static double calcTimeOfImpact2D(double pointX, double pointY,
+			double startX, double startY, double movementX,
+			double movementY, double radius)
+	{
+		double diffX = startX - pointX;
+		double diffY = startY - pointY;
+		return calcTimeOfImpact(diffX * diffX + diffY * diffY - radius
+				* radius, diffX * movementX + diffY * movementY, movementX
+				* movementX + movementY * movementY);
+	}
+
+	/**
+	 * Calculates when 2 spheres, both moving in straight lines, first touch.
+	 * 
+	 * @param start1
+	 *            The center of sphere1 at time 0.
+	 * @param movement1
+	 *            How far sphere1's center moves between time 0 and 1.
+	 * @param radius1
+	 * @param start2
+	 * @param movement2
+	 * @param radius2
+	 * @return The time of impact in [0,1] or -1 if the spheres do not touch.
+	 *         Spheres which already overlap at time 0 and are approaching
+	 *         each other touch at time 0.
+	 */
+	public static double calcTimeOfImpact3D(Vec3D start1, Vec3D movement1,
+			double radius1, Vec3D start2, Vec3D movement2, double radius2)
+	{
+		// Work in sphere1's frame of reference
+		double diffX = start2.x - start1.x;
+		double diffY = start2.y - start1.y;
+		double diffZ = start2.z - start1.z;
+		double movementX = movement2.x - movement1.x;
+		double movementY = movement2.y - movement1.y;
+		double movementZ = movement2.z - movement1.z;
+		double radius = radius1 + radius2;
+		return calcTimeOfImpact(diffX * diffX + diffY * diffY + diffZ * diffZ
+				- radius * radius, diffX * movementX + diffY * movementY
+				+ diffZ * movementZ, movementX * movementX + movementY
+				* movementY + movementZ * movementZ);
+	}
+
+	/**
+	 * Solves |diff + t * movement| = radius for the smallest t in [0,1].
+	 * 
+	 * @param c
+	 *            |diff|^2 - radius^2
+	 * @param halfB
+	 *            diff dot movement
+	 * @param a
+	 *            |movement|^2
+	 * @return The time of impact or -1 if there is none. 0 if the distance
+	 *         is already within radius at time 0 and decreasing.
+	 */
+	private static double calcTimeOfImpact(double c, double halfB, double a)
+	{
+		// Moving apart
+		if (halfB >= 0)
+		{
+			return -1;
+		}
+		if (c < 0)
+		{
+			return 0;
+		}
+		double discriminant = halfB * halfB - a * c;
+		if (discriminant < 0)
+		{
+			return -1;
+		}
+		double time = (-halfB - Math.sqrt(discriminant)) / a;
+		return time <= 1 ? time : -1;
+	}
 }
@@ -0,0 +1,34 @@
+package com.pheiffware.lib.physics;
+
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+
+/**
+ * An acceleration which depends on where a dynamic entity is and how fast it is moving (ex: a spring pulling it to an
+ * anchor, drag, or the gravity of a fixed planet). Forces added during ai() are held constant over a time step, but a
+ * field is sampled by the Integrator at points within each step, so higher order integrators can follow it accurately
+ * (see PhysicsSystem.setAccelerationField()).
+ *
+ * Entities are integrated in parallel when the physics system has a parallel pool, so this must not modify shared
+ * state.
+ */
+public interface AccelerationField
+{
+	/**
+	 * Calculates the acceleration of the given entity if it were at the given position with the given velocity.
+	 *
+	 * @param physicalEntity
+	 * @param x
+	 *            position of the entity (see PhysicalEntity.calcPosition())
+	 * @param y
+	 * @param z
+	 * @param vx
+	 *            velocity of the entity
+	 * @param vy
+	 * @param vz
+	 * @param acceleration
+	 *            filled in with the result
+	 */
+	public void calcAcceleration(PhysicalEntity physicalEntity, double x, double y, double z, double vx, double vy, double vz,
+			Vec3D acceleration);
+}
@@ -0,0 +1,104 @@
+package com.pheiffware.lib.physics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.physics.entity.DirectionalGravityEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.PolygonWallEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.SphereEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.WallEntity;
+
+/**
+ * Checks that a steady-state PhysicsSystem.performTimeStep() allocates nothing. A box of bouncing spheres, with a
+ * polygon on the floor, is run with every combination of continuous collision detection, baked static geometry and a
+ * contact solver. Each is warmed up until its buffers have grown, then the bytes allocated by this thread over further
+ * steps are measured with com.sun.management.ThreadMXBean.
+ *
+ * Prints bytes and milliseconds per step for each combination and exits with status 1 if any of them allocated.
+ */
+public class AllocationBenchmark
+{
+	private static final int NUM_SPHERES = 300;
+	private static final int WARM_UP_STEPS = 2000;
+	private static final int MEASURED_STEPS = 200;
+	private static final double TIME_STEP = 1 / 60.0;
+
+	private static final int CCD = 1;
+	private static final int BAKED = 2;
+	private static final int SOLVER = 4;
+
+	public static void main(String[] args)
+	{
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+		{
+			System.out.println("Thread allocation measurement is not supported by this VM");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+		long threadID = Thread.currentThread().getId();
+
+		boolean allocated = false;
+		for (int mode = 0; mode < 8; mode++)
+		{
+			PhysicsSystem physicsSystem = createSystem(mode);
+			for (int i = 0; i < WARM_UP_STEPS; i++)
+			{
+				physicsSystem.performTimeStep(TIME_STEP);
+			}
+			long startBytes = allocationBean.getThreadAllocatedBytes(threadID);
+			long startTime = System.nanoTime();
+			for (int i = 0; i < MEASURED_STEPS; i++)
+			{
+				physicsSystem.performTimeStep(TIME_STEP);
+			}
+			long endTime = System.nanoTime();
+			long bytes = allocationBean.getThreadAllocatedBytes(threadID) - startBytes;
+			allocated |= bytes > 0;
+			System.out.println(describe(mode) + ": " + (double) bytes / MEASURED_STEPS + " bytes/step, "
+					+ (endTime - startTime) / 1e6 / MEASURED_STEPS + " ms/step");
+		}
+		if (allocated)
+		{
+			System.out.println("FAILED: steady-state time steps allocated");
+			System.exit(1);
+		}
+	}
+
+	private static PhysicsSystem createSystem(int mode)
+	{
+		PhysicsSystem physicsSystem = new PhysicsSystem();
+		physicsSystem.setContinuousCollisionDetection((mode & CCD) != 0);
+		if ((mode & SOLVER) != 0)
+		{
+			physicsSystem.setSolverIterations(8);
+		}
+		Vec3D still = new Vec3D(0, 0, 0);
+		physicsSystem.addEntity(new DirectionalGravityEntity(new Vec3D(0, -200, 0)));
+		physicsSystem.addEntity(new WallEntity(new Vec3D(0, 0, 0), new Vec3D(400, 0, 0), 1, still, 0.8));
+		physicsSystem.addEntity(new WallEntity(new Vec3D(0, 0, 0), new Vec3D(0, 400, 0), -1, still, 0.8));
+		physicsSystem.addEntity(new WallEntity(new Vec3D(400, 0, 0), new Vec3D(400, 400, 0), 1, still, 0.8));
+		physicsSystem.addEntity(new PolygonWallEntity(still, 0.8, new Vec3D[] { new Vec3D(150, 50, 0),
+				new Vec3D(250, 50, 0), new Vec3D(200, 100, 0) }));
+		if ((mode & BAKED) != 0)
+		{
+			physicsSystem.bakeStaticGeometry();
+		}
+		Random random = new Random(3);
+		for (int i = 0; i < NUM_SPHERES; i++)
+		{
+			Vec3D center = new Vec3D(20 + random.nextDouble() * 360, 20 + random.nextDouble() * 300, 0);
+			Vec3D velocity = new Vec3D(random.nextDouble() * 200 - 100, random.nextDouble() * 200 - 100, 0);
+			physicsSystem.addEntity(new SphereEntity(center, velocity, 1, 0.8, 4));
+		}
+		return physicsSystem;
+	}
+
+	private static String describe(int mode)
+	{
+		return "ccd " + ((mode & CCD) != 0) + ", baked " + ((mode & BAKED) != 0) + ", solver "
+				+ ((mode & SOLVER) != 0);
+	}
+}
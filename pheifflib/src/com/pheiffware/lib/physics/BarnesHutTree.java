@@ -0,0 +1,524 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A quadtree over point masses in the x,y plane, used to approximate the gravity of n bodies in O(n log n) (the
+ * Barnes-Hut method). Each node holds the total mass and center of mass of the bodies under it. When calculating the
+ * acceleration of a body, a node which is small compared to its distance from the body (size / distance below the
+ * opening angle) is treated as a single mass, and otherwise its children are visited. An opening angle of 0 visits
+ * every body, giving the exact O(n^2) sum.
+ *
+ * The tree is rebuilt from scratch each time. Once the internal arrays have grown large enough, nothing is allocated
+ * (except tasks, when building in parallel). Once built, any number of threads may calculate accelerations at once,
+ * each with its own stack.
+ */
+public class BarnesHutTree
+{
+	// Nodes with this many bodies or fewer are not split
+	private static final int LEAF_SIZE = 8;
+
+	// Bodies at the same position can't be separated, so stop splitting here
+	private static final int MAX_DEPTH = 32;
+
+	// The size of the stack needed by calcAccelerations(). Each node visited pushes at most 4 children, after popping
+	// itself, on each level.
+	public static final int STACK_SIZE = MAX_DEPTH * 3 + 4;
+
+	// When building in parallel, the top levels are split serially and the subtrees below them are built in parallel
+	private static final int PARALLEL_LEVELS = 2;
+
+	// Fewer bodies than this are always built serially
+	private static final int MIN_PARALLEL_BODIES = 4096;
+
+	// Bodies. The arrays are owned by the caller. Subtrees share them with the tree they are part of.
+	private double[] bodyX, bodyY, bodyMass;
+	private int numBodies;
+
+	// Body indices, arranged so each node covers a contiguous range
+	private int[] order = new int[0];
+
+	private int numNodes;
+
+	// The square covered by each node, as its low corner and side length
+	private double[] nodeMinX = new double[64];
+	private double[] nodeMinY = new double[64];
+	private double[] nodeSize = new double[64];
+
+	// Total mass and center of mass of each node
+	private double[] nodeMass = new double[64];
+	private double[] nodeX = new double[64];
+	private double[] nodeY = new double[64];
+
+	// The 1st of each node's 4 children (the others follow it), or -1 for leaves. Children are ordered low x low y,
+	// high x low y, low x high y, high x high y.
+	private int[] nodeChild = new int[64];
+
+	// The range of order covered by each node
+	private int[] nodeStart = new int[64];
+	private int[] nodeEnd = new int[64];
+
+	// For parallel builds, the nodes whose subtrees are built in parallel and the trees they are built in
+	private int numPending = 0;
+	private int[] pendingNodes = new int[1 << (2 * PARALLEL_LEVELS)];
+	private int[] pendingDepths = new int[1 << (2 * PARALLEL_LEVELS)];
+	private final BarnesHutTree[] subtrees = new BarnesHutTree[1 << (2 * PARALLEL_LEVELS)];
+
+	/**
+	 * Builds the tree over the given bodies. The arrays must not change until the tree is rebuilt.
+	 *
+	 * @param x
+	 * @param y
+	 * @param mass
+	 *            must not be negative
+	 * @param numBodies
+	 * @param pool
+	 *            if non-null, the tree is built in parallel
+	 */
+	public void build(double[] x, double[] y, double[] mass, int numBodies, ForkJoinPool pool)
+	{
+		bodyX = x;
+		bodyY = y;
+		bodyMass = mass;
+		this.numBodies = numBodies;
+		if (order.length < numBodies)
+		{
+			order = new int[Math.max(numBodies, order.length * 2)];
+		}
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numBodies; i++)
+		{
+			order[i] = i;
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		// Slightly larger than the bounds, so the highest bodies are inside
+		double size = Math.max(maxX - minX, maxY - minY);
+		size = size * (1 + 1e-9) + Double.MIN_NORMAL;
+
+		numNodes = 1;
+		if (numBodies == 0)
+		{
+			setLeaf(0, 0, 0, 0, 0, 0);
+			return;
+		}
+		if (pool == null || numBodies < MIN_PARALLEL_BODIES)
+		{
+			buildNode(0, minX, minY, size, 0, numBodies, 0);
+			return;
+		}
+		numPending = 0;
+		splitTop(0, minX, minY, size, 0, numBodies, 0);
+		int numTopNodes = numNodes;
+		pool.invoke(new SubtreesTask(0, numPending));
+		for (int i = 0; i < numPending; i++)
+		{
+			appendSubtree(pendingNodes[i], subtrees[i]);
+		}
+		// Children always come after their parents, so this sums the top nodes bottom up. Subtree roots are summed
+		// again, which gives the same result.
+		for (int node = numTopNodes - 1; node >= 0; node--)
+		{
+			if (nodeChild[node] != -1)
+			{
+				sumChildren(node);
+			}
+		}
+	}
+
+	/**
+	 * Builds the given node, covering the square at (minX, minY) of side size, over order[start, end).
+	 */
+	private void buildNode(int node, double minX, double minY, double size, int start, int end, int depth)
+	{
+		if (end - start <= LEAF_SIZE || depth == MAX_DEPTH)
+		{
+			setLeaf(node, minX, minY, size, start, end);
+			return;
+		}
+		int child = split(node, minX, minY, size, start, end);
+		double half = size * 0.5;
+		for (int quadrant = 0; quadrant < 4; quadrant++)
+		{
+			buildNode(child + quadrant, minX + (quadrant & 1) * half, minY + (quadrant >> 1) * half, half, nodeStart[child + quadrant],
+					nodeEnd[child + quadrant], depth + 1);
+		}
+		sumChildren(node);
+	}
+
+	/**
+	 * As buildNode(), but the nodes PARALLEL_LEVELS below the top are only recorded, to be built in parallel.
+	 */
+	private void splitTop(int node, double minX, double minY, double size, int start, int end, int depth)
+	{
+		if (depth == PARALLEL_LEVELS || end - start <= LEAF_SIZE)
+		{
+			// Records the bounds and range for the subtree build
+			nodeMinX[node] = minX;
+			nodeMinY[node] = minY;
+			nodeSize[node] = size;
+			nodeStart[node] = start;
+			nodeEnd[node] = end;
+			pendingNodes[numPending] = node;
+			pendingDepths[numPending] = depth;
+			numPending++;
+			return;
+		}
+		int child = split(node, minX, minY, size, start, end);
+		double half = size * 0.5;
+		for (int quadrant = 0; quadrant < 4; quadrant++)
+		{
+			splitTop(child + quadrant, minX + (quadrant & 1) * half, minY + (quadrant >> 1) * half, half, nodeStart[child + quadrant],
+					nodeEnd[child + quadrant], depth + 1);
+		}
+	}
+
+	/**
+	 * Partitions a node's bodies into quadrants and allocates its 4 children, with their ranges set.
+	 *
+	 * @return the 1st child
+	 */
+	private int split(int node, double minX, double minY, double size, int start, int end)
+	{
+		double half = size * 0.5;
+		int middle = partition(start, end, bodyY, minY + half);
+		int lowMiddle = partition(start, middle, bodyX, minX + half);
+		int highMiddle = partition(middle, end, bodyX, minX + half);
+		int child = allocateNodes(4);
+		nodeMinX[node] = minX;
+		nodeMinY[node] = minY;
+		nodeSize[node] = size;
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+		nodeChild[node] = child;
+		nodeStart[child] = start;
+		nodeEnd[child] = lowMiddle;
+		nodeStart[child + 1] = lowMiddle;
+		nodeEnd[child + 1] = middle;
+		nodeStart[child + 2] = middle;
+		nodeEnd[child + 2] = highMiddle;
+		nodeStart[child + 3] = highMiddle;
+		nodeEnd[child + 3] = end;
+		return child;
+	}
+
+	/**
+	 * Rearranges order[start, end) so bodies whose coordinate is below split come 1st.
+	 *
+	 * @return the index of the 1st body not below split
+	 */
+	private int partition(int start, int end, double[] coordinates, double split)
+	{
+		int i = start;
+		int j = end - 1;
+		while (true)
+		{
+			while (i <= j && coordinates[order[i]] < split)
+			{
+				i++;
+			}
+			while (i <= j && coordinates[order[j]] >= split)
+			{
+				j--;
+			}
+			if (i >= j)
+			{
+				return i;
+			}
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+			i++;
+			j--;
+		}
+	}
+
+	private void setLeaf(int node, double minX, double minY, double size, int start, int end)
+	{
+		nodeMinX[node] = minX;
+		nodeMinY[node] = minY;
+		nodeSize[node] = size;
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+		nodeChild[node] = -1;
+		double mass = 0;
+		double momentX = 0;
+		double momentY = 0;
+		for (int i = start; i < end; i++)
+		{
+			int body = order[i];
+			mass += bodyMass[body];
+			momentX += bodyMass[body] * bodyX[body];
+			momentY += bodyMass[body] * bodyY[body];
+		}
+		setCenterOfMass(node, mass, momentX, momentY);
+	}
+
+	private void sumChildren(int node)
+	{
+		int child = nodeChild[node];
+		double mass = 0;
+		double momentX = 0;
+		double momentY = 0;
+		for (int quadrant = child; quadrant < child + 4; quadrant++)
+		{
+			mass += nodeMass[quadrant];
+			momentX += nodeMass[quadrant] * nodeX[quadrant];
+			momentY += nodeMass[quadrant] * nodeY[quadrant];
+		}
+		setCenterOfMass(node, mass, momentX, momentY);
+	}
+
+	private void setCenterOfMass(int node, double mass, double momentX, double momentY)
+	{
+		nodeMass[node] = mass;
+		if (mass > 0)
+		{
+			nodeX[node] = momentX / mass;
+			nodeY[node] = momentY / mass;
+		}
+		else
+		{
+			nodeX[node] = nodeMinX[node] + nodeSize[node] * 0.5;
+			nodeY[node] = nodeMinY[node] + nodeSize[node] * 0.5;
+		}
+	}
+
+	private int allocateNodes(int count)
+	{
+		int first = numNodes;
+		numNodes += count;
+		if (numNodes > nodeMass.length)
+		{
+			int capacity = Math.max(numNodes, nodeMass.length * 2);
+			nodeMinX = Arrays.copyOf(nodeMinX, capacity);
+			nodeMinY = Arrays.copyOf(nodeMinY, capacity);
+			nodeSize = Arrays.copyOf(nodeSize, capacity);
+			nodeMass = Arrays.copyOf(nodeMass, capacity);
+			nodeX = Arrays.copyOf(nodeX, capacity);
+			nodeY = Arrays.copyOf(nodeY, capacity);
+			nodeChild = Arrays.copyOf(nodeChild, capacity);
+			nodeStart = Arrays.copyOf(nodeStart, capacity);
+			nodeEnd = Arrays.copyOf(nodeEnd, capacity);
+		}
+		return first;
+	}
+
+	/**
+	 * Builds pending subtree i of the given parent tree in this tree, with its root as node 0.
+	 */
+	private void buildSubtree(BarnesHutTree parent, int i)
+	{
+		bodyX = parent.bodyX;
+		bodyY = parent.bodyY;
+		bodyMass = parent.bodyMass;
+		numBodies = parent.numBodies;
+		order = parent.order;
+		int node = parent.pendingNodes[i];
+		numNodes = 1;
+		buildNode(0, parent.nodeMinX[node], parent.nodeMinY[node], parent.nodeSize[node], parent.nodeStart[node], parent.nodeEnd[node],
+				parent.pendingDepths[i]);
+		// Don't hold on to the parent's arrays
+		bodyX = null;
+		bodyY = null;
+		bodyMass = null;
+		order = null;
+	}
+
+	/**
+	 * Copies a subtree's root into the given node and the rest of its nodes onto the end of this tree.
+	 */
+	private void appendSubtree(int node, BarnesHutTree subtree)
+	{
+		int base = allocateNodes(subtree.numNodes - 1) - 1;
+		copyNode(subtree, 0, node, base);
+		for (int i = 1; i < subtree.numNodes; i++)
+		{
+			copyNode(subtree, i, base + i, base);
+		}
+	}
+
+	/**
+	 * Copies a node of the subtree, whose nodes after its root start at base + 1 in this tree.
+	 */
+	private void copyNode(BarnesHutTree subtree, int from, int to, int base)
+	{
+		nodeMinX[to] = subtree.nodeMinX[from];
+		nodeMinY[to] = subtree.nodeMinY[from];
+		nodeSize[to] = subtree.nodeSize[from];
+		nodeMass[to] = subtree.nodeMass[from];
+		nodeX[to] = subtree.nodeX[from];
+		nodeY[to] = subtree.nodeY[from];
+		nodeStart[to] = subtree.nodeStart[from];
+		nodeEnd[to] = subtree.nodeEnd[from];
+		int child = subtree.nodeChild[from];
+		nodeChild[to] = child == -1 ? -1 : base + child;
+	}
+
+	@SuppressWarnings("serial")
+	private class SubtreesTask extends RecursiveAction
+	{
+		private final int start;
+		private final int end;
+
+		public SubtreesTask(int start, int end)
+		{
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (end - start == 1)
+			{
+				if (subtrees[start] == null)
+				{
+					subtrees[start] = new BarnesHutTree();
+				}
+				subtrees[start].buildSubtree(BarnesHutTree.this, start);
+			}
+			else
+			{
+				int middle = (start + end) >>> 1;
+				invokeAll(new SubtreesTask(start, middle), new SubtreesTask(middle, end));
+			}
+		}
+	}
+
+	/**
+	 * Calculates the acceleration, due to all other bodies, of the bodies at order positions [start, end) (see
+	 * getBody()). Visiting bodies in tree order keeps nearby bodies, which visit the same nodes, together.
+	 *
+	 * @param start
+	 * @param end
+	 * @param numTargets
+	 *            bodies with this index or above only attract others, and their accelerations are not calculated
+	 * @param gravitationalConstant
+	 * @param openingAngle
+	 *            nodes whose size / distance is below this are treated as a single mass. 0 is exact.
+	 * @param softening
+	 *            added, squared, to every squared distance, so close bodies don't produce huge accelerations
+	 * @param accelerationX
+	 *            filled in for each body, by body index
+	 * @param accelerationY
+	 * @param stack
+	 *            scratch space of at least STACK_SIZE
+	 */
+	public void calcAccelerations(int start, int end, int numTargets, double gravitationalConstant, double openingAngle,
+			double softening, double[] accelerationX, double[] accelerationY, int[] stack)
+	{
+		double openingAngleSquared = openingAngle * openingAngle;
+		double softeningSquared = softening * softening;
+		for (int i = start; i < end; i++)
+		{
+			int body = order[i];
+			if (body >= numTargets)
+			{
+				continue;
+			}
+			double x = bodyX[body];
+			double y = bodyY[body];
+			double sumX = 0;
+			double sumY = 0;
+			stack[0] = 0;
+			int stackSize = 1;
+			while (stackSize > 0)
+			{
+				int node = stack[--stackSize];
+				double mass = nodeMass[node];
+				if (mass == 0)
+				{
+					continue;
+				}
+				int child = nodeChild[node];
+				if (child == -1)
+				{
+					int nodeEnd = this.nodeEnd[node];
+					for (int j = nodeStart[node]; j < nodeEnd; j++)
+					{
+						int other = order[j];
+						if (other == body)
+						{
+							continue;
+						}
+						double xdiff = bodyX[other] - x;
+						double ydiff = bodyY[other] - y;
+						double distanceSquared = xdiff * xdiff + ydiff * ydiff + softeningSquared;
+						if (distanceSquared > 0)
+						{
+							double strength = bodyMass[other] / (distanceSquared * Math.sqrt(distanceSquared));
+							sumX += xdiff * strength;
+							sumY += ydiff * strength;
+						}
+					}
+					continue;
+				}
+				double xdiff = nodeX[node] - x;
+				double ydiff = nodeY[node] - y;
+				double distanceSquared = xdiff * xdiff + ydiff * ydiff;
+				double size = nodeSize[node];
+				// Nodes containing the body are always opened, so it never attracts itself
+				if (size * size < openingAngleSquared * distanceSquared && !contains(node, x, y))
+				{
+					distanceSquared += softeningSquared;
+					double strength = mass / (distanceSquared * Math.sqrt(distanceSquared));
+					sumX += xdiff * strength;
+					sumY += ydiff * strength;
+				}
+				else
+				{
+					// Pushed in reverse, so children are visited in order
+					stack[stackSize++] = child + 3;
+					stack[stackSize++] = child + 2;
+					stack[stackSize++] = child + 1;
+					stack[stackSize++] = child;
+				}
+			}
+			accelerationX[body] = sumX * gravitationalConstant;
+			accelerationY[body] = sumY * gravitationalConstant;
+		}
+	}
+
+	private boolean contains(int node, double x, double y)
+	{
+		double minX = nodeMinX[node];
+		double minY = nodeMinY[node];
+		double size = nodeSize[node];
+		return x >= minX && x <= minX + size && y >= minY && y <= minY + size;
+	}
+
+	/**
+	 * @param i
+	 * @return the index of the body at position i of the tree order.
+	 */
+	public final int getBody(int i)
+	{
+		return order[i];
+	}
+
+	public final int getNumBodies()
+	{
+		return numBodies;
+	}
+
+	public final int getNumNodes()
+	{
+		return numNodes;
+	}
+
+	/**
+	 * @return the total mass of all bodies.
+	 */
+	public final double getTotalMass()
+	{
+		return nodeMass[0];
+	}
+}
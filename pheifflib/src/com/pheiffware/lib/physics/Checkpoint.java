@@ -0,0 +1,82 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+/**
+ * A saved copy of the full state of a PhysicsSystem, held in primitive arrays, which the system can later be restored
+ * to exactly (see PhysicsSystem.saveCheckpoint()). Saving and restoring are bulk copies of every entity's mutable
+ * state (see Entity.writeCheckpoint()), with no objects created or serialized, so once a checkpoint's arrays have grown
+ * large enough, both allocate nothing.
+ *
+ * A checkpoint only covers state which changes as the simulation runs. It can only be restored to the system it came
+ * from, and only while that system has the same entities it had when the checkpoint was saved.
+ */
+public class Checkpoint
+{
+	private static final int INITIAL_CAPACITY = 64;
+
+	// The system this was saved from, or null if nothing has been saved
+	PhysicsSystem source;
+
+	// Changes whenever the source's entities are added, removed or baked
+	int structureVersion;
+
+	double totalRunTime;
+	double uniformAccelerationX;
+	double uniformAccelerationY;
+	double uniformAccelerationZ;
+
+	// Handles of the dynamic entities, followed by the sleeping entities, in store order
+	int numDynamicEntities;
+	int numSleepingEntities;
+	int[] handles = new int[INITIAL_CAPACITY];
+
+	// Every entity's state, in the order the system writes it
+	int stateSize;
+	double[] state = new double[INITIAL_CAPACITY];
+
+	// The contact solver which saved solverState, or null if there was no solver
+	ContactSolver solver;
+
+	// State from solver.createState(), kept so later saves from the same solver can reuse it
+	Object solverState;
+
+	/**
+	 * Makes sure there is room for the given number of handles and values of entity state, keeping what is there.
+	 */
+	final void ensureCapacity(int numHandles, int stateSize)
+	{
+		if (handles.length < numHandles)
+		{
+			handles = Arrays.copyOf(handles, Math.max(numHandles, handles.length * 2));
+		}
+		if (state.length < stateSize)
+		{
+			state = Arrays.copyOf(state, Math.max(stateSize, state.length * 2));
+		}
+	}
+
+	/**
+	 * @return true if something has been saved in this checkpoint.
+	 */
+	public final boolean isSaved()
+	{
+		return source != null;
+	}
+
+	/**
+	 * @return the simulation time the checkpoint was saved at (see PhysicsSystem.getTotalRunTime()).
+	 */
+	public final double getTotalRunTime()
+	{
+		return totalRunTime;
+	}
+
+	/**
+	 * @return the number of values of entity state held.
+	 */
+	public final int getStateSize()
+	{
+		return stateSize;
+	}
+}
@@ -0,0 +1,169 @@
+package com.pheiffware.lib.physics;
+
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.LineSegmentEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.PolygonEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.SphereEntity;
+
+/**
+ * A table of collision kernels, indexed by the shape types (see PhysicalEntity.getShapeType()) of the 2 entities in a
+ * pair. Each kernel resolves a whole batch of pairs of the same shape types in a loop, so every call within the loop
+ * has a single, known target which the JIT can inline, rather than going through instanceof chains in
+ * resolveCollision(). This is the narrowphase of a PhysicsSystem, and any kernel may be replaced (see setKernel()).
+ */
+public class CollisionDispatch
+{
+	/**
+	 * Resolves collisions for a batch of pairs which all have the same shape types.
+	 */
+	public static abstract class PairKernel
+	{
+		/**
+		 * Resolves pairs (first[pairs[i]], second[pairs[i]]) for i in [start, end), in order. Contacts must be added
+		 * through contacts.addAndResolve(). When the buffer defers resolution (see ContactBuffer.setDeferred()),
+		 * kernels may be run in parallel over any pairs, so they must not modify the entities then.
+		 */
+		public abstract void resolvePairs(PhysicalEntity[] first, PhysicalEntity[] second, int[] pairs, int start, int end,
+				double elapsedTime, ContactBuffer contacts) throws InteractionException;
+	}
+
+	public static final int NUM_KERNELS = PhysicalEntity.NUM_SHAPE_TYPES * PhysicalEntity.NUM_SHAPE_TYPES;
+
+	private final PairKernel[] kernels = new PairKernel[NUM_KERNELS];
+
+	/**
+	 * Creates a table with kernels for every built in shape type.
+	 */
+	public CollisionDispatch()
+	{
+		PairKernel other = new OtherKernel();
+		for (int type = 0; type < PhysicalEntity.NUM_SHAPE_TYPES; type++)
+		{
+			kernels[getKernelId(PhysicalEntity.SHAPE_OTHER, type)] = other;
+			kernels[getKernelId(type, PhysicalEntity.SHAPE_OTHER)] = other;
+		}
+		kernels[getKernelId(PhysicalEntity.SHAPE_SPHERE, PhysicalEntity.SHAPE_SPHERE)] = new SphereSphereKernel();
+		kernels[getKernelId(PhysicalEntity.SHAPE_LINE_SEGMENT, PhysicalEntity.SHAPE_SPHERE)] = new LineSegmentSphereKernel();
+		kernels[getKernelId(PhysicalEntity.SHAPE_SPHERE, PhysicalEntity.SHAPE_LINE_SEGMENT)] = new SphereLineSegmentKernel();
+		kernels[getKernelId(PhysicalEntity.SHAPE_POLYGON, PhysicalEntity.SHAPE_SPHERE)] = new PolygonSphereKernel();
+		kernels[getKernelId(PhysicalEntity.SHAPE_SPHERE, PhysicalEntity.SHAPE_POLYGON)] = new SpherePolygonKernel();
+	}
+
+	public static int getKernelId(int shapeType1, int shapeType2)
+	{
+		return shapeType1 * PhysicalEntity.NUM_SHAPE_TYPES + shapeType2;
+	}
+
+	/**
+	 * @param kernelId
+	 *            see getKernelId()
+	 * @return null if entities of these shape types never collide.
+	 */
+	public final PairKernel getKernel(int kernelId)
+	{
+		return kernels[kernelId];
+	}
+
+	/**
+	 * Replaces the kernel used for pairs of the given shape types. The static entity of a static/dynamic pair is
+	 * always 1st, but either entity of a dynamic pair may be, so most shape combinations need a kernel in both orders.
+	 *
+	 * @param shapeType1
+	 * @param shapeType2
+	 * @param kernel
+	 *            null if entities of these shape types never collide.
+	 */
+	public final void setKernel(int shapeType1, int shapeType2, PairKernel kernel)
+	{
+		kernels[getKernelId(shapeType1, shapeType2)] = kernel;
+	}
+
+	private static class SphereSphereKernel extends PairKernel
+	{
+		@Override
+		public void resolvePairs(PhysicalEntity[] first, PhysicalEntity[] second, int[] pairs, int start, int end, double elapsedTime,
+				ContactBuffer contacts)
+		{
+			for (int i = start; i < end; i++)
+			{
+				int pair = pairs[i];
+				SphereEntity.resolveSphereSphereCollision((SphereEntity) first[pair], (SphereEntity) second[pair], contacts);
+			}
+		}
+	}
+
+	private static class LineSegmentSphereKernel extends PairKernel
+	{
+		@Override
+		public void resolvePairs(PhysicalEntity[] first, PhysicalEntity[] second, int[] pairs, int start, int end, double elapsedTime,
+				ContactBuffer contacts)
+		{
+			for (int i = start; i < end; i++)
+			{
+				int pair = pairs[i];
+				LineSegmentEntity.resolveLineSphereCollision((LineSegmentEntity) first[pair], (SphereEntity) second[pair], elapsedTime,
+						contacts);
+			}
+		}
+	}
+
+	private static class SphereLineSegmentKernel extends PairKernel
+	{
+		@Override
+		public void resolvePairs(PhysicalEntity[] first, PhysicalEntity[] second, int[] pairs, int start, int end, double elapsedTime,
+				ContactBuffer contacts)
+		{
+			for (int i = start; i < end; i++)
+			{
+				int pair = pairs[i];
+				LineSegmentEntity.resolveLineSphereCollision((LineSegmentEntity) second[pair], (SphereEntity) first[pair], elapsedTime,
+						contacts);
+			}
+		}
+	}
+
+	private static class PolygonSphereKernel extends PairKernel
+	{
+		@Override
+		public void resolvePairs(PhysicalEntity[] first, PhysicalEntity[] second, int[] pairs, int start, int end, double elapsedTime,
+				ContactBuffer contacts)
+		{
+			for (int i = start; i < end; i++)
+			{
+				int pair = pairs[i];
+				PolygonEntity.resolvePolygonSphereCollision((PolygonEntity) first[pair], (SphereEntity) second[pair], elapsedTime, contacts);
+			}
+		}
+	}
+
+	private static class SpherePolygonKernel extends PairKernel
+	{
+		@Override
+		public void resolvePairs(PhysicalEntity[] first, PhysicalEntity[] second, int[] pairs, int start, int end, double elapsedTime,
+				ContactBuffer contacts)
+		{
+			for (int i = start; i < end; i++)
+			{
+				int pair = pairs[i];
+				PolygonEntity.resolvePolygonSphereCollision((PolygonEntity) second[pair], (SphereEntity) first[pair], elapsedTime, contacts);
+			}
+		}
+	}
+
+	/**
+	 * Entities of unknown shape resolve their own collisions.
+	 */
+	private static class OtherKernel extends PairKernel
+	{
+		@Override
+		public void resolvePairs(PhysicalEntity[] first, PhysicalEntity[] second, int[] pairs, int start, int end, double elapsedTime,
+				ContactBuffer contacts) throws InteractionException
+		{
+			for (int i = start; i < end; i++)
+			{
+				int pair = pairs[i];
+				first[pair].resolveCollision(second[pair], elapsedTime, contacts);
+			}
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.physics.broadphase.PairBuffer;
+
+/**
+ * Partitions dynamic entities into islands: groups of entities connected by candidate collision pairs (union-find
+ * over the contact graph). Static entities never move when collisions are resolved, so they do not join islands
+ * together. Resolving collisions in one island can never touch an entity in another, so islands may be resolved in
+ * parallel.
+ *
+ * Islands, the bodies within an island and the pairs within an island are all ordered deterministically by entity
+ * index and pair order, regardless of how the islands are later processed.
+ */
+public class CollisionIslands
+{
+	private int numIslands;
+
+	// Union-find forest over dynamic entity indices
+	private int[] parent = new int[16];
+
+	// Island of each dynamic entity
+	private int[] bodyIsland = new int[16];
+
+	// Dynamic entity indices grouped by island. Island i covers [islandBodyStart[i], islandBodyStart[i + 1]).
+	private int[] islandBodyStart = new int[17];
+	private int[] bodies = new int[16];
+
+	// Candidate pair indices grouped by island. Within each island, static pairs come before dynamic pairs.
+	private int[] islandPairStart = new int[17];
+	private int[] pairs = new int[16];
+
+	// Scratch space used while filling the above
+	private int[] cursor = new int[16];
+
+	/**
+	 * Builds islands from the candidate pairs. Ids in the pair buffer are the broadphase ids: static entities have
+	 * ids [0, numStaticEntities) and dynamic entities follow.
+	 *
+	 * @param numStaticEntities
+	 * @param numDynamicEntities
+	 * @param candidatePairs
+	 */
+	public void build(int numStaticEntities, int numDynamicEntities, PairBuffer candidatePairs)
+	{
+		ensureBodyCapacity(numDynamicEntities);
+		int numPairs = candidatePairs.size();
+		if (pairs.length < numPairs)
+		{
+			pairs = new int[Math.max(numPairs, pairs.length * 2)];
+		}
+
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			parent[i] = i;
+		}
+		for (int i = 0; i < numPairs; i++)
+		{
+			int id1 = candidatePairs.getFirst(i);
+			if (id1 >= numStaticEntities)
+			{
+				union(id1 - numStaticEntities, candidatePairs.getSecond(i) - numStaticEntities);
+			}
+		}
+
+		// Number islands in order of their lowest entity index
+		numIslands = 0;
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			int root = find(i);
+			if (root == i)
+			{
+				bodyIsland[i] = numIslands;
+				numIslands++;
+			}
+			else
+			{
+				bodyIsland[i] = bodyIsland[root];
+			}
+		}
+
+		// Group bodies by island (counting sort, stable)
+		Arrays.fill(islandBodyStart, 0, numIslands + 1, 0);
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			islandBodyStart[bodyIsland[i] + 1]++;
+		}
+		for (int island = 0; island < numIslands; island++)
+		{
+			islandBodyStart[island + 1] += islandBodyStart[island];
+		}
+		System.arraycopy(islandBodyStart, 0, cursor, 0, numIslands);
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			bodies[cursor[bodyIsland[i]]++] = i;
+		}
+
+		// Group pairs by island (counting sort, stable, static pairs 1st)
+		Arrays.fill(islandPairStart, 0, numIslands + 1, 0);
+		for (int i = 0; i < numPairs; i++)
+		{
+			islandPairStart[getPairIsland(candidatePairs, i, numStaticEntities) + 1]++;
+		}
+		for (int island = 0; island < numIslands; island++)
+		{
+			islandPairStart[island + 1] += islandPairStart[island];
+		}
+		System.arraycopy(islandPairStart, 0, cursor, 0, numIslands);
+		for (int i = 0; i < numPairs; i++)
+		{
+			if (candidatePairs.getFirst(i) < numStaticEntities)
+			{
+				pairs[cursor[getPairIsland(candidatePairs, i, numStaticEntities)]++] = i;
+			}
+		}
+		for (int i = 0; i < numPairs; i++)
+		{
+			if (candidatePairs.getFirst(i) >= numStaticEntities)
+			{
+				pairs[cursor[getPairIsland(candidatePairs, i, numStaticEntities)]++] = i;
+			}
+		}
+	}
+
+	private int getPairIsland(PairBuffer candidatePairs, int pair, int numStaticEntities)
+	{
+		// The 2nd id of a pair is always dynamic
+		return bodyIsland[candidatePairs.getSecond(pair) - numStaticEntities];
+	}
+
+	private int find(int i)
+	{
+		while (parent[i] != i)
+		{
+			// Path halving
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Joins the sets containing i and j. The lower root always becomes the parent, so each island's root is its
+	 * lowest entity index.
+	 */
+	private void union(int i, int j)
+	{
+		int rootI = find(i);
+		int rootJ = find(j);
+		if (rootI < rootJ)
+		{
+			parent[rootJ] = rootI;
+		}
+		else if (rootJ < rootI)
+		{
+			parent[rootI] = rootJ;
+		}
+	}
+
+	private void ensureBodyCapacity(int numDynamicEntities)
+	{
+		if (parent.length < numDynamicEntities)
+		{
+			int capacity = Math.max(numDynamicEntities, parent.length * 2);
+			parent = new int[capacity];
+			bodyIsland = new int[capacity];
+			bodies = new int[capacity];
+			cursor = new int[capacity];
+			islandBodyStart = new int[capacity + 1];
+			islandPairStart = new int[capacity + 1];
+		}
+	}
+
+	public final int getNumIslands()
+	{
+		return numIslands;
+	}
+
+	public final int getIsland(int body)
+	{
+		return bodyIsland[body];
+	}
+
+	public final int getBodyStart(int island)
+	{
+		return islandBodyStart[island];
+	}
+
+	public final int getBodyEnd(int island)
+	{
+		return islandBodyStart[island + 1];
+	}
+
+	/**
+	 * @param index
+	 *            in the range [getBodyStart(island), getBodyEnd(island))
+	 * @return index of a dynamic entity
+	 */
+	public final int getBody(int index)
+	{
+		return bodies[index];
+	}
+
+	/**
+	 * @return dynamic entity indices grouped by island. Island i's bodies are at [getBodyStart(i), getBodyEnd(i)).
+	 */
+	public final int[] getBodies()
+	{
+		return bodies;
+	}
+
+	/**
+	 * @return candidate pair indices grouped by island. Island i's pairs are at [getPairStart(i), getPairEnd(i)).
+	 */
+	public final int[] getPairs()
+	{
+		return pairs;
+	}
+
+	public final int getPairStart(int island)
+	{
+		return islandPairStart[island];
+	}
+
+	public final int getPairEnd(int island)
+	{
+		return islandPairStart[island + 1];
+	}
+
+	/**
+	 * @param index
+	 *            in the range [getPairStart(island), getPairEnd(island))
+	 * @return index of a pair in the candidate pair buffer
+	 */
+	public final int getPair(int index)
+	{
+		return pairs[index];
+	}
+}
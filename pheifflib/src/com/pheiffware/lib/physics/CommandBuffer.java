@@ -0,0 +1,109 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.physics.entity.Entity;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+
+/**
+ * Records changes an entity's ai() wants to make to the world, so they can be applied later on a single thread. This
+ * lets many ai() calls run in parallel against an unchanging world. Buffers are reused from step to step, so once they
+ * have grown large enough, recording allocates nothing.
+ */
+public class CommandBuffer
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int numForces = 0;
+	private PhysicalEntity[] forceTargets = new PhysicalEntity[INITIAL_CAPACITY];
+	private double[] forces = new double[INITIAL_CAPACITY * 3];
+
+	private final Vec3D uniformAcceleration = new Vec3D(0, 0, 0);
+
+	private int numAdditions = 0;
+	private Entity[] additions = new Entity[INITIAL_CAPACITY];
+
+	private int numRemovals = 0;
+	private int[] removals = new int[INITIAL_CAPACITY];
+
+	public final void addForce(PhysicalEntity target, double fx, double fy, double fz)
+	{
+		if (numForces == forceTargets.length)
+		{
+			forceTargets = Arrays.copyOf(forceTargets, numForces * 2);
+			forces = Arrays.copyOf(forces, numForces * 6);
+		}
+		forceTargets[numForces] = target;
+		forces[numForces * 3] = fx;
+		forces[numForces * 3 + 1] = fy;
+		forces[numForces * 3 + 2] = fz;
+		numForces++;
+	}
+
+	public final void addForce(PhysicalEntity target, Vec3D direction, double magnitude)
+	{
+		addForce(target, direction.x * magnitude, direction.y * magnitude, direction.z * magnitude);
+	}
+
+	/**
+	 * See PhysicsSystem.addUniformAcceleration().
+	 *
+	 * @param acceleration
+	 */
+	public final void addUniformAcceleration(Vec3D acceleration)
+	{
+		uniformAcceleration.addTo(acceleration);
+	}
+
+	public final void addEntity(Entity entity)
+	{
+		if (numAdditions == additions.length)
+		{
+			additions = Arrays.copyOf(additions, numAdditions * 2);
+		}
+		additions[numAdditions] = entity;
+		numAdditions++;
+	}
+
+	public final void removeEntity(int handle)
+	{
+		if (numRemovals == removals.length)
+		{
+			removals = Arrays.copyOf(removals, numRemovals * 2);
+		}
+		removals[numRemovals] = handle;
+		numRemovals++;
+	}
+
+	/**
+	 * Applies all recorded commands, in the order they were recorded (by kind), and then clears the buffer.
+	 *
+	 * @param physicsSystem
+	 */
+	public void apply(PhysicsSystem physicsSystem)
+	{
+		for (int i = 0; i < numForces; i++)
+		{
+			forceTargets[i].addForce(forces[i * 3], forces[i * 3 + 1], forces[i * 3 + 2]);
+			forceTargets[i] = null;
+		}
+		numForces = 0;
+
+		physicsSystem.addUniformAcceleration(uniformAcceleration);
+		uniformAcceleration.toZero();
+
+		for (int i = 0; i < numAdditions; i++)
+		{
+			physicsSystem.addEntity(additions[i]);
+			additions[i] = null;
+		}
+		numAdditions = 0;
+
+		for (int i = 0; i < numRemovals; i++)
+		{
+			physicsSystem.removeEntity(removals[i]);
+		}
+		numRemovals = 0;
+	}
+}
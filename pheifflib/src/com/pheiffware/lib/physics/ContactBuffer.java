@@ -0,0 +1,265 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntityCollision;
+
+/**
+ * Records the contacts found by the narrowphase during a time step. By default, each contact is resolved as soon as it
+ * is added, because resolving moves entities and so affects later tests, but the buffer keeps all of them as a record
+ * of the step. Alternatively, resolution can be deferred until all contacts have been found and then solved together
+ * (see setDeferred() and solve()). Buffers are reused from step to step, so once they have grown large enough, finding
+ * and resolving contacts allocates nothing.
+ *
+ * A buffer also holds scratch vectors for narrowphase tests, so each thread needs its own.
+ */
+public class ContactBuffer
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int numContacts = 0;
+
+	// Contact i is between entities[i * 2] and entities[i * 2 + 1]
+	private PhysicalEntity[] entities = new PhysicalEntity[INITIAL_CAPACITY * 2];
+
+	// Normals, facing from the 1st entity toward the 2nd, as x,y,z triples
+	private double[] normals = new double[INITIAL_CAPACITY * 3];
+	private double[] penetrations = new double[INITIAL_CAPACITY];
+
+	// Total impulse applied along each normal by solve()
+	private double[] impulses = new double[INITIAL_CAPACITY];
+
+	// For solve(), the speed each contact's entities should separate at
+	private double[] separatingSpeeds = new double[INITIAL_CAPACITY];
+
+	// When set, addAndResolve() only records contacts
+	private boolean deferred = false;
+
+	// Scratch space for narrowphase tests
+	public final Vec3D normal = new Vec3D(0, 0, 0);
+	public final Vec3D impactNormal = new Vec3D(0, 0, 0);
+	public final Vec3D movement1 = new Vec3D(0, 0, 0);
+	public final Vec3D movement2 = new Vec3D(0, 0, 0);
+
+	// Scratch space for edge queries (see EdgeTree.queryRect()). Replaced with a larger array when a query finds more.
+	public int[] foundEdges = new int[INITIAL_CAPACITY];
+
+	// Scratch space for broadphase queries (see Broadphase.queryRect()). Replaced with a larger array when a query finds
+	// more.
+	public int[] foundEntities = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Records a contact without resolving it.
+	 *
+	 * @return the index of the contact
+	 */
+	public final int add(PhysicalEntity entity1, PhysicalEntity entity2, double normalX, double normalY, double normalZ, double penetration)
+	{
+		if (numContacts == penetrations.length)
+		{
+			entities = Arrays.copyOf(entities, numContacts * 4);
+			normals = Arrays.copyOf(normals, numContacts * 6);
+			penetrations = Arrays.copyOf(penetrations, numContacts * 2);
+			impulses = Arrays.copyOf(impulses, numContacts * 2);
+			separatingSpeeds = Arrays.copyOf(separatingSpeeds, numContacts * 2);
+		}
+		entities[numContacts * 2] = entity1;
+		entities[numContacts * 2 + 1] = entity2;
+		normals[numContacts * 3] = normalX;
+		normals[numContacts * 3 + 1] = normalY;
+		normals[numContacts * 3 + 2] = normalZ;
+		penetrations[numContacts] = penetration;
+		impulses[numContacts] = 0;
+		return numContacts++;
+	}
+
+	/**
+	 * Records a contact and immediately resolves it (see PhysicalEntityCollision.resolve()), unless resolution is
+	 * deferred.
+	 *
+	 * @param entity1
+	 *            may have infinite mass
+	 * @param entity2
+	 * @param normal
+	 *            facing from entity1 toward entity2
+	 * @param penetration
+	 */
+	public final void addAndResolve(PhysicalEntity entity1, PhysicalEntity entity2, Vec3D normal, double penetration)
+	{
+		add(entity1, entity2, normal.x, normal.y, normal.z, penetration);
+		if (!deferred)
+		{
+			PhysicalEntityCollision.resolve(entity1, entity2, normal.x, normal.y, normal.z, penetration);
+		}
+	}
+
+	/**
+	 * Sets whether addAndResolve() only records contacts, so they can be solved together by solve().
+	 *
+	 * @param deferred
+	 */
+	public final void setDeferred(boolean deferred)
+	{
+		this.deferred = deferred;
+	}
+
+	public final boolean isDeferred()
+	{
+		return deferred;
+	}
+
+	/**
+	 * Resolves all contacts together with a sequential impulse solver. Each contact starts with the impulse its match
+	 * needed last time step (warm starting), then every contact is repeatedly corrected, in order, so its entities stop
+	 * approaching (or bounce), using impulses which never pull entities together. Contacts affect each other through
+	 * shared entities, so stacks and piles need several iterations to settle, but warm starting means a resting stack
+	 * needs few. Finally, entities are moved apart so they are just touching (see PhysicalEntityCollision.unEmbed()).
+	 *
+	 * @param cache
+	 *            impulses found here are used for warm starting. This is only read, so buffers may be solved in
+	 *            parallel (see storeImpulses()).
+	 * @param iterations
+	 */
+	public final void solve(ContactCache cache, int iterations)
+	{
+		// Bounces depend on how fast entities approached before any impulses
+		for (int i = 0; i < numContacts; i++)
+		{
+			separatingSpeeds[i] = PhysicalEntityCollision.calcSeparatingSpeed(entities[i * 2], entities[i * 2 + 1], normals[i * 3],
+					normals[i * 3 + 1], normals[i * 3 + 2]);
+		}
+
+		int ordinal = 0;
+		for (int i = 0; i < numContacts; i++)
+		{
+			PhysicalEntity entity1 = entities[i * 2];
+			PhysicalEntity entity2 = entities[i * 2 + 1];
+			ordinal = calcOrdinal(i, ordinal);
+			impulses[i] = cache.find(entity1, entity2, ordinal);
+			applyImpulse(entity1, entity2, normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2], impulses[i]);
+		}
+
+		for (int iteration = 0; iteration < iterations; iteration++)
+		{
+			for (int i = 0; i < numContacts; i++)
+			{
+				PhysicalEntity entity1 = entities[i * 2];
+				PhysicalEntity entity2 = entities[i * 2 + 1];
+				double normalX = normals[i * 3];
+				double normalY = normals[i * 3 + 1];
+				double normalZ = normals[i * 3 + 2];
+				double separatingVelocity = (entity2.velocity.x - entity1.velocity.x) * normalX + (entity2.velocity.y - entity1.velocity.y)
+						* normalY + (entity2.velocity.z - entity1.velocity.z) * normalZ;
+				double impulse = (separatingSpeeds[i] - separatingVelocity) / (entity1.inverseMass + entity2.inverseMass);
+
+				// The total impulse may only push entities apart
+				double totalImpulse = Math.max(0, impulses[i] + impulse);
+				impulse = totalImpulse - impulses[i];
+				impulses[i] = totalImpulse;
+				applyImpulse(entity1, entity2, normalX, normalY, normalZ, impulse);
+			}
+		}
+
+		for (int i = 0; i < numContacts; i++)
+		{
+			PhysicalEntityCollision.unEmbed(entities[i * 2], entities[i * 2 + 1], normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2],
+					penetrations[i]);
+		}
+	}
+
+	/**
+	 * Stores the impulses found by solve() in the given cache, for warm starting next time step.
+	 *
+	 * @param cache
+	 */
+	public final void storeImpulses(ContactCache cache)
+	{
+		int ordinal = 0;
+		for (int i = 0; i < numContacts; i++)
+		{
+			ordinal = calcOrdinal(i, ordinal);
+			cache.store(entities[i * 2], entities[i * 2 + 1], ordinal, impulses[i]);
+		}
+	}
+
+	/**
+	 * Calculates the number of contacts between the same entities before the given contact. A pair's contacts are
+	 * always found together, so they are consecutive.
+	 *
+	 * @param contact
+	 * @param previousOrdinal
+	 *            the ordinal of the previous contact
+	 */
+	private int calcOrdinal(int contact, int previousOrdinal)
+	{
+		if (contact > 0 && entities[contact * 2] == entities[contact * 2 - 2] && entities[contact * 2 + 1] == entities[contact * 2 - 1])
+		{
+			return previousOrdinal + 1;
+		}
+		return 0;
+	}
+
+	private static void applyImpulse(PhysicalEntity entity1, PhysicalEntity entity2, double normalX, double normalY, double normalZ,
+			double impulse)
+	{
+		if (entity1.inverseMass > 0)
+		{
+			entity1.applyImpulse(normalX, normalY, normalZ, -impulse * entity1.inverseMass);
+		}
+		entity2.applyImpulse(normalX, normalY, normalZ, impulse * entity2.inverseMass);
+	}
+
+	/**
+	 * Forgets all contacts.
+	 */
+	public final void clear()
+	{
+		Arrays.fill(entities, 0, numContacts * 2, null);
+		numContacts = 0;
+	}
+
+	public final int size()
+	{
+		return numContacts;
+	}
+
+	public final PhysicalEntity getEntity1(int contact)
+	{
+		return entities[contact * 2];
+	}
+
+	public final PhysicalEntity getEntity2(int contact)
+	{
+		return entities[contact * 2 + 1];
+	}
+
+	public final double getNormalX(int contact)
+	{
+		return normals[contact * 3];
+	}
+
+	public final double getNormalY(int contact)
+	{
+		return normals[contact * 3 + 1];
+	}
+
+	public final double getNormalZ(int contact)
+	{
+		return normals[contact * 3 + 2];
+	}
+
+	public final double getPenetration(int contact)
+	{
+		return penetrations[contact];
+	}
+
+	/**
+	 * @return the total impulse applied to the contact by solve(). 0 for contacts which were resolved immediately.
+	 */
+	public final double getImpulse(int contact)
+	{
+		return impulses[contact];
+	}
+}
@@ -0,0 +1,201 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+
+/**
+ * Remembers the total impulse the solver applied to each contact during the last time step, so the next step's solve
+ * can start from it (warm starting). Contacts are matched by the handles of their 2 entities, in either order, and their
+ * order among that pair's contacts (ex: a sphere resting in the corner of a polygon has 2 contacts with it).
+ *
+ * Lookups only read the last step's table, so any number of threads may look up contacts at once. Storing is not
+ * thread safe.
+ */
+public class ContactCache
+{
+	private static final int INITIAL_CAPACITY = 64;
+
+	// Marks an empty slot. Entities without handles are never cached, so this is never a real key.
+	private static final long EMPTY = -1L;
+
+	// Contacts from the last time step, which are looked up
+	private Table previous = new Table(INITIAL_CAPACITY);
+
+	// Contacts from this time step, which are stored
+	private Table current = new Table(INITIAL_CAPACITY);
+
+	/**
+	 * @param entity1
+	 * @param entity2
+	 * @param ordinal
+	 *            the number of contacts between the same 2 entities found before this one
+	 * @return The impulse applied to the matching contact last time step, or 0 if there was none.
+	 */
+	public final double find(PhysicalEntity entity1, PhysicalEntity entity2, int ordinal)
+	{
+		long key = calcKey(entity1, entity2);
+		if (key == EMPTY || previous.size == 0)
+		{
+			return 0;
+		}
+		return previous.find(key, ordinal);
+	}
+
+	/**
+	 * Remembers the impulse applied to a contact this time step (see find()).
+	 */
+	public final void store(PhysicalEntity entity1, PhysicalEntity entity2, int ordinal, double impulse)
+	{
+		long key = calcKey(entity1, entity2);
+		if (key == EMPTY || impulse == 0)
+		{
+			return;
+		}
+		if ((current.size + 1) * 2 > current.keys.length)
+		{
+			current = current.grow();
+		}
+		current.store(key, ordinal, impulse);
+	}
+
+	/**
+	 * Makes the contacts stored this time step the ones found next time step.
+	 */
+	public final void endStep()
+	{
+		Table temp = previous;
+		previous = current;
+		current = temp;
+		current.clear();
+	}
+
+	/**
+	 * Forgets all contacts.
+	 */
+	public final void clear()
+	{
+		previous.clear();
+		current.clear();
+	}
+
+	/**
+	 * Makes this cache find exactly what the given cache would, between time steps (ex: to save or restore a
+	 * checkpoint). Once this cache has grown to the same size, this allocates nothing.
+	 *
+	 * @param other
+	 */
+	public final void copyFrom(ContactCache other)
+	{
+		if (previous.keys.length != other.previous.keys.length)
+		{
+			previous = new Table(other.previous.keys.length);
+		}
+		previous.copyFrom(other.previous);
+		current.clear();
+	}
+
+	/**
+	 * The entities of a dynamic pair may come in either order (ex: after one is moved within its store by a removal or
+	 * by sleeping), so the key is the same either way. The cached impulse is a magnitude along the pair's normal, which
+	 * does not depend on the order.
+	 */
+	private static long calcKey(PhysicalEntity entity1, PhysicalEntity entity2)
+	{
+		int handle1 = entity1.getHandle();
+		int handle2 = entity2.getHandle();
+		if (handle1 == -1 || handle2 == -1)
+		{
+			return EMPTY;
+		}
+		return ((long) Math.min(handle1, handle2) << 32) | Math.max(handle1, handle2);
+	}
+
+	/**
+	 * An open addressing hash table from (key, ordinal) to impulse.
+	 */
+	private static class Table
+	{
+		private final long[] keys;
+		private final int[] ordinals;
+		private final double[] impulses;
+		private int size = 0;
+
+		public Table(int capacity)
+		{
+			keys = new long[capacity];
+			ordinals = new int[capacity];
+			impulses = new double[capacity];
+			Arrays.fill(keys, EMPTY);
+		}
+
+		public double find(long key, int ordinal)
+		{
+			int mask = keys.length - 1;
+			for (int slot = calcSlot(key, ordinal, mask);; slot = (slot + 1) & mask)
+			{
+				if (keys[slot] == EMPTY)
+				{
+					return 0;
+				}
+				if (keys[slot] == key && ordinals[slot] == ordinal)
+				{
+					return impulses[slot];
+				}
+			}
+		}
+
+		public void store(long key, int ordinal, double impulse)
+		{
+			int mask = keys.length - 1;
+			int slot = calcSlot(key, ordinal, mask);
+			while (keys[slot] != EMPTY && !(keys[slot] == key && ordinals[slot] == ordinal))
+			{
+				slot = (slot + 1) & mask;
+			}
+			if (keys[slot] == EMPTY)
+			{
+				keys[slot] = key;
+				ordinals[slot] = ordinal;
+				size++;
+			}
+			impulses[slot] = impulse;
+		}
+
+		public Table grow()
+		{
+			Table table = new Table(keys.length * 2);
+			for (int slot = 0; slot < keys.length; slot++)
+			{
+				if (keys[slot] != EMPTY)
+				{
+					table.store(keys[slot], ordinals[slot], impulses[slot]);
+				}
+			}
+			return table;
+		}
+
+		public void copyFrom(Table other)
+		{
+			System.arraycopy(other.keys, 0, keys, 0, keys.length);
+			System.arraycopy(other.ordinals, 0, ordinals, 0, ordinals.length);
+			System.arraycopy(other.impulses, 0, impulses, 0, impulses.length);
+			size = other.size;
+		}
+
+		public void clear()
+		{
+			if (size > 0)
+			{
+				Arrays.fill(keys, EMPTY);
+				size = 0;
+			}
+		}
+
+		private static int calcSlot(long key, int ordinal, int mask)
+		{
+			long hash = (key + ordinal) * 0x9E3779B97F4A7C15L;
+			return (int) (hash >>> 32) & mask;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.pheiffware.lib.physics;
+
+/**
+ * The response stage of collision handling: resolves the contacts found by the narrowphase. When a PhysicsSystem has
+ * a solver, contacts are only recorded while they are found and are all handed to the solver afterwards (see
+ * ContactBuffer.setDeferred()).
+ */
+public interface ContactSolver
+{
+	/**
+	 * Resolves the given contacts. Each time step, this is called once for each group of contacts which share no
+	 * dynamic entity with any other group. Groups may be solved in parallel, so this must not modify shared state.
+	 *
+	 * @param contacts
+	 */
+	public void solve(ContactBuffer contacts);
+
+	/**
+	 * Called on the simulation thread once all contacts in a time step have been solved.
+	 *
+	 * @param contactBuffers
+	 *            every group of contacts solved this step, in a deterministic order
+	 * @param numContactBuffers
+	 */
+	public void endStep(ContactBuffer[] contactBuffers, int numContactBuffers);
+
+	/**
+	 * Forgets anything remembered from earlier time steps (ex: when the physics system is reset).
+	 */
+	public void reset();
+
+	/**
+	 * Creates an empty object which saveState() can copy this solver's state into. Only this solver looks inside it.
+	 *
+	 * @return
+	 */
+	public Object createState();
+
+	/**
+	 * Copies anything remembered from earlier time steps into the given state, so it can be restored with
+	 * restoreState() (see PhysicsSystem.saveCheckpoint()). The state may already hold an earlier save, which is
+	 * replaced.
+	 *
+	 * @param state
+	 *            an object from this solver's createState()
+	 */
+	public void saveState(Object state);
+
+	/**
+	 * Goes back to the state copied by saveState().
+	 *
+	 * @param state
+	 *            an object from this solver's createState()
+	 */
+	public void restoreState(Object state);
+}
@@ -0,0 +1,149 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.physics.entity.Entity;
+
+/**
+ * Maps stable integer handles to entities and to where each entity currently lives (which EntityStore and at what
+ * index). Entities move around inside their stores as others are removed, but their handle never changes.
+ *
+ * A handle is made of a slot (low 20 bits) and a generation (the 11 bits above). Freed slots are recycled, but their
+ * generation is bumped, so a stale handle to a removed entity will not find the entity which reused the slot. Freed
+ * slots are reused in the order they were freed, so a slot's generation advances as slowly as possible. Generations
+ * wrap around, so a stale handle can only find a different entity if it is held while its slot is reused 2048 more
+ * times, which takes 2048 times as many allocations as there are free slots.
+ */
+public class EntityHandles
+{
+	private static final int SLOT_BITS = 20;
+	private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+	private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int numSlots = 0;
+	private Entity[] slotEntities = new Entity[INITIAL_CAPACITY];
+	private int[] slotGenerations = new int[INITIAL_CAPACITY];
+	private int[] slotStores = new int[INITIAL_CAPACITY];
+	private int[] slotIndices = new int[INITIAL_CAPACITY];
+
+	// Queue of freed slots available for reuse, oldest first. A ring buffer starting at firstFreeSlot.
+	private int firstFreeSlot = 0;
+	private int numFreeSlots = 0;
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Creates a new handle for the given entity and records it in the entity.
+	 *
+	 * @param entity
+	 * @return the handle
+	 */
+	public int allocate(Entity entity)
+	{
+		int slot;
+		if (numFreeSlots > 0)
+		{
+			slot = freeSlots[firstFreeSlot];
+			firstFreeSlot = (firstFreeSlot + 1) % freeSlots.length;
+			numFreeSlots--;
+		}
+		else
+		{
+			if (numSlots > SLOT_MASK)
+			{
+				throw new IllegalStateException("Too many entities");
+			}
+			if (numSlots == slotEntities.length)
+			{
+				int capacity = numSlots * 2;
+				slotEntities = Arrays.copyOf(slotEntities, capacity);
+				slotGenerations = Arrays.copyOf(slotGenerations, capacity);
+				slotStores = Arrays.copyOf(slotStores, capacity);
+				slotIndices = Arrays.copyOf(slotIndices, capacity);
+				growFreeSlots(capacity);
+			}
+			slot = numSlots;
+			numSlots++;
+		}
+		slotEntities[slot] = entity;
+		int handle = slot | (slotGenerations[slot] << SLOT_BITS);
+		entity.setHandle(handle);
+		return handle;
+	}
+
+	/**
+	 * Frees the given handle for reuse. The entity's own handle is reset to -1.
+	 *
+	 * @param handle
+	 */
+	public void free(int handle)
+	{
+		int slot = handle & SLOT_MASK;
+		slotEntities[slot].setHandle(-1);
+		slotEntities[slot] = null;
+		slotGenerations[slot] = (slotGenerations[slot] + 1) & GENERATION_MASK;
+		freeSlots[(firstFreeSlot + numFreeSlots) % freeSlots.length] = slot;
+		numFreeSlots++;
+	}
+
+	/**
+	 * Resizes the free slot queue, keeping its order.
+	 */
+	private void growFreeSlots(int capacity)
+	{
+		int[] newFreeSlots = new int[capacity];
+		for (int i = 0; i < numFreeSlots; i++)
+		{
+			newFreeSlots[i] = freeSlots[(firstFreeSlot + i) % freeSlots.length];
+		}
+		freeSlots = newFreeSlots;
+		firstFreeSlot = 0;
+	}
+
+	/**
+	 * Looks up the entity with the given handle.
+	 *
+	 * @param handle
+	 * @return the entity or null if the handle is not (or no longer) valid.
+	 */
+	public Entity get(int handle)
+	{
+		int slot = handle & SLOT_MASK;
+		if (handle < 0 || slot >= numSlots || slotGenerations[slot] != handle >>> SLOT_BITS)
+		{
+			return null;
+		}
+		return slotEntities[slot];
+	}
+
+	public final void setLocation(int handle, int store, int index)
+	{
+		int slot = handle & SLOT_MASK;
+		slotStores[slot] = store;
+		slotIndices[slot] = index;
+	}
+
+	public final int getStore(int handle)
+	{
+		return slotStores[handle & SLOT_MASK];
+	}
+
+	public final int getIndex(int handle)
+	{
+		return slotIndices[handle & SLOT_MASK];
+	}
+
+	/**
+	 * Frees all handles.
+	 */
+	public void clear()
+	{
+		for (int slot = 0; slot < numSlots; slot++)
+		{
+			if (slotEntities[slot] != null)
+			{
+				free(slot | (slotGenerations[slot] << SLOT_BITS));
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.physics.entity.Entity;
+
+/**
+ * Recycles entity objects, such as projectiles, which are frequently spawned and removed. Once the pool has grown to
+ * the peak number of live entities, obtaining and freeing entities allocates nothing.
+ *
+ * The pool does not reset entities. The caller is expected to reposition (and otherwise reinitialize) an entity
+ * obtained from the pool before adding it to a PhysicsSystem.
+ *
+ * @param <T>
+ */
+public class EntityPool<T extends Entity>
+{
+	/**
+	 * Creates new entities when the pool is empty.
+	 *
+	 * @param <T>
+	 */
+	public interface Factory<T>
+	{
+		public T create();
+	}
+
+	private final Factory<T> factory;
+	private Object[] freeEntities = new Object[16];
+	private int numFree = 0;
+
+	public EntityPool(Factory<T> factory)
+	{
+		this.factory = factory;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T obtain()
+	{
+		if (numFree == 0)
+		{
+			return factory.create();
+		}
+		numFree--;
+		T entity = (T) freeEntities[numFree];
+		freeEntities[numFree] = null;
+		return entity;
+	}
+
+	/**
+	 * Returns an entity to the pool. It must have already been removed from any PhysicsSystem.
+	 *
+	 * @param entity
+	 */
+	public void free(T entity)
+	{
+		if (numFree == freeEntities.length)
+		{
+			freeEntities = Arrays.copyOf(freeEntities, numFree * 2);
+		}
+		freeEntities[numFree] = entity;
+		numFree++;
+	}
+
+	public final int getNumFree()
+	{
+		return numFree;
+	}
+}
@@ -0,0 +1,107 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.physics.entity.Entity;
+
+/**
+ * A growable, unordered array of entities. Removing an entity moves the last entity into its place, so both adding
+ * and removing are O(1). Each entity's current index is kept up to date in the shared EntityHandles table.
+ *
+ * @param <T>
+ */
+public class EntityStore<T extends Entity>
+{
+	private final int storeId;
+	private final EntityHandles handles;
+	private T[] entities;
+	private int size = 0;
+
+	/**
+	 * @param storeId
+	 *            recorded in the handle table for every entity in this store.
+	 * @param handles
+	 * @param initialArray
+	 *            the array to start with (determines the runtime type of getArray()).
+	 */
+	public EntityStore(int storeId, EntityHandles handles, T[] initialArray)
+	{
+		this.storeId = storeId;
+		this.handles = handles;
+		this.entities = initialArray;
+	}
+
+	/**
+	 * Adds an entity, which must already have a handle.
+	 *
+	 * @param entity
+	 */
+	public void add(T entity)
+	{
+		if (size == entities.length)
+		{
+			entities = Arrays.copyOf(entities, Math.max(16, size * 2));
+		}
+		entities[size] = entity;
+		handles.setLocation(entity.getHandle(), storeId, size);
+		size++;
+	}
+
+	/**
+	 * Removes the entity at the given index, moving the last entity into its place.
+	 *
+	 * @param index
+	 * @return the removed entity
+	 */
+	public T removeAt(int index)
+	{
+		T removed = entities[index];
+		size--;
+		if (index != size)
+		{
+			T moved = entities[size];
+			entities[index] = moved;
+			handles.setLocation(moved.getHandle(), storeId, index);
+		}
+		entities[size] = null;
+		return removed;
+	}
+
+	/**
+	 * Called after entities have been reordered directly in getArray().
+	 */
+	public void updateLocations()
+	{
+		for (int i = 0; i < size; i++)
+		{
+			handles.setLocation(entities[i].getHandle(), storeId, i);
+		}
+	}
+
+	public void clear()
+	{
+		Arrays.fill(entities, 0, size, null);
+		size = 0;
+	}
+
+	public final T get(int index)
+	{
+		return entities[index];
+	}
+
+	public final int size()
+	{
+		return size;
+	}
+
+	/**
+	 * The backing array. Only the 1st size() elements are valid. This array is replaced when the store grows, so it
+	 * should not be held onto across additions.
+	 *
+	 * @return
+	 */
+	public final T[] getArray()
+	{
+		return entities;
+	}
+}
@@ -0,0 +1,352 @@
+package com.pheiffware.lib.physics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Records every step of a PhysicsSystem into a memory-mapped file, for replay and offline analysis (see
+ * FlightRecording). Each step records what a RenderSnapshot holds. Every keyframeInterval steps, a keyframe holds the
+ * whole snapshot. Other steps hold only the values which changed since the step before (a delta), so entities at rest
+ * cost a few bits. A step is also a keyframe whenever entities were added or removed, or fell asleep or woke up, since
+ * then values no longer line up with the step before.
+ *
+ * Steps are written straight into mapped memory, and the operating system writes dirty pages to disk in the
+ * background. The simulation thread never waits for the disk, except in close(). The file is mapped in large regions,
+ * so a new region is only mapped every 64MB.
+ *
+ * File layout: a header (see HEADER_SIZE), then the steps, then an index of the file offset of every regular keyframe,
+ * which is written by close(). A frame starts with its length in bytes, its kind (KEYFRAME or DELTA) and its
+ * simulation time. A keyframe then has the number of entities and points, each entity's type, handle, x, y, radius
+ * and number of points, and finally every point's x and y. A delta has the number of changed values, a bit mask of
+ * which values changed and the new values in order. Values are each entity's x, y and radius, followed by each point's
+ * x and y.
+ */
+public class FlightRecorder implements Closeable
+{
+	static final int MAGIC = 0x50465231;
+	static final int VERSION = 1;
+
+	// Magic, version, keyframe interval, number of steps, index offset, number of keyframes, reserved
+	static final int HEADER_SIZE = 32;
+
+	// Frame kinds
+	static final int KEYFRAME = 0;
+	static final int DELTA = 1;
+
+	// Length, kind and time
+	static final int FRAME_HEADER_SIZE = 16;
+
+	private static final long REGION_SIZE = 64L << 20;
+
+	private final FileChannel channel;
+	private final int keyframeInterval;
+
+	// The currently mapped part of the file, starting at regionStart
+	private MappedByteBuffer region;
+	private long regionStart;
+
+	// Where the next frame will be written
+	private long position = HEADER_SIZE;
+
+	private RenderSnapshot previous = new RenderSnapshot();
+	private RenderSnapshot current = new RenderSnapshot();
+
+	// Which values changed in the current step (see record())
+	private long[] changedMask = new long[16];
+
+	// Offset of each regular keyframe (one every keyframeInterval steps)
+	private long[] keyframeOffsets = new long[64];
+
+	private int numSteps = 0;
+	private boolean closed = false;
+
+	/**
+	 * Creates, or replaces, a recording.
+	 *
+	 * @param file
+	 * @param keyframeInterval
+	 *            a keyframe is written every this many steps. Larger intervals give smaller files, but seeking may
+	 *            have to apply up to keyframeInterval - 1 deltas.
+	 * @throws IOException
+	 */
+	public FlightRecorder(File file, int keyframeInterval) throws IOException
+	{
+		if (keyframeInterval < 1)
+		{
+			throw new IllegalArgumentException("Invalid keyframe interval: " + keyframeInterval);
+		}
+		this.keyframeInterval = keyframeInterval;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Records the current state of the given system as the next step. Typically called after each time step, between
+	 * time steps, on the simulation thread. Once the recorder's buffers have grown large enough, this allocates nothing
+	 * (apart from mapping a new region every 64MB).
+	 *
+	 * @param physicsSystem
+	 * @throws IOException
+	 */
+	public void record(PhysicsSystem physicsSystem) throws IOException
+	{
+		if (closed)
+		{
+			throw new IllegalStateException("Recorder has been closed");
+		}
+		physicsSystem.writeSnapshot(current);
+		boolean regularKeyframe = numSteps % keyframeInterval == 0;
+		if (regularKeyframe)
+		{
+			int keyframe = numSteps / keyframeInterval;
+			if (keyframe == keyframeOffsets.length)
+			{
+				keyframeOffsets = Arrays.copyOf(keyframeOffsets, keyframe * 2);
+			}
+			keyframeOffsets[keyframe] = position;
+		}
+		if (regularKeyframe || !isSameLayout(previous, current))
+		{
+			writeKeyframe(current);
+		}
+		else
+		{
+			writeDelta(previous, current);
+		}
+		RenderSnapshot temp = previous;
+		previous = current;
+		current = temp;
+		numSteps++;
+	}
+
+	/**
+	 * Do the 2 snapshots have the same entities, in the same order, with the same numbers of points? If so, their
+	 * values line up.
+	 */
+	private static boolean isSameLayout(RenderSnapshot snapshot1, RenderSnapshot snapshot2)
+	{
+		int numEntities = snapshot1.getNumEntities();
+		if (numEntities != snapshot2.getNumEntities() || snapshot1.getNumPoints() != snapshot2.getNumPoints())
+		{
+			return false;
+		}
+		for (int i = 0; i < numEntities; i++)
+		{
+			if (snapshot1.handle[i] != snapshot2.handle[i] || snapshot1.type[i] != snapshot2.type[i]
+					|| snapshot1.getPointEnd(i) != snapshot2.getPointEnd(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void writeKeyframe(RenderSnapshot snapshot) throws IOException
+	{
+		int numEntities = snapshot.getNumEntities();
+		int numPoints = snapshot.getNumPoints();
+		long length = FRAME_HEADER_SIZE + 8 + numEntities * 36L + numPoints * 16L;
+		ByteBuffer buffer = beginFrame(length, KEYFRAME, snapshot.time);
+		buffer.putInt(numEntities);
+		buffer.putInt(numPoints);
+		for (int i = 0; i < numEntities; i++)
+		{
+			buffer.putInt(snapshot.type[i]);
+			buffer.putInt(snapshot.handle[i]);
+			buffer.putDouble(snapshot.x[i]);
+			buffer.putDouble(snapshot.y[i]);
+			buffer.putDouble(snapshot.radius[i]);
+			buffer.putInt(snapshot.getPointEnd(i) - snapshot.getPointStart(i));
+		}
+		for (int i = 0; i < numPoints; i++)
+		{
+			buffer.putDouble(snapshot.pointX[i]);
+			buffer.putDouble(snapshot.pointY[i]);
+		}
+		position += length;
+	}
+
+	private void writeDelta(RenderSnapshot before, RenderSnapshot after) throws IOException
+	{
+		int numEntities = after.getNumEntities();
+		int numPoints = after.getNumPoints();
+		int numValues = numEntities * 3 + numPoints * 2;
+		int numMaskWords = (numValues + 63) >>> 6;
+		if (changedMask.length < numMaskWords)
+		{
+			changedMask = new long[Math.max(numMaskWords, changedMask.length * 2)];
+		}
+		Arrays.fill(changedMask, 0, numMaskWords, 0);
+		int numChanged = 0;
+		for (int i = 0; i < numEntities; i++)
+		{
+			numChanged += markChanged(i * 3, before.x[i], after.x[i]);
+			numChanged += markChanged(i * 3 + 1, before.y[i], after.y[i]);
+			numChanged += markChanged(i * 3 + 2, before.radius[i], after.radius[i]);
+		}
+		int pointValues = numEntities * 3;
+		for (int i = 0; i < numPoints; i++)
+		{
+			numChanged += markChanged(pointValues + i * 2, before.pointX[i], after.pointX[i]);
+			numChanged += markChanged(pointValues + i * 2 + 1, before.pointY[i], after.pointY[i]);
+		}
+
+		long length = FRAME_HEADER_SIZE + 4 + numMaskWords * 8L + numChanged * 8L;
+		ByteBuffer buffer = beginFrame(length, DELTA, after.time);
+		buffer.putInt(numChanged);
+		for (int word = 0; word < numMaskWords; word++)
+		{
+			buffer.putLong(changedMask[word]);
+		}
+		for (int word = 0; word < numMaskWords; word++)
+		{
+			long bits = changedMask[word];
+			while (bits != 0)
+			{
+				int value = (word << 6) + Long.numberOfTrailingZeros(bits);
+				buffer.putDouble(getValue(after, value, pointValues));
+				bits &= bits - 1;
+			}
+		}
+		position += length;
+	}
+
+	/**
+	 * Marks the given value as changed, if it did. Values are compared bit for bit, so replays are exact.
+	 *
+	 * @return 1 if the value changed, otherwise 0.
+	 */
+	private int markChanged(int value, double before, double after)
+	{
+		if (Double.doubleToRawLongBits(before) == Double.doubleToRawLongBits(after))
+		{
+			return 0;
+		}
+		changedMask[value >>> 6] |= 1L << value;
+		return 1;
+	}
+
+	/**
+	 * Gets value number value of a snapshot (see the class description).
+	 */
+	private static double getValue(RenderSnapshot snapshot, int value, int pointValues)
+	{
+		if (value < pointValues)
+		{
+			int entity = value / 3;
+			switch (value - entity * 3)
+			{
+				case 0:
+					return snapshot.x[entity];
+				case 1:
+					return snapshot.y[entity];
+				default:
+					return snapshot.radius[entity];
+			}
+		}
+		int point = (value - pointValues) >>> 1;
+		return ((value - pointValues) & 1) == 0 ? snapshot.pointX[point] : snapshot.pointY[point];
+	}
+
+	/**
+	 * Makes sure the mapped region has room for a frame of the given length, at position, and writes its header.
+	 *
+	 * @return the region, positioned after the frame header.
+	 */
+	private ByteBuffer beginFrame(long length, int kind, double time) throws IOException
+	{
+		if (length > Integer.MAX_VALUE)
+		{
+			throw new IOException("Step is too large to record: " + length + " bytes");
+		}
+		if (region == null || position + length > regionStart + region.capacity())
+		{
+			regionStart = position;
+			region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, length));
+		}
+		region.position((int) (position - regionStart));
+		region.putInt((int) length);
+		region.putInt(kind);
+		region.putDouble(time);
+		return region;
+	}
+
+	/**
+	 * Writes the keyframe index and header, flushes everything to disk and closes the file. The recording can be read
+	 * once this has been called.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+		{
+			return;
+		}
+		closed = true;
+		try
+		{
+			if (region != null)
+			{
+				region.force();
+				region = null;
+			}
+			int numKeyframes = (numSteps + keyframeInterval - 1) / keyframeInterval;
+			ByteBuffer index = ByteBuffer.allocate(numKeyframes * 8);
+			for (int i = 0; i < numKeyframes; i++)
+			{
+				index.putLong(keyframeOffsets[i]);
+			}
+			index.flip();
+			channel.truncate(position);
+			writeFully(index, position);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(keyframeInterval);
+			header.putInt(numSteps);
+			header.putLong(position);
+			header.putInt(numKeyframes);
+			header.putInt(0);
+			header.flip();
+			writeFully(header, 0);
+			channel.force(true);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long offset) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			offset += channel.write(buffer, offset);
+		}
+	}
+
+	public final int getNumSteps()
+	{
+		return numSteps;
+	}
+
+	public final int getKeyframeInterval()
+	{
+		return keyframeInterval;
+	}
+
+	/**
+	 * @return the number of bytes of steps recorded so far.
+	 */
+	public final long getSize()
+	{
+		return position;
+	}
+}
@@ -0,0 +1,275 @@
+package com.pheiffware.lib.physics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a recording written by FlightRecorder. Any step can be read into a RenderSnapshot. Seeking finds the keyframe
+ * at or before the step through the keyframe index, in O(1), and applies at most keyframeInterval - 1 deltas from
+ * there. Reading steps in order (ex: playing a replay) only applies one delta per step.
+ *
+ * The file is mapped in windows of 64MB, so recordings may be larger than memory.
+ */
+public class FlightRecording implements Closeable
+{
+	private static final long WINDOW_SIZE = 64L << 20;
+
+	private final FileChannel channel;
+	private final long fileSize;
+	private final int keyframeInterval;
+	private final int numSteps;
+	private final long[] keyframeOffsets;
+
+	// The currently mapped part of the file, starting at windowStart
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	// The last step read, the snapshot it was read into and the offset of the next frame. Reading the next step into
+	// the same snapshot just applies the next frame.
+	private int lastStep = -1;
+	private RenderSnapshot lastSnapshot;
+	private long nextFrameOffset;
+
+	/**
+	 * Opens a recording. The recorder must have been closed.
+	 *
+	 * @param file
+	 * @throws IOException
+	 *             if the file is not a complete recording.
+	 */
+	public FlightRecording(File file) throws IOException
+	{
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			fileSize = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(FlightRecorder.HEADER_SIZE);
+			readFully(header, 0);
+			if (header.getInt() != FlightRecorder.MAGIC)
+			{
+				throw new IOException("Not a flight recording: " + file);
+			}
+			int version = header.getInt();
+			if (version != FlightRecorder.VERSION)
+			{
+				throw new IOException("Unsupported flight recording version: " + version);
+			}
+			keyframeInterval = header.getInt();
+			numSteps = header.getInt();
+			long indexOffset = header.getLong();
+			int numKeyframes = header.getInt();
+			if (indexOffset == 0 || indexOffset + numKeyframes * 8L > fileSize)
+			{
+				throw new IOException("Flight recording is incomplete (the recorder was not closed): " + file);
+			}
+			ByteBuffer index = ByteBuffer.allocate(numKeyframes * 8);
+			readFully(index, indexOffset);
+			keyframeOffsets = new long[numKeyframes];
+			for (int i = 0; i < numKeyframes; i++)
+			{
+				keyframeOffsets[i] = index.getLong();
+			}
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long offset) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int numRead = channel.read(buffer, offset);
+			if (numRead < 0)
+			{
+				throw new IOException("Unexpected end of flight recording");
+			}
+			offset += numRead;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Fills the given snapshot with the given step. If the snapshot holds an earlier step, since the same keyframe, from
+	 * the last call, only the frames after it are applied, so the snapshot must not be changed between calls.
+	 *
+	 * @param step
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	public void readStep(int step, RenderSnapshot snapshot) throws IOException
+	{
+		if (step < 0 || step >= numSteps)
+		{
+			throw new IllegalArgumentException("Step out of range: " + step);
+		}
+		long stamp = snapshot.beginWrite();
+		try
+		{
+			int keyframeStep = step - step % keyframeInterval;
+			int fromStep;
+			if (snapshot == lastSnapshot && lastStep >= keyframeStep && lastStep <= step)
+			{
+				// Continue from the last step read
+				fromStep = lastStep + 1;
+			}
+			else
+			{
+				nextFrameOffset = keyframeOffsets[step / keyframeInterval];
+				fromStep = keyframeStep;
+			}
+			for (int i = fromStep; i <= step; i++)
+			{
+				nextFrameOffset = readFrame(nextFrameOffset, snapshot);
+			}
+			lastStep = step;
+			lastSnapshot = snapshot;
+		}
+		finally
+		{
+			snapshot.endWrite(stamp);
+		}
+	}
+
+	/**
+	 * Applies the frame at the given offset to the snapshot.
+	 *
+	 * @return the offset of the next frame
+	 */
+	private long readFrame(long offset, RenderSnapshot snapshot) throws IOException
+	{
+		ByteBuffer buffer = map(offset, FlightRecorder.FRAME_HEADER_SIZE);
+		int length = buffer.getInt();
+		buffer = map(offset, length);
+		buffer.getInt();
+		int kind = buffer.getInt();
+		snapshot.time = buffer.getDouble();
+		if (kind == FlightRecorder.KEYFRAME)
+		{
+			readKeyframe(buffer, snapshot);
+		}
+		else
+		{
+			readDelta(buffer, snapshot);
+		}
+		return offset + length;
+	}
+
+	private static void readKeyframe(ByteBuffer buffer, RenderSnapshot snapshot)
+	{
+		snapshot.clear();
+		int numEntities = buffer.getInt();
+		int numPoints = buffer.getInt();
+		int pointsStart = buffer.position() + numEntities * 36;
+		for (int i = 0; i < numEntities; i++)
+		{
+			snapshot.addEntity(buffer.getInt(), buffer.getInt(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+			int numEntityPoints = buffer.getInt();
+			for (int j = 0; j < numEntityPoints; j++)
+			{
+				snapshot.addPoint(buffer.getDouble(pointsStart), buffer.getDouble(pointsStart + 8));
+				pointsStart += 16;
+			}
+		}
+		buffer.position(buffer.position() + numPoints * 16);
+	}
+
+	private static void readDelta(ByteBuffer buffer, RenderSnapshot snapshot)
+	{
+		int numEntities = snapshot.getNumEntities();
+		int numValues = numEntities * 3 + snapshot.getNumPoints() * 2;
+		int numMaskWords = (numValues + 63) >>> 6;
+		buffer.getInt();
+		int maskStart = buffer.position();
+		buffer.position(maskStart + numMaskWords * 8);
+		int pointValues = numEntities * 3;
+		for (int word = 0; word < numMaskWords; word++)
+		{
+			long bits = buffer.getLong(maskStart + word * 8);
+			while (bits != 0)
+			{
+				int value = (word << 6) + Long.numberOfTrailingZeros(bits);
+				setValue(snapshot, value, pointValues, buffer.getDouble());
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/**
+	 * Sets value number value of a snapshot (see FlightRecorder).
+	 */
+	private static void setValue(RenderSnapshot snapshot, int value, int pointValues, double newValue)
+	{
+		if (value < pointValues)
+		{
+			int entity = value / 3;
+			switch (value - entity * 3)
+			{
+				case 0:
+					snapshot.x[entity] = newValue;
+					break;
+				case 1:
+					snapshot.y[entity] = newValue;
+					break;
+				default:
+					snapshot.radius[entity] = newValue;
+					break;
+			}
+			return;
+		}
+		int point = (value - pointValues) >>> 1;
+		if (((value - pointValues) & 1) == 0)
+		{
+			snapshot.pointX[point] = newValue;
+		}
+		else
+		{
+			snapshot.pointY[point] = newValue;
+		}
+	}
+
+	/**
+	 * Maps the window so it covers [offset, offset + length).
+	 *
+	 * @return the window, positioned at offset.
+	 */
+	private ByteBuffer map(long offset, int length) throws IOException
+	{
+		if (offset + length > fileSize)
+		{
+			throw new IOException("Flight recording is corrupt");
+		}
+		if (window == null || offset < windowStart || offset + length > windowStart + window.capacity())
+		{
+			windowStart = offset;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(fileSize - offset, Math.max(WINDOW_SIZE, length)));
+		}
+		window.position((int) (offset - windowStart));
+		return window;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		window = null;
+		lastSnapshot = null;
+		channel.close();
+	}
+
+	public final int getNumSteps()
+	{
+		return numSteps;
+	}
+
+	public final int getKeyframeInterval()
+	{
+		return keyframeInterval;
+	}
+}
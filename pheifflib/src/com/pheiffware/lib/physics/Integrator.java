@@ -0,0 +1,339 @@
+package com.pheiffware.lib.physics;
+
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+
+/**
+ * Advances the position and velocity of dynamic entities over a time step (see PhysicsSystem.setIntegrator()). Each
+ * body has a constant acceleration, from the forces added during ai() and uniform gravity, plus the acceleration of the
+ * physics system's AccelerationField, if any, which is sampled during the step.
+ *
+ * Forces from ai() are only calculated once per step. VELOCITY_VERLET still integrates them symplectically by
+ * remembering each body's acceleration from its previous step (see PhysicalEntity.getPreviousAcceleration()) and
+ * finishing that step's velocity change once the new acceleration is known. RK4 treats them as constant, giving the
+ * same result as CONSTANT_ACCELERATION. For fields, VELOCITY_VERLET and RK4 sample positions within the step and so
+ * stay accurate with much larger steps.
+ *
+ * Implementations work on primitive arrays, as used by SphereStore, and allocate nothing.
+ */
+public abstract class Integrator
+{
+	/**
+	 * Scratch space for integrating a single entity, which is not in a SphereStore. Each thread needs its own.
+	 */
+	public static class Workspace
+	{
+		private final double[] x = new double[1];
+		private final double[] y = new double[1];
+		private final double[] z = new double[1];
+		private final double[] vx = new double[1];
+		private final double[] vy = new double[1];
+		private final double[] vz = new double[1];
+		private final double[] ax = new double[1];
+		private final double[] ay = new double[1];
+		private final double[] az = new double[1];
+		private final double[] previousAX = new double[1];
+		private final double[] previousAY = new double[1];
+		private final double[] previousAZ = new double[1];
+		private final double[] previousHalfTime = new double[1];
+		private final PhysicalEntity[] bodies = new PhysicalEntity[1];
+		private final Vec3D position = new Vec3D(0, 0, 0);
+		final Vec3D fieldAcceleration = new Vec3D(0, 0, 0);
+	}
+
+	/**
+	 * Moves each body as though its acceleration were constant over the step. This is exact for constant forces, but
+	 * not symplectic, so orbits and springs gain energy unless steps are small. The default.
+	 */
+	public static final Integrator CONSTANT_ACCELERATION = new ConstantAcceleration();
+
+	/**
+	 * Updates velocity, then moves by the new velocity. Symplectic (energy errors stay bounded instead of drifting),
+	 * including for forces added during ai(). 1st order accurate.
+	 */
+	public static final Integrator SEMI_IMPLICIT_EULER = new SemiImplicitEuler();
+
+	/**
+	 * Kick-drift-kick velocity Verlet: half a step of velocity change, a full step of movement, then another half step
+	 * of velocity change using the field at the new position. Symplectic and 2nd order accurate for position dependent
+	 * fields and forces. Samples the field twice per step.
+	 *
+	 * Forces from ai() are only known at the start of a step, so the closing half step uses the same acceleration as
+	 * the opening one and is corrected at the start of the next step, once the acceleration at the new position has
+	 * been calculated. Positions follow velocity Verlet exactly, while velocities between steps are predictions, as with
+	 * CONSTANT_ACCELERATION.
+	 */
+	public static final Integrator VELOCITY_VERLET = new VelocityVerlet();
+
+	/**
+	 * Classic 4th order Runge-Kutta. Very accurate for smooth fields, including velocity dependent ones (ex: damped
+	 * springs), but not symplectic. Samples the field 4 times per step.
+	 */
+	public static final Integrator RK4 = new RungeKutta4();
+
+	/**
+	 * Advances bodies [start, end) of the given arrays over the given time. Disjoint ranges may be integrated by
+	 * different threads at once.
+	 *
+	 * @param start
+	 * @param end
+	 * @param elapsedTime
+	 * @param x
+	 *            position of each body (see PhysicalEntity.calcPosition())
+	 * @param y
+	 * @param z
+	 * @param vx
+	 *            velocity of each body
+	 * @param vy
+	 * @param vz
+	 * @param ax
+	 *            constant acceleration of each body over the step, from forces and uniform gravity
+	 * @param ay
+	 * @param az
+	 * @param previousAX
+	 *            acceleration of each body, from forces and uniform gravity, over its previous step. Integrators which
+	 *            use this (VELOCITY_VERLET) replace it with ax.
+	 * @param previousAY
+	 * @param previousAZ
+	 * @param previousHalfTime
+	 *            half the length of each body's previous step, or 0 if it has none. Replaced along with previousAX.
+	 * @param bodies
+	 *            the entity of each body, passed to the field. May be null if field is null.
+	 * @param field
+	 *            sampled during the step, if non-null
+	 * @param fieldAcceleration
+	 *            scratch space for field samples. Unused if field is null.
+	 */
+	public abstract void integrate(int start, int end, double elapsedTime, double[] x, double[] y, double[] z, double[] vx,
+			double[] vy, double[] vz, double[] ax, double[] ay, double[] az, double[] previousAX, double[] previousAY,
+			double[] previousAZ, double[] previousHalfTime, PhysicalEntity[] bodies, AccelerationField field,
+			Vec3D fieldAcceleration);
+
+	/**
+	 * Integrates a single entity under its accumulated force, then clears the force.
+	 *
+	 * @param physicalEntity
+	 * @param elapsedTime
+	 * @param field
+	 *            may be null
+	 * @param workspace
+	 */
+	public final void integrate(PhysicalEntity physicalEntity, double elapsedTime, AccelerationField field, Workspace workspace)
+	{
+		// Without a field, position doesn't matter, so integrate the translation from 0
+		Vec3D position = workspace.position;
+		if (field == null)
+		{
+			position.toZero();
+		}
+		else
+		{
+			physicalEntity.calcPosition(position);
+		}
+		Vec3D force = physicalEntity.getAccumulatedForce();
+		workspace.x[0] = position.x;
+		workspace.y[0] = position.y;
+		workspace.z[0] = position.z;
+		workspace.vx[0] = physicalEntity.velocity.x;
+		workspace.vy[0] = physicalEntity.velocity.y;
+		workspace.vz[0] = physicalEntity.velocity.z;
+		workspace.ax[0] = force.x * physicalEntity.inverseMass;
+		workspace.ay[0] = force.y * physicalEntity.inverseMass;
+		workspace.az[0] = force.z * physicalEntity.inverseMass;
+		Vec3D previousAcceleration = physicalEntity.getPreviousAcceleration();
+		workspace.previousAX[0] = previousAcceleration.x;
+		workspace.previousAY[0] = previousAcceleration.y;
+		workspace.previousAZ[0] = previousAcceleration.z;
+		workspace.previousHalfTime[0] = physicalEntity.getPreviousHalfTime();
+		workspace.bodies[0] = physicalEntity;
+		integrate(0, 1, elapsedTime, workspace.x, workspace.y, workspace.z, workspace.vx, workspace.vy, workspace.vz,
+				workspace.ax, workspace.ay, workspace.az, workspace.previousAX, workspace.previousAY, workspace.previousAZ,
+				workspace.previousHalfTime, workspace.bodies, field, workspace.fieldAcceleration);
+		workspace.bodies[0] = null;
+		physicalEntity.setPreviousAcceleration(workspace.previousAX[0], workspace.previousAY[0], workspace.previousAZ[0],
+				workspace.previousHalfTime[0]);
+		physicalEntity.setVelocity(workspace.vx[0], workspace.vy[0], workspace.vz[0]);
+		physicalEntity.move(workspace.x[0] - position.x, workspace.y[0] - position.y, workspace.z[0] - position.z);
+		physicalEntity.clearForce();
+	}
+
+	private static final class ConstantAcceleration extends Integrator
+	{
+		@Override
+		public void integrate(int start, int end, double elapsedTime, double[] x, double[] y, double[] z, double[] vx,
+				double[] vy, double[] vz, double[] ax, double[] ay, double[] az, double[] previousAX, double[] previousAY,
+				double[] previousAZ, double[] previousHalfTime, PhysicalEntity[] bodies, AccelerationField field,
+				Vec3D fieldAcceleration)
+		{
+			final double atFactor = 0.5 * elapsedTime * elapsedTime;
+			for (int i = start; i < end; i++)
+			{
+				double accelerationX = ax[i];
+				double accelerationY = ay[i];
+				double accelerationZ = az[i];
+				if (field != null)
+				{
+					field.calcAcceleration(bodies[i], x[i], y[i], z[i], vx[i], vy[i], vz[i], fieldAcceleration);
+					accelerationX += fieldAcceleration.x;
+					accelerationY += fieldAcceleration.y;
+					accelerationZ += fieldAcceleration.z;
+				}
+				x[i] += accelerationX * atFactor + vx[i] * elapsedTime;
+				y[i] += accelerationY * atFactor + vy[i] * elapsedTime;
+				z[i] += accelerationZ * atFactor + vz[i] * elapsedTime;
+				vx[i] += accelerationX * elapsedTime;
+				vy[i] += accelerationY * elapsedTime;
+				vz[i] += accelerationZ * elapsedTime;
+			}
+		}
+	}
+
+	private static final class SemiImplicitEuler extends Integrator
+	{
+		@Override
+		public void integrate(int start, int end, double elapsedTime, double[] x, double[] y, double[] z, double[] vx,
+				double[] vy, double[] vz, double[] ax, double[] ay, double[] az, double[] previousAX, double[] previousAY,
+				double[] previousAZ, double[] previousHalfTime, PhysicalEntity[] bodies, AccelerationField field,
+				Vec3D fieldAcceleration)
+		{
+			for (int i = start; i < end; i++)
+			{
+				double accelerationX = ax[i];
+				double accelerationY = ay[i];
+				double accelerationZ = az[i];
+				if (field != null)
+				{
+					field.calcAcceleration(bodies[i], x[i], y[i], z[i], vx[i], vy[i], vz[i], fieldAcceleration);
+					accelerationX += fieldAcceleration.x;
+					accelerationY += fieldAcceleration.y;
+					accelerationZ += fieldAcceleration.z;
+				}
+				vx[i] += accelerationX * elapsedTime;
+				vy[i] += accelerationY * elapsedTime;
+				vz[i] += accelerationZ * elapsedTime;
+				x[i] += vx[i] * elapsedTime;
+				y[i] += vy[i] * elapsedTime;
+				z[i] += vz[i] * elapsedTime;
+			}
+		}
+	}
+
+	private static final class VelocityVerlet extends Integrator
+	{
+		@Override
+		public void integrate(int start, int end, double elapsedTime, double[] x, double[] y, double[] z, double[] vx,
+				double[] vy, double[] vz, double[] ax, double[] ay, double[] az, double[] previousAX, double[] previousAY,
+				double[] previousAZ, double[] previousHalfTime, PhysicalEntity[] bodies, AccelerationField field,
+				Vec3D fieldAcceleration)
+		{
+			final double halfTime = 0.5 * elapsedTime;
+			for (int i = start; i < end; i++)
+			{
+				// Finish the previous step's closing half step, which assumed its acceleration would not change
+				double correctionTime = previousHalfTime[i];
+				vx[i] += (ax[i] - previousAX[i]) * correctionTime;
+				vy[i] += (ay[i] - previousAY[i]) * correctionTime;
+				vz[i] += (az[i] - previousAZ[i]) * correctionTime;
+				previousAX[i] = ax[i];
+				previousAY[i] = ay[i];
+				previousAZ[i] = az[i];
+				previousHalfTime[i] = halfTime;
+
+				if (field == null)
+				{
+					double halfVX = vx[i] + ax[i] * halfTime;
+					double halfVY = vy[i] + ay[i] * halfTime;
+					double halfVZ = vz[i] + az[i] * halfTime;
+					x[i] += halfVX * elapsedTime;
+					y[i] += halfVY * elapsedTime;
+					z[i] += halfVZ * elapsedTime;
+					vx[i] = halfVX + ax[i] * halfTime;
+					vy[i] = halfVY + ay[i] * halfTime;
+					vz[i] = halfVZ + az[i] * halfTime;
+					continue;
+				}
+				PhysicalEntity body = bodies[i];
+				field.calcAcceleration(body, x[i], y[i], z[i], vx[i], vy[i], vz[i], fieldAcceleration);
+				double halfVX = vx[i] + (ax[i] + fieldAcceleration.x) * halfTime;
+				double halfVY = vy[i] + (ay[i] + fieldAcceleration.y) * halfTime;
+				double halfVZ = vz[i] + (az[i] + fieldAcceleration.z) * halfTime;
+				x[i] += halfVX * elapsedTime;
+				y[i] += halfVY * elapsedTime;
+				z[i] += halfVZ * elapsedTime;
+
+				// Velocity dependent fields see the half step velocity here
+				field.calcAcceleration(body, x[i], y[i], z[i], halfVX, halfVY, halfVZ, fieldAcceleration);
+				vx[i] = halfVX + (ax[i] + fieldAcceleration.x) * halfTime;
+				vy[i] = halfVY + (ay[i] + fieldAcceleration.y) * halfTime;
+				vz[i] = halfVZ + (az[i] + fieldAcceleration.z) * halfTime;
+			}
+		}
+	}
+
+	private static final class RungeKutta4 extends Integrator
+	{
+		@Override
+		public void integrate(int start, int end, double elapsedTime, double[] x, double[] y, double[] z, double[] vx,
+				double[] vy, double[] vz, double[] ax, double[] ay, double[] az, double[] previousAX, double[] previousAY,
+				double[] previousAZ, double[] previousHalfTime, PhysicalEntity[] bodies, AccelerationField field,
+				Vec3D fieldAcceleration)
+		{
+			if (field == null)
+			{
+				// RK4 is exact for constant acceleration
+				CONSTANT_ACCELERATION.integrate(start, end, elapsedTime, x, y, z, vx, vy, vz, ax, ay, az, previousAX,
+						previousAY, previousAZ, previousHalfTime, bodies, null, fieldAcceleration);
+				return;
+			}
+			final double halfTime = 0.5 * elapsedTime;
+			final double sixthTime = elapsedTime / 6.0;
+			for (int i = start; i < end; i++)
+			{
+				PhysicalEntity body = bodies[i];
+				double x0 = x[i], y0 = y[i], z0 = z[i];
+				double vx0 = vx[i], vy0 = vy[i], vz0 = vz[i];
+
+				// Each stage's derivative of position is the velocity at that stage and its derivative of velocity
+				// is the acceleration
+				field.calcAcceleration(body, x0, y0, z0, vx0, vy0, vz0, fieldAcceleration);
+				double ax1 = ax[i] + fieldAcceleration.x;
+				double ay1 = ay[i] + fieldAcceleration.y;
+				double az1 = az[i] + fieldAcceleration.z;
+
+				double vx2 = vx0 + ax1 * halfTime;
+				double vy2 = vy0 + ay1 * halfTime;
+				double vz2 = vz0 + az1 * halfTime;
+				field.calcAcceleration(body, x0 + vx0 * halfTime, y0 + vy0 * halfTime, z0 + vz0 * halfTime, vx2, vy2, vz2,
+						fieldAcceleration);
+				double ax2 = ax[i] + fieldAcceleration.x;
+				double ay2 = ay[i] + fieldAcceleration.y;
+				double az2 = az[i] + fieldAcceleration.z;
+
+				double vx3 = vx0 + ax2 * halfTime;
+				double vy3 = vy0 + ay2 * halfTime;
+				double vz3 = vz0 + az2 * halfTime;
+				field.calcAcceleration(body, x0 + vx2 * halfTime, y0 + vy2 * halfTime, z0 + vz2 * halfTime, vx3, vy3, vz3,
+						fieldAcceleration);
+				double ax3 = ax[i] + fieldAcceleration.x;
+				double ay3 = ay[i] + fieldAcceleration.y;
+				double az3 = az[i] + fieldAcceleration.z;
+
+				double vx4 = vx0 + ax3 * elapsedTime;
+				double vy4 = vy0 + ay3 * elapsedTime;
+				double vz4 = vz0 + az3 * elapsedTime;
+				field.calcAcceleration(body, x0 + vx3 * elapsedTime, y0 + vy3 * elapsedTime, z0 + vz3 * elapsedTime, vx4,
+						vy4, vz4, fieldAcceleration);
+				double ax4 = ax[i] + fieldAcceleration.x;
+				double ay4 = ay[i] + fieldAcceleration.y;
+				double az4 = az[i] + fieldAcceleration.z;
+
+				x[i] = x0 + (vx0 + 2 * (vx2 + vx3) + vx4) * sixthTime;
+				y[i] = y0 + (vy0 + 2 * (vy2 + vy3) + vy4) * sixthTime;
+				z[i] = z0 + (vz0 + 2 * (vz2 + vz3) + vz4) * sixthTime;
+				vx[i] = vx0 + (ax1 + 2 * (ax2 + ax3) + ax4) * sixthTime;
+				vy[i] = vy0 + (ay1 + 2 * (ay2 + ay3) + ay4) * sixthTime;
+				vz[i] = vz0 + (az1 + 2 * (az2 + az3) + az4) * sixthTime;
+			}
+		}
+	}
+}
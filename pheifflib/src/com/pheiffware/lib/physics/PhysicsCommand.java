@@ -0,0 +1,98 @@
+package com.pheiffware.lib.physics;
+
+import com.pheiffware.lib.physics.entity.Entity;
+import com.pheiffware.lib.simulation.Simulation;
+import com.pheiffware.lib.simulation.SimulationCommand;
+
+/**
+ * Commands which add or remove entities, for submitting to a SimulationRunner running a PhysicsSystem (directly or
+ * through a PhysicsSnapshotSimulation) from other threads.
+ *
+ * @param <SimState>
+ */
+public class PhysicsCommand<SimState> implements SimulationCommand<SimState>
+{
+	// Command types
+	public static final int ADD_ENTITY = 0;
+	public static final int REMOVE_ENTITY = 1;
+	public static final int REMOVE_HANDLE = 2;
+
+	/**
+	 * Adds the entity. The entity must not be touched by the submitting thread afterwards.
+	 *
+	 * @param entity
+	 * @return
+	 */
+	public static <SimState> PhysicsCommand<SimState> addEntity(Entity entity)
+	{
+		return new PhysicsCommand<SimState>(ADD_ENTITY, entity, -1);
+	}
+
+	/**
+	 * Removes the entity, using whatever handle it has when the command is applied. Ignored if the entity is not in the
+	 * simulation.
+	 *
+	 * @param entity
+	 * @return
+	 */
+	public static <SimState> PhysicsCommand<SimState> removeEntity(Entity entity)
+	{
+		return new PhysicsCommand<SimState>(REMOVE_ENTITY, entity, -1);
+	}
+
+	/**
+	 * Removes the entity with the given handle. Stale handles are ignored.
+	 *
+	 * @param handle
+	 * @return
+	 */
+	public static <SimState> PhysicsCommand<SimState> removeEntity(int handle)
+	{
+		return new PhysicsCommand<SimState>(REMOVE_HANDLE, null, handle);
+	}
+
+	public final int type;
+	public final Entity entity;
+	public final int handle;
+
+	private PhysicsCommand(int type, Entity entity, int handle)
+	{
+		this.type = type;
+		this.entity = entity;
+		this.handle = handle;
+	}
+
+	@Override
+	public void apply(Simulation<SimState> simulation)
+	{
+		PhysicsSystem physicsSystem = getPhysicsSystem(simulation);
+		switch (type)
+		{
+			case ADD_ENTITY:
+				physicsSystem.addEntity(entity);
+				break;
+			case REMOVE_ENTITY:
+				if (entity.getHandle() != -1)
+				{
+					physicsSystem.removeEntity(entity.getHandle());
+				}
+				break;
+			default:
+				physicsSystem.removeEntity(handle);
+				break;
+		}
+	}
+
+	private static PhysicsSystem getPhysicsSystem(Simulation<?> simulation)
+	{
+		if (simulation instanceof PhysicsSystem)
+		{
+			return (PhysicsSystem) simulation;
+		}
+		else if (simulation instanceof PhysicsSnapshotSimulation)
+		{
+			return ((PhysicsSnapshotSimulation) simulation).getPhysicsSystem();
+		}
+		throw new IllegalArgumentException("Not a physics simulation: " + simulation);
+	}
+}
@@ -0,0 +1,46 @@
+package com.pheiffware.lib.physics;
+
+import com.pheiffware.lib.simulation.Simulation;
+
+/**
+ * Runs a PhysicsSystem as a Simulation whose state is a RenderSnapshot (see PhysicsSystem.takeSnapshot()) rather than
+ * a list of cloned entities. Snapshots are reused, so a reader must be finished with a snapshot before
+ * PhysicsSystem.getNumSnapshotBuffers() more have been published. An InterpolationFrame holds the 2 most recently
+ * published snapshots, so its previous snapshot is only valid until getNumSnapshotBuffers() - 1 more have been
+ * published (2, with the default of 3 buffers). Readers which cannot guarantee this should check their reads
+ * with RenderSnapshot.beginRead() and validateRead(), use more buffers (see PhysicsSystem.setNumSnapshotBuffers()) or
+ * reduce how often states are published (each SimulationRunner.getState() asks for one more, and others follow every
+ * SimulationRunner.setMaxStaleness() seconds).
+ */
+public class PhysicsSnapshotSimulation implements Simulation<RenderSnapshot>
+{
+	private final PhysicsSystem physicsSystem;
+
+	public PhysicsSnapshotSimulation(PhysicsSystem physicsSystem)
+	{
+		this.physicsSystem = physicsSystem;
+	}
+
+	@Override
+	public void performTimeStep(double elapsedTime)
+	{
+		physicsSystem.performTimeStep(elapsedTime);
+	}
+
+	@Override
+	public RenderSnapshot copyState()
+	{
+		return physicsSystem.takeSnapshot();
+	}
+
+	@Override
+	public void applyExternalInput(String key, Object value)
+	{
+		physicsSystem.applyExternalInput(key, value);
+	}
+
+	public final PhysicsSystem getPhysicsSystem()
+	{
+		return physicsSystem;
+	}
+}
@@ -1,189 +1,2603 @@
 package com.pheiffware.lib.physics;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.geometry.shapes.LineSegment;
+import com.pheiffware.lib.geometry.shapes.Rect;
 import com.pheiffware.lib.log.PLog;
+import com.pheiffware.lib.physics.broadphase.Broadphase;
+import com.pheiffware.lib.physics.broadphase.PairBuffer;
+import com.pheiffware.lib.physics.broadphase.SpatialHashGrid;
 import com.pheiffware.lib.physics.entity.Entity;
 import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.LineSegmentEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.SphereEntity;
 import com.pheiffware.lib.simulation.Simulation;
 
 public class PhysicsSystem implements Simulation<List<Entity>>
 {
-	private static final int maxNumEntities = 1000;
-	private int numEntities;
-	private int numStaticEntities;
-	private int numDynamicEntities;
-	private final Entity[] entities;
-	private final PhysicalEntity[] staticEntities;
-	private final PhysicalEntity[] dynamicEntities;
+	// Ids of the stores entities can live in
+	private static final int ENTITY_STORE = 0;
+	private static final int STATIC_STORE = 1;
+	private static final int DYNAMIC_STORE = 2;
+	private static final int BAKED_STORE = 3;
+	private static final int SLEEPING_STORE = 4;
+
+	// Maps handles to entities and their locations within the stores
+	private final EntityHandles handles = new EntityHandles();
+
+	// Non-physical entities
+	private final EntityStore<Entity> entities = new EntityStore<Entity>(ENTITY_STORE, handles, new Entity[16]);
+
+	// Physical entities with infinite mass
+	private final EntityStore<PhysicalEntity> staticEntities = new EntityStore<PhysicalEntity>(STATIC_STORE, handles, new PhysicalEntity[16]);
+
+	private final EntityStore<PhysicalEntity> dynamicEntities = new EntityStore<PhysicalEntity>(DYNAMIC_STORE, handles, new PhysicalEntity[16]);
+
+	// Static entities which have been baked into staticGeometry
+	private final EntityStore<PhysicalEntity> bakedEntities = new EntityStore<PhysicalEntity>(BAKED_STORE, handles, new PhysicalEntity[16]);
+	private StaticGeometry staticGeometry;
+
+	// Set when a baked entity is removed, so the geometry is rebuilt
+	private boolean staticGeometryDirty;
+
+	// Dynamic entities which have been put to sleep. These still run ai(), but
+	// are not moved or collision tested until they are woken.
+	private final EntityStore<PhysicalEntity> sleepingEntities = new EntityStore<PhysicalEntity>(SLEEPING_STORE, handles, new PhysicalEntity[16]);
+
+	// An island sleeps once all of its entities have been slower than the
+	// sleep velocity for this many consecutive steps. 0 disables sleeping.
+	private int stepsToSleep = 0;
+	private double sleepVelocitySquared = 0;
+
+	// Broadphase over sleeping entities, used to wake them when touched. Ids
+	// are indices into sleepingEntities. Rebuilt only when the set of
+	// sleeping entities has changed.
+	private final SpatialHashGrid sleepingBroadphase = new SpatialHashGrid();
+	private boolean sleepingBroadphaseDirty = true;
+	private int[] foundSleepers = new int[16];
+
+	// Sleepers to be woken, by index, and whether each sleeper is listed
+	private int numSleepersToWake = 0;
+	private int[] sleepersToWake = new int[16];
+	private boolean[] sleeperListed = new boolean[16];
+	private PhysicalEntity[] changingEntities = new PhysicalEntity[16];
+
+	// Removals requested during a time step are deferred until it ends, so
+	// that entities do not move around while they are being iterated over.
+	private boolean inTimeStep = false;
+	private int numPendingRemovals = 0;
+	private int[] pendingRemovals = new int[16];
+	private EntityPool<?>[] pendingRemovalPools = new EntityPool<?>[16];
 
 	private double totalRunTime;
 
-	public PhysicsSystem()
+	// Adaptive sub-stepping (see setAdaptiveSubStepping()). 1 disables it.
+	private int maxSubSteps = 1;
+	private double maxDisplacementFraction = 0.5;
+	private int numSubSteps = 1;
+
+	// Are fast spheres swept from their start of step positions to find
+	// collisions they passed through? (see setContinuousCollisionDetection())
+	private boolean continuousCollisionDetection = false;
+
+	// Resolves contacts once they have all been found (see
+	// setContactSolver()). null resolves each contact as soon as it is found.
+	private ContactSolver contactSolver = null;
+
+	// Does a failed time step log and exit the process, rather than throw?
+	// (see setExitOnFailure())
+	private boolean exitOnFailure = true;
+
+	// Snapshots handed out by takeSnapshot(), reused in rotation
+	private RenderSnapshot[] snapshots = newSnapshots(3);
+	private int nextSnapshot = 0;
+
+	// Ring of checkpoints used by saveCheckpoint(). Frame f is held in
+	// checkpoints[f % checkpoints.length] and frames
+	// [oldestCheckpointFrame, nextCheckpointFrame) are valid.
+	private Checkpoint[] checkpoints = new Checkpoint[0];
+	private int nextCheckpointFrame = 0;
+	private int oldestCheckpointFrame = 0;
+
+	// Changes whenever entities are added, removed or baked, which
+	// invalidates all checkpoints
+	private int structureVersion = 0;
+
+	// Acceleration applied to every dynamic entity which does not ignore
+	// gravity. Accumulated during ai() and cleared after integration.
+	private final Vec3D uniformAcceleration = new Vec3D(0, 0, 0);
+
+	// When non-null, plain SphereEntity objects are integrated through this
+	// instead of updateMotion().
+	private SphereStore sphereStore = null;
+
+	// Advances dynamic entities each time step, sampling the acceleration
+	// field, if any, during the step
+	private Integrator integrator = Integrator.CONSTANT_ACCELERATION;
+	private AccelerationField accelerationField = null;
+
+	// Scratch space for integration, one per chunk
+	private Integrator.Workspace[] integratorWorkspaces = new Integrator.Workspace[1];
+
+	// Broadphase used to find pairs of entities which may be colliding.
+	// Static entities have ids [0, numStaticEntities) and dynamic entities
+	// follow.
+	private final SpatialHashGrid defaultBroadphase = new SpatialHashGrid();
+	private Broadphase broadphase = defaultBroadphase;
+	private final PairBuffer candidatePairs = new PairBuffer();
+
+	// Ray casts and overlap queries (see castRay()). Rebuilt by the 1st query
+	// after entities have moved, been added or been removed.
+	private final SpatialQueries spatialQueries = new SpatialQueries();
+	private volatile boolean spatialQueriesDirty = true;
+	private final Rect boundingRect = new Rect(0, 0, 0, 0);
+
+	// The entities and batch key of each candidate pair. Pairs are sorted by
+	// key, so static pairs come first and then pairs are grouped by collision
+	// kernel (see sortCandidatePairs()).
+	private PhysicalEntity[] pairEntities1 = new PhysicalEntity[256];
+	private PhysicalEntity[] pairEntities2 = new PhysicalEntity[256];
+	private int[] pairKeys = new int[256];
+
+	// 0, 1, 2, ..., for resolving runs of consecutive pairs (or entities)
+	private int[] sequentialPairs = new int[0];
+
+	// Scratch space for resolveAndResweep(), indexed by dynamic entity.
+	// Islands are disjoint, so islands resolved in parallel never share
+	// entries.
+	private double[] staticResolvedCenters = new double[48];
+	private PhysicalEntity[] resweepStaticEntities = new PhysicalEntity[16];
+
+	// Collision kernels used by the narrowphase
+	private CollisionDispatch collisionDispatch = new CollisionDispatch();
+
+	// Nanoseconds spent in each stage of collision handling during the last
+	// time step
+	private long broadphaseTime;
+	private long narrowphaseTime;
+	private long responseTime;
+
+	// Scratch space for static geometry queries, one per chunk
+	private StaticGeometry.Workspace[] workspaces = new StaticGeometry.Workspace[1];
+
+	// Contacts found this step, one buffer per chunk. Reused from step to
+	// step, so resolving collisions allocates nothing.
+	private ContactBuffer[] contactBuffers = new ContactBuffer[] { new ContactBuffer() };
+
+	// Contacts found by a parallel narrowphase, regrouped by chunk of islands
+	// for the contact solver
+	private ContactBuffer[] islandContactBuffers = new ContactBuffer[0];
+
+	// The buffers handed to the contact solver this step
+	private ContactBuffer[] solverContactBuffers;
+
+	// Chunk of islands which each island belongs to
+	private int[] islandChunks = new int[16];
+
+	// When non-null, ai, motion and collisions are run in parallel
+	private ForkJoinPool parallelPool = null;
+	private final CollisionIslands islands = new CollisionIslands();
+
+	// Have islands been built from this step's candidate pairs?
+	private boolean islandsBuilt = false;
+
+	// Entities whose ai runs in parallel this step, and one command buffer per
+	// chunk of them
+	private Entity[] parallelAIEntities = new Entity[16];
+	private int numParallelAIEntities = 0;
+	private CommandBuffer[] commandBuffers = new CommandBuffer[1];
+
+	// Phases run by PhaseChunksTask
+	private static final int AI_PHASE = 0;
+	private static final int MOTION_PHASE = 1;
+	private static final int SPHERE_STORE_PHASE = 2;
+	private static final int NARROWPHASE_PHASE = 3;
+	private static final int RESPONSE_PHASE = 4;
+
+	// Island chunk c covers islands [chunkIslandStart[c], chunkIslandStart[c+1])
+	private int[] chunkIslandStart = new int[1];
+	private int numIslandChunks = 0;
+
+	// Number of chunks of islands created per thread, for load balancing
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	public PhysicsSystem()
+	{
+		reset();
+	}
+
+	/**
+	 * Reset the physics system to a blank state.
+	 */
+	public void reset()
+	{
+		handles.clear();
+		entities.clear();
+		staticEntities.clear();
+		dynamicEntities.clear();
+		bakedEntities.clear();
+		for (int i = 0; i < sleepingEntities.size(); i++)
+		{
+			sleepingEntities.get(i).setAsleep(false);
+		}
+		sleepingEntities.clear();
+		sleepingBroadphaseDirty = true;
+		staticGeometry = null;
+		staticGeometryDirty = false;
+		numPendingRemovals = 0;
+		structureVersion++;
+		spatialQueriesDirty = true;
+		uniformAcceleration.toZero();
+		if (contactSolver != null)
+		{
+			contactSolver.reset();
+		}
+		totalRunTime = 0f;
+	}
+
+	@Override
+	public void performTimeStep(double elapsedTime)
+	{
+		broadphaseTime = 0;
+		narrowphaseTime = 0;
+		responseTime = 0;
+		numSubSteps = calcNumSubSteps(elapsedTime);
+		double subStepTime = elapsedTime / numSubSteps;
+		for (int i = 0; i < numSubSteps; i++)
+		{
+			performSubStep(subStepTime);
+		}
+	}
+
+	/**
+	 * Picks the number of sub-steps to split a time step into, so that the
+	 * fastest dynamic entity moves no more than maxDisplacementFraction of the
+	 * smallest dynamic entity's collision size per sub-step.
+	 */
+	private int calcNumSubSteps(double elapsedTime)
+	{
+		if (maxSubSteps <= 1)
+		{
+			return 1;
+		}
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		int numDynamicEntities = this.dynamicEntities.size();
+		double maxSpeedSquared = 0;
+		double minCollisionSize = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			PhysicalEntity physicalEntity = dynamicEntities[i];
+			maxSpeedSquared = Math.max(maxSpeedSquared, physicalEntity.velocity.magnitudeSquared());
+			minCollisionSize = Math.min(minCollisionSize, physicalEntity.getCollisionSize());
+		}
+		if (minCollisionSize == Double.POSITIVE_INFINITY)
+		{
+			return 1;
+		}
+		double maxDisplacement = Math.sqrt(maxSpeedSquared) * elapsedTime;
+		double requiredSubSteps = Math.ceil(maxDisplacement / (maxDisplacementFraction * minCollisionSize));
+		if (!(requiredSubSteps < maxSubSteps))
+		{
+			return maxSubSteps;
+		}
+		return Math.max(1, (int) requiredSubSteps);
+	}
+
+	/**
+	 * Makes performTimeStep() split each time step into as many equal
+	 * sub-steps as needed (up to maxSubSteps) for the fastest dynamic entity
+	 * to move at most maxDisplacementFraction of the smallest collision size
+	 * (see PhysicalEntity.getCollisionSize()) of any dynamic entity per
+	 * sub-step. This prevents fast entities from tunneling through walls,
+	 * while quiet steps still cost a single sub-step.
+	 * 
+	 * @param maxDisplacementFraction
+	 *            ex: 0.5 allows moving half a radius per sub-step.
+	 * @param maxSubSteps
+	 *            1 (the default) disables sub-stepping.
+	 */
+	public void setAdaptiveSubStepping(double maxDisplacementFraction, int maxSubSteps)
+	{
+		if (maxDisplacementFraction <= 0 || maxSubSteps < 1)
+		{
+			throw new IllegalArgumentException("Invalid sub-stepping: " + maxDisplacementFraction + ", " + maxSubSteps);
+		}
+		this.maxDisplacementFraction = maxDisplacementFraction;
+		this.maxSubSteps = maxSubSteps;
+	}
+
+	/**
+	 * @return the number of sub-steps taken by the last time step.
+	 */
+	public int getNumSubSteps()
+	{
+		return numSubSteps;
+	}
+
+	/**
+	 * Chooses what happens when performTimeStep() or copyState() fails (ex:
+	 * an entity's ai() throws or an InteractionException is raised). By
+	 * default the failure is logged and the process exits. Otherwise, the
+	 * exception is thrown to the caller, wrapped in a RuntimeException if it
+	 * is checked, so a runner can stop just this system (see
+	 * BatchSimulationRunner). A system which has thrown from a time step is
+	 * left part way through it.
+	 * 
+	 * @param exitOnFailure
+	 */
+	public void setExitOnFailure(boolean exitOnFailure)
+	{
+		this.exitOnFailure = exitOnFailure;
+	}
+
+	/**
+	 * Enables continuous collision detection for SphereEntity objects. Any
+	 * sphere which moves further than its radius in a time step is swept
+	 * from its start of step position against walls, line segments, polygons
+	 * and other spheres. If the sweep hits something, the sphere is moved
+	 * back to the time of impact and the collision is resolved there, so fast
+	 * spheres cannot tunnel, however large the time step. The rest of the
+	 * sphere's motion for that step is lost. Without a contact solver, a
+	 * sphere pushed by other spheres after being resolved against static
+	 * entities is swept against them again, from where it was pushed from.
+	 * 
+	 * Moving line segments and polygons are swept against at their end of
+	 * step positions.
+	 * 
+	 * @param enabled
+	 *            false (the default) only tests for overlap at the end of
+	 *            each time step.
+	 */
+	public void setContinuousCollisionDetection(boolean enabled)
+	{
+		continuousCollisionDetection = enabled;
+	}
+
+	/**
+	 * Makes collisions be resolved by a sequential impulse solver. Rather
+	 * than resolving each contact with a single impulse as soon as it is
+	 * found, all contacts are found 1st and then corrected together,
+	 * iterations times over, so the impulses through a stack or pile balance
+	 * out. Each contact starts from the impulse it needed last time step,
+	 * matched by entity pair, so resting stacks settle within a few
+	 * iterations rather than jittering.
+	 * 
+	 * Contacts are solved per island (see setParallelPool()), so results are
+	 * still identical for any number of threads. This is shorthand for
+	 * setContactSolver() with a SequentialImpulseSolver.
+	 * 
+	 * @param solverIterations
+	 *            0 (the default) resolves each contact as soon as it is
+	 *            found.
+	 */
+	public void setSolverIterations(int solverIterations)
+	{
+		if (solverIterations < 0)
+		{
+			throw new IllegalArgumentException("Invalid solver iterations: " + solverIterations);
+		}
+		setContactSolver(solverIterations == 0 ? null : new SequentialImpulseSolver(solverIterations));
+	}
+
+	/**
+	 * @return 0 unless the contact solver is a SequentialImpulseSolver.
+	 */
+	public int getSolverIterations()
+	{
+		if (contactSolver instanceof SequentialImpulseSolver)
+		{
+			return ((SequentialImpulseSolver) contactSolver).getIterations();
+		}
+		return 0;
+	}
+
+	/**
+	 * Sets the response stage of collision handling. Collisions are handled
+	 * in 3 stages, each of which can be replaced and is timed separately:
+	 * 
+	 * 1. Broadphase (see setBroadphase()): finds candidate pairs of entities
+	 * whose bounds overlap.
+	 * 
+	 * 2. Narrowphase (see getCollisionDispatch()): tests candidate pairs, and
+	 * fast spheres against baked geometry, for contacts.
+	 * 
+	 * 3. Response: resolves contacts.
+	 * 
+	 * With a solver, the narrowphase only records contacts. With a parallel
+	 * pool (see setParallelPool()), it then runs in parallel over evenly
+	 * sized chunks of candidate pairs, however the entities are connected,
+	 * and the solver runs in parallel over islands. Continuous collision
+	 * detection moves spheres during the narrowphase, so with it enabled the
+	 * narrowphase runs by island instead.
+	 * 
+	 * @param contactSolver
+	 *            null (the default) resolves each contact with a single
+	 *            impulse as soon as it is found, during the narrowphase.
+	 */
+	public void setContactSolver(ContactSolver contactSolver)
+	{
+		this.contactSolver = contactSolver;
+		if (contactSolver != null)
+		{
+			contactSolver.reset();
+		}
+	}
+
+	public ContactSolver getContactSolver()
+	{
+		return contactSolver;
+	}
+
+	/**
+	 * Replaces the broadphase, which finds candidate pairs of entities each
+	 * time step (see setContactSolver()).
+	 * 
+	 * @param broadphase
+	 *            null restores the default SpatialHashGrid.
+	 */
+	public void setBroadphase(Broadphase broadphase)
+	{
+		this.broadphase = broadphase == null ? defaultBroadphase : broadphase;
+	}
+
+	/**
+	 * Gets the collision kernels used by the narrowphase. Kernels may be
+	 * replaced to change how particular shapes collide (see
+	 * setContactSolver()).
+	 * 
+	 * @return
+	 */
+	public CollisionDispatch getCollisionDispatch()
+	{
+		return collisionDispatch;
+	}
+
+	/**
+	 * @return seconds spent finding candidate pairs during the last time step
+	 *         (all sub-steps).
+	 */
+	public double getBroadphaseTime()
+	{
+		return broadphaseTime / 1000000000.0;
+	}
+
+	/**
+	 * @return seconds spent finding contacts during the last time step (all
+	 *         sub-steps). Without a contact solver, this includes resolving
+	 *         them.
+	 */
+	public double getNarrowphaseTime()
+	{
+		return narrowphaseTime / 1000000000.0;
+	}
+
+	/**
+	 * @return seconds spent by the contact solver during the last time step
+	 *         (all sub-steps).
+	 */
+	public double getResponseTime()
+	{
+		return responseTime / 1000000000.0;
+	}
+
+	/**
+	 * Records where each dynamic sphere starts this time step.
+	 */
+	private void beginSweeps()
+	{
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		int numDynamicEntities = this.dynamicEntities.size();
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			if (dynamicEntities[i] instanceof SphereEntity)
+			{
+				((SphereEntity) dynamicEntities[i]).beginSweep();
+			}
+		}
+	}
+
+	/**
+	 * Ends the sweeps started by beginSweeps(). Entities woken this step never
+	 * started one, which is harmless.
+	 */
+	private void endSweeps()
+	{
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		int numDynamicEntities = this.dynamicEntities.size();
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			if (dynamicEntities[i] instanceof SphereEntity)
+			{
+				((SphereEntity) dynamicEntities[i]).endSweep();
+			}
+		}
+	}
+
+	private void performSubStep(double elapsedTime)
+	{
+		try
+		{
+			totalRunTime += elapsedTime;
+			inTimeStep = true;
+			try
+			{
+				runAI(elapsedTime);
+				if (stepsToSleep > 0)
+				{
+					wakeRequestedSleepers();
+				}
+				if (continuousCollisionDetection)
+				{
+					beginSweeps();
+				}
+				updateMotion(elapsedTime);
+				resolveCollisions(elapsedTime);
+				if (continuousCollisionDetection)
+				{
+					endSweeps();
+				}
+				if (stepsToSleep > 0)
+				{
+					sleepStillIslands();
+				}
+			}
+			finally
+			{
+				inTimeStep = false;
+			}
+			applyPendingRemovals();
+			spatialQueriesDirty = true;
+		}
+		catch (Exception e)
+		{
+			fail("Time step failed", e);
+		}
+	}
+
+	/**
+	 * Handles an exception thrown while stepping or copying the system (see
+	 * setExitOnFailure()).
+	 */
+	private void fail(String message, Exception e)
+	{
+		if (exitOnFailure)
+		{
+			PLog.error("FAIL!", e);
+			System.exit(0);
+		}
+		if (e instanceof RuntimeException)
+		{
+			throw (RuntimeException) e;
+		}
+		throw new RuntimeException(message, e);
+	}
+
+	/**
+	 * Copies the state of all entities, at least well enough that they can be
+	 * drawn and are safe for access (may not be full serialization).
+	 */
+	@Override
+	public List<Entity> copyState()
+	{
+		try
+		{
+			List<Entity> copyOfEntities = new ArrayList<Entity>(entities.size() + staticEntities.size() + bakedEntities.size()
+					+ dynamicEntities.size() + sleepingEntities.size());
+			for (int i = 0; i < entities.size(); i++)
+			{
+				copyOfEntities.add(entities.get(i).copyForRender());
+			}
+			for (int i = 0; i < staticEntities.size(); i++)
+			{
+				copyOfEntities.add(staticEntities.get(i).copyForRender());
+			}
+			for (int i = 0; i < bakedEntities.size(); i++)
+			{
+				copyOfEntities.add(bakedEntities.get(i).copyForRender());
+			}
+			for (int i = 0; i < dynamicEntities.size(); i++)
+			{
+				copyOfEntities.add(dynamicEntities.get(i).copyForRender());
+			}
+			for (int i = 0; i < sleepingEntities.size(); i++)
+			{
+				copyOfEntities.add(sleepingEntities.get(i).copyForRender());
+			}
+			return copyOfEntities;
+		}
+		catch (Exception e)
+		{
+			fail("State copy failed", e);
+			return new ArrayList<Entity>();
+		}
+
+	}
+
+	/**
+	 * Fills the next of a small ring of pre-allocated snapshots with the
+	 * current state of every entity and returns it. Unlike copyState(), this
+	 * allocates nothing (once the snapshots have grown large enough) and the
+	 * result shares nothing with the simulation.
+	 * 
+	 * The returned snapshot is valid until takeSnapshot() has been called
+	 * getNumSnapshotBuffers() more times, after which it is overwritten.
+	 * 
+	 * @return
+	 */
+	public RenderSnapshot takeSnapshot()
+	{
+		RenderSnapshot snapshot = snapshots[nextSnapshot];
+		nextSnapshot = (nextSnapshot + 1) % snapshots.length;
+		writeSnapshot(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Fills the given snapshot with the current state of every entity.
+	 * 
+	 * @param snapshot
+	 */
+	public void writeSnapshot(RenderSnapshot snapshot)
+	{
+		long stamp = snapshot.beginWrite();
+		try
+		{
+			snapshot.clear();
+			snapshot.time = totalRunTime;
+			writeSnapshot(entities, snapshot);
+			writeSnapshot(staticEntities, snapshot);
+			writeSnapshot(bakedEntities, snapshot);
+			writeSnapshot(dynamicEntities, snapshot);
+			writeSnapshot(sleepingEntities, snapshot);
+		}
+		finally
+		{
+			snapshot.endWrite(stamp);
+		}
+	}
+
+	private static void writeSnapshot(EntityStore<? extends Entity> store, RenderSnapshot snapshot)
+	{
+		int size = store.size();
+		for (int i = 0; i < size; i++)
+		{
+			store.get(i).writeSnapshot(snapshot);
+		}
+	}
+
+	/**
+	 * Sets the number of snapshots takeSnapshot() rotates through (default
+	 * 3). 2 is enough if each snapshot is finished with before the next one
+	 * is taken; 3 allows a reader to hold one while another is being filled.
+	 * 
+	 * @param numSnapshotBuffers
+	 */
+	public void setNumSnapshotBuffers(int numSnapshotBuffers)
+	{
+		if (numSnapshotBuffers < 1)
+		{
+			throw new IllegalArgumentException("Must have at least 1 snapshot buffer: " + numSnapshotBuffers);
+		}
+		snapshots = newSnapshots(numSnapshotBuffers);
+		nextSnapshot = 0;
+	}
+
+	public int getNumSnapshotBuffers()
+	{
+		return snapshots.length;
+	}
+
+	private static RenderSnapshot[] newSnapshots(int numSnapshots)
+	{
+		RenderSnapshot[] snapshots = new RenderSnapshot[numSnapshots];
+		for (int i = 0; i < numSnapshots; i++)
+		{
+			snapshots[i] = new RenderSnapshot();
+		}
+		return snapshots;
+	}
+
+	/**
+	 * Allocates a ring of checkpoints for saveCheckpoint(), so that the last
+	 * numCheckpoints saved frames can be restored (ex: for rollback).
+	 * Discards any frames already saved.
+	 * 
+	 * @param numCheckpoints
+	 *            0 (the default) frees the ring.
+	 */
+	public void setNumCheckpoints(int numCheckpoints)
+	{
+		if (numCheckpoints < 0)
+		{
+			throw new IllegalArgumentException("Invalid number of checkpoints: " + numCheckpoints);
+		}
+		checkpoints = new Checkpoint[numCheckpoints];
+		for (int i = 0; i < numCheckpoints; i++)
+		{
+			checkpoints[i] = new Checkpoint();
+		}
+		nextCheckpointFrame = 0;
+		oldestCheckpointFrame = 0;
+	}
+
+	public int getNumCheckpoints()
+	{
+		return checkpoints.length;
+	}
+
+	/**
+	 * Saves the full state of the system into the next checkpoint of the
+	 * ring (see setNumCheckpoints()), overwriting the oldest frame if the
+	 * ring is full.
+	 * 
+	 * @return the frame number, to pass to restoreCheckpoint(). Frames are
+	 *         numbered consecutively.
+	 */
+	public int saveCheckpoint()
+	{
+		if (checkpoints.length == 0)
+		{
+			throw new IllegalStateException("No checkpoints have been allocated (see setNumCheckpoints())");
+		}
+		int frame = nextCheckpointFrame;
+		saveCheckpoint(checkpoints[frame % checkpoints.length]);
+		nextCheckpointFrame++;
+		oldestCheckpointFrame = Math.max(oldestCheckpointFrame, nextCheckpointFrame - checkpoints.length);
+		return frame;
+	}
+
+	/**
+	 * Restores the system to a frame saved by saveCheckpoint(). Frames saved
+	 * after it are discarded, so the next frame saved is numbered frame + 1
+	 * (ex: to re-simulate after a late input arrives).
+	 * 
+	 * @param frame
+	 */
+	public void restoreCheckpoint(int frame)
+	{
+		if (!hasCheckpoint(frame))
+		{
+			throw new IllegalArgumentException("Checkpoint frame is not available: " + frame);
+		}
+		restoreCheckpoint(checkpoints[frame % checkpoints.length]);
+		nextCheckpointFrame = frame + 1;
+	}
+
+	/**
+	 * @param frame
+	 * @return true if the given frame is still held in the ring.
+	 */
+	public boolean hasCheckpoint(int frame)
+	{
+		return frame >= oldestCheckpointFrame && frame < nextCheckpointFrame;
+	}
+
+	/**
+	 * Saves everything about the system which changes as it runs (every
+	 * entity's state, which entities are asleep, the order entities are
+	 * processed in and the contact solver's state) into the given
+	 * checkpoint. Re-running the same steps after restoreCheckpoint() gives
+	 * bit-identical results. Baked static geometry never moves and is not
+	 * saved. Must not be called during a time step.
+	 * 
+	 * @param checkpoint
+	 */
+	public void saveCheckpoint(Checkpoint checkpoint)
+	{
+		if (inTimeStep)
+		{
+			throw new IllegalStateException("Checkpoints cannot be saved during a time step");
+		}
+		int numDynamicEntities = dynamicEntities.size();
+		int numSleepingEntities = sleepingEntities.size();
+		int stateSize = calcCheckpointSize(entities) + calcCheckpointSize(staticEntities) + calcCheckpointSize(dynamicEntities)
+				+ calcCheckpointSize(sleepingEntities);
+		checkpoint.ensureCapacity(numDynamicEntities + numSleepingEntities, stateSize);
+
+		checkpoint.source = this;
+		checkpoint.structureVersion = structureVersion;
+		checkpoint.totalRunTime = totalRunTime;
+		checkpoint.uniformAccelerationX = uniformAcceleration.x;
+		checkpoint.uniformAccelerationY = uniformAcceleration.y;
+		checkpoint.uniformAccelerationZ = uniformAcceleration.z;
+		checkpoint.numDynamicEntities = numDynamicEntities;
+		checkpoint.numSleepingEntities = numSleepingEntities;
+		int[] checkpointHandles = checkpoint.handles;
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			checkpointHandles[i] = dynamicEntities.get(i).getHandle();
+		}
+		for (int i = 0; i < numSleepingEntities; i++)
+		{
+			checkpointHandles[numDynamicEntities + i] = sleepingEntities.get(i).getHandle();
+		}
+
+		double[] state = checkpoint.state;
+		int offset = writeCheckpoint(entities, state, 0);
+		offset = writeCheckpoint(staticEntities, state, offset);
+		offset = writeCheckpoint(dynamicEntities, state, offset);
+		checkpoint.stateSize = writeCheckpoint(sleepingEntities, state, offset);
+
+		if (contactSolver == null)
+		{
+			checkpoint.solver = null;
+			checkpoint.solverState = null;
+		}
+		else
+		{
+			if (checkpoint.solver != contactSolver)
+			{
+				checkpoint.solver = contactSolver;
+				checkpoint.solverState = contactSolver.createState();
+			}
+			contactSolver.saveState(checkpoint.solverState);
+		}
+	}
+
+	/**
+	 * Restores the state saved by saveCheckpoint(Checkpoint). The system must
+	 * have the same entities it had when the checkpoint was saved. Must not
+	 * be called during a time step. If the contact solver has been replaced
+	 * since, it is reset instead of restored.
+	 * 
+	 * @param checkpoint
+	 */
+	public void restoreCheckpoint(Checkpoint checkpoint)
+	{
+		if (inTimeStep)
+		{
+			throw new IllegalStateException("Checkpoints cannot be restored during a time step");
+		}
+		if (checkpoint.source != this)
+		{
+			throw new IllegalArgumentException("Checkpoint was not saved from this system");
+		}
+		if (checkpoint.structureVersion != structureVersion)
+		{
+			throw new IllegalStateException("Entities have been added, removed or baked since the checkpoint was saved");
+		}
+
+		// Put every entity back in the store, and position, it was in
+		int numDynamicEntities = checkpoint.numDynamicEntities;
+		int numSleepingEntities = checkpoint.numSleepingEntities;
+		int[] checkpointHandles = checkpoint.handles;
+		dynamicEntities.clear();
+		sleepingEntities.clear();
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			dynamicEntities.add((PhysicalEntity) handles.get(checkpointHandles[i]));
+		}
+		for (int i = 0; i < numSleepingEntities; i++)
+		{
+			sleepingEntities.add((PhysicalEntity) handles.get(checkpointHandles[numDynamicEntities + i]));
+		}
+		sleepingBroadphaseDirty = true;
+		spatialQueriesDirty = true;
+
+		double[] state = checkpoint.state;
+		int offset = readCheckpoint(entities, state, 0);
+		offset = readCheckpoint(staticEntities, state, offset);
+		offset = readCheckpoint(dynamicEntities, state, offset);
+		readCheckpoint(sleepingEntities, state, offset);
+
+		totalRunTime = checkpoint.totalRunTime;
+		uniformAcceleration.x = checkpoint.uniformAccelerationX;
+		uniformAcceleration.y = checkpoint.uniformAccelerationY;
+		uniformAcceleration.z = checkpoint.uniformAccelerationZ;
+		if (contactSolver != null)
+		{
+			// Another solver's state means nothing to this one
+			if (checkpoint.solver != contactSolver)
+			{
+				contactSolver.reset();
+			}
+			else
+			{
+				contactSolver.restoreState(checkpoint.solverState);
+			}
+		}
+	}
+
+	private static int calcCheckpointSize(EntityStore<? extends Entity> store)
+	{
+		int size = 0;
+		for (int i = 0; i < store.size(); i++)
+		{
+			size += store.get(i).getCheckpointSize();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the offset after the last value written.
+	 */
+	private static int writeCheckpoint(EntityStore<? extends Entity> store, double[] state, int offset)
+	{
+		for (int i = 0; i < store.size(); i++)
+		{
+			Entity entity = store.get(i);
+			entity.writeCheckpoint(state, offset);
+			offset += entity.getCheckpointSize();
+		}
+		return offset;
+	}
+
+	/**
+	 * @return the offset after the last value read.
+	 */
+	private static int readCheckpoint(EntityStore<? extends Entity> store, double[] state, int offset)
+	{
+		for (int i = 0; i < store.size(); i++)
+		{
+			Entity entity = store.get(i);
+			entity.readCheckpoint(state, offset);
+			offset += entity.getCheckpointSize();
+		}
+		return offset;
+	}
+
+	private void runAI(double elapsedTime)
+	{
+		if (parallelPool == null)
+		{
+			runSerialAI(entities, elapsedTime, false);
+			runSerialAI(staticEntities, elapsedTime, false);
+			runSerialAI(bakedEntities, elapsedTime, false);
+			runSerialAI(dynamicEntities, elapsedTime, false);
+			runSerialAI(sleepingEntities, elapsedTime, false);
+			return;
+		}
+
+		// Entities which can only run ai on this thread go 1st
+		runSerialAI(entities, elapsedTime, true);
+		runSerialAI(staticEntities, elapsedTime, true);
+		runSerialAI(bakedEntities, elapsedTime, true);
+		runSerialAI(dynamicEntities, elapsedTime, true);
+		runSerialAI(sleepingEntities, elapsedTime, true);
+
+		numParallelAIEntities = 0;
+		collectParallelAI(entities);
+		collectParallelAI(staticEntities);
+		collectParallelAI(bakedEntities);
+		collectParallelAI(dynamicEntities);
+		collectParallelAI(sleepingEntities);
+		if (numParallelAIEntities == 0)
+		{
+			return;
+		}
+
+		int numChunks = calcNumChunks(numParallelAIEntities);
+		if (commandBuffers.length < numChunks)
+		{
+			commandBuffers = Arrays.copyOf(commandBuffers, numChunks);
+		}
+		for (int i = 0; i < numChunks; i++)
+		{
+			if (commandBuffers[i] == null)
+			{
+				commandBuffers[i] = new CommandBuffer();
+			}
+		}
+		parallelPool.invoke(new PhaseChunksTask(AI_PHASE, 0, numChunks, numChunks, numParallelAIEntities, elapsedTime));
+
+		// Apply in chunk order, so the result does not depend on which thread
+		// ran which chunk
+		for (int i = 0; i < numChunks; i++)
+		{
+			commandBuffers[i].apply(this);
+		}
+		Arrays.fill(parallelAIEntities, 0, numParallelAIEntities, null);
+		numParallelAIEntities = 0;
+	}
+
+	/**
+	 * Runs ai() on every entity in the store. If skipParallel is true,
+	 * entities with parallel ai are skipped.
+	 */
+	private void runSerialAI(EntityStore<? extends Entity> store, double elapsedTime, boolean skipParallel)
+	{
+		// Size is re-read each iteration as ai() may add entities
+		for (int i = 0; i < store.size(); i++)
+		{
+			Entity entity = store.get(i);
+			if (!skipParallel || !entity.hasParallelAI())
+			{
+				entity.ai(elapsedTime, this);
+			}
+		}
+	}
+
+	private void collectParallelAI(EntityStore<? extends Entity> store)
+	{
+		int size = store.size();
+		for (int i = 0; i < size; i++)
+		{
+			Entity entity = store.get(i);
+			if (entity.hasParallelAI())
+			{
+				if (numParallelAIEntities == parallelAIEntities.length)
+				{
+					parallelAIEntities = Arrays.copyOf(parallelAIEntities, numParallelAIEntities * 2);
+				}
+				parallelAIEntities[numParallelAIEntities] = entity;
+				numParallelAIEntities++;
+			}
+		}
+	}
+
+	/**
+	 * The number of chunks to split the given number of items into for
+	 * parallel processing.
+	 */
+	private int calcNumChunks(int numItems)
+	{
+		return Math.max(1, Math.min(numItems, parallelPool.getParallelism() * CHUNKS_PER_THREAD));
+	}
+
+	private void updateMotion(double elapsedTime)
+	{
+		PhysicalEntity[] staticEntities = this.staticEntities.getArray();
+		int numStaticEntities = this.staticEntities.size();
+		for (int i = 0; i < numStaticEntities; i++)
+		{
+			staticEntities[i].updateMotion(elapsedTime);
+		}
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		int numDynamicEntities = this.dynamicEntities.size();
+		if (parallelPool != null)
+		{
+			updateMotionInParallel(elapsedTime, dynamicEntities, numDynamicEntities);
+		}
+		else if (sphereStore == null)
+		{
+			Integrator.Workspace workspace = getIntegratorWorkspace(0);
+			for (int i = 0; i < numDynamicEntities; i++)
+			{
+				integrate(dynamicEntities[i], elapsedTime, workspace);
+			}
+		}
+		else
+		{
+			Integrator.Workspace workspace = getIntegratorWorkspace(0);
+			sphereStore.clear();
+			for (int i = 0; i < numDynamicEntities; i++)
+			{
+				PhysicalEntity physicalEntity = dynamicEntities[i];
+				if (SphereStore.isStorable(physicalEntity))
+				{
+					sphereStore.gather((SphereEntity) physicalEntity);
+				}
+				else
+				{
+					integrate(physicalEntity, elapsedTime, workspace);
+				}
+			}
+			sphereStore.integrate(0, sphereStore.size(), elapsedTime, uniformAcceleration.x, uniformAcceleration.y,
+					uniformAcceleration.z, integrator, accelerationField, workspace);
+			sphereStore.scatter();
+		}
+		uniformAcceleration.toZero();
+	}
+
+	/**
+	 * Integrates dynamic entities in parallel chunks. Each entity's motion
+	 * only depends on its own state, so results are identical to the serial
+	 * path. Spheres are gathered into the SphereStore on this thread, then
+	 * integrated and scattered in parallel ranges.
+	 */
+	private void updateMotionInParallel(double elapsedTime, PhysicalEntity[] dynamicEntities, int numDynamicEntities)
+	{
+		if (sphereStore != null)
+		{
+			sphereStore.clear();
+			for (int i = 0; i < numDynamicEntities; i++)
+			{
+				PhysicalEntity physicalEntity = dynamicEntities[i];
+				if (SphereStore.isStorable(physicalEntity))
+				{
+					sphereStore.gather((SphereEntity) physicalEntity);
+				}
+			}
+		}
+		if (numDynamicEntities > 0)
+		{
+			int numChunks = calcNumChunks(numDynamicEntities);
+			for (int i = 0; i < numChunks; i++)
+			{
+				getIntegratorWorkspace(i);
+			}
+			parallelPool.invoke(new PhaseChunksTask(MOTION_PHASE, 0, numChunks, numChunks, numDynamicEntities, elapsedTime));
+		}
+		if (sphereStore != null && sphereStore.size() > 0)
+		{
+			int numChunks = calcNumChunks(sphereStore.size());
+			for (int i = 0; i < numChunks; i++)
+			{
+				getIntegratorWorkspace(i);
+			}
+			parallelPool.invoke(new PhaseChunksTask(SPHERE_STORE_PHASE, 0, numChunks, numChunks, sphereStore.size(), elapsedTime));
+		}
+	}
+
+	/**
+	 * Runs one chunk of a parallel phase. Chunk c of n covers items [c *
+	 * numItems / n, (c + 1) * numItems / n).
+	 */
+	private void runPhaseChunk(int phase, int chunk, int numChunks, int numItems, double elapsedTime)
+	{
+		int start = (int) ((long) chunk * numItems / numChunks);
+		int end = (int) ((long) (chunk + 1) * numItems / numChunks);
+		switch (phase)
+		{
+			case AI_PHASE:
+				CommandBuffer commands = commandBuffers[chunk];
+				for (int i = start; i < end; i++)
+				{
+					parallelAIEntities[i].ai(elapsedTime, this, commands);
+				}
+				break;
+			case MOTION_PHASE:
+				PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+				for (int i = start; i < end; i++)
+				{
+					PhysicalEntity physicalEntity = dynamicEntities[i];
+					if (sphereStore == null || !SphereStore.isStorable(physicalEntity))
+					{
+						integrate(physicalEntity, elapsedTime, integratorWorkspaces[chunk]);
+					}
+				}
+				break;
+			case SPHERE_STORE_PHASE:
+				sphereStore.integrate(start, end, elapsedTime, uniformAcceleration.x, uniformAcceleration.y, uniformAcceleration.z,
+						integrator, accelerationField, integratorWorkspaces[chunk]);
+				sphereStore.scatter(start, end);
+				break;
+			case NARROWPHASE_PHASE:
+				try
+				{
+					findContacts(start, end, workspaces[chunk], contactBuffers[chunk], elapsedTime);
+				}
+				catch (InteractionException e)
+				{
+					throw new CollisionFailure(e);
+				}
+				break;
+			default:
+				for (int i = start; i < end; i++)
+				{
+					contactSolver.solve(solverContactBuffers[i]);
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Runs chunks [startChunk, endChunk) of a phase by recursively splitting
+	 * the range in half.
+	 */
+	@SuppressWarnings("serial")
+	private class PhaseChunksTask extends RecursiveAction
+	{
+		private final int phase;
+		private final int startChunk;
+		private final int endChunk;
+		private final int numChunks;
+		private final int numItems;
+		private final double elapsedTime;
+
+		public PhaseChunksTask(int phase, int startChunk, int endChunk, int numChunks, int numItems, double elapsedTime)
+		{
+			this.phase = phase;
+			this.startChunk = startChunk;
+			this.endChunk = endChunk;
+			this.numChunks = numChunks;
+			this.numItems = numItems;
+			this.elapsedTime = elapsedTime;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (endChunk - startChunk == 1)
+			{
+				runPhaseChunk(phase, startChunk, numChunks, numItems, elapsedTime);
+			}
+			else
+			{
+				int middle = (startChunk + endChunk) >>> 1;
+				invokeAll(new PhaseChunksTask(phase, startChunk, middle, numChunks, numItems, elapsedTime), new PhaseChunksTask(phase, middle,
+						endChunk, numChunks, numItems, elapsedTime));
+			}
+		}
+	}
+
+	/**
+	 * Integrates a dynamic entity which is not in the SphereStore. With the
+	 * default integrator and no field, this calls its updateMotion(), so
+	 * overrides of that are respected.
+	 */
+	private void integrate(PhysicalEntity physicalEntity, double elapsedTime, Integrator.Workspace workspace)
+	{
+		applyUniformAcceleration(physicalEntity);
+		if (integrator == Integrator.CONSTANT_ACCELERATION && accelerationField == null)
+		{
+			physicalEntity.updateMotion(elapsedTime);
+		}
+		else
+		{
+			integrator.integrate(physicalEntity, elapsedTime, accelerationField, workspace);
+		}
+	}
+
+	private Integrator.Workspace getIntegratorWorkspace(int index)
+	{
+		if (index >= integratorWorkspaces.length)
+		{
+			integratorWorkspaces = Arrays.copyOf(integratorWorkspaces, Math.max(index + 1, integratorWorkspaces.length * 2));
+		}
+		if (integratorWorkspaces[index] == null)
+		{
+			integratorWorkspaces[index] = new Integrator.Workspace();
+		}
+		return integratorWorkspaces[index];
+	}
+
+	private void applyUniformAcceleration(PhysicalEntity physicalEntity)
+	{
+		if (!physicalEntity.ignoresGravity())
+		{
+			physicalEntity.addForce(uniformAcceleration, physicalEntity.mass);
+		}
+	}
+
+	/**
+	 * Adds an acceleration, such as gravity, which will be applied to every
+	 * dynamic entity (which does not ignore gravity) during this time step.
+	 * This is typically called from ai().
+	 * 
+	 * @param acceleration
+	 */
+	public void addUniformAcceleration(Vec3D acceleration)
+	{
+		uniformAcceleration.addTo(acceleration);
+	}
+
+	/**
+	 * Enables or disables structure of arrays integration for SphereEntity
+	 * objects (see SphereStore). This gives identical results, but is faster
+	 * for large numbers of spheres.
+	 * 
+	 * @param enabled
+	 */
+	public void setSphereStoreEnabled(boolean enabled)
+	{
+		sphereStore = enabled ? new SphereStore() : null;
+	}
+
+	/**
+	 * Chooses how dynamic entities are moved each time step (see
+	 * Integrator). The default, CONSTANT_ACCELERATION, is exact for constant
+	 * forces but drifts in energy for orbits and springs.
+	 * SEMI_IMPLICIT_EULER and VELOCITY_VERLET keep energy errors bounded for
+	 * forces added in ai() (ex: BarnesHutGravityEntity), and VELOCITY_VERLET
+	 * and RK4 follow the acceleration field accurately with much larger
+	 * steps.
+	 * 
+	 * Entities which override PhysicalEntity.updateMotion() are only moved by
+	 * it with the default integrator and no acceleration field. Changing
+	 * integrator clears each entity's previous acceleration.
+	 * 
+	 * @param integrator
+	 */
+	public void setIntegrator(Integrator integrator)
+	{
+		if (integrator == null)
+		{
+			throw new IllegalArgumentException("Integrator cannot be null");
+		}
+		if (integrator != this.integrator)
+		{
+			for (int i = 0; i < dynamicEntities.size(); i++)
+			{
+				dynamicEntities.get(i).clearPreviousAcceleration();
+			}
+		}
+		this.integrator = integrator;
+	}
+
+	public Integrator getIntegrator()
+	{
+		return integrator;
+	}
+
+	/**
+	 * Sets an acceleration, depending on position and velocity, which is
+	 * applied to every dynamic entity. Unlike forces added in ai(), it is
+	 * sampled by the integrator during each time step (see setIntegrator()).
+	 * 
+	 * @param accelerationField
+	 *            null (the default) for none
+	 */
+	public void setAccelerationField(AccelerationField accelerationField)
+	{
+		this.accelerationField = accelerationField;
+	}
+
+	public AccelerationField getAccelerationField()
+	{
+		return accelerationField;
+	}
+
+	private void resolveCollisions(double elapsedTime) throws InteractionException
+	{
+		long startTime = System.nanoTime();
+		PhysicalEntity[] staticEntities = this.staticEntities.getArray();
+		int numStaticEntities = this.staticEntities.size();
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		int numDynamicEntities = this.dynamicEntities.size();
+
+		islandsBuilt = false;
+		for (int i = 0; i < contactBuffers.length && contactBuffers[i] != null; i++)
+		{
+			contactBuffers[i].clear();
+			contactBuffers[i].setDeferred(contactSolver != null);
+		}
+		updateStaticGeometry();
+
+		if (stepsToSleep > 0 && sleepingEntities.size() > 0)
+		{
+			// Woken entities join the dynamic entities in time to be collision
+			// tested this step
+			wakeTouchedSleepers(staticEntities, numStaticEntities, dynamicEntities, numDynamicEntities);
+			dynamicEntities = this.dynamicEntities.getArray();
+			numDynamicEntities = this.dynamicEntities.size();
+		}
+
+		findCandidatePairs(staticEntities, numStaticEntities, dynamicEntities, numDynamicEntities);
+		sortCandidatePairs(staticEntities, numStaticEntities, dynamicEntities);
+		long broadphaseEndTime = System.nanoTime();
+		broadphaseTime += broadphaseEndTime - startTime;
+
+		boolean resweep = continuousCollisionDetection && contactSolver == null;
+		if (resweep)
+		{
+			ensureResweepCapacity(numDynamicEntities);
+		}
+		if (parallelPool == null)
+		{
+			int numItems = getNumNarrowphaseItems(numDynamicEntities);
+			if (resweep)
+			{
+				resolveAndResweep(sequentialPairs, 0, numDynamicEntities, sequentialPairs, 0, candidatePairs.size(), getWorkspace(0),
+						contactBuffers[0], elapsedTime);
+			}
+			else
+			{
+				findContacts(0, numItems, getWorkspace(0), contactBuffers[0], elapsedTime);
+			}
+		}
+		else if (contactSolver != null && !continuousCollisionDetection)
+		{
+			findContactsInParallel(elapsedTime, numDynamicEntities);
+		}
+		else
+		{
+			resolveIslandsInParallel(elapsedTime, numStaticEntities, numDynamicEntities);
+		}
+		long narrowphaseEndTime = System.nanoTime();
+		narrowphaseTime += narrowphaseEndTime - broadphaseEndTime;
+
+		if (contactSolver != null)
+		{
+			solveContacts(numStaticEntities, numDynamicEntities);
+			responseTime += System.nanoTime() - narrowphaseEndTime;
+		}
+		Arrays.fill(pairEntities1, 0, candidatePairs.size(), null);
+		Arrays.fill(pairEntities2, 0, candidatePairs.size(), null);
+	}
+
+	/**
+	 * Sorts candidate pairs so that static pairs come before dynamic pairs
+	 * and, within each, pairs which use the same collision kernel are
+	 * together (keeping pair order otherwise). Collisions are then resolved
+	 * in batches, one kernel at a time (see CollisionDispatch).
+	 */
+	private void sortCandidatePairs(PhysicalEntity[] staticEntities, int numStaticEntities, PhysicalEntity[] dynamicEntities)
+	{
+		int numPairs = candidatePairs.size();
+		if (pairKeys.length < numPairs)
+		{
+			int capacity = Math.max(numPairs, pairKeys.length * 2);
+			pairEntities1 = new PhysicalEntity[capacity];
+			pairEntities2 = new PhysicalEntity[capacity];
+			pairKeys = new int[capacity];
+		}
+		for (int i = 0; i < numPairs; i++)
+		{
+			int id1 = candidatePairs.getFirst(i);
+			PhysicalEntity entity1 = id1 < numStaticEntities ? staticEntities[id1] : dynamicEntities[id1 - numStaticEntities];
+			PhysicalEntity entity2 = dynamicEntities[candidatePairs.getSecond(i) - numStaticEntities];
+			int kernelId = CollisionDispatch.getKernelId(entity1.getShapeType(), entity2.getShapeType());
+			pairKeys[i] = id1 < numStaticEntities ? kernelId : CollisionDispatch.NUM_KERNELS + kernelId;
+		}
+		candidatePairs.sortByKey(pairKeys, CollisionDispatch.NUM_KERNELS * 2);
+		for (int i = 0; i < numPairs; i++)
+		{
+			int id1 = candidatePairs.getFirst(i);
+			pairEntities1[i] = id1 < numStaticEntities ? staticEntities[id1] : dynamicEntities[id1 - numStaticEntities];
+			pairEntities2[i] = dynamicEntities[candidatePairs.getSecond(i) - numStaticEntities];
+		}
+	}
+
+	/**
+	 * Resolves the given candidate pairs, in order, handing each run of pairs
+	 * with the same key to its collision kernel.
+	 * 
+	 * @param pairs
+	 *            indices of candidate pairs
+	 */
+	private void resolvePairs(int[] pairs, int start, int end, double elapsedTime, ContactBuffer contacts) throws InteractionException
+	{
+		int batchStart = start;
+		while (batchStart < end)
+		{
+			int key = pairKeys[pairs[batchStart]];
+			int batchEnd = batchStart + 1;
+			while (batchEnd < end && pairKeys[pairs[batchEnd]] == key)
+			{
+				batchEnd++;
+			}
+			CollisionDispatch.PairKernel kernel = collisionDispatch.getKernel(key % CollisionDispatch.NUM_KERNELS);
+			if (kernel != null)
+			{
+				kernel.resolvePairs(pairEntities1, pairEntities2, pairs, batchStart, batchEnd, elapsedTime, contacts);
+			}
+			batchStart = batchEnd;
+		}
+	}
+
+	/**
+	 * Sets when dynamic entities are put to sleep. An island of entities
+	 * (entities connected by contact) sleeps once all of its entities have
+	 * moved slower than sleepVelocity for stepsToSleep consecutive steps.
+	 * Sleeping entities are not integrated, do not feel uniform acceleration
+	 * and are not collision tested, so settled scenes cost very little.
+	 * 
+	 * A sleeping entity, along with everything touching it, is woken when a
+	 * force or impulse is applied to it, when a moving entity touches it or
+	 * when a static entity is removed.
+	 * 
+	 * @param sleepVelocity
+	 * @param stepsToSleep
+	 *            0 (the default) disables sleeping and wakes all entities.
+	 */
+	public void setSleeping(double sleepVelocity, int stepsToSleep)
+	{
+		this.sleepVelocitySquared = sleepVelocity * sleepVelocity;
+		this.stepsToSleep = stepsToSleep;
+		if (stepsToSleep == 0)
+		{
+			wakeAllSleepers();
+		}
+	}
+
+	/**
+	 * Wakes sleepers which have had a force or impulse applied.
+	 */
+	private void wakeRequestedSleepers()
+	{
+		int numSleepingEntities = sleepingEntities.size();
+		for (int i = 0; i < numSleepingEntities; i++)
+		{
+			if (sleepingEntities.get(i).isWakeRequested())
+			{
+				listSleeperToWake(i);
+			}
+		}
+		wakeListedSleepers();
+	}
+
+	/**
+	 * Wakes sleepers whose bounds overlap any of the given (awake) dynamic
+	 * entities, or any static entity which is moving (ex: a kinematic
+	 * platform). Sleepers are never tested against static entities, so
+	 * otherwise moving ones would pass straight through them.
+	 */
+	private void wakeTouchedSleepers(PhysicalEntity[] staticEntities, int numStaticEntities, PhysicalEntity[] dynamicEntities,
+			int numDynamicEntities)
+	{
+		for (int i = 0; i < numStaticEntities; i++)
+		{
+			if (!staticEntities[i].hasMotionStopped())
+			{
+				listTouchedSleepers(staticEntities[i]);
+			}
+		}
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			listTouchedSleepers(dynamicEntities[i]);
+		}
+		wakeListedSleepers();
+	}
+
+	private void listTouchedSleepers(PhysicalEntity physicalEntity)
+	{
+		physicalEntity.calcBoundingRect(boundingRect);
+		int numFound = findSleepers(boundingRect);
+		for (int j = 0; j < numFound; j++)
+		{
+			listSleeperToWake(foundSleepers[j]);
+		}
+	}
+
+	private void listSleeperToWake(int sleeper)
+	{
+		if (sleeperListed.length < sleepingEntities.size())
+		{
+			sleeperListed = Arrays.copyOf(sleeperListed, Math.max(sleepingEntities.size(), sleeperListed.length * 2));
+		}
+		if (sleeperListed[sleeper])
+		{
+			return;
+		}
+		if (numSleepersToWake == sleepersToWake.length)
+		{
+			sleepersToWake = Arrays.copyOf(sleepersToWake, numSleepersToWake * 2);
+		}
+		sleeperListed[sleeper] = true;
+		sleepersToWake[numSleepersToWake] = sleeper;
+		numSleepersToWake++;
+	}
+
+	/**
+	 * Wakes all listed sleepers, along with every sleeper touching them
+	 * (transitively), so that a resting island wakes as a whole.
+	 */
+	private void wakeListedSleepers()
+	{
+		if (numSleepersToWake == 0)
+		{
+			return;
+		}
+		for (int i = 0; i < numSleepersToWake; i++)
+		{
+			sleepingEntities.get(sleepersToWake[i]).calcBoundingRect(boundingRect);
+			int numFound = findSleepers(boundingRect);
+			for (int j = 0; j < numFound; j++)
+			{
+				listSleeperToWake(foundSleepers[j]);
+			}
+		}
+
+		// Collect entities 1st, as waking reorders the sleeping store
+		if (changingEntities.length < numSleepersToWake)
+		{
+			changingEntities = new PhysicalEntity[Math.max(numSleepersToWake, changingEntities.length * 2)];
+		}
+		for (int i = 0; i < numSleepersToWake; i++)
+		{
+			sleeperListed[sleepersToWake[i]] = false;
+			changingEntities[i] = sleepingEntities.get(sleepersToWake[i]);
+		}
+		for (int i = 0; i < numSleepersToWake; i++)
+		{
+			PhysicalEntity physicalEntity = changingEntities[i];
+			sleepingEntities.removeAt(handles.getIndex(physicalEntity.getHandle()));
+			physicalEntity.setAsleep(false);
+			dynamicEntities.add(physicalEntity);
+			changingEntities[i] = null;
+		}
+		numSleepersToWake = 0;
+		sleepingBroadphaseDirty = true;
+	}
+
+	/**
+	 * Rebuilds the baked geometry if baked entities have been removed.
+	 */
+	private void updateStaticGeometry()
+	{
+		if (staticGeometryDirty)
+		{
+			staticGeometry = bakedEntities.size() == 0 ? null : new StaticGeometry(bakedEntities.getArray(), bakedEntities.size());
+			staticGeometryDirty = false;
+		}
+	}
+
+	private void wakeAllSleepers()
+	{
+		for (int i = 0; i < sleepingEntities.size(); i++)
+		{
+			listSleeperToWake(i);
+		}
+		wakeListedSleepers();
+	}
+
+	/**
+	 * Finds all sleepers whose bounds overlap the given rectangle. Results
+	 * are written to foundSleepers.
+	 */
+	private int findSleepers(Rect rect)
+	{
+		if (sleepingBroadphaseDirty)
+		{
+			int numSleepingEntities = sleepingEntities.size();
+			sleepingBroadphase.begin(numSleepingEntities);
+			for (int i = 0; i < numSleepingEntities; i++)
+			{
+				sleepingEntities.get(i).calcBoundingRect(boundingRect);
+				sleepingBroadphase.setBounds(i, boundingRect.x1, boundingRect.y1, boundingRect.x1 + boundingRect.width, boundingRect.y1
+						+ boundingRect.height, false);
+			}
+			sleepingBroadphase.build();
+			sleepingBroadphaseDirty = false;
+		}
+		double minX = rect.x1;
+		double minY = rect.y1;
+		double maxX = rect.x1 + rect.width;
+		double maxY = rect.y1 + rect.height;
+		int numFound = sleepingBroadphase.queryRect(minX, minY, maxX, maxY, foundSleepers);
+		if (numFound > foundSleepers.length)
+		{
+			foundSleepers = new int[Integer.highestOneBit(numFound) * 2];
+			numFound = sleepingBroadphase.queryRect(minX, minY, maxX, maxY, foundSleepers);
+		}
+		return numFound;
+	}
+
+	/**
+	 * Counts still steps for every dynamic entity and puts to sleep every
+	 * island whose entities have all been still for long enough. Islands come
+	 * from this step's candidate pairs.
+	 */
+	private void sleepStillIslands()
+	{
+		int numStaticEntities = staticEntities.size();
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		int numDynamicEntities = this.dynamicEntities.size();
+		boolean anyReady = false;
+		for (int i = 0; i < numDynamicEntities; i++)
+		{
+			if (dynamicEntities[i].updateStillSteps(sleepVelocitySquared) >= stepsToSleep)
+			{
+				anyReady = true;
+			}
+		}
+		if (!anyReady)
+		{
+			return;
+		}
+
+		if (!islandsBuilt)
+		{
+			islands.build(numStaticEntities, numDynamicEntities, candidatePairs);
+		}
+		if (changingEntities.length < numDynamicEntities)
+		{
+			changingEntities = new PhysicalEntity[Math.max(numDynamicEntities, changingEntities.length * 2)];
+		}
+		int numSleeping = 0;
+		int numIslands = islands.getNumIslands();
+		for (int island = 0; island < numIslands; island++)
+		{
+			int bodyStart = islands.getBodyStart(island);
+			int bodyEnd = islands.getBodyEnd(island);
+			boolean still = true;
+			for (int i = bodyStart; i < bodyEnd && still; i++)
+			{
+				still = dynamicEntities[islands.getBody(i)].getStillSteps() >= stepsToSleep;
+			}
+			if (still)
+			{
+				for (int i = bodyStart; i < bodyEnd; i++)
+				{
+					changingEntities[numSleeping++] = dynamicEntities[islands.getBody(i)];
+				}
+			}
+		}
+
+		for (int i = 0; i < numSleeping; i++)
+		{
+			PhysicalEntity physicalEntity = changingEntities[i];
+			this.dynamicEntities.removeAt(handles.getIndex(physicalEntity.getHandle()));
+			physicalEntity.setAsleep(true);
+			physicalEntity.setVelocity(0, 0, 0);
+			physicalEntity.clearForce();
+			sleepingEntities.add(physicalEntity);
+			changingEntities[i] = null;
+		}
+		if (numSleeping > 0)
+		{
+			sleepingBroadphaseDirty = true;
+		}
+	}
+
+	/**
+	 * The number of items the narrowphase works through: dynamic entities to
+	 * test against baked geometry, if there is any, followed by candidate
+	 * pairs (see findContacts()).
+	 */
+	private int getNumNarrowphaseItems(int numDynamicEntities)
+	{
+		int numPairs = candidatePairs.size();
+		if (sequentialPairs.length < numPairs)
+		{
+			sequentialPairs = new int[Math.max(numPairs, sequentialPairs.length * 2)];
+			for (int i = 0; i < sequentialPairs.length; i++)
+			{
+				sequentialPairs[i] = i;
+			}
+		}
+		return (staticGeometry == null ? 0 : numDynamicEntities) + numPairs;
+	}
+
+	/**
+	 * Runs the narrowphase over items [start, end) (see
+	 * getNumNarrowphaseItems()). Going through all items in order resolves
+	 * collisions against baked geometry, then static/dynamic pairs, then
+	 * dynamic/dynamic pairs (see sortCandidatePairs()). As statics have the
+	 * lower ids, the static entity is always first in a pair.
+	 */
+	private void findContacts(int start, int end, StaticGeometry.Workspace workspace, ContactBuffer contacts, double elapsedTime)
+			throws InteractionException
+	{
+		int numGeometryItems = staticGeometry == null ? 0 : dynamicEntities.size();
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		int geometryEnd = Math.min(end, numGeometryItems);
+		for (int i = start; i < geometryEnd; i++)
+		{
+			PhysicalEntity entity = dynamicEntities[i];
+			if (entity instanceof SphereEntity)
+			{
+				staticGeometry.resolveCollisions((SphereEntity) entity, workspace, contacts);
+			}
+		}
+		int pairStart = Math.max(start, numGeometryItems) - numGeometryItems;
+		int pairEnd = end - numGeometryItems;
+		if (pairStart < pairEnd)
+		{
+			resolvePairs(sequentialPairs, pairStart, pairEnd, elapsedTime, contacts);
+		}
+	}
+
+	/**
+	 * Runs the narrowphase in evenly sized chunks of items, in parallel. This
+	 * is only possible when contacts are deferred, as then finding them does
+	 * not modify any entity. Concatenating the chunks' contacts gives exactly
+	 * the contacts of the serial path, in the same order.
+	 */
+	private void findContactsInParallel(double elapsedTime, int numDynamicEntities) throws InteractionException
+	{
+		int numItems = getNumNarrowphaseItems(numDynamicEntities);
+		if (numItems == 0)
+		{
+			return;
+		}
+		int numChunks = calcNumChunks(numItems);
+		for (int i = 0; i < numChunks; i++)
+		{
+			getWorkspace(i);
+			getContactBuffer(i);
+		}
+		try
+		{
+			parallelPool.invoke(new PhaseChunksTask(NARROWPHASE_PHASE, 0, numChunks, numChunks, numItems, elapsedTime));
+		}
+		catch (CollisionFailure failure)
+		{
+			throw (InteractionException) failure.getCause();
+		}
+	}
+
+	/**
+	 * The response stage: hands this step's contacts to the contact solver.
+	 * In parallel, contacts are solved by chunk of islands, so that no 2
+	 * chunks share a dynamic entity. Within an island, contacts are solved in
+	 * the same order as the serial path, so the results do not depend on the
+	 * number of threads.
+	 */
+	private void solveContacts(int numStaticEntities, int numDynamicEntities)
+	{
+		int numSolverChunks;
+		if (parallelPool == null)
+		{
+			solverContactBuffers = contactBuffers;
+			numSolverChunks = 1;
+			contactSolver.solve(contactBuffers[0]);
+		}
+		else
+		{
+			if (continuousCollisionDetection)
+			{
+				// The narrowphase ran by island, so contacts are already
+				// grouped
+				solverContactBuffers = contactBuffers;
+				numSolverChunks = islandsBuilt ? numIslandChunks : 0;
+			}
+			else
+			{
+				numSolverChunks = groupContactsByIsland(numStaticEntities, numDynamicEntities);
+				solverContactBuffers = islandContactBuffers;
+			}
+			if (numSolverChunks > 0)
+			{
+				parallelPool.invoke(new PhaseChunksTask(RESPONSE_PHASE, 0, numSolverChunks, numSolverChunks, numSolverChunks, 0));
+			}
+		}
+		contactSolver.endStep(solverContactBuffers, numSolverChunks);
+		solverContactBuffers = null;
+	}
+
+	/**
+	 * Copies the contacts found by a parallel narrowphase into one buffer per
+	 * chunk of islands, keeping their order.
+	 * 
+	 * @return the number of chunks
+	 */
+	private int groupContactsByIsland(int numStaticEntities, int numDynamicEntities)
+	{
+		if (!islandsBuilt)
+		{
+			islands.build(numStaticEntities, numDynamicEntities, candidatePairs);
+			islandsBuilt = true;
+		}
+		int numChunks = chunkIslands(numDynamicEntities);
+		if (islandContactBuffers.length < numChunks)
+		{
+			islandContactBuffers = Arrays.copyOf(islandContactBuffers, Math.max(numChunks, islandContactBuffers.length * 2));
+		}
+		for (int i = 0; i < numChunks; i++)
+		{
+			if (islandContactBuffers[i] == null)
+			{
+				islandContactBuffers[i] = new ContactBuffer();
+			}
+			islandContactBuffers[i].clear();
+		}
+		if (islandChunks.length < islands.getNumIslands())
+		{
+			islandChunks = new int[Math.max(islands.getNumIslands(), islandChunks.length * 2)];
+		}
+		for (int chunk = 0; chunk < numChunks; chunk++)
+		{
+			for (int island = chunkIslandStart[chunk]; island < chunkIslandStart[chunk + 1]; island++)
+			{
+				islandChunks[island] = chunk;
+			}
+		}
+
+		for (int i = 0; i < contactBuffers.length && contactBuffers[i] != null; i++)
+		{
+			ContactBuffer contacts = contactBuffers[i];
+			int numContacts = contacts.size();
+			for (int contact = 0; contact < numContacts; contact++)
+			{
+				// Every contact has a dynamic entity, usually the 2nd
+				int handle = contacts.getEntity2(contact).getHandle();
+				if (handles.getStore(handle) != DYNAMIC_STORE)
+				{
+					handle = contacts.getEntity1(contact).getHandle();
+				}
+				int chunk = islandChunks[islands.getIsland(handles.getIndex(handle))];
+				islandContactBuffers[chunk].add(contacts.getEntity1(contact), contacts.getEntity2(contact), contacts.getNormalX(contact),
+						contacts.getNormalY(contact), contacts.getNormalZ(contact), contacts.getPenetration(contact));
+			}
+		}
+		return numChunks;
+	}
+
+	/**
+	 * Partitions dynamic entities into islands and resolves groups of islands
+	 * in parallel. Within an island, everything is resolved in the same order
+	 * as the serial path (see findContacts()) and islands never share a
+	 * dynamic entity, so the results are bit-identical to the serial path,
+	 * regardless of the number of threads.
+	 */
+	private void resolveIslandsInParallel(double elapsedTime, int numStaticEntities, int numDynamicEntities) throws InteractionException
 	{
-		numEntities = 0;
-		numStaticEntities = 0;
-		numDynamicEntities = 0;
-		entities = new Entity[maxNumEntities];
-		dynamicEntities = new PhysicalEntity[maxNumEntities];
-		staticEntities = new PhysicalEntity[maxNumEntities];
-		reset();
+		islands.build(numStaticEntities, numDynamicEntities, candidatePairs);
+		islandsBuilt = true;
+		int numChunks = chunkIslands(numDynamicEntities);
+		if (numChunks == 0)
+		{
+			return;
+		}
+		for (int i = 0; i < numChunks; i++)
+		{
+			getWorkspace(i);
+			getContactBuffer(i);
+		}
+
+		try
+		{
+			parallelPool.invoke(new IslandChunksTask(0, numChunks, elapsedTime));
+		}
+		catch (CollisionFailure failure)
+		{
+			throw (InteractionException) failure.getCause();
+		}
 	}
 
 	/**
-	 * Reset the physics system to a blank state.
+	 * Splits islands into contiguous chunks of roughly equal work. Chunk c
+	 * covers islands [chunkIslandStart[c], chunkIslandStart[c + 1]).
+	 * 
+	 * @return the number of chunks
 	 */
-	public void reset()
+	private int chunkIslands(int numDynamicEntities)
 	{
-		numEntities = 0;
-		numStaticEntities = 0;
-		numDynamicEntities = 0;
-		totalRunTime = 0f;
+		int numIslands = islands.getNumIslands();
+		if (numIslands == 0)
+		{
+			numIslandChunks = 0;
+			return 0;
+		}
+		int numChunks = Math.min(numIslands, parallelPool.getParallelism() * CHUNKS_PER_THREAD);
+		if (chunkIslandStart.length < numChunks + 1)
+		{
+			chunkIslandStart = new int[numChunks + 1];
+		}
+		long totalWork = numDynamicEntities + candidatePairs.size();
+		long work = 0;
+		int chunk = 0;
+		chunkIslandStart[0] = 0;
+		for (int island = 0; island < numIslands && chunk < numChunks - 1; island++)
+		{
+			work += islands.getBodyEnd(island) - islands.getBodyStart(island) + islands.getPairEnd(island) - islands.getPairStart(island);
+			if (work * numChunks >= totalWork * (chunk + 1))
+			{
+				chunk++;
+				chunkIslandStart[chunk] = island + 1;
+			}
+		}
+		numChunks = chunk + 1;
+		chunkIslandStart[numChunks] = numIslands;
+		numIslandChunks = numChunks;
+		return numChunks;
 	}
 
-	@Override
-	public void performTimeStep(double elapsedTime)
+	/**
+	 * Resolves all collisions for the given range of islands on the current
+	 * thread.
+	 */
+	private void resolveIslands(int startIsland, int endIsland, StaticGeometry.Workspace workspace, ContactBuffer contacts,
+			double elapsedTime) throws InteractionException
 	{
-		try
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		boolean resweep = continuousCollisionDetection && contactSolver == null;
+		for (int island = startIsland; island < endIsland; island++)
 		{
-			totalRunTime += elapsedTime;
-			try
+			if (resweep)
 			{
-				runAI(elapsedTime);
-				updateMotion(elapsedTime);
-				resolveCollisions(elapsedTime);
+				resolveAndResweep(islands.getBodies(), islands.getBodyStart(island), islands.getBodyEnd(island), islands.getPairs(),
+						islands.getPairStart(island), islands.getPairEnd(island), workspace, contacts, elapsedTime);
+				continue;
 			}
-			catch (InteractionException e)
+			if (staticGeometry != null)
 			{
-				PLog.error("FAIL!", e);
-				System.exit(0);
+				int bodyEnd = islands.getBodyEnd(island);
+				for (int i = islands.getBodyStart(island); i < bodyEnd; i++)
+				{
+					PhysicalEntity entity = dynamicEntities[islands.getBody(i)];
+					if (entity instanceof SphereEntity)
+					{
+						staticGeometry.resolveCollisions((SphereEntity) entity, workspace, contacts);
+					}
+				}
 			}
-		}
-		catch (Exception e)
-		{
-			PLog.error("FAIL!", e);
-			System.exit(0);
+			resolvePairs(islands.getPairs(), islands.getPairStart(island), islands.getPairEnd(island), elapsedTime, contacts);
 		}
 	}
 
 	/**
-	 * Copies the state of all entities, at least well enough that they can be
-	 * drawn and are safe for access (may not be full serialization).
+	 * Resolves all collisions for a group of dynamic entities (all of them,
+	 * or an island) when continuous collision detection is used without a
+	 * contact solver. Entities are resolved against baked geometry and static
+	 * pairs 1st, then against each other. Those pushes could move a sphere
+	 * through a static entity, which need not even be one of its candidate
+	 * pairs, so each sphere they moved has its sweep restarted from where the
+	 * static entities left it and is resolved again against baked geometry
+	 * and every static entity near its new sweep.
+	 * 
+	 * @param bodies
+	 *            dynamic entity indices at [bodyStart, bodyEnd)
+	 * @param pairs
+	 *            candidate pair indices at [pairStart, pairEnd), static pairs
+	 *            1st
 	 */
-	@Override
-	public List<Entity> copyState()
+	private void resolveAndResweep(int[] bodies, int bodyStart, int bodyEnd, int[] pairs, int pairStart, int pairEnd,
+			StaticGeometry.Workspace workspace, ContactBuffer contacts, double elapsedTime) throws InteractionException
 	{
-		try
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
+		if (staticGeometry != null)
 		{
-			List<Entity> copyOfEntities = new ArrayList<Entity>(entities.length + staticEntities.length + dynamicEntities.length);
-			for (int i = 0; i < numEntities; i++)
+			for (int i = bodyStart; i < bodyEnd; i++)
 			{
-				copyOfEntities.add(entities[i].copyForRender());
+				PhysicalEntity entity = dynamicEntities[bodies[i]];
+				if (entity instanceof SphereEntity)
+				{
+					staticGeometry.resolveCollisions((SphereEntity) entity, workspace, contacts);
+				}
 			}
-			for (int i = 0; i < numStaticEntities; i++)
+		}
+		int staticPairEnd = pairStart;
+		while (staticPairEnd < pairEnd && pairKeys[pairs[staticPairEnd]] < CollisionDispatch.NUM_KERNELS)
+		{
+			staticPairEnd++;
+		}
+		resolvePairs(pairs, pairStart, staticPairEnd, elapsedTime, contacts);
+
+		for (int i = bodyStart; i < bodyEnd; i++)
+		{
+			int body = bodies[i];
+			if (dynamicEntities[body] instanceof SphereEntity)
 			{
-				copyOfEntities.add(staticEntities[i].copyForRender());
+				Vec3D center = ((SphereEntity) dynamicEntities[body]).getCenter();
+				staticResolvedCenters[body * 3] = center.x;
+				staticResolvedCenters[body * 3 + 1] = center.y;
+				staticResolvedCenters[body * 3 + 2] = center.z;
 			}
-			for (int i = 0; i < numDynamicEntities; i++)
+		}
+		resolvePairs(pairs, staticPairEnd, pairEnd, elapsedTime, contacts);
+
+		for (int i = bodyStart; i < bodyEnd; i++)
+		{
+			int body = bodies[i];
+			if (dynamicEntities[body] instanceof SphereEntity)
 			{
-				copyOfEntities.add(dynamicEntities[i].copyForRender());
+				SphereEntity sphereEntity = (SphereEntity) dynamicEntities[body];
+				Vec3D center = sphereEntity.getCenter();
+				double x = staticResolvedCenters[body * 3];
+				double y = staticResolvedCenters[body * 3 + 1];
+				double z = staticResolvedCenters[body * 3 + 2];
+				if (center.x != x || center.y != y || center.z != z)
+				{
+					sphereEntity.restartSweep(x, y, z);
+					if (staticGeometry != null)
+					{
+						staticGeometry.resolveCollisions(sphereEntity, workspace, contacts);
+					}
+					resweepStaticEntities(bodies, i, sphereEntity, elapsedTime, contacts);
+				}
 			}
-			return copyOfEntities;
 		}
-		catch (Exception e)
+	}
+
+	/**
+	 * Resolves the sphere bodies[index] against every static entity which
+	 * its sweep's bounds overlap, in static entity order.
+	 */
+	private void resweepStaticEntities(int[] bodies, int index, SphereEntity sphereEntity, double elapsedTime, ContactBuffer contacts)
+			throws InteractionException
+	{
+		Vec3D start = sphereEntity.getSweepStart();
+		Vec3D center = sphereEntity.getCenter();
+		double radius = sphereEntity.getRadius();
+		double minX = Math.min(start.x, center.x) - radius;
+		double minY = Math.min(start.y, center.y) - radius;
+		double maxX = Math.max(start.x, center.x) + radius;
+		double maxY = Math.max(start.y, center.y) + radius;
+		int numFound = broadphase.queryRect(minX, minY, maxX, maxY, contacts.foundEntities);
+		if (numFound > contacts.foundEntities.length)
 		{
-			PLog.error("FAIL!", e);
-			System.exit(0);
-			return new ArrayList<Entity>();
+			contacts.foundEntities = new int[Integer.highestOneBit(numFound) * 2];
+			numFound = broadphase.queryRect(minX, minY, maxX, maxY, contacts.foundEntities);
 		}
+		int[] foundEntities = contacts.foundEntities;
+		Arrays.sort(foundEntities, 0, numFound);
 
+		// Static entities have the lowest ids
+		PhysicalEntity[] staticEntities = this.staticEntities.getArray();
+		int numStaticEntities = this.staticEntities.size();
+		int body = bodies[index];
+		for (int i = 0; i < numFound && foundEntities[i] < numStaticEntities; i++)
+		{
+			PhysicalEntity staticEntity = staticEntities[foundEntities[i]];
+			CollisionDispatch.PairKernel kernel = collisionDispatch.getKernel(CollisionDispatch.getKernelId(staticEntity.getShapeType(),
+					sphereEntity.getShapeType()));
+			if (kernel != null)
+			{
+				resweepStaticEntities[body] = staticEntity;
+				kernel.resolvePairs(resweepStaticEntities, this.dynamicEntities.getArray(), bodies, index, index + 1, elapsedTime, contacts);
+			}
+		}
+		resweepStaticEntities[body] = null;
 	}
 
-	private void runAI(double elapsedTime)
+	private void ensureResweepCapacity(int numDynamicEntities)
 	{
-		for (int i = 0; i < numEntities; i++)
+		if (resweepStaticEntities.length < numDynamicEntities)
 		{
-			entities[i].ai(elapsedTime, this);
+			int capacity = Math.max(numDynamicEntities, resweepStaticEntities.length * 2);
+			resweepStaticEntities = new PhysicalEntity[capacity];
+			staticResolvedCenters = new double[capacity * 3];
 		}
-		for (int i = 0; i < numStaticEntities; i++)
+		if (sequentialPairs.length < numDynamicEntities)
 		{
-			staticEntities[i].ai(elapsedTime, this);
+			sequentialPairs = new int[Math.max(numDynamicEntities, sequentialPairs.length * 2)];
+			for (int i = 0; i < sequentialPairs.length; i++)
+			{
+				sequentialPairs[i] = i;
+			}
 		}
-		for (int i = 0; i < numDynamicEntities; i++)
+	}
+
+	private StaticGeometry.Workspace getWorkspace(int index)
+	{
+		if (index >= workspaces.length)
+		{
+			workspaces = Arrays.copyOf(workspaces, Math.max(index + 1, workspaces.length * 2));
+		}
+		if (workspaces[index] == null)
 		{
-			dynamicEntities[i].ai(elapsedTime, this);
+			workspaces[index] = new StaticGeometry.Workspace();
 		}
+		return workspaces[index];
 	}
 
-	private void updateMotion(double elapsedTime)
+	private ContactBuffer getContactBuffer(int index)
+	{
+		if (index >= contactBuffers.length)
+		{
+			contactBuffers = Arrays.copyOf(contactBuffers, Math.max(index + 1, contactBuffers.length * 2));
+		}
+		if (contactBuffers[index] == null)
+		{
+			contactBuffers[index] = new ContactBuffer();
+			contactBuffers[index].setDeferred(contactSolver != null);
+		}
+		return contactBuffers[index];
+	}
+
+	/**
+	 * @return the number of contacts found by the last time step (the last
+	 *         sub-step, if sub-stepping).
+	 */
+	public int getNumContacts()
+	{
+		int numContacts = 0;
+		for (int i = 0; i < contactBuffers.length && contactBuffers[i] != null; i++)
+		{
+			numContacts += contactBuffers[i].size();
+		}
+		return numContacts;
+	}
+
+	/**
+	 * Resolves chunks [startChunk, endChunk) by recursively splitting the
+	 * range in half.
+	 */
+	@SuppressWarnings("serial")
+	private class IslandChunksTask extends RecursiveAction
+	{
+		private final int startChunk;
+		private final int endChunk;
+		private final double elapsedTime;
+
+		public IslandChunksTask(int startChunk, int endChunk, double elapsedTime)
+		{
+			this.startChunk = startChunk;
+			this.endChunk = endChunk;
+			this.elapsedTime = elapsedTime;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (endChunk - startChunk == 1)
+			{
+				try
+				{
+					resolveIslands(chunkIslandStart[startChunk], chunkIslandStart[endChunk], workspaces[startChunk],
+							contactBuffers[startChunk], elapsedTime);
+				}
+				catch (InteractionException e)
+				{
+					throw new CollisionFailure(e);
+				}
+			}
+			else
+			{
+				int middle = (startChunk + endChunk) >>> 1;
+				invokeAll(new IslandChunksTask(startChunk, middle, elapsedTime), new IslandChunksTask(middle, endChunk, elapsedTime));
+			}
+		}
+	}
+
+	/**
+	 * Carries an InteractionException out of a fork/join task.
+	 */
+	@SuppressWarnings("serial")
+	private static class CollisionFailure extends RuntimeException
+	{
+		public CollisionFailure(InteractionException cause)
+		{
+			super(cause);
+		}
+	}
+
+	/**
+	 * Sets a pool used to run each phase of a time step in parallel. null (the
+	 * default) runs everything on the calling thread.
+	 * 
+	 * With a pool, entities with parallel ai (see Entity.hasParallelAI()) run
+	 * ai in chunks, recording their changes in per-chunk command buffers,
+	 * which are applied in chunk order afterwards. All other entities run ai
+	 * 1st, on the calling thread. Motion is integrated in chunks and
+	 * collisions are resolved by island. Results are identical for any number
+	 * of threads.
+	 * 
+	 * @param parallelPool
+	 */
+	public void setParallelPool(ForkJoinPool parallelPool)
+	{
+		this.parallelPool = parallelPool;
+	}
+
+	/**
+	 * Rebuilds the broadphase from the current positions of all physical
+	 * entities and fills candidatePairs with every pair whose bounds overlap.
+	 */
+	private void findCandidatePairs(PhysicalEntity[] staticEntities, int numStaticEntities, PhysicalEntity[] dynamicEntities,
+			int numDynamicEntities)
 	{
+		broadphase.begin(numStaticEntities + numDynamicEntities);
 		for (int i = 0; i < numStaticEntities; i++)
 		{
-			staticEntities[i].updateMotion(elapsedTime);
+			setBroadphaseBounds(i, staticEntities[i], true);
 		}
 		for (int i = 0; i < numDynamicEntities; i++)
 		{
-			dynamicEntities[i].updateMotion(elapsedTime);
+			setBroadphaseBounds(numStaticEntities + i, dynamicEntities[i], false);
 		}
+		broadphase.build();
+		candidatePairs.clear();
+		broadphase.findPairs(candidatePairs);
 	}
 
-	private void resolveCollisions(double elapsedTime) throws InteractionException
+	private void setBroadphaseBounds(int id, PhysicalEntity physicalEntity, boolean isStatic)
 	{
-		for (int i = 0; i < numStaticEntities; i++)
+		physicalEntity.calcBoundingRect(boundingRect);
+		broadphase.setBounds(id, boundingRect.x1, boundingRect.y1, boundingRect.x1 + boundingRect.width, boundingRect.y1 + boundingRect.height,
+				isStatic);
+		if (physicalEntity.getShapeType() == PhysicalEntity.SHAPE_LINE_SEGMENT)
+		{
+			LineSegment lineSegment = ((LineSegmentEntity) physicalEntity).getLineSegment();
+			broadphase.setSegment(id, lineSegment.p1.x, lineSegment.p1.y, lineSegment.p2.x, lineSegment.p2.y);
+		}
+	}
+
+	/**
+	 * Sets the size of the cells used by the default broadphase. By default
+	 * (0), this is picked automatically each time step based on the size of
+	 * the dynamic entities.
+	 * 
+	 * @param cellSize
+	 */
+	public void setBroadphaseCellSize(double cellSize)
+	{
+		defaultBroadphase.setCellSize(cellSize);
+	}
+
+	/**
+	 * Finds the 1st physical entity hit by a ray, in the x,y plane. Rays
+	 * starting inside a sphere do not hit it. Queries see where entities were
+	 * at the end of the last time step (or when they were last added or
+	 * removed), so may be made from ai(), including parallel ai(). Entities
+	 * moved directly since then are not seen where they moved to.
+	 * 
+	 * @param originX
+	 * @param originY
+	 * @param directionX
+	 *            need not be a unit vector
+	 * @param directionY
+	 * @param maxDistance
+	 *            entities this far or further along the ray are ignored
+	 * @param hit
+	 *            filled in with the closest hit
+	 * @return true if anything was hit.
+	 */
+	public boolean castRay(double originX, double originY, double directionX, double directionY, double maxDistance, RayHit hit)
+	{
+		double length = Math.sqrt(directionX * directionX + directionY * directionY);
+		if (!(length > 0))
+		{
+			throw new IllegalArgumentException("Ray has no direction: " + directionX + ", " + directionY);
+		}
+		directionX /= length;
+		directionY /= length;
+		SpatialQueries spatialQueries = getSpatialQueries();
+		int rayHit = spatialQueries.castRay(originX, originY, directionX, directionY, maxDistance);
+		if (rayHit == -1)
+		{
+			hit.clear();
+			return false;
+		}
+		double distance = spatialQueries.calcHitDistance(rayHit, originX, originY, directionX, directionY);
+		hit.set(spatialQueries.getHitEntity(rayHit), distance, originX + directionX * distance, originY + directionY * distance);
+		return true;
+	}
+
+	/**
+	 * Casts a fan of rays from one origin (ex: an agent's vision), as
+	 * castRay(). Ray i points at angle startAngle + i * angleStep.
+	 * 
+	 * @param originX
+	 * @param originY
+	 * @param startAngle
+	 *            in radians, counter-clockwise from +x
+	 * @param angleStep
+	 * @param numRays
+	 * @param maxDistance
+	 * @param distances
+	 *            filled in with the distance to each ray's hit, or
+	 *            maxDistance if it misses
+	 * @param handles
+	 *            filled in with the handle of the entity each ray hits, or -1
+	 *            if it misses. May be null.
+	 */
+	public void castRays(double originX, double originY, double startAngle, double angleStep, int numRays, double maxDistance,
+			double[] distances, int[] handles)
+	{
+		SpatialQueries spatialQueries = getSpatialQueries();
+		for (int i = 0; i < numRays; i++)
 		{
-			PhysicalEntity staticEntity = staticEntities[i];
-			for (int j = 0; j < numDynamicEntities; j++)
+			double angle = startAngle + i * angleStep;
+			double directionX = Math.cos(angle);
+			double directionY = Math.sin(angle);
+			int rayHit = spatialQueries.castRay(originX, originY, directionX, directionY, maxDistance);
+			if (rayHit == -1)
+			{
+				distances[i] = maxDistance;
+			}
+			else
 			{
-				PhysicalEntity entity2 = dynamicEntities[j];
-				staticEntity.resolveCollision(entity2, elapsedTime);
+				distances[i] = spatialQueries.calcHitDistance(rayHit, originX, originY, directionX, directionY);
+			}
+			if (handles != null)
+			{
+				handles[i] = rayHit == -1 ? -1 : spatialQueries.getHitEntity(rayHit).getHandle();
 			}
 		}
+	}
+
+	/**
+	 * Finds every physical entity touching a circle, in the x,y plane. See
+	 * castRay() for when entities are seen. Baked walls are only found if an
+	 * edge touches the circle, not if it is entirely inside them.
+	 * 
+	 * @param centerX
+	 * @param centerY
+	 * @param radius
+	 * @param handles
+	 *            filled in with the handles of the entities found, in no
+	 *            particular order
+	 * @return The number of entities found. If this is larger than
+	 *         handles.length, the array was too small and the query should be
+	 *         repeated with one at least this large.
+	 */
+	public int findEntitiesInCircle(double centerX, double centerY, double radius, int[] handles)
+	{
+		return getSpatialQueries().findEntitiesInCircle(centerX, centerY, radius, handles);
+	}
+
+	/**
+	 * Finds every physical entity touching an axis aligned rectangle. See
+	 * findEntitiesInCircle().
+	 * 
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param handles
+	 * @return
+	 */
+	public int findEntitiesInRect(double minX, double minY, double maxX, double maxY, int[] handles)
+	{
+		return getSpatialQueries().findEntitiesInRect(minX, minY, maxX, maxY, handles);
+	}
 
-		int innerSize = numDynamicEntities;
-		int outerSize = numDynamicEntities - 1;
-		for (int i = 0; i < outerSize; i++)
+	/**
+	 * Rebuilds the spatial queries if anything has changed since they were
+	 * last built. The 1st of several threads querying at once builds them
+	 * while the others wait.
+	 */
+	private SpatialQueries getSpatialQueries()
+	{
+		if (spatialQueriesDirty)
 		{
-			PhysicalEntity entity1 = dynamicEntities[i];
+			synchronized (spatialQueries)
+			{
+				if (spatialQueriesDirty)
+				{
+					updateStaticGeometry();
+					spatialQueries.build(staticEntities, dynamicEntities, sleepingEntities, staticGeometry);
+					spatialQueriesDirty = false;
+				}
+			}
+		}
+		return spatialQueries;
+	}
 
-			for (int j = i + 1; j < innerSize; j++)
+	/**
+	 * Compiles all static WallEntity and PolygonWallEntity objects into a
+	 * single bounding volume hierarchy of edges. This is expensive and should
+	 * be done once, after the level has been added. Walls added afterwards are
+	 * handled normally until this is called again.
+	 */
+	public void bakeStaticGeometry()
+	{
+		// Iterate backwards as removal moves the last entity into place
+		for (int i = staticEntities.size() - 1; i >= 0; i--)
+		{
+			if (StaticGeometry.isBakeable(staticEntities.get(i)))
 			{
-				PhysicalEntity entity2 = dynamicEntities[j];
-				entity1.resolveCollision(entity2, elapsedTime);
+				bakedEntities.add(staticEntities.removeAt(i));
 			}
 		}
+		staticGeometry = new StaticGeometry(bakedEntities.getArray(), bakedEntities.size());
+		staticGeometryDirty = false;
+		structureVersion++;
+		spatialQueriesDirty = true;
 	}
 
-	// TODO: Real,dynamic add/remove capability
-	public void addEntity(Entity entity)
+	/**
+	 * Adds an entity. Physical entities with infinite mass are treated as
+	 * static. This may be called at any time, including during a time step.
+	 * 
+	 * @param entity
+	 * @return a handle which identifies the entity until it is removed.
+	 */
+	public int addEntity(Entity entity)
 	{
+		if (entity.getHandle() != -1)
+		{
+			throw new IllegalStateException("Entity has already been added: " + entity);
+		}
+		int handle = handles.allocate(entity);
+		structureVersion++;
+		spatialQueriesDirty = true;
 		if (entity instanceof PhysicalEntity)
 		{
 			PhysicalEntity physicalEntity = (PhysicalEntity) entity;
-			if (((PhysicalEntity) entity).mass == Float.POSITIVE_INFINITY)
+			if (physicalEntity.mass == Float.POSITIVE_INFINITY)
 			{
-				staticEntities[numStaticEntities] = physicalEntity;
-				numStaticEntities++;
+				staticEntities.add(physicalEntity);
 			}
 			else
 			{
-				dynamicEntities[numDynamicEntities] = physicalEntity;
-				numDynamicEntities++;
+				dynamicEntities.add(physicalEntity);
 			}
 		}
 		else
 		{
-			entities[numEntities] = entity;
-			numEntities++;
+			entities.add(entity);
+		}
+		return handle;
+	}
+
+	public int addDynamicEntity(PhysicalEntity physicalEntity)
+	{
+		if (physicalEntity.getHandle() != -1)
+		{
+			throw new IllegalStateException("Entity has already been added: " + physicalEntity);
+		}
+		int handle = handles.allocate(physicalEntity);
+		structureVersion++;
+		spatialQueriesDirty = true;
+		dynamicEntities.add(physicalEntity);
+		return handle;
+	}
+
+	/**
+	 * Removes the entity with the given handle in O(1). If called during a
+	 * time step (ex: from ai()), the removal takes place at the end of the
+	 * step. Stale handles are ignored.
+	 * 
+	 * Once removed, the entity may be reused (see EntityPool) and added again.
+	 * 
+	 * @param handle
+	 */
+	public void removeEntity(int handle)
+	{
+		removeEntity(handle, null);
+	}
+
+	/**
+	 * Removes the entity with the given handle, as removeEntity(int), and then
+	 * returns it to the given pool. The entity is not returned to the pool
+	 * until the removal actually takes place.
+	 * 
+	 * @param handle
+	 * @param pool
+	 */
+	public <T extends Entity> void removeEntity(int handle, EntityPool<T> pool)
+	{
+		if (handles.get(handle) == null)
+		{
+			return;
+		}
+		if (inTimeStep)
+		{
+			if (numPendingRemovals == pendingRemovals.length)
+			{
+				pendingRemovals = Arrays.copyOf(pendingRemovals, numPendingRemovals * 2);
+				pendingRemovalPools = Arrays.copyOf(pendingRemovalPools, numPendingRemovals * 2);
+			}
+			pendingRemovals[numPendingRemovals] = handle;
+			pendingRemovalPools[numPendingRemovals] = pool;
+			numPendingRemovals++;
+			return;
+		}
+		Entity removed;
+		int index = handles.getIndex(handle);
+		switch (handles.getStore(handle))
+		{
+			case ENTITY_STORE:
+				removed = entities.removeAt(index);
+				break;
+			case STATIC_STORE:
+				removed = staticEntities.removeAt(index);
+				// Anything resting on it must fall
+				wakeAllSleepers();
+				break;
+			case DYNAMIC_STORE:
+				removed = dynamicEntities.removeAt(index);
+				break;
+			case SLEEPING_STORE:
+				removed = sleepingEntities.removeAt(index);
+				sleepingBroadphaseDirty = true;
+				break;
+			default:
+				removed = bakedEntities.removeAt(index);
+				staticGeometryDirty = true;
+				wakeAllSleepers();
+				break;
+		}
+		if (removed instanceof PhysicalEntity)
+		{
+			PhysicalEntity physicalEntity = (PhysicalEntity) removed;
+			physicalEntity.clearForce();
+			physicalEntity.setAsleep(false);
+		}
+		handles.free(handle);
+		structureVersion++;
+		spatialQueriesDirty = true;
+		if (pool != null)
+		{
+			@SuppressWarnings("unchecked")
+			T pooledEntity = (T) removed;
+			pool.free(pooledEntity);
+		}
+	}
+
+	private void applyPendingRemovals()
+	{
+		// removeEntity() ignores handles removed twice in the same step
+		for (int i = 0; i < numPendingRemovals; i++)
+		{
+			removeEntity(pendingRemovals[i], pendingRemovalPools[i]);
+			pendingRemovalPools[i] = null;
 		}
+		numPendingRemovals = 0;
 	}
 
-	public void addDynamicEntity(PhysicalEntity physicalEntity)
+	/**
+	 * Looks up an entity by handle.
+	 * 
+	 * @param handle
+	 * @return the entity or null if it has been removed.
+	 */
+	public Entity getEntity(int handle)
 	{
-		dynamicEntities[numDynamicEntities] = physicalEntity;
-		numDynamicEntities++;
+		return handles.get(handle);
 	}
 
 	public double getTotalRunTime()
@@ -199,6 +2613,8 @@ public class PhysicsSystem implements Simulation<List<Entity>>
 	 */
 	public void randomizeEntityProcessingOrder_TESTING_ONLY(Random random)
 	{
+		int numDynamicEntities = dynamicEntities.size();
+		PhysicalEntity[] dynamicEntities = this.dynamicEntities.getArray();
 		List<PhysicalEntity> physicalEntityList = new ArrayList<PhysicalEntity>(numDynamicEntities);
 		for (int i = 0; i < numDynamicEntities; i++)
 		{
@@ -209,16 +2625,39 @@ public class PhysicsSystem implements Simulation<List<Entity>>
 		{
 			dynamicEntities[i] = physicalEntityList.get(i);
 		}
+		this.dynamicEntities.updateLocations();
 	}
 
+	/**
+	 * The dynamic physical entities. Only the 1st getNumPhysicalEntities()
+	 * are valid. The array is replaced as storage grows, so it should be
+	 * fetched again after entities are added. Sleeping entities (see
+	 * setSleeping()) are not included.
+	 * 
+	 * @return
+	 */
 	public PhysicalEntity[] getPhysicalEntities()
 	{
-		return dynamicEntities;
+		return dynamicEntities.getArray();
 	}
 
 	public int getNumPhysicalEntities()
 	{
-		return numDynamicEntities;
+		return dynamicEntities.size();
+	}
+
+	/**
+	 * @return the sleeping physical entities, in the 1st
+	 *         getNumSleepingEntities() elements.
+	 */
+	public PhysicalEntity[] getSleepingEntities()
+	{
+		return sleepingEntities.getArray();
+	}
+
+	public int getNumSleepingEntities()
+	{
+		return sleepingEntities.size();
 	}
 
 	@Override
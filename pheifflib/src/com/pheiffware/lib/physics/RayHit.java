@@ -0,0 +1,63 @@
+package com.pheiffware.lib.physics;
+
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+
+/**
+ * The closest hit of a ray cast by PhysicsSystem.castRay(). Callers keep one and pass it to every cast, so casting
+ * allocates nothing.
+ */
+public class RayHit
+{
+	private PhysicalEntity entity;
+	private double distance;
+	private double x;
+	private double y;
+
+	final void set(PhysicalEntity entity, double distance, double x, double y)
+	{
+		this.entity = entity;
+		this.distance = distance;
+		this.x = x;
+		this.y = y;
+	}
+
+	final void clear()
+	{
+		entity = null;
+		distance = Double.NaN;
+	}
+
+	/**
+	 * @return the entity hit, or null if the ray missed.
+	 */
+	public final PhysicalEntity getEntity()
+	{
+		return entity;
+	}
+
+	/**
+	 * @return the handle of the entity hit, or -1 if the ray missed.
+	 */
+	public final int getHandle()
+	{
+		return entity == null ? -1 : entity.getHandle();
+	}
+
+	/**
+	 * @return the distance along the ray to the hit, or Double.NaN if the ray missed.
+	 */
+	public final double getDistance()
+	{
+		return distance;
+	}
+
+	public final double getX()
+	{
+		return x;
+	}
+
+	public final double getY()
+	{
+		return y;
+	}
+}
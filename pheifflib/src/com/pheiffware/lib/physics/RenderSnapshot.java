@@ -0,0 +1,161 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A flat copy of everything needed to draw the entities of a PhysicsSystem, held in primitive arrays. Unlike
+ * copyState(), a snapshot shares nothing with the live simulation, and once its arrays have grown large enough,
+ * filling it allocates nothing.
+ *
+ * Entity i has a type, the handle of the entity it came from, a position and a radius. Line segments and polygons
+ * also have points [getPointStart(i), getPointEnd(i)) in pointX/pointY.
+ *
+ * Snapshots are reused (see PhysicsSystem.takeSnapshot()), so they should not be held onto for long. A reader on
+ * another thread can check that a snapshot was not refilled while it was reading:
+ *
+ * long stamp = snapshot.beginRead(); ...read... if (!snapshot.validateRead(stamp)) { ...take a newer snapshot... }
+ *
+ * Neither call blocks.
+ */
+public class RenderSnapshot
+{
+	// Entity types
+	public static final int OTHER = 0;
+	public static final int SPHERE = 1;
+	public static final int LINE_SEGMENT = 2;
+	public static final int POLYGON = 3;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// Held for writing while the snapshot is being filled. Readers only ever use optimistic stamps.
+	private final StampedLock reuseLock = new StampedLock();
+
+	// Simulation time the snapshot was taken at
+	public double time;
+
+	private int numEntities = 0;
+	public int[] type = new int[INITIAL_CAPACITY];
+	public int[] handle = new int[INITIAL_CAPACITY];
+	public double[] x = new double[INITIAL_CAPACITY];
+	public double[] y = new double[INITIAL_CAPACITY];
+	public double[] radius = new double[INITIAL_CAPACITY];
+
+	// Entity i's points are [pointStart[i], pointStart[i + 1])
+	private int[] pointStart = new int[INITIAL_CAPACITY + 1];
+
+	private int numPoints = 0;
+	public double[] pointX = new double[INITIAL_CAPACITY];
+	public double[] pointY = new double[INITIAL_CAPACITY];
+
+	/**
+	 * @return a stamp to pass to validateRead() once reading is finished. 0 if the snapshot is being filled right now.
+	 */
+	public final long beginRead()
+	{
+		return reuseLock.tryOptimisticRead();
+	}
+
+	/**
+	 * @param stamp
+	 *            from beginRead()
+	 * @return true if the snapshot has not been refilled since beginRead() was called, so everything read in between
+	 *         is consistent.
+	 */
+	public final boolean validateRead(long stamp)
+	{
+		return reuseLock.validate(stamp);
+	}
+
+	/**
+	 * Called before the snapshot is filled.
+	 *
+	 * @return a stamp to pass to endWrite().
+	 */
+	public final long beginWrite()
+	{
+		return reuseLock.writeLock();
+	}
+
+	public final void endWrite(long stamp)
+	{
+		reuseLock.unlockWrite(stamp);
+	}
+
+	public final void clear()
+	{
+		numEntities = 0;
+		numPoints = 0;
+	}
+
+	/**
+	 * Adds an entity. Any points added afterwards, until the next entity is added, belong to this entity.
+	 *
+	 * @param type
+	 * @param handle
+	 * @param x
+	 * @param y
+	 * @param radius
+	 *            for non-spheres, the radius of a circle containing the entity.
+	 */
+	public final void addEntity(int type, int handle, double x, double y, double radius)
+	{
+		if (numEntities == this.type.length)
+		{
+			int capacity = numEntities * 2;
+			this.type = Arrays.copyOf(this.type, capacity);
+			this.handle = Arrays.copyOf(this.handle, capacity);
+			this.x = Arrays.copyOf(this.x, capacity);
+			this.y = Arrays.copyOf(this.y, capacity);
+			this.radius = Arrays.copyOf(this.radius, capacity);
+			pointStart = Arrays.copyOf(pointStart, capacity + 1);
+		}
+		this.type[numEntities] = type;
+		this.handle[numEntities] = handle;
+		this.x[numEntities] = x;
+		this.y[numEntities] = y;
+		this.radius[numEntities] = radius;
+		pointStart[numEntities] = numPoints;
+		numEntities++;
+		pointStart[numEntities] = numPoints;
+	}
+
+	/**
+	 * Adds a point to the last entity added.
+	 *
+	 * @param x
+	 * @param y
+	 */
+	public final void addPoint(double x, double y)
+	{
+		if (numPoints == pointX.length)
+		{
+			pointX = Arrays.copyOf(pointX, numPoints * 2);
+			pointY = Arrays.copyOf(pointY, numPoints * 2);
+		}
+		pointX[numPoints] = x;
+		pointY[numPoints] = y;
+		numPoints++;
+		pointStart[numEntities] = numPoints;
+	}
+
+	public final int getNumEntities()
+	{
+		return numEntities;
+	}
+
+	public final int getNumPoints()
+	{
+		return numPoints;
+	}
+
+	public final int getPointStart(int entity)
+	{
+		return pointStart[entity];
+	}
+
+	public final int getPointEnd(int entity)
+	{
+		return pointStart[entity + 1];
+	}
+}
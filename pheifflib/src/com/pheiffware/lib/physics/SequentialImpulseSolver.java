@@ -0,0 +1,78 @@
+package com.pheiffware.lib.physics;
+
+/**
+ * A sequential impulse solver, warm started from the impulses each contact needed last time step (see
+ * ContactBuffer.solve() and ContactCache).
+ */
+public class SequentialImpulseSolver implements ContactSolver
+{
+	private final int iterations;
+	private final ContactCache contactCache = new ContactCache();
+
+	/**
+	 * @param iterations
+	 *            number of times every contact is corrected per time step
+	 */
+	public SequentialImpulseSolver(int iterations)
+	{
+		if (iterations < 1)
+		{
+			throw new IllegalArgumentException("Invalid solver iterations: " + iterations);
+		}
+		this.iterations = iterations;
+	}
+
+	@Override
+	public void solve(ContactBuffer contacts)
+	{
+		contacts.solve(contactCache, iterations);
+	}
+
+	@Override
+	public void endStep(ContactBuffer[] contactBuffers, int numContactBuffers)
+	{
+		for (int i = 0; i < numContactBuffers; i++)
+		{
+			contactBuffers[i].storeImpulses(contactCache);
+		}
+		contactCache.endStep();
+	}
+
+	@Override
+	public void reset()
+	{
+		contactCache.clear();
+	}
+
+	@Override
+	public Object createState()
+	{
+		return new ContactCache();
+	}
+
+	@Override
+	public void saveState(Object state)
+	{
+		toContactCache(state).copyFrom(contactCache);
+	}
+
+	@Override
+	public void restoreState(Object state)
+	{
+		contactCache.copyFrom(toContactCache(state));
+	}
+
+	private static ContactCache toContactCache(Object state)
+	{
+		if (!(state instanceof ContactCache))
+		{
+			throw new IllegalArgumentException("State was not created by a SequentialImpulseSolver");
+		}
+		return (ContactCache) state;
+	}
+
+	public final int getIterations()
+	{
+		return iterations;
+	}
+}
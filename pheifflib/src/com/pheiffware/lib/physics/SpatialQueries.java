@@ -0,0 +1,386 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.geometry.EdgeTree;
+import com.pheiffware.lib.geometry.Geocalc;
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.geometry.shapes.LineSegment;
+import com.pheiffware.lib.geometry.shapes.Rect;
+import com.pheiffware.lib.physics.broadphase.SpatialHashGrid;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.LineSegmentEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.PolygonEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.SphereEntity;
+
+/**
+ * Ray casts and overlap queries against every physical entity of a PhysicsSystem (see PhysicsSystem.castRay()).
+ * Entities are binned into a SpatialHashGrid, which is rebuilt from where they are when the 1st query after they move
+ * is made. Baked static geometry is queried through its own EdgeTree.
+ *
+ * Spheres, line segments and polygons are tested against their exact shapes. Any other entity is treated as its
+ * bounding rectangle. Baked walls are only tested by their edges.
+ *
+ * Queries only read, so once built, any number of threads may query at once. Nothing is allocated once the internal
+ * arrays have grown large enough.
+ */
+class SpatialQueries implements SpatialHashGrid.RayTest
+{
+	private final SpatialHashGrid grid = new SpatialHashGrid();
+	private final Rect boundingRect = new Rect(0, 0, 0, 0);
+
+	// Every entity in the grid, by id, and its bounds as minX, minY, maxX, maxY
+	private int numEntities = 0;
+	private PhysicalEntity[] entities = new PhysicalEntity[16];
+	private double[] bounds = new double[64];
+
+	private StaticGeometry staticGeometry;
+
+	/**
+	 * Bins the given entities. Baked geometry is not copied, so must not be rebuilt until this is built again.
+	 */
+	void build(EntityStore<PhysicalEntity> staticEntities, EntityStore<PhysicalEntity> dynamicEntities,
+			EntityStore<PhysicalEntity> sleepingEntities, StaticGeometry staticGeometry)
+	{
+		this.staticGeometry = staticGeometry;
+		int numStaticEntities = staticEntities.size();
+		int numDynamicEntities = dynamicEntities.size();
+		int newNumEntities = numStaticEntities + numDynamicEntities + sleepingEntities.size();
+		if (newNumEntities > entities.length)
+		{
+			entities = new PhysicalEntity[Math.max(newNumEntities, entities.length * 2)];
+			bounds = new double[entities.length * 4];
+		}
+		// Don't hold on to removed entities
+		Arrays.fill(entities, newNumEntities, Math.max(newNumEntities, numEntities), null);
+		numEntities = newNumEntities;
+
+		grid.begin(numEntities);
+		for (int id = 0; id < numEntities; id++)
+		{
+			PhysicalEntity physicalEntity;
+			if (id < numStaticEntities)
+			{
+				physicalEntity = staticEntities.get(id);
+			}
+			else if (id < numStaticEntities + numDynamicEntities)
+			{
+				physicalEntity = dynamicEntities.get(id - numStaticEntities);
+			}
+			else
+			{
+				physicalEntity = sleepingEntities.get(id - numStaticEntities - numDynamicEntities);
+			}
+			entities[id] = physicalEntity;
+			physicalEntity.calcBoundingRect(boundingRect);
+			bounds[id * 4] = boundingRect.x1;
+			bounds[id * 4 + 1] = boundingRect.y1;
+			bounds[id * 4 + 2] = boundingRect.x1 + boundingRect.width;
+			bounds[id * 4 + 3] = boundingRect.y1 + boundingRect.height;
+			// Static entities don't affect the size of cells
+			grid.setBounds(id, bounds[id * 4], bounds[id * 4 + 1], bounds[id * 4 + 2], bounds[id * 4 + 3], id < numStaticEntities);
+		}
+		grid.build();
+	}
+
+	/**
+	 * Finds the 1st entity hit by a ray.
+	 *
+	 * @return the hit, encoded as: an id in the grid, -2 - an edge of the baked geometry, or -1 for a miss (see
+	 *         getHitEntity() and calcHitDistance()).
+	 */
+	int castRay(double originX, double originY, double directionX, double directionY, double maxDistance)
+	{
+		int hit = grid.castRay(originX, originY, directionX, directionY, maxDistance, this);
+		if (staticGeometry != null)
+		{
+			if (hit != -1)
+			{
+				maxDistance = intersectRay(hit, originX, originY, directionX, directionY);
+			}
+			int edge = staticGeometry.getEdgeTree().castRay(originX, originY, directionX, directionY, maxDistance);
+			if (edge != -1)
+			{
+				hit = -2 - edge;
+			}
+		}
+		return hit;
+	}
+
+	/**
+	 * @param hit
+	 *            from castRay()
+	 * @return the entity hit, or null for a miss.
+	 */
+	PhysicalEntity getHitEntity(int hit)
+	{
+		if (hit == -1)
+		{
+			return null;
+		}
+		return hit >= 0 ? entities[hit] : staticGeometry.getEdgeOwner(-2 - hit);
+	}
+
+	/**
+	 * @param hit
+	 *            from castRay(), with the same ray
+	 * @return the distance along the ray to the hit.
+	 */
+	double calcHitDistance(int hit, double originX, double originY, double directionX, double directionY)
+	{
+		if (hit >= 0)
+		{
+			return intersectRay(hit, originX, originY, directionX, directionY);
+		}
+		return staticGeometry.getEdgeTree().calcRayDistance(-2 - hit, originX, originY, directionX, directionY);
+	}
+
+	@Override
+	public double intersectRay(int id, double originX, double originY, double directionX, double directionY)
+	{
+		PhysicalEntity physicalEntity = entities[id];
+		switch (physicalEntity.getShapeType())
+		{
+			case PhysicalEntity.SHAPE_SPHERE:
+			{
+				SphereEntity sphereEntity = (SphereEntity) physicalEntity;
+				Vec3D center = sphereEntity.getCenter();
+				return Geocalc.rayDistanceToCircle2D(originX, originY, directionX, directionY, center.x, center.y, sphereEntity.getRadius());
+			}
+			case PhysicalEntity.SHAPE_LINE_SEGMENT:
+			{
+				LineSegment lineSegment = ((LineSegmentEntity) physicalEntity).getLineSegment();
+				return Geocalc.rayDistanceToSegment2D(originX, originY, directionX, directionY, lineSegment.p1.x, lineSegment.p1.y,
+						lineSegment.p2.x, lineSegment.p2.y);
+			}
+			case PhysicalEntity.SHAPE_POLYGON:
+			{
+				double hitDistance = Double.NaN;
+				for (LineSegment lineSegment : ((PolygonEntity) physicalEntity).getLineSegments())
+				{
+					double distance = Geocalc.rayDistanceToSegment2D(originX, originY, directionX, directionY, lineSegment.p1.x,
+							lineSegment.p1.y, lineSegment.p2.x, lineSegment.p2.y);
+					if (distance >= 0 && !(hitDistance <= distance))
+					{
+						hitDistance = distance;
+					}
+				}
+				return hitDistance;
+			}
+			default:
+				return Geocalc.rayDistanceToRect2D(originX, originY, directionX, directionY, bounds[id * 4], bounds[id * 4 + 1],
+						bounds[id * 4 + 2], bounds[id * 4 + 3]);
+		}
+	}
+
+	/**
+	 * Finds every entity touching a circle. See PhysicsSystem.findEntitiesInCircle().
+	 */
+	int findEntitiesInCircle(double centerX, double centerY, double radius, int[] handles)
+	{
+		double minX = centerX - radius;
+		double minY = centerY - radius;
+		double maxX = centerX + radius;
+		double maxY = centerY + radius;
+		int numCandidates = grid.queryRect(minX, minY, maxX, maxY, handles);
+		if (numCandidates > handles.length)
+		{
+			return numCandidates;
+		}
+		double radiusSquared = radius * radius;
+		int numFound = 0;
+		for (int i = 0; i < numCandidates; i++)
+		{
+			int id = handles[i];
+			if (overlapsCircle(id, centerX, centerY, radius, radiusSquared))
+			{
+				handles[numFound++] = entities[id].getHandle();
+			}
+		}
+		if (staticGeometry == null)
+		{
+			return numFound;
+		}
+
+		EdgeTree edgeTree = staticGeometry.getEdgeTree();
+		numCandidates = edgeTree.queryRect(minX, minY, maxX, maxY, handles, numFound);
+		if (numCandidates > handles.length)
+		{
+			return numCandidates;
+		}
+		int bakedStart = numFound;
+		for (int i = bakedStart; i < numCandidates; i++)
+		{
+			int edge = handles[i];
+			if (Geocalc.distanceSquaredPointToSegment2D(centerX, centerY, edgeTree.p1x[edge], edgeTree.p1y[edge], edgeTree.p2x[edge],
+					edgeTree.p2y[edge]) <= radiusSquared)
+			{
+				handles[numFound++] = staticGeometry.getEdgeOwner(edge).getHandle();
+			}
+		}
+		return removeDuplicates(handles, bakedStart, numFound);
+	}
+
+	/**
+	 * Finds every entity touching a rectangle. See PhysicsSystem.findEntitiesInRect().
+	 */
+	int findEntitiesInRect(double minX, double minY, double maxX, double maxY, int[] handles)
+	{
+		int numCandidates = grid.queryRect(minX, minY, maxX, maxY, handles);
+		if (numCandidates > handles.length)
+		{
+			return numCandidates;
+		}
+		int numFound = 0;
+		for (int i = 0; i < numCandidates; i++)
+		{
+			int id = handles[i];
+			if (overlapsRect(id, minX, minY, maxX, maxY))
+			{
+				handles[numFound++] = entities[id].getHandle();
+			}
+		}
+		if (staticGeometry == null)
+		{
+			return numFound;
+		}
+
+		EdgeTree edgeTree = staticGeometry.getEdgeTree();
+		numCandidates = edgeTree.queryRect(minX, minY, maxX, maxY, handles, numFound);
+		if (numCandidates > handles.length)
+		{
+			return numCandidates;
+		}
+		int bakedStart = numFound;
+		for (int i = bakedStart; i < numCandidates; i++)
+		{
+			int edge = handles[i];
+			if (Geocalc.segmentOverlapsRect2D(edgeTree.p1x[edge], edgeTree.p1y[edge], edgeTree.p2x[edge], edgeTree.p2y[edge], minX, minY,
+					maxX, maxY))
+			{
+				handles[numFound++] = staticGeometry.getEdgeOwner(edge).getHandle();
+			}
+		}
+		return removeDuplicates(handles, bakedStart, numFound);
+	}
+
+	private boolean overlapsCircle(int id, double centerX, double centerY, double radius, double radiusSquared)
+	{
+		PhysicalEntity physicalEntity = entities[id];
+		switch (physicalEntity.getShapeType())
+		{
+			case PhysicalEntity.SHAPE_SPHERE:
+			{
+				SphereEntity sphereEntity = (SphereEntity) physicalEntity;
+				Vec3D center = sphereEntity.getCenter();
+				double xdiff = center.x - centerX;
+				double ydiff = center.y - centerY;
+				double reach = sphereEntity.getRadius() + radius;
+				return xdiff * xdiff + ydiff * ydiff <= reach * reach;
+			}
+			case PhysicalEntity.SHAPE_LINE_SEGMENT:
+			{
+				LineSegment lineSegment = ((LineSegmentEntity) physicalEntity).getLineSegment();
+				return Geocalc.distanceSquaredPointToSegment2D(centerX, centerY, lineSegment.p1.x, lineSegment.p1.y, lineSegment.p2.x,
+						lineSegment.p2.y) <= radiusSquared;
+			}
+			case PhysicalEntity.SHAPE_POLYGON:
+			{
+				LineSegment[] lineSegments = ((PolygonEntity) physicalEntity).getLineSegments();
+				for (LineSegment lineSegment : lineSegments)
+				{
+					if (Geocalc.distanceSquaredPointToSegment2D(centerX, centerY, lineSegment.p1.x, lineSegment.p1.y, lineSegment.p2.x,
+							lineSegment.p2.y) <= radiusSquared)
+					{
+						return true;
+					}
+				}
+				// The circle may be entirely inside
+				return containsPoint(lineSegments, centerX, centerY);
+			}
+			default:
+			{
+				double xdiff = centerX - Math.max(bounds[id * 4], Math.min(bounds[id * 4 + 2], centerX));
+				double ydiff = centerY - Math.max(bounds[id * 4 + 1], Math.min(bounds[id * 4 + 3], centerY));
+				return xdiff * xdiff + ydiff * ydiff <= radiusSquared;
+			}
+		}
+	}
+
+	private boolean overlapsRect(int id, double minX, double minY, double maxX, double maxY)
+	{
+		PhysicalEntity physicalEntity = entities[id];
+		switch (physicalEntity.getShapeType())
+		{
+			case PhysicalEntity.SHAPE_SPHERE:
+			{
+				SphereEntity sphereEntity = (SphereEntity) physicalEntity;
+				Vec3D center = sphereEntity.getCenter();
+				double xdiff = center.x - Math.max(minX, Math.min(maxX, center.x));
+				double ydiff = center.y - Math.max(minY, Math.min(maxY, center.y));
+				double radius = sphereEntity.getRadius();
+				return xdiff * xdiff + ydiff * ydiff <= radius * radius;
+			}
+			case PhysicalEntity.SHAPE_LINE_SEGMENT:
+			{
+				LineSegment lineSegment = ((LineSegmentEntity) physicalEntity).getLineSegment();
+				return Geocalc.segmentOverlapsRect2D(lineSegment.p1.x, lineSegment.p1.y, lineSegment.p2.x, lineSegment.p2.y, minX, minY,
+						maxX, maxY);
+			}
+			case PhysicalEntity.SHAPE_POLYGON:
+			{
+				LineSegment[] lineSegments = ((PolygonEntity) physicalEntity).getLineSegments();
+				for (LineSegment lineSegment : lineSegments)
+				{
+					if (Geocalc.segmentOverlapsRect2D(lineSegment.p1.x, lineSegment.p1.y, lineSegment.p2.x, lineSegment.p2.y, minX, minY,
+							maxX, maxY))
+					{
+						return true;
+					}
+				}
+				// The rectangle may be entirely inside
+				return containsPoint(lineSegments, minX, minY);
+			}
+			default:
+				// The grid only reports entities whose bounds overlap
+				return true;
+		}
+	}
+
+	/**
+	 * Is the point inside the polygon with the given edges? Counts how many edges a ray in +x from the point crosses.
+	 */
+	private static boolean containsPoint(LineSegment[] lineSegments, double x, double y)
+	{
+		boolean inside = false;
+		for (LineSegment lineSegment : lineSegments)
+		{
+			Vec3D p1 = lineSegment.p1;
+			Vec3D p2 = lineSegment.p2;
+			if ((p1.y > y) != (p2.y > y) && x < p1.x + (y - p1.y) * (p2.x - p1.x) / (p2.y - p1.y))
+			{
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	/**
+	 * Removes duplicate handles from handles[start, end), as several edges of the same baked entity may be found.
+	 *
+	 * @return the new end
+	 */
+	private static int removeDuplicates(int[] handles, int start, int end)
+	{
+		Arrays.sort(handles, start, end);
+		int newEnd = start;
+		for (int i = start; i < end; i++)
+		{
+			if (i == start || handles[i] != handles[newEnd - 1])
+			{
+				handles[newEnd++] = handles[i];
+			}
+		}
+		return newEnd;
+	}
+}
@@ -0,0 +1,234 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.SphereEntity;
+
+/**
+ * Structure of arrays backing for a population of SphereEntity objects. Positions, velocities, forces, inverse masses
+ * and radii are kept in primitive columns so that integration, including uniform gravity, runs as a single tight loop
+ * with no virtual calls.
+ *
+ * SphereEntity objects remain the authoritative state (collisions and user code work with their Vec3D fields), so each
+ * step the population is gathered into the columns, integrated and scattered back. Each of these is a linear pass.
+ */
+public class SphereStore
+{
+	private int size = 0;
+
+	// The entity each row came from
+	private SphereEntity[] spheres = new SphereEntity[16];
+
+	public double[] x = new double[16];
+	public double[] y = new double[16];
+	public double[] z = new double[16];
+	public double[] vx = new double[16];
+	public double[] vy = new double[16];
+	public double[] vz = new double[16];
+	public double[] fx = new double[16];
+	public double[] fy = new double[16];
+	public double[] fz = new double[16];
+	public double[] inverseMass = new double[16];
+	public double[] radius = new double[16];
+
+	// Mass acted on by gravity (0 if the sphere ignores gravity)
+	public double[] gravityMass = new double[16];
+
+	// See PhysicalEntity.getPreviousAcceleration()
+	public double[] previousAX = new double[16];
+	public double[] previousAY = new double[16];
+	public double[] previousAZ = new double[16];
+	public double[] previousHalfTime = new double[16];
+
+	/**
+	 * Should the given entity be integrated by a SphereStore? Only plain SphereEntity objects qualify, as subclasses
+	 * may override updateMotion() or move().
+	 *
+	 * @param physicalEntity
+	 * @return
+	 */
+	public static boolean isStorable(PhysicalEntity physicalEntity)
+	{
+		return physicalEntity.getClass() == SphereEntity.class;
+	}
+
+	public final void clear()
+	{
+		Arrays.fill(spheres, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Copies the state of a sphere into a new row.
+	 *
+	 * @param sphereEntity
+	 */
+	public final void gather(SphereEntity sphereEntity)
+	{
+		if (size == x.length)
+		{
+			grow(size * 2);
+		}
+		int i = size;
+		Vec3D center = sphereEntity.getCenter();
+		Vec3D force = sphereEntity.getAccumulatedForce();
+		Vec3D previousAcceleration = sphereEntity.getPreviousAcceleration();
+		spheres[i] = sphereEntity;
+		x[i] = center.x;
+		y[i] = center.y;
+		z[i] = center.z;
+		vx[i] = sphereEntity.velocity.x;
+		vy[i] = sphereEntity.velocity.y;
+		vz[i] = sphereEntity.velocity.z;
+		fx[i] = force.x;
+		fy[i] = force.y;
+		fz[i] = force.z;
+		inverseMass[i] = sphereEntity.inverseMass;
+		radius[i] = sphereEntity.getRadius();
+		gravityMass[i] = sphereEntity.ignoresGravity() ? 0.0 : sphereEntity.mass;
+		previousAX[i] = previousAcceleration.x;
+		previousAY[i] = previousAcceleration.y;
+		previousAZ[i] = previousAcceleration.z;
+		previousHalfTime[i] = sphereEntity.getPreviousHalfTime();
+		size++;
+	}
+
+	/**
+	 * Integrates every row over the given time, under constant acceleration from its accumulated force plus uniform
+	 * gravity. This is the same update, giving identical results, as adding gravity as a force and calling
+	 * PhysicalEntity.updateMotion(). Forces are cleared afterwards.
+	 *
+	 * @param elapsedTime
+	 * @param gravityX
+	 * @param gravityY
+	 * @param gravityZ
+	 */
+	public final void integrate(double elapsedTime, double gravityX, double gravityY, double gravityZ)
+	{
+		integrate(0, size, elapsedTime, gravityX, gravityY, gravityZ);
+	}
+
+	/**
+	 * Integrates rows [start, end), as integrate(). Disjoint ranges may be integrated by different threads at once.
+	 */
+	public final void integrate(int start, int end, double elapsedTime, double gravityX, double gravityY, double gravityZ)
+	{
+		integrate(start, end, elapsedTime, gravityX, gravityY, gravityZ, Integrator.CONSTANT_ACCELERATION, null, null);
+	}
+
+	/**
+	 * Integrates rows [start, end) with the given integrator. With CONSTANT_ACCELERATION and no field, this is the same
+	 * as integrate(). Forces are cleared afterwards.
+	 *
+	 * @param start
+	 * @param end
+	 * @param elapsedTime
+	 * @param gravityX
+	 * @param gravityY
+	 * @param gravityZ
+	 * @param integrator
+	 * @param field
+	 *            may be null
+	 * @param workspace
+	 *            scratch space for this thread. Unused if field is null.
+	 */
+	public final void integrate(int start, int end, double elapsedTime, double gravityX, double gravityY, double gravityZ,
+			Integrator integrator, AccelerationField field, Integrator.Workspace workspace)
+	{
+		if (integrator != Integrator.CONSTANT_ACCELERATION || field != null)
+		{
+			// Forces become accelerations in place
+			final double[] fx = this.fx, fy = this.fy, fz = this.fz;
+			final double[] inverseMass = this.inverseMass, gravityMass = this.gravityMass;
+			for (int i = start; i < end; i++)
+			{
+				fx[i] = (fx[i] + gravityX * gravityMass[i]) * inverseMass[i];
+				fy[i] = (fy[i] + gravityY * gravityMass[i]) * inverseMass[i];
+				fz[i] = (fz[i] + gravityZ * gravityMass[i]) * inverseMass[i];
+			}
+			integrator.integrate(start, end, elapsedTime, x, y, z, vx, vy, vz, fx, fy, fz, previousAX, previousAY,
+					previousAZ, previousHalfTime, spheres, field, field == null ? null : workspace.fieldAcceleration);
+			Arrays.fill(fx, start, end, 0);
+			Arrays.fill(fy, start, end, 0);
+			Arrays.fill(fz, start, end, 0);
+			return;
+		}
+		final double atFactor = 0.5 * elapsedTime * elapsedTime;
+		final double[] x = this.x, y = this.y, z = this.z;
+		final double[] vx = this.vx, vy = this.vy, vz = this.vz;
+		final double[] fx = this.fx, fy = this.fy, fz = this.fz;
+		final double[] inverseMass = this.inverseMass, gravityMass = this.gravityMass;
+		for (int i = start; i < end; i++)
+		{
+			double ax = (fx[i] + gravityX * gravityMass[i]) * inverseMass[i];
+			double ay = (fy[i] + gravityY * gravityMass[i]) * inverseMass[i];
+			double az = (fz[i] + gravityZ * gravityMass[i]) * inverseMass[i];
+			x[i] += ax * atFactor + vx[i] * elapsedTime;
+			y[i] += ay * atFactor + vy[i] * elapsedTime;
+			z[i] += az * atFactor + vz[i] * elapsedTime;
+			vx[i] += ax * elapsedTime;
+			vy[i] += ay * elapsedTime;
+			vz[i] += az * elapsedTime;
+			fx[i] = 0;
+			fy[i] = 0;
+			fz[i] = 0;
+		}
+	}
+
+	/**
+	 * Writes positions, velocities and previous accelerations back to the sphere entities and clears their accumulated
+	 * forces.
+	 */
+	public final void scatter()
+	{
+		scatter(0, size);
+	}
+
+	/**
+	 * Scatters rows [start, end), as scatter(). Disjoint ranges may be scattered by different threads at once.
+	 */
+	public final void scatter(int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			SphereEntity sphereEntity = spheres[i];
+			sphereEntity.setCenter(x[i], y[i], z[i]);
+			sphereEntity.setVelocity(vx[i], vy[i], vz[i]);
+			sphereEntity.setPreviousAcceleration(previousAX[i], previousAY[i], previousAZ[i], previousHalfTime[i]);
+			sphereEntity.clearForce();
+		}
+	}
+
+	private void grow(int capacity)
+	{
+		spheres = Arrays.copyOf(spheres, capacity);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		z = Arrays.copyOf(z, capacity);
+		vx = Arrays.copyOf(vx, capacity);
+		vy = Arrays.copyOf(vy, capacity);
+		vz = Arrays.copyOf(vz, capacity);
+		fx = Arrays.copyOf(fx, capacity);
+		fy = Arrays.copyOf(fy, capacity);
+		fz = Arrays.copyOf(fz, capacity);
+		inverseMass = Arrays.copyOf(inverseMass, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+		gravityMass = Arrays.copyOf(gravityMass, capacity);
+		previousAX = Arrays.copyOf(previousAX, capacity);
+		previousAY = Arrays.copyOf(previousAY, capacity);
+		previousAZ = Arrays.copyOf(previousAZ, capacity);
+		previousHalfTime = Arrays.copyOf(previousHalfTime, capacity);
+	}
+
+	public final int size()
+	{
+		return size;
+	}
+
+	public final SphereEntity get(int index)
+	{
+		return spheres[index];
+	}
+}
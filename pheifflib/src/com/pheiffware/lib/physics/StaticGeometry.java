@@ -0,0 +1,208 @@
+package com.pheiffware.lib.physics;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.geometry.EdgeTree;
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.geometry.shapes.LineSegment;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.PolygonWallEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.SphereEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.WallEntity;
+
+/**
+ * Level geometry "baked" from WallEntity and PolygonWallEntity objects, which never move. All of their line segments
+ * are flattened into a single EdgeTree, so a sphere can be tested against the whole level in O(log(edges)).
+ *
+ * Collisions are resolved against the edges in the same order they would have been if the entities were tested one
+ * at a time.
+ *
+ * The geometry itself is never modified after construction. All scratch space used by a query lives in a Workspace,
+ * so different threads can query at once using their own workspaces.
+ */
+public class StaticGeometry
+{
+	// Most sweeps tested per sphere per resolveCollisions() (see there)
+	private static final int MAX_SWEEPS = 4;
+
+	/**
+	 * Reusable scratch space for queries.
+	 */
+	public static class Workspace
+	{
+		private int[] foundEdges = new int[16];
+		private final Vec3D collisionNormal = new Vec3D(0, 0, 0);
+		private final Vec3D impactNormal = new Vec3D(0, 0, 0);
+	}
+
+	/**
+	 * Can the given entity be baked into static geometry?
+	 *
+	 * @param physicalEntity
+	 * @return
+	 */
+	public static boolean isBakeable(PhysicalEntity physicalEntity)
+	{
+		return physicalEntity instanceof WallEntity || physicalEntity instanceof PolygonWallEntity;
+	}
+
+	private final EdgeTree edgeTree;
+
+	// The entity which each edge came from
+	private final PhysicalEntity[] edgeOwners;
+
+	/**
+	 * @param entities
+	 *            all of these must be bakeable.
+	 * @param numEntities
+	 */
+	public StaticGeometry(PhysicalEntity[] entities, int numEntities)
+	{
+		int numEdges = 0;
+		for (int i = 0; i < numEntities; i++)
+		{
+			numEdges += getLineSegments(entities[i]).length;
+		}
+		LineSegment[] lineSegments = new LineSegment[numEdges];
+		edgeOwners = new PhysicalEntity[numEdges];
+		int edge = 0;
+		for (int i = 0; i < numEntities; i++)
+		{
+			for (LineSegment lineSegment : getLineSegments(entities[i]))
+			{
+				lineSegments[edge] = lineSegment;
+				edgeOwners[edge] = entities[i];
+				edge++;
+			}
+		}
+		edgeTree = new EdgeTree(lineSegments);
+	}
+
+	private static LineSegment[] getLineSegments(PhysicalEntity physicalEntity)
+	{
+		if (physicalEntity instanceof WallEntity)
+		{
+			return new LineSegment[] { ((WallEntity) physicalEntity).getLineSegment() };
+		}
+		else
+		{
+			return ((PolygonWallEntity) physicalEntity).getLineSegments();
+		}
+	}
+
+	/**
+	 * Resolves all collisions between the given sphere and the static geometry.
+	 *
+	 * @param sphereEntity
+	 * @param workspace
+	 * @param contacts
+	 *            contacts found are written here
+	 */
+	public void resolveCollisions(SphereEntity sphereEntity, Workspace workspace, ContactBuffer contacts)
+	{
+		Vec3D center = sphereEntity.getCenter();
+		double radius = sphereEntity.getRadius();
+		// A sphere which starts against an edge slides along it, and the rest
+		// of its movement may hit another edge (ex: in a corner), as it would
+		// if the edges' entities were tested one at a time
+		for (int sweep = 0; sweep < MAX_SWEEPS && sphereEntity.hasMovedInSweep(); sweep++)
+		{
+			if (resolveSweptCollision(sphereEntity, workspace, contacts) != 0)
+			{
+				break;
+			}
+		}
+		int numFound = queryRect(center.x - radius, center.y - radius, center.x + radius, center.y + radius, workspace);
+		int[] foundEdges = workspace.foundEdges;
+
+		// Resolve in the order edges were baked. Each resolution moves the
+		// sphere, so order matters.
+		Arrays.sort(foundEdges, 0, numFound);
+		for (int i = 0; i < numFound; i++)
+		{
+			int edge = foundEdges[i];
+			double penetration = edgeTree.calcIntersect(edge, center.x, center.y, radius, workspace.collisionNormal);
+			if (penetration >= 0)
+			{
+				contacts.addAndResolve(edgeOwners[edge], sphereEntity, workspace.collisionNormal, penetration);
+			}
+		}
+	}
+
+	/**
+	 * Continuous collision detection for a sphere which has moved further than its radius this time step. If its sweep
+	 * hits any edge, it is moved back to the earliest time of impact and the collision is resolved there.
+	 *
+	 * @return the time of impact, or -1 if nothing was hit.
+	 */
+	private double resolveSweptCollision(SphereEntity sphereEntity, Workspace workspace, ContactBuffer contacts)
+	{
+		Vec3D start = sphereEntity.getSweepStart();
+		Vec3D center = sphereEntity.getCenter();
+		double radius = sphereEntity.getRadius();
+		double movementX = center.x - start.x;
+		double movementY = center.y - start.y;
+		int numFound = queryRect(Math.min(start.x, center.x) - radius, Math.min(start.y, center.y) - radius, Math.max(start.x, center.x)
+				+ radius, Math.max(start.y, center.y) + radius, workspace);
+		int[] foundEdges = workspace.foundEdges;
+
+		// Ties go to the earliest baked edge
+		Arrays.sort(foundEdges, 0, numFound);
+		int impactEdge = -1;
+		double timeOfImpact = -1;
+		for (int i = 0; i < numFound; i++)
+		{
+			int edge = foundEdges[i];
+			double time = edgeTree.calcTimeOfImpact(edge, start.x, start.y, movementX, movementY, radius, workspace.collisionNormal);
+			if (time >= 0 && (timeOfImpact < 0 || time < timeOfImpact))
+			{
+				timeOfImpact = time;
+				impactEdge = edge;
+				workspace.impactNormal.set(workspace.collisionNormal);
+			}
+		}
+		if (impactEdge != -1)
+		{
+			sphereEntity.resolveSweptCollision(edgeOwners[impactEdge], timeOfImpact, workspace.impactNormal, contacts);
+		}
+		return timeOfImpact;
+	}
+
+	/**
+	 * Finds all edges overlapping the given rectangle, growing the workspace if needed.
+	 *
+	 * @return The number of edges found, which are in workspace.foundEdges.
+	 */
+	private int queryRect(double minX, double minY, double maxX, double maxY, Workspace workspace)
+	{
+		int numFound = edgeTree.queryRect(minX, minY, maxX, maxY, workspace.foundEdges);
+		if (numFound > workspace.foundEdges.length)
+		{
+			workspace.foundEdges = new int[Integer.highestOneBit(numFound) * 2];
+			numFound = edgeTree.queryRect(minX, minY, maxX, maxY, workspace.foundEdges);
+		}
+		return numFound;
+	}
+
+	public final int getNumEdges()
+	{
+		return edgeTree.numEdges;
+	}
+
+	/**
+	 * @return the edges, for queries (ex: ray casts). Must not be modified.
+	 */
+	public final EdgeTree getEdgeTree()
+	{
+		return edgeTree;
+	}
+
+	/**
+	 * @param edge
+	 * @return the entity the given edge was baked from.
+	 */
+	public final PhysicalEntity getEdgeOwner(int edge)
+	{
+		return edgeOwners[edge];
+	}
+}
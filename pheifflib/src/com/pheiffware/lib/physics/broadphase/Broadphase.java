@@ -0,0 +1,57 @@
+package com.pheiffware.lib.physics.broadphase;
+
+/**
+ * Finds pairs of objects whose bounding rectangles (in the x,y plane) overlap. This is the 1st stage of collision
+ * handling, so implementations should be cheap and conservative: the narrowphase rejects pairs which are not actually
+ * touching. Objects are identified by ids in the range [0, numObjects).
+ *
+ * Usage, once per time step:
+ *
+ * begin(numObjects), setBounds() for every id (and setSegment() for line segments), build(), findPairs(). queryRect()
+ * may be called any number of times after build().
+ */
+public interface Broadphase
+{
+	/**
+	 * Starts a new set of objects.
+	 *
+	 * @param numObjects
+	 */
+	public void begin(int numObjects);
+
+	/**
+	 * Sets the bounds of an object. A pair of 2 static objects is never reported.
+	 */
+	public void setBounds(int id, double minX, double minY, double maxX, double maxY, boolean isStatic);
+
+	/**
+	 * Tells the broadphase that an object, whose bounds have just been set, is a line segment between the given points
+	 * (which must be within its bounds). Pairs with it may then be skipped if the other object's bounds don't come near
+	 * the segment itself, which helps a lot for long diagonal walls. Implementations may ignore this.
+	 */
+	public void setSegment(int id, double x1, double y1, double x2, double y2);
+
+	/**
+	 * Called once all bounds have been set.
+	 */
+	public void build();
+
+	/**
+	 * Adds every pair of objects whose bounds overlap to the given buffer. Each pair must be reported exactly once,
+	 * with the lower id first, and in an order which only depends on the objects' bounds, so that simulations are
+	 * repeatable.
+	 *
+	 * @param pairs
+	 */
+	public void findPairs(PairBuffer pairs);
+
+	/**
+	 * Finds all objects whose bounds overlap the given rectangle. Static flags are ignored. Must be called after
+	 * build(). Only reads the broadphase, so may be called from several threads at once. Indices of found objects are
+	 * written to results, in no particular order.
+	 *
+	 * @return The number of objects found. If this is larger than results.length, only the 1st results.length were
+	 *         written and the query should be repeated with a larger array.
+	 */
+	public int queryRect(double minX, double minY, double maxX, double maxY, int[] results);
+}
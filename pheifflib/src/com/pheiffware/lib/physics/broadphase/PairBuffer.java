@@ -0,0 +1,100 @@
+package com.pheiffware.lib.physics.broadphase;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of pairs of integer ids. This is reused from time step to time step so, once it has grown large
+ * enough, filling it allocates nothing.
+ */
+public class PairBuffer
+{
+	private static final int INITIAL_CAPACITY = 256;
+
+	private int[] first = new int[INITIAL_CAPACITY];
+	private int[] second = new int[INITIAL_CAPACITY];
+	private int size = 0;
+
+	// Scratch space for sortByKey()
+	private int[] sortedFirst = new int[INITIAL_CAPACITY];
+	private int[] sortedSecond = new int[INITIAL_CAPACITY];
+	private int[] sortedKeys = new int[INITIAL_CAPACITY];
+	private int[] keyStart = new int[1];
+
+	public final void clear()
+	{
+		size = 0;
+	}
+
+	public final void add(int id1, int id2)
+	{
+		if (size == first.length)
+		{
+			first = Arrays.copyOf(first, size * 2);
+			second = Arrays.copyOf(second, size * 2);
+		}
+		first[size] = id1;
+		second[size] = id2;
+		size++;
+	}
+
+	/**
+	 * Reorders the pairs by key, keeping pairs with equal keys in their current order (counting sort).
+	 *
+	 * @param keys
+	 *            the key of each pair, in [0, numKeys). These are reordered along with the pairs.
+	 * @param numKeys
+	 */
+	public final void sortByKey(int[] keys, int numKeys)
+	{
+		if (sortedFirst.length < first.length)
+		{
+			sortedFirst = new int[first.length];
+			sortedSecond = new int[first.length];
+			sortedKeys = new int[first.length];
+		}
+		if (keyStart.length < numKeys + 1)
+		{
+			keyStart = new int[numKeys + 1];
+		}
+		Arrays.fill(keyStart, 0, numKeys + 1, 0);
+		for (int i = 0; i < size; i++)
+		{
+			keyStart[keys[i] + 1]++;
+		}
+		for (int key = 0; key < numKeys; key++)
+		{
+			keyStart[key + 1] += keyStart[key];
+		}
+		for (int i = 0; i < size; i++)
+		{
+			int index = keyStart[keys[i]]++;
+			sortedFirst[index] = first[i];
+			sortedSecond[index] = second[i];
+			sortedKeys[index] = keys[i];
+		}
+
+		// Swap in the sorted arrays, keeping the old ones as scratch space
+		int[] swap = first;
+		first = sortedFirst;
+		sortedFirst = swap;
+		swap = second;
+		second = sortedSecond;
+		sortedSecond = swap;
+		System.arraycopy(sortedKeys, 0, keys, 0, size);
+	}
+
+	public final int size()
+	{
+		return size;
+	}
+
+	public final int getFirst(int index)
+	{
+		return first[index];
+	}
+
+	public final int getSecond(int index)
+	{
+		return second[index];
+	}
+}
@@ -0,0 +1,718 @@
+package com.pheiffware.lib.physics.broadphase;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.geometry.Geocalc;
+
+/**
+ * A uniform grid, stored sparsely as a hash of occupied cells, used to find pairs of objects whose bounding rectangles
+ * (in the x,y plane) overlap. Objects are identified by ids in the range [0, numObjects).
+ *
+ * Usage, once per time step:
+ *
+ * begin(numObjects), setBounds() for every id, build(), findPairs().
+ *
+ * The grid is rebuilt from scratch each time, which is O(n). Once the internal arrays have grown large enough, nothing
+ * is allocated.
+ *
+ * Objects may be flagged as static. A pair of 2 static objects is never reported. Objects which would cover too many
+ * cells are handled separately. If they are line segments (see setSegment()), such as long walls, they are binned
+ * into just the cells the segment passes through, as long as there are fewer of those than objects. Otherwise they are
+ * kept in an oversized list and tested directly against every other object (only non-static ones, if they are static).
+ */
+public class SpatialHashGrid implements Broadphase
+{
+	/**
+	 * Tests a ray against an object's actual shape, for castRay(). Must not modify the grid.
+	 */
+	public interface RayTest
+	{
+		/**
+		 * @return the distance along the ray to where it hits the object, or Double.NaN if it misses.
+		 */
+		public double intersectRay(int id, double originX, double originY, double directionX, double directionY);
+	}
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// Any object covering more cells than this is treated as oversized
+	private static final int MAX_CELLS_PER_OBJECT = 16;
+
+	// When automatically sizing cells, cell size is this multiple of the average non-static object's size
+	private static final double AUTO_CELL_SIZE_FACTOR = 2.0;
+
+	// How build() placed each object
+	private static final byte BINNED = 0;
+	private static final byte OVERSIZED = 1;
+	private static final byte RASTERIZED = 2;
+
+	// Segment cell ranges are widened by this fraction of a cell, so rounding can't miss a cell the segment touches
+	private static final double RASTER_TOLERANCE = 1e-9;
+
+	// Requested cell size. 0 means pick automatically from the objects' sizes.
+	private double requestedCellSize = 0;
+
+	private double cellSize;
+	private double inverseCellSize;
+
+	// Per object bounds and flags
+	private int numObjects;
+	private double[] minX = new double[INITIAL_CAPACITY];
+	private double[] minY = new double[INITIAL_CAPACITY];
+	private double[] maxX = new double[INITIAL_CAPACITY];
+	private double[] maxY = new double[INITIAL_CAPACITY];
+	private boolean[] isStatic = new boolean[INITIAL_CAPACITY];
+	private byte[] binning = new byte[INITIAL_CAPACITY];
+
+	// Line segment of each object for which setSegment() was called since setBounds()
+	private boolean[] hasSegment = new boolean[INITIAL_CAPACITY];
+	private double[] segmentX1 = new double[INITIAL_CAPACITY];
+	private double[] segmentY1 = new double[INITIAL_CAPACITY];
+	private double[] segmentX2 = new double[INITIAL_CAPACITY];
+	private double[] segmentY2 = new double[INITIAL_CAPACITY];
+
+	// Objects too big to be binned
+	private int numOversized;
+	private int[] oversized = new int[INITIAL_CAPACITY];
+
+	// Non-static objects, which are all that static oversized objects need to be tested against
+	private int numDynamic;
+	private int[] dynamicIds = new int[INITIAL_CAPACITY];
+
+	// Line segments binned into just the cells they pass through. The cells of rasterized[i] are
+	// rasterCells[rasterCellsStart[i]] to rasterCells[rasterCellsStart[i + 1] - 1].
+	private int numRasterized;
+	private int[] rasterized = new int[INITIAL_CAPACITY];
+	private int[] rasterCellsStart = new int[INITIAL_CAPACITY + 1];
+	private int numRasterCells;
+	private int[] rasterCells = new int[INITIAL_CAPACITY];
+
+	// While pairing rasterized[i], pairStamp[id] == i once id has been considered, so it isn't reported twice
+	private int[] pairStamp = new int[INITIAL_CAPACITY];
+
+	// Occupied cells, in order of creation. Each cell's contents is a linked list of entries.
+	private int numCells;
+	private int[] cellX = new int[INITIAL_CAPACITY];
+	private int[] cellY = new int[INITIAL_CAPACITY];
+	private int[] cellHead = new int[INITIAL_CAPACITY];
+	private int[] cellSlot = new int[INITIAL_CAPACITY];
+
+	// Range of occupied cells
+	private int minCellX, minCellY, maxCellX, maxCellY;
+
+	// Cell entries. An entry places 1 object in 1 cell.
+	private int numEntries;
+	private int[] entryObject = new int[INITIAL_CAPACITY];
+	private int[] entryNext = new int[INITIAL_CAPACITY];
+
+	// Open addressing hash table mapping cell coordinates to a cell index (-1 == empty slot)
+	private long[] slotKey = new long[INITIAL_CAPACITY * 2];
+	private int[] slotCell = newEmptySlots(INITIAL_CAPACITY * 2);
+
+	/**
+	 * Sets the size of grid cells. 0 (the default) automatically picks a size each build based on the size of the
+	 * non-static objects.
+	 *
+	 * @param cellSize
+	 */
+	public void setCellSize(double cellSize)
+	{
+		requestedCellSize = cellSize;
+	}
+
+	/**
+	 * Starts a new build of the grid.
+	 *
+	 * @param numObjects
+	 *            the number of objects which will be given bounds before build() is called.
+	 */
+	@Override
+	public void begin(int numObjects)
+	{
+		this.numObjects = numObjects;
+		if (numObjects > minX.length)
+		{
+			int capacity = Math.max(numObjects, minX.length * 2);
+			minX = Arrays.copyOf(minX, capacity);
+			minY = Arrays.copyOf(minY, capacity);
+			maxX = Arrays.copyOf(maxX, capacity);
+			maxY = Arrays.copyOf(maxY, capacity);
+			isStatic = Arrays.copyOf(isStatic, capacity);
+			binning = Arrays.copyOf(binning, capacity);
+			hasSegment = Arrays.copyOf(hasSegment, capacity);
+			segmentX1 = Arrays.copyOf(segmentX1, capacity);
+			segmentY1 = Arrays.copyOf(segmentY1, capacity);
+			segmentX2 = Arrays.copyOf(segmentX2, capacity);
+			segmentY2 = Arrays.copyOf(segmentY2, capacity);
+			oversized = Arrays.copyOf(oversized, capacity);
+			dynamicIds = Arrays.copyOf(dynamicIds, capacity);
+			rasterized = Arrays.copyOf(rasterized, capacity);
+			rasterCellsStart = Arrays.copyOf(rasterCellsStart, capacity + 1);
+			pairStamp = Arrays.copyOf(pairStamp, capacity);
+		}
+	}
+
+	@Override
+	public final void setBounds(int id, double minX, double minY, double maxX, double maxY, boolean isStatic)
+	{
+		this.minX[id] = minX;
+		this.minY[id] = minY;
+		this.maxX[id] = maxX;
+		this.maxY[id] = maxY;
+		this.isStatic[id] = isStatic;
+		hasSegment[id] = false;
+	}
+
+	@Override
+	public final void setSegment(int id, double x1, double y1, double x2, double y2)
+	{
+		hasSegment[id] = true;
+		segmentX1[id] = x1;
+		segmentY1[id] = y1;
+		segmentX2[id] = x2;
+		segmentY2[id] = y2;
+	}
+
+	/**
+	 * Bins all objects into cells.
+	 */
+	@Override
+	public void build()
+	{
+		clearCells();
+		numOversized = 0;
+		numDynamic = 0;
+		numRasterized = 0;
+		numRasterCells = 0;
+		cellSize = calcCellSize();
+		inverseCellSize = 1.0 / cellSize;
+		minCellX = Integer.MAX_VALUE;
+		minCellY = Integer.MAX_VALUE;
+		maxCellX = Integer.MIN_VALUE;
+		maxCellY = Integer.MIN_VALUE;
+		for (int id = 0; id < numObjects; id++)
+		{
+			if (!isStatic[id])
+			{
+				dynamicIds[numDynamic++] = id;
+			}
+			double cellsX = (maxX[id] - minX[id]) * inverseCellSize + 1;
+			double cellsY = (maxY[id] - minY[id]) * inverseCellSize + 1;
+			if (!(cellsX * cellsY <= MAX_CELLS_PER_OBJECT))
+			{
+				// A segment covers about cellsX + cellsY cells. Binning those is cheaper than testing every object.
+				if (hasSegment[id] && cellsX + cellsY <= numObjects)
+				{
+					binning[id] = RASTERIZED;
+					rasterizeSegment(id);
+				}
+				else
+				{
+					binning[id] = OVERSIZED;
+					oversized[numOversized++] = id;
+				}
+				continue;
+			}
+			binning[id] = BINNED;
+			int x0 = toCell(minX[id]);
+			int y0 = toCell(minY[id]);
+			int x1 = toCell(maxX[id]);
+			int y1 = toCell(maxY[id]);
+			for (int y = y0; y <= y1; y++)
+			{
+				for (int x = x0; x <= x1; x++)
+				{
+					addEntry(getOrCreateCell(x, y), id);
+				}
+			}
+			minCellX = Math.min(minCellX, x0);
+			minCellY = Math.min(minCellY, y0);
+			maxCellX = Math.max(maxCellX, x1);
+			maxCellY = Math.max(maxCellY, y1);
+		}
+		rasterCellsStart[numRasterized] = numRasterCells;
+	}
+
+	/**
+	 * Bins a line segment into every cell it passes through, column by column, and records them in rasterCells.
+	 */
+	private void rasterizeSegment(int id)
+	{
+		rasterized[numRasterized] = id;
+		rasterCellsStart[numRasterized] = numRasterCells;
+		numRasterized++;
+
+		double x1 = segmentX1[id];
+		double y1 = segmentY1[id];
+		double x2 = segmentX2[id];
+		double y2 = segmentY2[id];
+		if (x2 < x1)
+		{
+			double swap = x1;
+			x1 = x2;
+			x2 = swap;
+			swap = y1;
+			y1 = y2;
+			y2 = swap;
+		}
+		double slope = x2 > x1 ? (y2 - y1) / (x2 - x1) : 0;
+		double tolerance = cellSize * RASTER_TOLERANCE;
+		int column0 = toCell(x1);
+		int column1 = toCell(x2);
+		for (int x = column0; x <= column1; x++)
+		{
+			// The part of the segment within this column
+			double startY = x == column0 ? y1 : y1 + (x * cellSize - x1) * slope;
+			double endY = x == column1 ? y2 : y1 + ((x + 1) * cellSize - x1) * slope;
+			int row0 = toCell(Math.min(startY, endY) - tolerance);
+			int row1 = toCell(Math.max(startY, endY) + tolerance);
+			for (int y = row0; y <= row1; y++)
+			{
+				int cell = getOrCreateCell(x, y);
+				addEntry(cell, id);
+				if (numRasterCells == rasterCells.length)
+				{
+					rasterCells = Arrays.copyOf(rasterCells, numRasterCells * 2);
+				}
+				rasterCells[numRasterCells++] = cell;
+			}
+			minCellY = Math.min(minCellY, row0);
+			maxCellY = Math.max(maxCellY, row1);
+		}
+		minCellX = Math.min(minCellX, column0);
+		maxCellX = Math.max(maxCellX, column1);
+	}
+
+	/**
+	 * Adds every pair of objects whose bounds overlap to the given buffer. Each pair is reported exactly once, with
+	 * the lower id first.
+	 *
+	 * @param pairs
+	 */
+	@Override
+	public void findPairs(PairBuffer pairs)
+	{
+		for (int cell = 0; cell < numCells; cell++)
+		{
+			int x = cellX[cell];
+			int y = cellY[cell];
+			for (int entry1 = cellHead[cell]; entry1 != -1; entry1 = entryNext[entry1])
+			{
+				int id1 = entryObject[entry1];
+				if (binning[id1] == RASTERIZED)
+				{
+					continue;
+				}
+				for (int entry2 = entryNext[entry1]; entry2 != -1; entry2 = entryNext[entry2])
+				{
+					int id2 = entryObject[entry2];
+					if (binning[id2] != RASTERIZED && isCandidate(id1, id2))
+					{
+						// Objects sharing more than one cell are only reported from the cell containing the low
+						// corner of their overlap.
+						if (toCell(Math.max(minX[id1], minX[id2])) == x && toCell(Math.max(minY[id1], minY[id2])) == y)
+						{
+							addPair(pairs, id1, id2);
+						}
+					}
+				}
+			}
+		}
+
+		// Rasterized segments may share several cells with an object, but not necessarily the one containing the low
+		// corner of their overlap, so each segment's cells are walked and repeats skipped instead
+		Arrays.fill(pairStamp, 0, numObjects, -1);
+		for (int i = 0; i < numRasterized; i++)
+		{
+			int id1 = rasterized[i];
+			pairStamp[id1] = i;
+			for (int cellIndex = rasterCellsStart[i]; cellIndex < rasterCellsStart[i + 1]; cellIndex++)
+			{
+				for (int entry = cellHead[rasterCells[cellIndex]]; entry != -1; entry = entryNext[entry])
+				{
+					int id2 = entryObject[entry];
+					if (pairStamp[id2] == i)
+					{
+						continue;
+					}
+					pairStamp[id2] = i;
+					// Pairs of rasterized segments are reported only when id1 < id2
+					if (!(binning[id2] == RASTERIZED && id2 < id1) && isCandidate(id1, id2))
+					{
+						addPair(pairs, id1, id2);
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < numOversized; i++)
+		{
+			int id1 = oversized[i];
+			if (isStatic[id1])
+			{
+				for (int j = 0; j < numDynamic; j++)
+				{
+					addOversizedPair(pairs, id1, dynamicIds[j]);
+				}
+			}
+			else
+			{
+				for (int id2 = 0; id2 < numObjects; id2++)
+				{
+					addOversizedPair(pairs, id1, id2);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports an oversized object and any other object, if their bounds overlap.
+	 */
+	private void addOversizedPair(PairBuffer pairs, int id1, int id2)
+	{
+		// Pairs of oversized objects are reported only when id1 < id2
+		if (id2 == id1 || (id2 < id1 && binning[id2] == OVERSIZED))
+		{
+			return;
+		}
+		if (isCandidate(id1, id2))
+		{
+			addPair(pairs, id1, id2);
+		}
+	}
+
+	@Override
+	public int queryRect(double minX, double minY, double maxX, double maxY, int[] results)
+	{
+		int numFound = 0;
+		double cellsX = (maxX - minX) * inverseCellSize + 1;
+		double cellsY = (maxY - minY) * inverseCellSize + 1;
+		if (!(cellsX * cellsY <= MAX_CELLS_PER_OBJECT))
+		{
+			// Cheaper to test everything than to visit every cell
+			for (int id = 0; id < numObjects; id++)
+			{
+				if (overlaps(id, minX, minY, maxX, maxY))
+				{
+					numFound = addResult(results, numFound, id);
+				}
+			}
+			return numFound;
+		}
+
+		int x1 = toCell(maxX);
+		int y1 = toCell(maxY);
+		for (int y = toCell(minY); y <= y1; y++)
+		{
+			for (int x = toCell(minX); x <= x1; x++)
+			{
+				int cell = findCell(x, y);
+				if (cell == -1)
+				{
+					continue;
+				}
+				for (int entry = cellHead[cell]; entry != -1; entry = entryNext[entry])
+				{
+					int id = entryObject[entry];
+					// As with pairs, only report from the cell containing the low corner of the overlap
+					if (binning[id] != RASTERIZED && overlaps(id, minX, minY, maxX, maxY) && toCell(Math.max(this.minX[id], minX)) == x
+							&& toCell(Math.max(this.minY[id], minY)) == y)
+					{
+						numFound = addResult(results, numFound, id);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < numOversized; i++)
+		{
+			int id = oversized[i];
+			if (overlaps(id, minX, minY, maxX, maxY))
+			{
+				numFound = addResult(results, numFound, id);
+			}
+		}
+		for (int i = 0; i < numRasterized; i++)
+		{
+			int id = rasterized[i];
+			if (overlaps(id, minX, minY, maxX, maxY))
+			{
+				numFound = addResult(results, numFound, id);
+			}
+		}
+		return numFound;
+	}
+
+	/**
+	 * Finds the 1st object hit by a ray. Cells are walked in the order the ray passes through them, stopping once the
+	 * next cell is further than the closest hit, so only objects near the ray are tested. Oversized objects are always
+	 * tested. An object covering several cells may be tested more than once. Must be called after build(). Nothing is
+	 * modified, so any number of threads may cast rays at once.
+	 *
+	 * @param originX
+	 * @param originY
+	 * @param directionX
+	 *            direction must be a unit vector
+	 * @param directionY
+	 * @param maxDistance
+	 *            objects hit this far or further along the ray are ignored
+	 * @param rayTest
+	 *            tests the ray against each object
+	 * @return the id of the object hit, or -1 if none is.
+	 */
+	public int castRay(double originX, double originY, double directionX, double directionY, double maxDistance, RayTest rayTest)
+	{
+		int hitId = -1;
+		double hitDistance = maxDistance;
+		for (int i = 0; i < numOversized; i++)
+		{
+			int id = oversized[i];
+			double distance = rayTest.intersectRay(id, originX, originY, directionX, directionY);
+			if (distance < hitDistance)
+			{
+				hitDistance = distance;
+				hitId = id;
+			}
+		}
+		if (numCells == 0)
+		{
+			return hitId;
+		}
+
+		// Clip the ray to the occupied cells, so the walk always ends
+		double entry = Geocalc.rayDistanceToRect2D(originX, originY, directionX, directionY, minCellX * cellSize, minCellY * cellSize,
+				(maxCellX + 1) * cellSize, (maxCellY + 1) * cellSize);
+		if (!(entry < hitDistance))
+		{
+			return hitId;
+		}
+		int x = Math.max(minCellX, Math.min(maxCellX, toCell(originX + directionX * entry)));
+		int y = Math.max(minCellY, Math.min(maxCellY, toCell(originY + directionY * entry)));
+
+		// Distance along the ray at which it crosses into the next column and row, and between columns and rows
+		int stepX = directionX > 0 ? 1 : -1;
+		int stepY = directionY > 0 ? 1 : -1;
+		double nextX = directionX == 0 ? Double.POSITIVE_INFINITY : ((directionX > 0 ? x + 1 : x) * cellSize - originX) / directionX;
+		double nextY = directionY == 0 ? Double.POSITIVE_INFINITY : ((directionY > 0 ? y + 1 : y) * cellSize - originY) / directionY;
+		double deltaX = directionX == 0 ? Double.POSITIVE_INFINITY : cellSize / Math.abs(directionX);
+		double deltaY = directionY == 0 ? Double.POSITIVE_INFINITY : cellSize / Math.abs(directionY);
+		while (true)
+		{
+			int cell = findCell(x, y);
+			if (cell != -1)
+			{
+				for (int entryIndex = cellHead[cell]; entryIndex != -1; entryIndex = entryNext[entryIndex])
+				{
+					int id = entryObject[entryIndex];
+					double distance = rayTest.intersectRay(id, originX, originY, directionX, directionY);
+					if (distance < hitDistance)
+					{
+						hitDistance = distance;
+						hitId = id;
+					}
+				}
+			}
+			if (nextX < nextY)
+			{
+				if (!(nextX < hitDistance))
+				{
+					return hitId;
+				}
+				x += stepX;
+				nextX += deltaX;
+			}
+			else
+			{
+				if (!(nextY < hitDistance))
+				{
+					return hitId;
+				}
+				y += stepY;
+				nextY += deltaY;
+			}
+			if (x < minCellX || x > maxCellX || y < minCellY || y > maxCellY)
+			{
+				return hitId;
+			}
+		}
+	}
+
+	private boolean overlaps(int id, double minX, double minY, double maxX, double maxY)
+	{
+		return this.minX[id] <= maxX && minX <= this.maxX[id] && this.minY[id] <= maxY && minY <= this.maxY[id];
+	}
+
+	private static int addResult(int[] results, int numFound, int id)
+	{
+		if (numFound < results.length)
+		{
+			results[numFound] = id;
+		}
+		return numFound + 1;
+	}
+
+	private boolean isCandidate(int id1, int id2)
+	{
+		return !(isStatic[id1] && isStatic[id2]) && minX[id1] <= maxX[id2] && minX[id2] <= maxX[id1] && minY[id1] <= maxY[id2]
+				&& minY[id2] <= maxY[id1];
+	}
+
+	private static void addPair(PairBuffer pairs, int id1, int id2)
+	{
+		if (id1 < id2)
+		{
+			pairs.add(id1, id2);
+		}
+		else
+		{
+			pairs.add(id2, id1);
+		}
+	}
+
+	private double calcCellSize()
+	{
+		if (requestedCellSize > 0)
+		{
+			return requestedCellSize;
+		}
+		double totalSize = 0;
+		int numSized = 0;
+		for (int id = 0; id < numObjects; id++)
+		{
+			if (!isStatic[id])
+			{
+				double size = Math.max(maxX[id] - minX[id], maxY[id] - minY[id]);
+				// Skip degenerate and unbounded objects
+				if (size > 0 && size < Double.MAX_VALUE)
+				{
+					totalSize += size;
+					numSized++;
+				}
+			}
+		}
+		if (numSized == 0)
+		{
+			return 1.0;
+		}
+		return AUTO_CELL_SIZE_FACTOR * totalSize / numSized;
+	}
+
+	private int toCell(double coordinate)
+	{
+		return (int) Math.floor(coordinate * inverseCellSize);
+	}
+
+	private void addEntry(int cell, int id)
+	{
+		if (numEntries == entryObject.length)
+		{
+			entryObject = Arrays.copyOf(entryObject, numEntries * 2);
+			entryNext = Arrays.copyOf(entryNext, numEntries * 2);
+		}
+		entryObject[numEntries] = id;
+		entryNext[numEntries] = cellHead[cell];
+		cellHead[cell] = numEntries;
+		numEntries++;
+	}
+
+	/**
+	 * @return the index of the given cell or -1 if it is empty.
+	 */
+	private int findCell(int x, int y)
+	{
+		long key = ((long) x << 32) | (y & 0xFFFFFFFFL);
+		int mask = slotCell.length - 1;
+		int slot = hash(key) & mask;
+		while (slotCell[slot] != -1)
+		{
+			if (slotKey[slot] == key)
+			{
+				return slotCell[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int getOrCreateCell(int x, int y)
+	{
+		long key = ((long) x << 32) | (y & 0xFFFFFFFFL);
+		int mask = slotCell.length - 1;
+		int slot = hash(key) & mask;
+		while (slotCell[slot] != -1)
+		{
+			if (slotKey[slot] == key)
+			{
+				return slotCell[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int cell = numCells;
+		if (cell == cellX.length)
+		{
+			cellX = Arrays.copyOf(cellX, cell * 2);
+			cellY = Arrays.copyOf(cellY, cell * 2);
+			cellHead = Arrays.copyOf(cellHead, cell * 2);
+			cellSlot = Arrays.copyOf(cellSlot, cell * 2);
+		}
+		cellX[cell] = x;
+		cellY[cell] = y;
+		cellHead[cell] = -1;
+		cellSlot[cell] = slot;
+		slotKey[slot] = key;
+		slotCell[slot] = cell;
+		numCells++;
+
+		// Keep the table at most half full
+		if (numCells * 2 > slotCell.length)
+		{
+			rehash(slotCell.length * 2);
+		}
+		return cell;
+	}
+
+	private void rehash(int numSlots)
+	{
+		slotKey = new long[numSlots];
+		slotCell = newEmptySlots(numSlots);
+		int mask = numSlots - 1;
+		for (int cell = 0; cell < numCells; cell++)
+		{
+			long key = ((long) cellX[cell] << 32) | (cellY[cell] & 0xFFFFFFFFL);
+			int slot = hash(key) & mask;
+			while (slotCell[slot] != -1)
+			{
+				slot = (slot + 1) & mask;
+			}
+			slotKey[slot] = key;
+			slotCell[slot] = cell;
+			cellSlot[cell] = slot;
+		}
+	}
+
+	/**
+	 * Empties the hash table by only visiting slots which are in use.
+	 */
+	private void clearCells()
+	{
+		for (int cell = 0; cell < numCells; cell++)
+		{
+			slotCell[cellSlot[cell]] = -1;
+		}
+		numCells = 0;
+		numEntries = 0;
+	}
+
+	private static int[] newEmptySlots(int numSlots)
+	{
+		int[] slots = new int[numSlots];
+		Arrays.fill(slots, -1);
+		return slots;
+	}
+
+	private static int hash(long key)
+	{
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 29));
+	}
+}
@@ -0,0 +1,226 @@
+package com.pheiffware.lib.physics.entity;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.geometry.shapes.Rect;
+import com.pheiffware.lib.physics.BarnesHutTree;
+import com.pheiffware.lib.physics.PhysicsSystem;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+import com.pheiffware.lib.physics.entity.physicalEntity.entities.SphereEntity;
+
+/**
+ * An entity which makes every dynamic physical entity attract every other, in the x,y plane, with Newtonian gravity
+ * (ex: for orbital scenes). Forces are approximated each time step with a BarnesHutTree, in O(n log n) rather than
+ * O(n^2). Spheres attract from their centers and other entities from the center of their bounding rectangle.
+ * Entities with unbounded rectangles are ignored. Entities which ignore gravity, and sleeping entities, still attract
+ * others, but are not attracted themselves (which would wake them).
+ *
+ * Forces are added directly to the entities, so this always runs ai() on the simulation thread (it has no parallel
+ * ai). It can instead spread the work over its own pool (see setParallelPool()), which gives identical results.
+ */
+public class BarnesHutGravityEntity extends Entity
+{
+	// Bodies are split into this many chunks per thread when calculating accelerations in parallel
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final double gravitationalConstant;
+	private final double openingAngle;
+	private final double softening;
+
+	private ForkJoinPool parallelPool = null;
+
+	private final BarnesHutTree tree = new BarnesHutTree();
+	private final Rect boundingRect = new Rect(0, 0, 0, 0);
+
+	// This step's bodies, their positions and masses, and calculated accelerations. Awake bodies come 1st, followed by
+	// sleeping bodies, which only attract.
+	private int numBodies = 0;
+	private int numAwakeBodies = 0;
+	private PhysicalEntity[] bodies = new PhysicalEntity[16];
+	private double[] bodyX = new double[16];
+	private double[] bodyY = new double[16];
+	private double[] bodyMass = new double[16];
+	private double[] accelerationX = new double[16];
+	private double[] accelerationY = new double[16];
+
+	// Scratch stacks for tree traversal, one per chunk
+	private int[][] stacks = new int[1][];
+
+	/**
+	 * @param gravitationalConstant
+	 * @param openingAngle
+	 *            nodes of the tree whose size / distance is below this are treated as a single mass. 0.5 is typical.
+	 *            Lower is more accurate and slower. 0 is exact.
+	 * @param softening
+	 *            a distance added (squared) to the squared distance between every pair of bodies, so bodies passing
+	 *            close to each other are not flung apart.
+	 */
+	public BarnesHutGravityEntity(double gravitationalConstant, double openingAngle, double softening)
+	{
+		if (!(openingAngle >= 0) || !(softening >= 0))
+		{
+			throw new IllegalArgumentException("Invalid opening angle or softening: " + openingAngle + ", " + softening);
+		}
+		this.gravitationalConstant = gravitationalConstant;
+		this.openingAngle = openingAngle;
+		this.softening = softening;
+	}
+
+	/**
+	 * With a pool, the tree is built and accelerations are calculated in parallel. null (the default) runs everything
+	 * on the simulation thread.
+	 *
+	 * @param parallelPool
+	 */
+	public void setParallelPool(ForkJoinPool parallelPool)
+	{
+		this.parallelPool = parallelPool;
+	}
+
+	@Override
+	public void ai(double elapsedTime, PhysicsSystem physicsSystem)
+	{
+		numBodies = 0;
+		ensureCapacity(physicsSystem.getNumPhysicalEntities() + physicsSystem.getNumSleepingEntities());
+		collectBodies(physicsSystem.getPhysicalEntities(), physicsSystem.getNumPhysicalEntities());
+		numAwakeBodies = numBodies;
+		collectBodies(physicsSystem.getSleepingEntities(), physicsSystem.getNumSleepingEntities());
+		tree.build(bodyX, bodyY, bodyMass, numBodies, parallelPool);
+		if (parallelPool == null || numBodies == 0)
+		{
+			calcAccelerations(0, 1);
+		}
+		else
+		{
+			int numChunks = Math.max(1, Math.min(numBodies, parallelPool.getParallelism() * CHUNKS_PER_THREAD));
+			if (stacks.length < numChunks)
+			{
+				stacks = Arrays.copyOf(stacks, numChunks);
+			}
+			parallelPool.invoke(new ChunksTask(0, numChunks, numChunks));
+		}
+		for (int i = 0; i < numAwakeBodies; i++)
+		{
+			PhysicalEntity body = bodies[i];
+			if (!body.ignoresGravity())
+			{
+				body.addForce(accelerationX[i] * body.mass, accelerationY[i] * body.mass, 0);
+			}
+		}
+		Arrays.fill(bodies, 0, numBodies, null);
+	}
+
+	private void ensureCapacity(int numPhysicalEntities)
+	{
+		if (bodies.length < numPhysicalEntities)
+		{
+			int capacity = Math.max(numPhysicalEntities, bodies.length * 2);
+			bodies = new PhysicalEntity[capacity];
+			bodyX = new double[capacity];
+			bodyY = new double[capacity];
+			bodyMass = new double[capacity];
+			accelerationX = new double[capacity];
+			accelerationY = new double[capacity];
+		}
+	}
+
+	/**
+	 * Appends the given entities to this step's bodies.
+	 */
+	private void collectBodies(PhysicalEntity[] physicalEntities, int numPhysicalEntities)
+	{
+		for (int i = 0; i < numPhysicalEntities; i++)
+		{
+			PhysicalEntity physicalEntity = physicalEntities[i];
+			if (physicalEntity instanceof SphereEntity)
+			{
+				Vec3D center = ((SphereEntity) physicalEntity).getCenter();
+				bodyX[numBodies] = center.x;
+				bodyY[numBodies] = center.y;
+			}
+			else
+			{
+				physicalEntity.calcBoundingRect(boundingRect);
+				if (!(boundingRect.width < Double.MAX_VALUE) || !(boundingRect.height < Double.MAX_VALUE))
+				{
+					continue;
+				}
+				bodyX[numBodies] = boundingRect.x1 + boundingRect.width * 0.5;
+				bodyY[numBodies] = boundingRect.y1 + boundingRect.height * 0.5;
+			}
+			bodies[numBodies] = physicalEntity;
+			bodyMass[numBodies] = physicalEntity.mass;
+			numBodies++;
+		}
+	}
+
+	/**
+	 * Calculates accelerations for one chunk of bodies, in tree order.
+	 */
+	private void calcAccelerations(int chunk, int numChunks)
+	{
+		if (stacks[chunk] == null)
+		{
+			stacks[chunk] = new int[BarnesHutTree.STACK_SIZE];
+		}
+		int start = (int) ((long) numBodies * chunk / numChunks);
+		int end = (int) ((long) numBodies * (chunk + 1) / numChunks);
+		tree.calcAccelerations(start, end, numAwakeBodies, gravitationalConstant, openingAngle, softening, accelerationX,
+				accelerationY, stacks[chunk]);
+	}
+
+	@SuppressWarnings("serial")
+	private class ChunksTask extends RecursiveAction
+	{
+		private final int startChunk;
+		private final int endChunk;
+		private final int numChunks;
+
+		public ChunksTask(int startChunk, int endChunk, int numChunks)
+		{
+			this.startChunk = startChunk;
+			this.endChunk = endChunk;
+			this.numChunks = numChunks;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (endChunk - startChunk == 1)
+			{
+				calcAccelerations(startChunk, numChunks);
+			}
+			else
+			{
+				int middle = (startChunk + endChunk) >>> 1;
+				invokeAll(new ChunksTask(startChunk, middle, numChunks), new ChunksTask(middle, endChunk, numChunks));
+			}
+		}
+	}
+
+	public final double getGravitationalConstant()
+	{
+		return gravitationalConstant;
+	}
+
+	public final double getOpeningAngle()
+	{
+		return openingAngle;
+	}
+
+	public final double getSoftening()
+	{
+		return softening;
+	}
+
+	/**
+	 * @return the tree built during the last time step.
+	 */
+	public final BarnesHutTree getTree()
+	{
+		return tree;
+	}
+}
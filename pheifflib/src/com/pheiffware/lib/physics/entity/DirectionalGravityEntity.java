@@ -5,8 +5,8 @@
 package com.pheiffware.lib.physics.entity;
 
 import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.physics.CommandBuffer;
 import com.pheiffware.lib.physics.PhysicsSystem;
-import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
 
 /**
  * An entity which applies gravity to other physical entities to produce a
@@ -21,18 +21,25 @@ public class DirectionalGravityEntity extends Entity
 		this.acceleration = acceleration;
 	}
 
+	/**
+	 * Rather than adding a force to every entity here, the acceleration is
+	 * handed to the physics system, which applies it while integrating.
+	 */
 	@Override
 	public void ai(double elapsedTime, PhysicsSystem physicsSystem)
 	{
-		PhysicalEntity[] physicalEntities = physicsSystem.getPhysicalEntities();
-		int numPhysicalEntities = physicsSystem.getNumPhysicalEntities();
-		for (int i = 0; i < numPhysicalEntities; i++)
-		{
-			PhysicalEntity physicalEntity = physicalEntities[i];
-			if (!physicalEntity.ignoresGravity())
-			{
-				physicalEntity.addForce(acceleration, physicalEntity.mass);
-			}
-		}
+		physicsSystem.addUniformAcceleration(acceleration);
+	}
+
+	@Override
+	public void ai(double elapsedTime, PhysicsSystem physicsSystem, CommandBuffer commands)
+	{
+		commands.addUniformAcceleration(acceleration);
+	}
+
+	@Override
+	public boolean hasParallelAI()
+	{
+		return true;
 	}
 }
@@ -1,12 +1,17 @@
 package com.pheiffware.lib.physics.entity;
 
+import com.pheiffware.lib.physics.CommandBuffer;
 import com.pheiffware.lib.physics.PhysicsSystem;
+import com.pheiffware.lib.physics.RenderSnapshot;
 
 public abstract class Entity implements Cloneable
 {
 	// Used for debugging
 	public String name = "";
 
+	// Handle assigned by the PhysicsSystem this is added to (-1 if none)
+	private int handle = -1;
+
 	public Entity()
 	{
 
@@ -23,6 +28,81 @@ public abstract class Entity implements Cloneable
 
 	}
 
+	/**
+	 * Parallel version of ai(), used when hasParallelAI() is true and the
+	 * physics system runs ai in parallel. The world must only be read. All
+	 * changes must be recorded in commands, which are applied after every
+	 * entity's ai has run.
+	 * 
+	 * @param elapsedTime
+	 * @param physicsSystem
+	 * @param commands
+	 */
+	public void ai(double elapsedTime, PhysicsSystem physicsSystem, CommandBuffer commands)
+	{
+
+	}
+
+	/**
+	 * Does this entity implement ai(double, PhysicsSystem, CommandBuffer)?
+	 * If not, ai(double, PhysicsSystem) is always called, on a single thread,
+	 * before any parallel ai is run.
+	 * 
+	 * @return
+	 */
+	public boolean hasParallelAI()
+	{
+		return false;
+	}
+
+	/**
+	 * Writes everything needed to draw this entity into the snapshot (see
+	 * PhysicsSystem.takeSnapshot()). By default, only the handle is recorded.
+	 * 
+	 * @param snapshot
+	 */
+	public void writeSnapshot(RenderSnapshot snapshot)
+	{
+		snapshot.addEntity(RenderSnapshot.OTHER, handle, 0, 0, 0);
+	}
+
+	/**
+	 * The number of values writeCheckpoint() writes. By default, entities
+	 * have no state which changes as the simulation runs.
+	 * 
+	 * @return
+	 */
+	public int getCheckpointSize()
+	{
+		return 0;
+	}
+
+	/**
+	 * Writes everything about this entity which changes as the simulation
+	 * runs into state[offset, offset + getCheckpointSize()), so it can be
+	 * restored by readCheckpoint() (see PhysicsSystem.saveCheckpoint()).
+	 * Subclasses with more state write the superclass' state 1st and their
+	 * own after it.
+	 * 
+	 * @param state
+	 * @param offset
+	 */
+	public void writeCheckpoint(double[] state, int offset)
+	{
+
+	}
+
+	/**
+	 * Restores the state written by writeCheckpoint().
+	 * 
+	 * @param state
+	 * @param offset
+	 */
+	public void readCheckpoint(double[] state, int offset)
+	{
+
+	}
+
 	public Entity copyForRender()
 	{
 		try
@@ -35,6 +115,21 @@ public abstract class Entity implements Cloneable
 		}
 	}
 
+	public final int getHandle()
+	{
+		return handle;
+	}
+
+	/**
+	 * Called by the PhysicsSystem when this entity is added or removed.
+	 * 
+	 * @param handle
+	 */
+	public final void setHandle(int handle)
+	{
+		this.handle = handle;
+	}
+
 	public void setName(String name)
 	{
 		this.name = name;
@@ -5,6 +5,8 @@
 package com.pheiffware.lib.physics.entity.physicalEntity;
 
 import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.geometry.shapes.Rect;
+import com.pheiffware.lib.physics.ContactBuffer;
 import com.pheiffware.lib.physics.InteractionException;
 import com.pheiffware.lib.physics.entity.Entity;
 
@@ -14,6 +16,19 @@ import com.pheiffware.lib.physics.entity.Entity;
 // TODO: Remove rigid body package.
 public abstract class PhysicalEntity extends Entity
 {
+	// Shape types, used to look up collision kernels (see
+	// CollisionDispatch). Entities of any other shape are SHAPE_OTHER and
+	// resolve their own collisions.
+	public static final int SHAPE_OTHER = 0;
+	public static final int SHAPE_SPHERE = 1;
+	public static final int SHAPE_LINE_SEGMENT = 2;
+	public static final int SHAPE_POLYGON = 3;
+	public static final int NUM_SHAPE_TYPES = 4;
+
+	// Values written by writeCheckpoint(): velocity, accumulated force, still
+	// steps, flags, previous acceleration and previous half time
+	private static final int CHECKPOINT_SIZE = 12;
+
 	// Consider object stopped if its velocity falls below this
 	private static final double STOPPED_VELOCITY_SQUARED = Math.pow(0.0000001,
 			2);
@@ -37,12 +52,40 @@ public abstract class PhysicalEntity extends Entity
 	// Used to accumulate total force acting on entity during a time step
 	private final Vec3D accumulatedForce;
 
+	// Acceleration from forces and gravity over the previous time step, and
+	// half that step's length (0 if there is none). Kept for integrators
+	// which complete a step once the next step's forces are known.
+	private final Vec3D previousAcceleration = new Vec3D(0, 0, 0);
+	private double previousHalfTime = 0;
+
+	// Scratch space for calcPosition()
+	private final Rect positionRect = new Rect(0, 0, 0, 0);
+
 	// (duh)
 	private boolean ignoresGravity = false;
 
+	// Set while the physics system has put this entity to sleep
+	private boolean asleep = false;
+
+	// Set if a force or impulse is applied while asleep
+	private boolean wakeRequested = false;
+
+	// Number of consecutive time steps the entity has been nearly still
+	private int stillSteps = 0;
+
+	// One of the SHAPE_ constants
+	private final int shapeType;
+
 	public PhysicalEntity(Vec3D velocity, double mass,
 			double coefficientOfRestitution)
 	{
+		this(velocity, mass, coefficientOfRestitution, SHAPE_OTHER);
+	}
+
+	protected PhysicalEntity(Vec3D velocity, double mass,
+			double coefficientOfRestitution, int shapeType)
+	{
+		this.shapeType = shapeType;
 		this.velocity = new Vec3D(velocity);
 		this.coefficientOfRestitution = coefficientOfRestitution;
 		this.mass = mass;
@@ -73,8 +116,29 @@ public abstract class PhysicalEntity extends Entity
 		accumulatedForce.toZero();
 	}
 
+	/**
+	 * Finds and resolves any collision between this entity and the given
+	 * entity. Contacts are written to the given buffer, which provides all
+	 * scratch space needed, so this allocates nothing.
+	 * 
+	 * @param physicalEntity
+	 * @param elapsedTime
+	 * @param contacts
+	 * @throws InteractionException
+	 */
 	public abstract void resolveCollision(PhysicalEntity physicalEntity,
-			double elapsedTime) throws InteractionException;
+			double elapsedTime, ContactBuffer contacts)
+			throws InteractionException;
+
+	/**
+	 * Convenience method for resolveCollision (should not be used where
+	 * efficiency matters)
+	 */
+	public final void resolveCollision(PhysicalEntity physicalEntity,
+			double elapsedTime) throws InteractionException
+	{
+		resolveCollision(physicalEntity, elapsedTime, new ContactBuffer());
+	}
 
 	/**
 	 * Move the entity's center and update all other related information such as
@@ -94,6 +158,65 @@ public abstract class PhysicalEntity extends Entity
 		move(translation.x, translation.y, translation.z);
 	}
 
+	/**
+	 * Calculates a rectangle, in the x,y plane, which contains this entity. This is used by the broadphase to skip
+	 * pairs of entities which cannot be touching. By default this is unbounded, which means the entity is tested
+	 * against everything.
+	 * 
+	 * @param boundingRect
+	 *            filled in with the result
+	 */
+	public void calcBoundingRect(Rect boundingRect)
+	{
+		boundingRect.x1 = -Double.MAX_VALUE / 2;
+		boundingRect.y1 = -Double.MAX_VALUE / 2;
+		boundingRect.width = Double.MAX_VALUE;
+		boundingRect.height = Double.MAX_VALUE;
+	}
+
+	/**
+	 * Calculates the position of this entity, as seen by an AccelerationField
+	 * (see PhysicsSystem.setAccelerationField()). By default this is the
+	 * center of its bounding rectangle.
+	 * 
+	 * @param position
+	 *            filled in with the result
+	 */
+	public void calcPosition(Vec3D position)
+	{
+		calcBoundingRect(positionRect);
+		position.x = positionRect.x1 + positionRect.width * 0.5;
+		position.y = positionRect.y1 + positionRect.height * 0.5;
+		position.z = 0;
+	}
+
+	/**
+	 * The size of the smallest feature of this entity which another entity
+	 * could pass through in a single time step (ex: a sphere's radius). Used
+	 * to choose how finely to sub-step (see
+	 * PhysicsSystem.setAdaptiveSubStepping()). By default this is infinite,
+	 * which never forces sub-stepping.
+	 * 
+	 * @return
+	 */
+	public double getCollisionSize()
+	{
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * The physics system resolves collisions between entities with known
+	 * shape types through CollisionDispatch, without calling
+	 * resolveCollision(). Only SHAPE_OTHER entities have their
+	 * resolveCollision() called by the physics system.
+	 * 
+	 * @return one of the SHAPE_ constants
+	 */
+	public final int getShapeType()
+	{
+		return shapeType;
+	}
+
 	public final boolean hasMotionStopped()
 	{
 		return velocity.magnitudeSquared() < STOPPED_VELOCITY_SQUARED;
@@ -106,11 +229,197 @@ public abstract class PhysicalEntity extends Entity
 
 	public void addForce(final Vec3D direction, final double magnitude)
 	{
+		if (asleep)
+		{
+			wakeRequested = true;
+		}
 		accumulatedForce.x += direction.x * magnitude;
 		accumulatedForce.y += direction.y * magnitude;
 		accumulatedForce.z += direction.z * magnitude;
 	}
 
+	public void addForce(final double x, final double y, final double z)
+	{
+		if (asleep)
+		{
+			wakeRequested = true;
+		}
+		accumulatedForce.x += x;
+		accumulatedForce.y += y;
+		accumulatedForce.z += z;
+	}
+
+	/**
+	 * The total force added so far this time step.
+	 * 
+	 * @return
+	 */
+	public final Vec3D getAccumulatedForce()
+	{
+		return accumulatedForce;
+	}
+
+	/**
+	 * Discards any force accumulated so far this time step.
+	 */
+	public final void clearForce()
+	{
+		accumulatedForce.toZero();
+	}
+
+	/**
+	 * The acceleration, from forces and uniform gravity, which the integrator
+	 * used over the previous time step (see Integrator.VELOCITY_VERLET).
+	 * 
+	 * @return
+	 */
+	public final Vec3D getPreviousAcceleration()
+	{
+		return previousAcceleration;
+	}
+
+	/**
+	 * Half the length of the previous time step, or 0 if there is no previous
+	 * acceleration.
+	 * 
+	 * @return
+	 */
+	public final double getPreviousHalfTime()
+	{
+		return previousHalfTime;
+	}
+
+	public final void setPreviousAcceleration(final double x, final double y,
+			final double z, final double previousHalfTime)
+	{
+		previousAcceleration.x = x;
+		previousAcceleration.y = y;
+		previousAcceleration.z = z;
+		this.previousHalfTime = previousHalfTime;
+	}
+
+	/**
+	 * Forgets the previous acceleration, so the next time step is integrated
+	 * as if it were the 1st.
+	 */
+	public final void clearPreviousAcceleration()
+	{
+		previousAcceleration.toZero();
+		previousHalfTime = 0;
+	}
+
+	public final void setVelocity(final double x, final double y,
+			final double z)
+	{
+		velocity.x = x;
+		velocity.y = y;
+		velocity.z = z;
+	}
+
+	/**
+	 * Is the entity sleeping? Sleeping entities are not moved or collision
+	 * tested by the physics system until they are woken.
+	 * 
+	 * @return
+	 */
+	public final boolean isAsleep()
+	{
+		return asleep;
+	}
+
+	/**
+	 * Has a force or impulse been applied since the entity fell asleep?
+	 * 
+	 * @return
+	 */
+	public final boolean isWakeRequested()
+	{
+		return wakeRequested;
+	}
+
+	/**
+	 * Used by the physics system to put the entity to sleep or wake it. Either
+	 * way, the count of still steps and the previous acceleration start again.
+	 * 
+	 * @param asleep
+	 */
+	public final void setAsleep(boolean asleep)
+	{
+		this.asleep = asleep;
+		wakeRequested = false;
+		stillSteps = 0;
+		clearPreviousAcceleration();
+	}
+
+	/**
+	 * Updates the number of consecutive steps that this entity's speed has
+	 * been below the given threshold. Called once at the end of each step.
+	 * 
+	 * @param sleepVelocitySquared
+	 * @return the number of consecutive still steps, including this one.
+	 */
+	public final int updateStillSteps(double sleepVelocitySquared)
+	{
+		if (velocity.magnitudeSquared() < sleepVelocitySquared)
+		{
+			stillSteps++;
+		}
+		else
+		{
+			stillSteps = 0;
+		}
+		return stillSteps;
+	}
+
+	public final int getStillSteps()
+	{
+		return stillSteps;
+	}
+
+	@Override
+	public int getCheckpointSize()
+	{
+		return CHECKPOINT_SIZE;
+	}
+
+	@Override
+	public void writeCheckpoint(double[] state, int offset)
+	{
+		state[offset] = velocity.x;
+		state[offset + 1] = velocity.y;
+		state[offset + 2] = velocity.z;
+		state[offset + 3] = accumulatedForce.x;
+		state[offset + 4] = accumulatedForce.y;
+		state[offset + 5] = accumulatedForce.z;
+		state[offset + 6] = stillSteps;
+		state[offset + 7] = (asleep ? 1 : 0) | (wakeRequested ? 2 : 0)
+				| (ignoresGravity ? 4 : 0);
+		state[offset + 8] = previousAcceleration.x;
+		state[offset + 9] = previousAcceleration.y;
+		state[offset + 10] = previousAcceleration.z;
+		state[offset + 11] = previousHalfTime;
+	}
+
+	@Override
+	public void readCheckpoint(double[] state, int offset)
+	{
+		velocity.x = state[offset];
+		velocity.y = state[offset + 1];
+		velocity.z = state[offset + 2];
+		accumulatedForce.x = state[offset + 3];
+		accumulatedForce.y = state[offset + 4];
+		accumulatedForce.z = state[offset + 5];
+		stillSteps = (int) state[offset + 6];
+		int flags = (int) state[offset + 7];
+		asleep = (flags & 1) != 0;
+		wakeRequested = (flags & 2) != 0;
+		ignoresGravity = (flags & 4) != 0;
+		previousAcceleration.x = state[offset + 8];
+		previousAcceleration.y = state[offset + 9];
+		previousAcceleration.z = state[offset + 10];
+		previousHalfTime = state[offset + 11];
+	}
+
 	public boolean ignoresGravity()
 	{
 		return ignoresGravity;
@@ -123,11 +432,31 @@ public abstract class PhysicalEntity extends Entity
 
 	public void applyImpulse(final Vec3D impulse)
 	{
+		if (asleep)
+		{
+			wakeRequested = true;
+		}
 		velocity.addTo(impulse);
 	}
 
 	public void applyImpulse(final Vec3D impulseNormal, final double magnitude)
 	{
+		if (asleep)
+		{
+			wakeRequested = true;
+		}
 		velocity.addToScaledVector(impulseNormal, magnitude);
 	}
+
+	public void applyImpulse(final double normalX, final double normalY,
+			final double normalZ, final double magnitude)
+	{
+		if (asleep)
+		{
+			wakeRequested = true;
+		}
+		velocity.x += normalX * magnitude;
+		velocity.y += normalY * magnitude;
+		velocity.z += normalZ * magnitude;
+	}
 }
@@ -48,17 +48,6 @@ public class PhysicalEntityCollision
 	// How deep is the overlap along the line of the collisionNormal
 	private final double penetration;
 
-	// Amount of velocity1 along the normal of the collision
-	private final double velocity1NormalComponent;
-
-	// Amount of velocity2 along the normal of the collision (generally
-	// negative)
-	private final double velocity2NormalComponent;
-
-	private final double relativeNormalVelocity;
-
-	private double combinedCoefficientOfRestitution;
-
 	public PhysicalEntityCollision(PhysicalEntity entity1,
 			PhysicalEntity entity2, IntersectionInfo pointOfImpact)
 	{
@@ -73,31 +62,91 @@ public class PhysicalEntityCollision
 		this.entity2 = entity2;
 		this.collisionNormal = collisionNormal;
 		this.penetration = penetration;
-		velocity1NormalComponent = Vec3D.dot(entity1.velocity, collisionNormal);
-		velocity2NormalComponent = Vec3D.dot(entity2.velocity, collisionNormal);
-		relativeNormalVelocity = velocity1NormalComponent
+	}
+
+	public final void resolve()
+	{
+		resolve(entity1, entity2, collisionNormal.x, collisionNormal.y,
+				collisionNormal.z, penetration);
+	}
+
+	/**
+	 * Resolves a collision without creating a PhysicalEntityCollision (see
+	 * ContactBuffer). Applies impulses if the entities are approaching and
+	 * then moves them so they are just touching.
+	 * 
+	 * @param entity1
+	 *            may have infinite mass
+	 * @param entity2
+	 * @param normalX
+	 *            collision normal in direction from entity1 to entity2
+	 * @param normalY
+	 * @param normalZ
+	 * @param penetration
+	 *            how deep the overlap is along the normal
+	 */
+	public static final void resolve(PhysicalEntity entity1,
+			PhysicalEntity entity2, double normalX, double normalY,
+			double normalZ, double penetration)
+	{
+		// Amount of each velocity along the normal of the collision (the 2nd
+		// is generally negative)
+		double velocity1NormalComponent = entity1.velocity.x * normalX
+				+ entity1.velocity.y * normalY + entity1.velocity.z * normalZ;
+		double velocity2NormalComponent = entity2.velocity.x * normalX
+				+ entity2.velocity.y * normalY + entity2.velocity.z * normalZ;
+		double relativeNormalVelocity = velocity1NormalComponent
 				- velocity2NormalComponent;
-		combinedCoefficientOfRestitution = entity1
+		double combinedCoefficientOfRestitution = entity1
 				.getCoefficientOfRestitution()
 				* entity2.getCoefficientOfRestitution();
 		if (relativeNormalVelocity * combinedCoefficientOfRestitution < MAX_RELATIVE_STATIC_VELOCITIES)
 		{
 			combinedCoefficientOfRestitution = 0.0f;
 		}
-	}
 
-	public final void resolve()
-	{
-		if (areApproaching())
+		// Are they approaching?
+		if (relativeNormalVelocity >= 0)
 		{
-			addCollisionImpulses();
+			addCollisionImpulses(entity1, entity2, normalX, normalY,
+					normalZ, velocity1NormalComponent,
+					velocity2NormalComponent,
+					combinedCoefficientOfRestitution);
 		}
-		unEmbed();
+		unEmbed(entity1, entity2, normalX, normalY, normalZ, penetration);
 	}
 
-	private final boolean areApproaching()
+	/**
+	 * Calculates how fast 2 entities should be separating along the collision
+	 * normal after a collision, given how fast they are approaching now. Slow
+	 * collisions do not bounce, so resting contacts stay at rest.
+	 * 
+	 * @param entity1
+	 * @param entity2
+	 * @param normalX
+	 *            collision normal in direction from entity1 to entity2
+	 * @param normalY
+	 * @param normalZ
+	 * @return 0 if the entities should just stop approaching.
+	 */
+	public static final double calcSeparatingSpeed(PhysicalEntity entity1,
+			PhysicalEntity entity2, double normalX, double normalY,
+			double normalZ)
 	{
-		return relativeNormalVelocity >= 0;
+		double relativeNormalVelocity = (entity1.velocity.x - entity2.velocity.x)
+				* normalX
+				+ (entity1.velocity.y - entity2.velocity.y)
+				* normalY
+				+ (entity1.velocity.z - entity2.velocity.z) * normalZ;
+		double combinedCoefficientOfRestitution = entity1
+				.getCoefficientOfRestitution()
+				* entity2.getCoefficientOfRestitution();
+		if (relativeNormalVelocity <= 0
+				|| relativeNormalVelocity * combinedCoefficientOfRestitution < MAX_RELATIVE_STATIC_VELOCITIES)
+		{
+			return 0;
+		}
+		return relativeNormalVelocity * combinedCoefficientOfRestitution;
 	}
 
 	/**
@@ -130,7 +179,11 @@ public class PhysicalEntityCollision
 	// (speed2 - speed1) * (combinedCoefficientOfRestitution + 1) /
 	// (inverseMass1 + inverseMass2);
 
-	private void addCollisionImpulses()
+	private static void addCollisionImpulses(PhysicalEntity entity1,
+			PhysicalEntity entity2, double normalX, double normalY,
+			double normalZ, double velocity1NormalComponent,
+			double velocity2NormalComponent,
+			double combinedCoefficientOfRestitution)
 	{
 		// Calculate change in velocities along collision normal
 		double impulse = calcCollisionImpulse(entity1.inverseMass,
@@ -138,9 +191,11 @@ public class PhysicalEntityCollision
 				velocity2NormalComponent, combinedCoefficientOfRestitution);
 		if (entity1.inverseMass > 0)
 		{
-			entity1.applyImpulse(collisionNormal, impulse * entity1.inverseMass);
+			entity1.applyImpulse(normalX, normalY, normalZ, impulse
+					* entity1.inverseMass);
 		}
-		entity2.applyImpulse(collisionNormal, -impulse * entity2.inverseMass);
+		entity2.applyImpulse(normalX, normalY, normalZ, -impulse
+				* entity2.inverseMass);
 
 		// For tangential aspect of collision
 
@@ -151,16 +206,17 @@ public class PhysicalEntityCollision
 	 * 
 	 * Note: The first entity's mass may be infinity, but not the second.
 	 * 
-	 * @param collision
 	 * @param entity1
 	 * @param entity2
 	 */
-	private void unEmbed()
+	public static void unEmbed(PhysicalEntity entity1,
+			PhysicalEntity entity2, double normalX, double normalY,
+			double normalZ, double penetration)
 	{
 		if (entity1.mass == Float.POSITIVE_INFINITY)
 		{
-			entity2.move(collisionNormal.x * penetration, collisionNormal.y
-					* penetration, collisionNormal.z * penetration);
+			entity2.move(normalX * penetration, normalY
+					* penetration, normalZ * penetration);
 			return;
 		}
 
@@ -179,11 +235,11 @@ public class PhysicalEntityCollision
 		final double separationMagnitude2 = penetration
 				* (1 + entitiy1SeparationFactor);
 
-		entity1.move(collisionNormal.x * separationMagnitude1,
-				collisionNormal.y * separationMagnitude1, collisionNormal.z
+		entity1.move(normalX * separationMagnitude1,
+				normalY * separationMagnitude1, normalZ
 						* separationMagnitude1);
-		entity2.move(collisionNormal.x * separationMagnitude2,
-				collisionNormal.y * separationMagnitude2, collisionNormal.z
+		entity2.move(normalX * separationMagnitude2,
+				normalY * separationMagnitude2, normalZ
 						* separationMagnitude2);
 	}
 
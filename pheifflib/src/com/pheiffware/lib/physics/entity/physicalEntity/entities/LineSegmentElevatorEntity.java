@@ -5,6 +5,7 @@
 package com.pheiffware.lib.physics.entity.physicalEntity.entities;
 
 import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.physics.CommandBuffer;
 import com.pheiffware.lib.physics.PhysicsSystem;
 
 //TODO: Make this movement algorithm more generally applied to any entity
@@ -31,6 +32,25 @@ public class LineSegmentElevatorEntity extends LineSegmentEntity
 
 	@Override
 	public void ai(double elapsedTime, PhysicsSystem physicsSystem)
+	{
+		addForce(direction, calcRequiredAcceleration(elapsedTime) * mass);
+	}
+
+	@Override
+	public void ai(double elapsedTime, PhysicsSystem physicsSystem,
+			CommandBuffer commands)
+	{
+		commands.addForce(this, direction, calcRequiredAcceleration(elapsedTime)
+				* mass);
+	}
+
+	@Override
+	public boolean hasParallelAI()
+	{
+		return true;
+	}
+
+	private double calcRequiredAcceleration(double elapsedTime)
 	{
 		// Figure out force required to get to full speed
 
@@ -46,7 +66,6 @@ public class LineSegmentElevatorEntity extends LineSegmentEntity
 		{
 			requiredAcceleration = acceleration;
 		}
-
-		addForce(direction, requiredAcceleration * mass);
+		return requiredAcceleration;
 	}
 }
@@ -6,12 +6,12 @@ package com.pheiffware.lib.physics.entity.physicalEntity.entities;
 
 import com.pheiffware.lib.geometry.Vec3D;
 import com.pheiffware.lib.geometry.intersect.IntersectCalc;
-import com.pheiffware.lib.geometry.intersect.IntersectionInfo;
-import com.pheiffware.lib.geometry.shapes.Sphere;
 import com.pheiffware.lib.geometry.shapes.LineSegment;
+import com.pheiffware.lib.geometry.shapes.Rect;
+import com.pheiffware.lib.physics.ContactBuffer;
 import com.pheiffware.lib.physics.InteractionException;
+import com.pheiffware.lib.physics.RenderSnapshot;
 import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
-import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntityCollision;
 
 /** 
  *  
@@ -20,16 +20,24 @@ public abstract class LineSegmentEntity extends PhysicalEntity
 {
 	public static final void resolveLineSphereCollision(
 			final LineSegmentEntity lineSegmentEntity,
-			final SphereEntity sphere, final double elapsedTime)
+			final SphereEntity sphere, final double elapsedTime,
+			final ContactBuffer contacts)
 	{
-		IntersectionInfo intersectionInfo = IntersectCalc.calcIntersect2D(
-				lineSegmentEntity.lineSegment, new Sphere(sphere.getCenter(),
-						sphere.getRadius()));
-		if (intersectionInfo != null)
+		// After a swept impact the sphere may still overlap (ex: if it
+		// started the step embedded), so it is tested where it ends up too
+		if (sphere.hasMovedInSweep())
 		{
-			PhysicalEntityCollision collision = new PhysicalEntityCollision(
-					lineSegmentEntity, sphere, intersectionInfo);
-			collision.resolve();
+			sphere.resolveSweptCollision(lineSegmentEntity,
+					lineSegmentEntity.lineSegment, contacts);
+		}
+		Vec3D center = sphere.getCenter();
+		double penetration = IntersectCalc.calcIntersect2D(
+				lineSegmentEntity.lineSegment, center.x, center.y,
+				sphere.getRadius(), contacts.normal);
+		if (penetration >= 0)
+		{
+			contacts.addAndResolve(lineSegmentEntity, sphere,
+					contacts.normal, penetration);
 		}
 	}
 
@@ -38,7 +46,7 @@ public abstract class LineSegmentEntity extends PhysicalEntity
 	public LineSegmentEntity(Vec3D p1, Vec3D p2, int normalSide,
 			Vec3D velocity, double mass, double coefficientOfRestitution)
 	{
-		super(velocity, mass, coefficientOfRestitution);
+		super(velocity, mass, coefficientOfRestitution, SHAPE_LINE_SEGMENT);
 		lineSegment = new LineSegment(p1, p2, normalSide);
 	}
 
@@ -54,6 +62,67 @@ public abstract class LineSegmentEntity extends PhysicalEntity
 		lineSegment.p2.addTo(x, y, z);
 	}
 
+	@Override
+	public void calcBoundingRect(Rect boundingRect)
+	{
+		boundingRect.x1 = Math.min(lineSegment.p1.x, lineSegment.p2.x);
+		boundingRect.y1 = Math.min(lineSegment.p1.y, lineSegment.p2.y);
+		boundingRect.width = Math.abs(lineSegment.p2.x - lineSegment.p1.x);
+		boundingRect.height = Math.abs(lineSegment.p2.y - lineSegment.p1.y);
+	}
+
+	@Override
+	public void calcPosition(Vec3D position)
+	{
+		position.x = (lineSegment.p1.x + lineSegment.p2.x) * 0.5;
+		position.y = (lineSegment.p1.y + lineSegment.p2.y) * 0.5;
+		position.z = (lineSegment.p1.z + lineSegment.p2.z) * 0.5;
+	}
+
+	@Override
+	public void writeSnapshot(RenderSnapshot snapshot)
+	{
+		Vec3D p1 = lineSegment.p1;
+		Vec3D p2 = lineSegment.p2;
+		snapshot.addEntity(RenderSnapshot.LINE_SEGMENT, getHandle(),
+				(p1.x + p2.x) * 0.5, (p1.y + p2.y) * 0.5,
+				lineSegment.length * 0.5);
+		snapshot.addPoint(p1.x, p1.y);
+		snapshot.addPoint(p2.x, p2.y);
+	}
+
+	@Override
+	public int getCheckpointSize()
+	{
+		return super.getCheckpointSize() + 6;
+	}
+
+	@Override
+	public void writeCheckpoint(double[] state, int offset)
+	{
+		super.writeCheckpoint(state, offset);
+		offset += super.getCheckpointSize();
+		state[offset] = lineSegment.p1.x;
+		state[offset + 1] = lineSegment.p1.y;
+		state[offset + 2] = lineSegment.p1.z;
+		state[offset + 3] = lineSegment.p2.x;
+		state[offset + 4] = lineSegment.p2.y;
+		state[offset + 5] = lineSegment.p2.z;
+	}
+
+	@Override
+	public void readCheckpoint(double[] state, int offset)
+	{
+		super.readCheckpoint(state, offset);
+		offset += super.getCheckpointSize();
+		lineSegment.p1.x = state[offset];
+		lineSegment.p1.y = state[offset + 1];
+		lineSegment.p1.z = state[offset + 2];
+		lineSegment.p2.x = state[offset + 3];
+		lineSegment.p2.y = state[offset + 4];
+		lineSegment.p2.z = state[offset + 5];
+	}
+
 	public final LineSegment getLineSegment()
 	{
 		return lineSegment;
@@ -61,12 +130,13 @@ public abstract class LineSegmentEntity extends PhysicalEntity
 
 	@Override
 	public void resolveCollision(PhysicalEntity physicalEntity,
-			double elapsedTime) throws InteractionException
+			double elapsedTime, ContactBuffer contacts)
+			throws InteractionException
 	{
 		if (physicalEntity instanceof SphereEntity)
 		{
 			LineSegmentEntity.resolveLineSphereCollision(this,
-					(SphereEntity) physicalEntity, elapsedTime);
+					(SphereEntity) physicalEntity, elapsedTime, contacts);
 		}
 	}
 }
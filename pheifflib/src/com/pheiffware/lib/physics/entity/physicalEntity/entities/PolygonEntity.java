@@ -4,36 +4,89 @@
  */
 package com.pheiffware.lib.physics.entity.physicalEntity.entities;
 
+import java.util.Arrays;
+
+import com.pheiffware.lib.geometry.EdgeTree;
+import com.pheiffware.lib.geometry.Geocalc;
 import com.pheiffware.lib.geometry.Vec3D;
 import com.pheiffware.lib.geometry.intersect.IntersectCalc;
-import com.pheiffware.lib.geometry.intersect.IntersectionInfo;
-import com.pheiffware.lib.geometry.shapes.Sphere;
 import com.pheiffware.lib.geometry.shapes.LineSegment;
+import com.pheiffware.lib.geometry.shapes.Rect;
+import com.pheiffware.lib.geometry.shapes.Sphere;
+import com.pheiffware.lib.physics.ContactBuffer;
 import com.pheiffware.lib.physics.InteractionException;
+import com.pheiffware.lib.physics.RenderSnapshot;
 import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
-import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntityCollision;
 import com.pheiffware.lib.physics.entity.physicalEntity.boundingVolume.BoundingSphere;
 
 /**
- * A polygon entity which can interact with circles.
+ * A polygon entity which can interact with circles. Spheres which cannot reach
+ * the polygon's bounding sphere are rejected without testing any edges, and
+ * large polygons (ex: coastlines) keep an EdgeTree so a sphere is only tested
+ * against the edges near it.
  */
 public class PolygonEntity extends PhysicalEntity
 {
+	// Polygons with at least this many edges keep an EdgeTree
+	public static final int MIN_EDGES_FOR_TREE = 16;
+
 	public static void resolvePolygonSphereCollision(
 			PolygonEntity polygonEntity, SphereEntity sphereEntity,
-			double elapsedTime)
+			double elapsedTime, ContactBuffer contacts)
 	{
-		for (LineSegment lineSegment : polygonEntity.lineSegments)
+		Vec3D start = sphereEntity.getSweepStart();
+		Vec3D center = sphereEntity.getCenter();
+		double radius = sphereEntity.getRadius();
+		if (!polygonEntity.canReachBoundingSphere(start, center, radius))
+		{
+			return;
+		}
+		LineSegment[] lineSegments = polygonEntity.lineSegments;
+		if (polygonEntity.edgeTree == null)
 		{
-			IntersectionInfo pointOfImpact = IntersectCalc.calcIntersect2D(
-					lineSegment, new Sphere(sphereEntity.getCenter(),
-							sphereEntity.getRadius()));
-			if (pointOfImpact != null)
+			if (sphereEntity.hasMovedInSweep())
+			{
+				sphereEntity.resolveSweptCollision(polygonEntity,
+						lineSegments, contacts);
+			}
+			for (LineSegment lineSegment : lineSegments)
 			{
-				PhysicalEntityCollision collision = new PhysicalEntityCollision(
-						polygonEntity, sphereEntity, pointOfImpact);
-				collision.resolve();
+				resolveLineSegmentSphereCollision(polygonEntity,
+						lineSegment, sphereEntity, contacts);
 			}
+			return;
+		}
+
+		int numFound = polygonEntity.findEdges(start, center, radius,
+				contacts);
+		int[] foundEdges = contacts.foundEdges;
+
+		// Resolve in edge order, as if every edge were tested. Each
+		// resolution moves the sphere, so order matters.
+		Arrays.sort(foundEdges, 0, numFound);
+		if (sphereEntity.hasMovedInSweep())
+		{
+			sphereEntity.resolveSweptCollision(polygonEntity, lineSegments,
+					foundEdges, numFound, contacts);
+		}
+		for (int i = 0; i < numFound; i++)
+		{
+			resolveLineSegmentSphereCollision(polygonEntity,
+					lineSegments[foundEdges[i]], sphereEntity, contacts);
+		}
+	}
+
+	private static void resolveLineSegmentSphereCollision(
+			PolygonEntity polygonEntity, LineSegment lineSegment,
+			SphereEntity sphereEntity, ContactBuffer contacts)
+	{
+		Vec3D center = sphereEntity.getCenter();
+		double penetration = IntersectCalc.calcIntersect2D(lineSegment,
+				center.x, center.y, sphereEntity.getRadius(), contacts.normal);
+		if (penetration >= 0)
+		{
+			contacts.addAndResolve(polygonEntity, sphereEntity,
+					contacts.normal, penetration);
 		}
 	}
 
@@ -45,10 +98,18 @@ public class PolygonEntity extends PhysicalEntity
 
 	private BoundingSphere boundingSphere;
 
+	// Hierarchy over lineSegments, or null for small polygons. The tree is
+	// built where the polygon was at construction.
+	private final EdgeTree edgeTree;
+
+	// The center of the bounding sphere when the tree was built. The tree is
+	// queried relative to this, as the polygon may have moved since.
+	private final Vec3D treeOrigin;
+
 	public PolygonEntity(Vec3D velocity, double mass,
 			double coefficientOfRestitution, Vec3D[] points)
 	{
-		super(velocity, mass, coefficientOfRestitution);
+		super(velocity, mass, coefficientOfRestitution, SHAPE_POLYGON);
 		this.points = copyPoints(points);
 		lineSegments = new LineSegment[points.length];
 		for (int i = 0; i < points.length - 1; i++)
@@ -59,6 +120,16 @@ public class PolygonEntity extends PhysicalEntity
 		lineSegments[lineSegments.length - 1] = new LineSegment(
 				this.points[points.length - 1], this.points[0], 1);
 		calcBoundingVolume();
+		if (lineSegments.length >= MIN_EDGES_FOR_TREE)
+		{
+			edgeTree = new EdgeTree(lineSegments);
+			treeOrigin = new Vec3D(boundingSphere.getCenter());
+		}
+		else
+		{
+			edgeTree = null;
+			treeOrigin = null;
+		}
 	}
 
 	/**
@@ -76,31 +147,74 @@ public class PolygonEntity extends PhysicalEntity
 	}
 
 	/**
-	 * Calculates the optimal spherical bounding volume (slowly)
+	 * Calculates the smallest circle containing all points (see
+	 * Geocalc.calcEnclosingCircle2D()).
 	 */
 	private void calcBoundingVolume()
 	{
-		Vec3D p1 = null;
-		Vec3D p2 = null;
-		double longestDistanceSquared = 0.0f;
+		Sphere circle = Geocalc.calcEnclosingCircle2D(points);
+		boundingSphere = new BoundingSphere(circle.center, circle.radius);
+	}
 
-		for (int i = 0; i < points.length - 1; i++)
+	/**
+	 * Can a sphere, which moved from start to center during this time step,
+	 * have touched the bounding sphere at any point along the way? Only x and
+	 * y are considered, like all polygon collisions.
+	 */
+	private boolean canReachBoundingSphere(Vec3D start, Vec3D center,
+			double radius)
+	{
+		Vec3D boundingCenter = boundingSphere.getCenter();
+		double movementX = center.x - start.x;
+		double movementY = center.y - start.y;
+		double offsetX = boundingCenter.x - start.x;
+		double offsetY = boundingCenter.y - start.y;
+
+		// Closest point of the movement to the bounding center
+		double movementLengthSquared = movementX * movementX + movementY
+				* movementY;
+		double time = 0;
+		if (movementLengthSquared > 0)
 		{
-			for (int j = i; j < points.length; j++)
-			{
-				double distanceSquared = Vec3D.distanceSquared(points[i],
-						points[j]);
-				if (distanceSquared > longestDistanceSquared)
-				{
-					longestDistanceSquared = distanceSquared;
-					p1 = points[i];
-					p2 = points[j];
-				}
-			}
+			time = (offsetX * movementX + offsetY * movementY)
+					/ movementLengthSquared;
+			time = Math.max(0, Math.min(1, time));
 		}
-		boundingSphere = new BoundingSphere(
-				Vec3D.scale(Vec3D.add(p1, p2), 0.5f),
-				(double) Math.sqrt(longestDistanceSquared) / 2);
+		double xdiff = offsetX - movementX * time;
+		double ydiff = offsetY - movementY * time;
+		double reach = boundingSphere.getRadius() + radius;
+		return xdiff * xdiff + ydiff * ydiff <= reach * reach;
+	}
+
+	/**
+	 * Finds all edges near a sphere which moved from start to center during
+	 * this time step, growing contacts.foundEdges if needed.
+	 * 
+	 * @return The number of edges found, which are in contacts.foundEdges.
+	 */
+	private int findEdges(Vec3D start, Vec3D center, double radius,
+			ContactBuffer contacts)
+	{
+		Vec3D boundingCenter = boundingSphere.getCenter();
+		double offsetX = treeOrigin.x - boundingCenter.x;
+		double offsetY = treeOrigin.y - boundingCenter.y;
+
+		// Resolving a contact pushes the sphere out by up to its radius, so
+		// also find the edges it may be pushed into.
+		double reach = radius * 2;
+		double minX = Math.min(start.x, center.x) - reach + offsetX;
+		double minY = Math.min(start.y, center.y) - reach + offsetY;
+		double maxX = Math.max(start.x, center.x) + reach + offsetX;
+		double maxY = Math.max(start.y, center.y) + reach + offsetY;
+		int numFound = edgeTree.queryRect(minX, minY, maxX, maxY,
+				contacts.foundEdges);
+		if (numFound > contacts.foundEdges.length)
+		{
+			contacts.foundEdges = new int[Integer.highestOneBit(numFound) * 2];
+			numFound = edgeTree.queryRect(minX, minY, maxX, maxY,
+					contacts.foundEdges);
+		}
+		return numFound;
 	}
 
 	/*
@@ -112,12 +226,13 @@ public class PolygonEntity extends PhysicalEntity
 	 */
 	@Override
 	public void resolveCollision(PhysicalEntity physicalEntity,
-			double elapsedTime) throws InteractionException
+			double elapsedTime, ContactBuffer contacts)
+			throws InteractionException
 	{
 		if (physicalEntity instanceof SphereEntity)
 		{
 			resolvePolygonSphereCollision(this, (SphereEntity) physicalEntity,
-					elapsedTime);
+					elapsedTime, contacts);
 		}
 	}
 
@@ -136,6 +251,81 @@ public class PolygonEntity extends PhysicalEntity
 		boundingSphere.move(tx, ty, tz);
 	}
 
+	@Override
+	public void calcBoundingRect(Rect boundingRect)
+	{
+		Vec3D center = boundingSphere.getCenter();
+		double radius = boundingSphere.getRadius();
+		boundingRect.x1 = center.x - radius;
+		boundingRect.y1 = center.y - radius;
+		boundingRect.width = radius * 2;
+		boundingRect.height = radius * 2;
+	}
+
+	@Override
+	public void calcPosition(Vec3D position)
+	{
+		position.set(boundingSphere.getCenter());
+	}
+
+	@Override
+	public void writeSnapshot(RenderSnapshot snapshot)
+	{
+		Vec3D center = boundingSphere.getCenter();
+		snapshot.addEntity(RenderSnapshot.POLYGON, getHandle(), center.x,
+				center.y, boundingSphere.getRadius());
+		for (Vec3D point : points)
+		{
+			snapshot.addPoint(point.x, point.y);
+		}
+	}
+
+	/**
+	 * Points are written, followed by the center of the bounding sphere, so
+	 * restoring moves the polygon exactly back.
+	 */
+	@Override
+	public int getCheckpointSize()
+	{
+		return super.getCheckpointSize() + (points.length + 1) * 3;
+	}
+
+	@Override
+	public void writeCheckpoint(double[] state, int offset)
+	{
+		super.writeCheckpoint(state, offset);
+		offset += super.getCheckpointSize();
+		for (Vec3D point : points)
+		{
+			state[offset] = point.x;
+			state[offset + 1] = point.y;
+			state[offset + 2] = point.z;
+			offset += 3;
+		}
+		Vec3D center = boundingSphere.getCenter();
+		state[offset] = center.x;
+		state[offset + 1] = center.y;
+		state[offset + 2] = center.z;
+	}
+
+	@Override
+	public void readCheckpoint(double[] state, int offset)
+	{
+		super.readCheckpoint(state, offset);
+		offset += super.getCheckpointSize();
+		for (Vec3D point : points)
+		{
+			point.x = state[offset];
+			point.y = state[offset + 1];
+			point.z = state[offset + 2];
+			offset += 3;
+		}
+		Vec3D center = boundingSphere.getCenter();
+		center.x = state[offset];
+		center.y = state[offset + 1];
+		center.z = state[offset + 2];
+	}
+
 	public final LineSegment[] getLineSegments()
 	{
 		return lineSegments;
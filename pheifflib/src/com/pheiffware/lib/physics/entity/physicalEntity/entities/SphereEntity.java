@@ -1,10 +1,14 @@
 package com.pheiffware.lib.physics.entity.physicalEntity.entities;
 
 import com.pheiffware.lib.geometry.Vec3D;
+import com.pheiffware.lib.geometry.intersect.IntersectCalc;
+import com.pheiffware.lib.geometry.shapes.LineSegment;
+import com.pheiffware.lib.geometry.shapes.Rect;
 import com.pheiffware.lib.geometry.shapes.Sphere;
+import com.pheiffware.lib.physics.ContactBuffer;
 import com.pheiffware.lib.physics.InteractionException;
+import com.pheiffware.lib.physics.RenderSnapshot;
 import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
-import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntityCollision;
 
 /**
  * Represents a spherical entity.
@@ -13,18 +17,29 @@ public class SphereEntity extends PhysicalEntity
 {
 	public final Sphere sphere;
 
+	// Where the center was at the start of the time step, when continuous
+	// collision detection is enabled (see beginSweep())
+	private final Vec3D sweepStart = new Vec3D(0, 0, 0);
+	private boolean sweepStarted = false;
+
 	public SphereEntity(final Vec3D center, final Vec3D velocity,
 			final double mass, final double coefficientOfRestitution,
 			final double radius)
 	{
-		super(velocity, mass, coefficientOfRestitution);
+		super(velocity, mass, coefficientOfRestitution, SHAPE_SPHERE);
 		sphere = new Sphere(center, radius);
 	}
 
-	// TODO: Optimize
 	public final static void resolveSphereSphereCollision(
-			final SphereEntity sphere1, final SphereEntity sphere2)
+			final SphereEntity sphere1, final SphereEntity sphere2,
+			final ContactBuffer contacts)
 	{
+		if ((sphere1.isSwept() || sphere2.isSwept())
+				&& resolveSweptSphereSphereCollision(sphere1, sphere2,
+						contacts))
+		{
+			return;
+		}
 		double xdiff = sphere2.sphere.center.x - sphere1.sphere.center.x;
 		double ydiff = sphere2.sphere.center.y - sphere1.sphere.center.y;
 		double zdiff = sphere2.sphere.center.z - sphere1.sphere.center.z;
@@ -36,11 +51,302 @@ public class SphereEntity extends PhysicalEntity
 		if (penetration > 0)
 		{
 			double invDistance = 1.0f / distance;
-			PhysicalEntityCollision collision = new PhysicalEntityCollision(
-					sphere1, sphere2, new Vec3D(xdiff * invDistance, ydiff
-							* invDistance, zdiff * invDistance), penetration);
-			collision.resolve();
+			Vec3D collisionNormal = contacts.normal;
+			collisionNormal.x = xdiff * invDistance;
+			collisionNormal.y = ydiff * invDistance;
+			collisionNormal.z = zdiff * invDistance;
+			contacts.addAndResolve(sphere1, sphere2, collisionNormal,
+					penetration);
+		}
+	}
+
+	/**
+	 * Continuous collision detection between 2 spheres, which may have passed
+	 * through each other this time step. If their sweeps touch, both are
+	 * moved back to the time of impact and the collision is resolved there.
+	 * 
+	 * @return true if there was an impact.
+	 */
+	private static boolean resolveSweptSphereSphereCollision(
+			final SphereEntity sphere1, final SphereEntity sphere2,
+			final ContactBuffer contacts)
+	{
+		sphere1.calcSweepMovement(contacts.movement1);
+		sphere2.calcSweepMovement(contacts.movement2);
+		double time = IntersectCalc.calcTimeOfImpact3D(sphere1.getSweepStart(),
+				contacts.movement1, sphere1.sphere.radius,
+				sphere2.getSweepStart(), contacts.movement2,
+				sphere2.sphere.radius);
+		if (time < 0)
+		{
+			return false;
+		}
+		sphere1.clampSweep(time);
+		sphere2.clampSweep(time);
+		Vec3D collisionNormal = contacts.normal;
+		collisionNormal.set(sphere2.sphere.center);
+		collisionNormal.subFrom(sphere1.sphere.center);
+		collisionNormal.scaleBy(1.0 / collisionNormal.magnitude());
+		contacts.addAndResolve(sphere1, sphere2, collisionNormal, 0);
+		return true;
+	}
+
+	/**
+	 * Records the current center as the start of this time step's sweep. The
+	 * physics system calls this before moving entities, when continuous
+	 * collision detection is enabled.
+	 */
+	public final void beginSweep()
+	{
+		sweepStart.set(sphere.center);
+		sweepStarted = true;
+	}
+
+	/**
+	 * Moves the start of this time step's sweep to the given position (ex:
+	 * where the sphere was before other spheres pushed it), so only the
+	 * movement since then is swept. Does nothing if there is no sweep.
+	 */
+	public final void restartSweep(final double x, final double y,
+			final double z)
+	{
+		if (sweepStarted)
+		{
+			sweepStart.x = x;
+			sweepStart.y = y;
+			sweepStart.z = z;
+		}
+	}
+
+	/**
+	 * Forgets the sweep once collisions have been resolved.
+	 */
+	public final void endSweep()
+	{
+		sweepStarted = false;
+	}
+
+	/**
+	 * Has the sphere moved further than its radius since beginSweep()? If
+	 * so, it may have passed through something which a test at its current
+	 * position would miss.
+	 * 
+	 * @return
+	 */
+	public final boolean isSwept()
+	{
+		if (!sweepStarted)
+		{
+			return false;
 		}
+		double xdiff = sphere.center.x - sweepStart.x;
+		double ydiff = sphere.center.y - sweepStart.y;
+		double zdiff = sphere.center.z - sweepStart.z;
+		return xdiff * xdiff + ydiff * ydiff + zdiff * zdiff > sphere.radius
+				* sphere.radius;
+	}
+
+	/**
+	 * Has the sphere moved at all since beginSweep()? Spheres which start a
+	 * time step touching a surface (ex: pushed into it by other spheres) can
+	 * pass through it with less movement than isSwept() requires, so surfaces
+	 * test any such sphere's sweep.
+	 * 
+	 * @return
+	 */
+	public final boolean hasMovedInSweep()
+	{
+		return sweepStarted
+				&& (sphere.center.x != sweepStart.x
+						|| sphere.center.y != sweepStart.y || sphere.center.z != sweepStart.z);
+	}
+
+	/**
+	 * Continuous collision detection against line segments belonging to
+	 * another entity. If this sphere's sweep hits any of them, it is moved
+	 * back to the earliest time of impact and the collision is resolved
+	 * there. Line segments which the sphere already touched at the start of
+	 * the sweep, and is moving toward, are hit at the start.
+	 * 
+	 * @param physicalEntity
+	 *            the owner of the line segments
+	 * @param lineSegments
+	 * @param contacts
+	 * @return true if there was an impact.
+	 */
+	public final boolean resolveSweptCollision(
+			PhysicalEntity physicalEntity, LineSegment[] lineSegments,
+			ContactBuffer contacts)
+	{
+		Vec3D movement = contacts.movement1;
+		Vec3D normal = contacts.normal;
+		Vec3D collisionNormal = contacts.impactNormal;
+		calcSweepMovement(movement);
+		double timeOfImpact = -1;
+		for (LineSegment lineSegment : lineSegments)
+		{
+			double time = IntersectCalc.calcTimeOfImpact2D(lineSegment,
+					getSweepStart(), movement, sphere.radius, normal);
+			if (time >= 0 && (timeOfImpact < 0 || time < timeOfImpact))
+			{
+				timeOfImpact = time;
+				collisionNormal.set(normal);
+			}
+		}
+		return resolveSweptCollision(physicalEntity, timeOfImpact,
+				collisionNormal, contacts);
+	}
+
+	/**
+	 * Continuous collision detection against some of the line segments
+	 * belonging to another entity (see resolveSweptCollision(PhysicalEntity,
+	 * LineSegment[], ContactBuffer)).
+	 * 
+	 * @param physicalEntity
+	 *            the owner of the line segments
+	 * @param lineSegments
+	 * @param indices
+	 *            the indices, in lineSegments, of the line segments to test.
+	 *            Ties go to the earliest index here.
+	 * @param numIndices
+	 * @param contacts
+	 * @return true if there was an impact.
+	 */
+	public final boolean resolveSweptCollision(
+			PhysicalEntity physicalEntity, LineSegment[] lineSegments,
+			int[] indices, int numIndices, ContactBuffer contacts)
+	{
+		Vec3D movement = contacts.movement1;
+		Vec3D normal = contacts.normal;
+		Vec3D collisionNormal = contacts.impactNormal;
+		calcSweepMovement(movement);
+		double timeOfImpact = -1;
+		for (int i = 0; i < numIndices; i++)
+		{
+			double time = IntersectCalc.calcTimeOfImpact2D(
+					lineSegments[indices[i]], getSweepStart(), movement,
+					sphere.radius, normal);
+			if (time >= 0 && (timeOfImpact < 0 || time < timeOfImpact))
+			{
+				timeOfImpact = time;
+				collisionNormal.set(normal);
+			}
+		}
+		return resolveSweptCollision(physicalEntity, timeOfImpact,
+				collisionNormal, contacts);
+	}
+
+	/**
+	 * Continuous collision detection against a single line segment (see
+	 * resolveSweptCollision(PhysicalEntity, LineSegment[], ContactBuffer)).
+	 * 
+	 * @param physicalEntity
+	 *            the owner of the line segment
+	 * @param lineSegment
+	 * @param contacts
+	 * @return true if there was an impact.
+	 */
+	public final boolean resolveSweptCollision(
+			PhysicalEntity physicalEntity, LineSegment lineSegment,
+			ContactBuffer contacts)
+	{
+		calcSweepMovement(contacts.movement1);
+		double timeOfImpact = IntersectCalc.calcTimeOfImpact2D(lineSegment,
+				getSweepStart(), contacts.movement1, sphere.radius,
+				contacts.impactNormal);
+		return resolveSweptCollision(physicalEntity, timeOfImpact,
+				contacts.impactNormal, contacts);
+	}
+
+	/**
+	 * Moves the sphere back to the given time of impact (from a swept test)
+	 * and resolves a collision with the given entity there.
+	 * 
+	 * @param physicalEntity
+	 * @param timeOfImpact
+	 *            -1 if there was no impact.
+	 * @param collisionNormal
+	 *            facing toward this sphere
+	 * @param contacts
+	 * @return true if there was an impact.
+	 */
+	public final boolean resolveSweptCollision(
+			PhysicalEntity physicalEntity, double timeOfImpact,
+			Vec3D collisionNormal, ContactBuffer contacts)
+	{
+		if (timeOfImpact < 0)
+		{
+			return false;
+		}
+		if (timeOfImpact == 0)
+		{
+			// Touching from the start (ex: resting on a floor), so keep any
+			// movement along the surface
+			slideSweep(collisionNormal);
+		}
+		else
+		{
+			clampSweep(timeOfImpact);
+		}
+		contacts.addAndResolve(physicalEntity, this, collisionNormal, 0);
+		return true;
+	}
+
+	/**
+	 * Removes the part of this time step's sweep which moves into a surface
+	 * with the given normal.
+	 */
+	private void slideSweep(Vec3D normal)
+	{
+		if (sweepStarted)
+		{
+			Vec3D center = sphere.center;
+			double into = (center.x - sweepStart.x) * normal.x
+					+ (center.y - sweepStart.y) * normal.y
+					+ (center.z - sweepStart.z) * normal.z;
+			if (into < 0)
+			{
+				center.subFromScaledVector(normal, into);
+			}
+		}
+	}
+
+	/**
+	 * Moves the sphere back along this time step's sweep.
+	 * 
+	 * @param time
+	 *            0 is the start of the sweep and 1 is the current position.
+	 */
+	private void clampSweep(double time)
+	{
+		if (sweepStarted)
+		{
+			Vec3D center = sphere.center;
+			center.x = sweepStart.x + (center.x - sweepStart.x) * time;
+			center.y = sweepStart.y + (center.y - sweepStart.y) * time;
+			center.z = sweepStart.z + (center.z - sweepStart.z) * time;
+		}
+	}
+
+	/**
+	 * @return where the sweep started, or the current center if there is no
+	 *         sweep.
+	 */
+	public final Vec3D getSweepStart()
+	{
+		return sweepStarted ? sweepStart : sphere.center;
+	}
+
+	/**
+	 * Calculates how far the sphere has moved since the start of the sweep.
+	 * 
+	 * @param movement
+	 *            filled in with the result
+	 */
+	public final void calcSweepMovement(Vec3D movement)
+	{
+		movement.set(sphere.center);
+		movement.subFrom(getSweepStart());
 	}
 
 	public void move(final double tx, final double ty, final double tz)
@@ -48,31 +354,108 @@ public class SphereEntity extends PhysicalEntity
 		sphere.center.addTo(tx, ty, tz);
 	}
 
+	/**
+	 * Places the sphere at the given position (ex: when reusing a pooled
+	 * entity).
+	 */
+	public final void setCenter(final double x, final double y, final double z)
+	{
+		sphere.center.x = x;
+		sphere.center.y = y;
+		sphere.center.z = z;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see com.pheiffware.sphereadventure.engine.physics.entity.physicalEntity.
 	 * PhysicalEntity
 	 * #resolveCollision(com.pheiffware.sphereadventure.engine.physics
-	 * .entity.physicalEntity.PhysicalEntity, double)
+	 * .entity.physicalEntity.PhysicalEntity, double, ContactBuffer)
 	 */
 	@Override
 	public void resolveCollision(PhysicalEntity physicalEntity,
-			double elapsedTime) throws InteractionException
+			double elapsedTime, ContactBuffer contacts)
+			throws InteractionException
 	{
 		// physicalEntity.resolveCollision(this, elapsedTime);
 		if (physicalEntity instanceof SphereEntity)
 		{
 			SphereEntity.resolveSphereSphereCollision(this,
-					(SphereEntity) physicalEntity);
+					(SphereEntity) physicalEntity, contacts);
 		}
 		else if (physicalEntity instanceof LineSegmentElevatorEntity)
 		{
 			LineSegmentEntity.resolveLineSphereCollision(
-					(LineSegmentEntity) physicalEntity, this, elapsedTime);
+					(LineSegmentEntity) physicalEntity, this, elapsedTime,
+					contacts);
 		}
 	}
 
+	@Override
+	public void calcBoundingRect(Rect boundingRect)
+	{
+		boundingRect.x1 = sphere.center.x - sphere.radius;
+		boundingRect.y1 = sphere.center.y - sphere.radius;
+		boundingRect.width = sphere.radius * 2;
+		boundingRect.height = sphere.radius * 2;
+		if (isSwept())
+		{
+			// Cover the whole sweep, so anything it passed through is found
+			double minX = Math.min(boundingRect.x1, sweepStart.x - sphere.radius);
+			double minY = Math.min(boundingRect.y1, sweepStart.y - sphere.radius);
+			boundingRect.width = Math.max(sphere.center.x, sweepStart.x)
+					+ sphere.radius - minX;
+			boundingRect.height = Math.max(sphere.center.y, sweepStart.y)
+					+ sphere.radius - minY;
+			boundingRect.x1 = minX;
+			boundingRect.y1 = minY;
+		}
+	}
+
+	@Override
+	public void calcPosition(Vec3D position)
+	{
+		position.set(sphere.center);
+	}
+
+	@Override
+	public void writeSnapshot(RenderSnapshot snapshot)
+	{
+		snapshot.addEntity(RenderSnapshot.SPHERE, getHandle(), sphere.center.x,
+				sphere.center.y, sphere.radius);
+	}
+
+	@Override
+	public int getCheckpointSize()
+	{
+		return super.getCheckpointSize() + 3;
+	}
+
+	@Override
+	public void writeCheckpoint(double[] state, int offset)
+	{
+		super.writeCheckpoint(state, offset);
+		offset += super.getCheckpointSize();
+		state[offset] = sphere.center.x;
+		state[offset + 1] = sphere.center.y;
+		state[offset + 2] = sphere.center.z;
+	}
+
+	@Override
+	public void readCheckpoint(double[] state, int offset)
+	{
+		super.readCheckpoint(state, offset);
+		offset += super.getCheckpointSize();
+		setCenter(state[offset], state[offset + 1], state[offset + 2]);
+	}
+
+	@Override
+	public double getCollisionSize()
+	{
+		return sphere.radius;
+	}
+
 	public final double getRadius()
 	{
 		return sphere.radius;
@@ -0,0 +1,77 @@
+package com.pheiffware.lib.physics.replication;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of direct ByteBuffers, so messages can be encoded and handed to channels every tick without allocating (or
+ * having the channel copy heap buffers into direct memory). Buffers may be acquired and released on different threads
+ * (ex: encoded on the simulation thread and released by a network thread once sent).
+ */
+public class DirectBufferPool
+{
+	private final ByteBuffer[] buffers;
+	private int numBuffers = 0;
+	private final int initialCapacity;
+
+	/**
+	 * @param maxPooled
+	 *            the most buffers held for reuse. Buffers released beyond this are left to the garbage collector.
+	 * @param initialCapacity
+	 *            the smallest capacity buffers are allocated with
+	 */
+	public DirectBufferPool(int maxPooled, int initialCapacity)
+	{
+		if (maxPooled < 0 || initialCapacity < 1)
+		{
+			throw new IllegalArgumentException("Invalid pool size: " + maxPooled + ", " + initialCapacity);
+		}
+		buffers = new ByteBuffer[maxPooled];
+		this.initialCapacity = initialCapacity;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, or allocates one if the pool is empty. A pooled buffer which is too small is
+	 * discarded and replaced with a larger one.
+	 *
+	 * @param minCapacity
+	 * @return
+	 */
+	public ByteBuffer acquire(int minCapacity)
+	{
+		ByteBuffer buffer = null;
+		synchronized (this)
+		{
+			if (numBuffers > 0)
+			{
+				numBuffers--;
+				buffer = buffers[numBuffers];
+				buffers[numBuffers] = null;
+			}
+		}
+		if (buffer == null || buffer.capacity() < minCapacity)
+		{
+			int capacity = initialCapacity;
+			if (buffer != null)
+			{
+				capacity = Math.max(capacity, buffer.capacity() * 2);
+			}
+			buffer = ByteBuffer.allocateDirect(Math.max(capacity, minCapacity));
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. It must not be used afterwards.
+	 *
+	 * @param buffer
+	 */
+	public synchronized void release(ByteBuffer buffer)
+	{
+		if (numBuffers < buffers.length)
+		{
+			buffers[numBuffers] = buffer;
+			numBuffers++;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package com.pheiffware.lib.physics.replication;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Rebuilds the frames encoded by a viewer's ReplicationEncoder (see there for the message format). After decoding a
+ * frame, the viewer should send its sequence back to the server, which passes it to ReplicationEncoder.acknowledge(),
+ * so later messages can be deltas against it.
+ */
+public class ReplicationDecoder
+{
+	// Frames decoded recently, frame s in history[s % history.length]
+	private final ReplicationFrame[] history;
+	private int latestSequence = -1;
+
+	// Removed handles, and changed handles and deltas, of the message being decoded
+	private int[] removedHandles = new int[16];
+	private int[] changedHandles = new int[16];
+	private int[] changedDeltas = new int[64];
+
+	// Entities added by the message being decoded
+	private final ReplicationFrame added = new ReplicationFrame(1, 1);
+
+	/**
+	 * @param historySize
+	 *            the number of frames remembered as possible baselines. Must be at least the encoder's history size.
+	 */
+	public ReplicationDecoder(int historySize)
+	{
+		if (historySize < 1)
+		{
+			throw new IllegalArgumentException("Invalid history size: " + historySize);
+		}
+		history = new ReplicationFrame[historySize];
+	}
+
+	/**
+	 * Reads the length of the message at the start of the buffer, without consuming anything (ex: to frame messages
+	 * read from a stream).
+	 *
+	 * @param buffer
+	 * @return the length in bytes, or -1 if fewer than 4 bytes are available.
+	 */
+	public static int peekLength(ByteBuffer buffer)
+	{
+		if (buffer.remaining() < 4)
+		{
+			return -1;
+		}
+		return buffer.getInt(buffer.position() + ReplicationEncoder.LENGTH_OFFSET);
+	}
+
+	/**
+	 * Decodes a message, consuming it from the buffer.
+	 *
+	 * @param buffer
+	 *            holding a whole message from its position
+	 * @return the decoded frame, which remains valid until historySize more frames have been decoded, or null if the
+	 *         message is older than the latest frame decoded (ex: it arrived out of order).
+	 */
+	public ReplicationFrame decode(ByteBuffer buffer)
+	{
+		int start = buffer.position();
+		int length = buffer.getInt();
+		int end = start + length;
+		int sequence = buffer.getInt();
+		int baselineSequence = buffer.getInt();
+		double time = buffer.getDouble();
+		double positionPrecision = buffer.getDouble();
+		double velocityPrecision = buffer.getDouble();
+		int numRemoved = buffer.getInt();
+		int numAdded = buffer.getInt();
+		int numChanged = buffer.getInt();
+		if (sequence <= latestSequence)
+		{
+			buffer.position(end);
+			return null;
+		}
+
+		ReplicationFrame baseline = null;
+		if (baselineSequence >= 0)
+		{
+			baseline = history[baselineSequence % history.length];
+			if (baseline == null || baseline.sequence != baselineSequence)
+			{
+				throw new IllegalStateException("Baseline " + baselineSequence + " is no longer remembered (history is too small)");
+			}
+		}
+
+		// Read the 3 lists
+		if (removedHandles.length < numRemoved)
+		{
+			removedHandles = new int[Math.max(numRemoved, removedHandles.length * 2)];
+		}
+		int handle = 0;
+		for (int i = 0; i < numRemoved; i++)
+		{
+			handle += readVarint(buffer);
+			removedHandles[i] = handle;
+		}
+
+		added.setPrecision(positionPrecision, velocityPrecision);
+		added.clear();
+		handle = 0;
+		for (int i = 0; i < numAdded; i++)
+		{
+			handle += readVarint(buffer);
+			int type = buffer.get();
+			int entry = added.addEntity(handle, type, unZigZag(readVarint(buffer)));
+			int numPoints = readVarint(buffer);
+			for (int point = 0; point < numPoints; point++)
+			{
+				int x = unZigZag(readVarint(buffer));
+				added.addPoint(x, unZigZag(readVarint(buffer)));
+			}
+			for (int component = 0; component < 4; component++)
+			{
+				added.motion[entry * 4 + component] = unZigZag(readVarint(buffer));
+			}
+		}
+
+		if (changedHandles.length < numChanged)
+		{
+			changedHandles = new int[Math.max(numChanged, changedHandles.length * 2)];
+			changedDeltas = new int[changedHandles.length * 4];
+		}
+		handle = 0;
+		for (int i = 0; i < numChanged; i++)
+		{
+			handle += readVarint(buffer);
+			changedHandles[i] = handle;
+			int mask = buffer.get();
+			for (int component = 0; component < 4; component++)
+			{
+				changedDeltas[i * 4 + component] = (mask & (1 << component)) != 0 ? unZigZag(readVarint(buffer)) : 0;
+			}
+		}
+		if (buffer.position() != end)
+		{
+			throw new IllegalArgumentException("Corrupt replication message");
+		}
+
+		// Merge the baseline, minus removed and re-added entities, with the added entities, in handle order
+		int slot = sequence % history.length;
+		if (history[slot] == null)
+		{
+			history[slot] = new ReplicationFrame(positionPrecision, velocityPrecision);
+		}
+		ReplicationFrame frame = history[slot];
+		frame.setPrecision(positionPrecision, velocityPrecision);
+		frame.clear();
+		frame.sequence = sequence;
+		frame.time = time;
+		int numBaselineEntities = baseline == null ? 0 : baseline.numEntities;
+		int removed = 0;
+		int changed = 0;
+		int a = 0;
+		for (int b = 0; b <= numBaselineEntities; b++)
+		{
+			int baselineHandle = b < numBaselineEntities ? baseline.handles[b] : Integer.MAX_VALUE;
+			while (a < numAdded && added.handles[a] <= baselineHandle)
+			{
+				frame.addEntity(added, a);
+				a++;
+			}
+			if (b == numBaselineEntities)
+			{
+				break;
+			}
+			while (removed < numRemoved && removedHandles[removed] < baselineHandle)
+			{
+				removed++;
+			}
+			if (removed < numRemoved && removedHandles[removed] == baselineHandle)
+			{
+				continue;
+			}
+			if (a > 0 && added.handles[a - 1] == baselineHandle)
+			{
+				// Re-added with a new shape
+				continue;
+			}
+			int entry = frame.addEntity(baseline, b);
+			while (changed < numChanged && changedHandles[changed] < baselineHandle)
+			{
+				changed++;
+			}
+			if (changed < numChanged && changedHandles[changed] == baselineHandle)
+			{
+				for (int component = 0; component < 4; component++)
+				{
+					frame.motion[entry * 4 + component] += changedDeltas[changed * 4 + component];
+				}
+			}
+		}
+		latestSequence = sequence;
+		return frame;
+	}
+
+	/**
+	 * @return the sequence of the latest frame decoded, or -1.
+	 */
+	public final int getLatestSequence()
+	{
+		return latestSequence;
+	}
+
+	/**
+	 * Forgets all frames (ex: when reconnecting to a new encoder).
+	 */
+	public void reset()
+	{
+		Arrays.fill(history, null);
+		latestSequence = -1;
+	}
+
+	static int unZigZag(int value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static int readVarint(ByteBuffer buffer)
+	{
+		int value = 0;
+		for (int shift = 0;; shift += 7)
+		{
+			int b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package com.pheiffware.lib.physics.replication;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes frames for one viewer, sending only what changed since the last frame the viewer acknowledged (the
+ * baseline). Until the viewer acknowledges a frame, or if its last acknowledgement is too old, the whole frame is
+ * sent. Since deltas are always against a frame the viewer is known to have, lost or late messages never corrupt its
+ * state.
+ *
+ * Each message is (see ReplicationDecoder):
+ *
+ * length (int, including itself), sequence (int), baseline sequence (int, -1 for none), time (double), position and
+ * velocity precision (doubles), numbers of removed, added and changed entities (ints)
+ *
+ * then removed entities: handle
+ *
+ * then added entities (new, or whose shape changed): handle, type, radius, number of points, each point's x and y,
+ * x, y, vx, vy
+ *
+ * then changed entities: handle, a mask of which of x, y, vx and vy changed, and the change in each of them.
+ *
+ * Each list is sorted by handle. Handles are sent as the gap from the previous handle in the list, and all other values
+ * as zig-zag variable length ints, so small changes take a byte.
+ */
+public class ReplicationEncoder
+{
+	public static final int DEFAULT_HISTORY_SIZE = 32;
+
+	static final int HEADER_SIZE = 48;
+
+	// Offsets of the header fields which are filled in once the message has been written
+	static final int LENGTH_OFFSET = 0;
+	static final int COUNTS_OFFSET = 36;
+
+	// The most bytes a variable length int takes
+	static final int MAX_VARINT_SIZE = 5;
+
+	// Frames sent recently, frame s in history[s % history.length]
+	private final ReplicationFrame[] history;
+	private int nextSequence = 0;
+
+	// The latest sequence acknowledged by the viewer, or -1
+	private final AtomicInteger acknowledged = new AtomicInteger(-1);
+
+	private final DirectBufferPool bufferPool;
+
+	/**
+	 * @param historySize
+	 *            the number of frames remembered as possible baselines. The viewer's decoder must remember at least
+	 *            as many.
+	 * @param bufferPool
+	 *            messages are encoded into buffers from this pool, which may be shared by all encoders.
+	 */
+	public ReplicationEncoder(int historySize, DirectBufferPool bufferPool)
+	{
+		if (historySize < 1)
+		{
+			throw new IllegalArgumentException("Invalid history size: " + historySize);
+		}
+		history = new ReplicationFrame[historySize];
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Records that the viewer has decoded the given frame, so it can be used as a baseline. May be called from any
+	 * thread (ex: the thread reading acknowledgements from the viewer's socket). Older acknowledgements are ignored.
+	 *
+	 * @param sequence
+	 */
+	public void acknowledge(int sequence)
+	{
+		int current;
+		do
+		{
+			current = acknowledged.get();
+			if (sequence <= current)
+			{
+				return;
+			}
+		} while (!acknowledged.compareAndSet(current, sequence));
+	}
+
+	/**
+	 * Encodes a frame into a buffer from the pool, ready to be written to a channel. The frame is copied, so it may be
+	 * refilled and passed to other encoders. Once the buffer has been sent, it should be released (see release()).
+	 *
+	 * @param frame
+	 * @return a buffer holding one message, from position to limit.
+	 */
+	public ByteBuffer encode(ReplicationFrame frame)
+	{
+		int sequence = nextSequence;
+		nextSequence++;
+		int slot = sequence % history.length;
+		if (history[slot] == null)
+		{
+			history[slot] = new ReplicationFrame(frame.getPositionPrecision(), frame.getVelocityPrecision());
+		}
+		ReplicationFrame current = history[slot];
+		current.copyFrom(frame);
+		current.sequence = sequence;
+
+		ReplicationFrame baseline = findBaseline(sequence);
+		int numBaselineEntities = baseline == null ? 0 : baseline.numEntities;
+		int maxSize = HEADER_SIZE + numBaselineEntities * MAX_VARINT_SIZE + current.numEntities * (MAX_VARINT_SIZE * 9 + 1)
+				+ current.numPoints * MAX_VARINT_SIZE * 2;
+		ByteBuffer buffer = bufferPool.acquire(maxSize);
+
+		buffer.putInt(0);
+		buffer.putInt(sequence);
+		buffer.putInt(baseline == null ? -1 : baseline.sequence);
+		buffer.putDouble(current.time);
+		buffer.putDouble(current.getPositionPrecision());
+		buffer.putDouble(current.getVelocityPrecision());
+		buffer.putInt(0);
+		buffer.putInt(0);
+		buffer.putInt(0);
+
+		int numRemoved = 0;
+		int numAdded = 0;
+		int numChanged = 0;
+		if (baseline == null)
+		{
+			numAdded = writeAdded(current, null, buffer);
+		}
+		else
+		{
+			numRemoved = writeRemoved(current, baseline, buffer);
+			numAdded = writeAdded(current, baseline, buffer);
+			numChanged = writeChanged(current, baseline, buffer);
+		}
+		buffer.putInt(LENGTH_OFFSET, buffer.position());
+		buffer.putInt(COUNTS_OFFSET, numRemoved);
+		buffer.putInt(COUNTS_OFFSET + 4, numAdded);
+		buffer.putInt(COUNTS_OFFSET + 8, numChanged);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @return the latest acknowledged frame, or null if there is none or it is no longer remembered.
+	 */
+	private ReplicationFrame findBaseline(int sequence)
+	{
+		int baselineSequence = acknowledged.get();
+		if (baselineSequence < 0 || baselineSequence >= sequence || baselineSequence <= sequence - history.length)
+		{
+			return null;
+		}
+		ReplicationFrame baseline = history[baselineSequence % history.length];
+		return baseline.sequence == baselineSequence ? baseline : null;
+	}
+
+	/**
+	 * Writes the handles of baseline entities which are not in the current frame.
+	 */
+	private static int writeRemoved(ReplicationFrame current, ReplicationFrame baseline, ByteBuffer buffer)
+	{
+		int numRemoved = 0;
+		int previousHandle = 0;
+		int i = 0;
+		for (int j = 0; j < baseline.numEntities; j++)
+		{
+			int handle = baseline.handles[j];
+			while (i < current.numEntities && current.handles[i] < handle)
+			{
+				i++;
+			}
+			if (i == current.numEntities || current.handles[i] != handle)
+			{
+				writeVarint(buffer, handle - previousHandle);
+				previousHandle = handle;
+				numRemoved++;
+			}
+		}
+		return numRemoved;
+	}
+
+	/**
+	 * Writes every current entity which is not in the baseline, or whose shape has changed.
+	 */
+	private static int writeAdded(ReplicationFrame current, ReplicationFrame baseline, ByteBuffer buffer)
+	{
+		int numAdded = 0;
+		int previousHandle = 0;
+		int j = 0;
+		for (int i = 0; i < current.numEntities; i++)
+		{
+			int handle = current.handles[i];
+			if (baseline != null)
+			{
+				while (j < baseline.numEntities && baseline.handles[j] < handle)
+				{
+					j++;
+				}
+				if (j < baseline.numEntities && baseline.handles[j] == handle && current.isSameShape(i, baseline, j))
+				{
+					continue;
+				}
+			}
+			writeVarint(buffer, handle - previousHandle);
+			previousHandle = handle;
+			buffer.put((byte) current.types[i]);
+			writeVarint(buffer, zigZag(current.radii[i]));
+			int pointStart = current.pointStart[i];
+			int pointEnd = current.pointStart[i + 1];
+			writeVarint(buffer, pointEnd - pointStart);
+			for (int point = pointStart; point < pointEnd; point++)
+			{
+				writeVarint(buffer, zigZag(current.pointX[point]));
+				writeVarint(buffer, zigZag(current.pointY[point]));
+			}
+			for (int component = 0; component < 4; component++)
+			{
+				writeVarint(buffer, zigZag(current.motion[i * 4 + component]));
+			}
+			numAdded++;
+		}
+		return numAdded;
+	}
+
+	/**
+	 * Writes the changes in motion of entities which are in both frames with the same shape.
+	 */
+	private static int writeChanged(ReplicationFrame current, ReplicationFrame baseline, ByteBuffer buffer)
+	{
+		int numChanged = 0;
+		int previousHandle = 0;
+		int j = 0;
+		for (int i = 0; i < current.numEntities; i++)
+		{
+			int handle = current.handles[i];
+			while (j < baseline.numEntities && baseline.handles[j] < handle)
+			{
+				j++;
+			}
+			if (j == baseline.numEntities || baseline.handles[j] != handle || !current.isSameShape(i, baseline, j))
+			{
+				continue;
+			}
+			int mask = 0;
+			for (int component = 0; component < 4; component++)
+			{
+				if (current.motion[i * 4 + component] != baseline.motion[j * 4 + component])
+				{
+					mask |= 1 << component;
+				}
+			}
+			if (mask == 0)
+			{
+				continue;
+			}
+			writeVarint(buffer, handle - previousHandle);
+			previousHandle = handle;
+			buffer.put((byte) mask);
+			for (int component = 0; component < 4; component++)
+			{
+				if ((mask & (1 << component)) != 0)
+				{
+					writeVarint(buffer, zigZag(current.motion[i * 4 + component] - baseline.motion[j * 4 + component]));
+				}
+			}
+			numChanged++;
+		}
+		return numChanged;
+	}
+
+	/**
+	 * Returns a buffer from encode() to the pool, once it has been sent. May be called from any thread.
+	 *
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		bufferPool.release(buffer);
+	}
+
+	/**
+	 * @return the sequence the next encoded frame will have.
+	 */
+	public final int getNextSequence()
+	{
+		return nextSequence;
+	}
+
+	/**
+	 * Maps small negative and positive ints to small unsigned ones.
+	 */
+	static int zigZag(int value)
+	{
+		return (value << 1) ^ (value >> 31);
+	}
+
+	/**
+	 * Writes an int, treated as unsigned, 7 bits per byte, with the top bit of each byte set if more follow.
+	 */
+	static void writeVarint(ByteBuffer buffer, int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+}
@@ -0,0 +1,346 @@
+package com.pheiffware.lib.physics.replication;
+
+import java.util.Arrays;
+
+import com.pheiffware.lib.physics.PhysicsSystem;
+import com.pheiffware.lib.physics.RenderSnapshot;
+import com.pheiffware.lib.physics.entity.Entity;
+import com.pheiffware.lib.physics.entity.physicalEntity.PhysicalEntity;
+
+/**
+ * The state of every entity of a PhysicsSystem at one tick, quantized for replication. Positions, radii and points
+ * are multiples of positionPrecision and velocities are multiples of velocityPrecision, all held as ints. Entities are
+ * sorted by handle, so 2 frames can be compared in a single pass. Points are held relative to their entity's position,
+ * so they do not change as it moves.
+ *
+ * On the server, a frame is captured once per tick and passed to every viewer's ReplicationEncoder. On a viewer, frames
+ * come from a ReplicationDecoder. Frames are reused, so once their arrays have grown large enough, filling them
+ * allocates nothing.
+ */
+public class ReplicationFrame
+{
+	private static final int INITIAL_CAPACITY = 64;
+
+	private double positionPrecision;
+	private double velocityPrecision;
+
+	// Numbers frames sent to the same viewer, or -1 if not sent
+	int sequence = -1;
+	double time;
+
+	int numEntities = 0;
+	int[] handles = new int[INITIAL_CAPACITY];
+	int[] types = new int[INITIAL_CAPACITY];
+	int[] radii = new int[INITIAL_CAPACITY];
+
+	// Position and velocity components, as x, y, vx, vy for each entity
+	int[] motion = new int[INITIAL_CAPACITY * 4];
+
+	// Entity i's points are [pointStart[i], pointStart[i + 1])
+	int[] pointStart = new int[INITIAL_CAPACITY + 1];
+	int numPoints = 0;
+	int[] pointX = new int[INITIAL_CAPACITY];
+	int[] pointY = new int[INITIAL_CAPACITY];
+
+	// Scratch space for capture(): the snapshot, and handles paired with snapshot indices for sorting
+	private RenderSnapshot snapshot;
+	private long[] order;
+
+	/**
+	 * @param positionPrecision
+	 *            ex: 1/64 sends positions to the nearest 64th of a unit.
+	 * @param velocityPrecision
+	 */
+	public ReplicationFrame(double positionPrecision, double velocityPrecision)
+	{
+		if (!(positionPrecision > 0) || !(velocityPrecision > 0))
+		{
+			throw new IllegalArgumentException("Invalid precision: " + positionPrecision + ", " + velocityPrecision);
+		}
+		this.positionPrecision = positionPrecision;
+		this.velocityPrecision = velocityPrecision;
+	}
+
+	/**
+	 * Fills the frame with the current state of the given system. Must be called between time steps.
+	 *
+	 * @param physicsSystem
+	 */
+	public void capture(PhysicsSystem physicsSystem)
+	{
+		if (snapshot == null)
+		{
+			snapshot = new RenderSnapshot();
+		}
+		physicsSystem.writeSnapshot(snapshot);
+		int numSnapshotEntities = snapshot.getNumEntities();
+		if (order == null || order.length < numSnapshotEntities)
+		{
+			order = new long[Math.max(INITIAL_CAPACITY, numSnapshotEntities * 2)];
+		}
+		for (int i = 0; i < numSnapshotEntities; i++)
+		{
+			// Handles are never negative
+			order[i] = ((long) snapshot.handle[i] << 32) | i;
+		}
+		Arrays.sort(order, 0, numSnapshotEntities);
+
+		clear();
+		sequence = -1;
+		time = snapshot.time;
+		double inversePositionPrecision = 1.0 / positionPrecision;
+		double inverseVelocityPrecision = 1.0 / velocityPrecision;
+		for (int i = 0; i < numSnapshotEntities; i++)
+		{
+			int index = (int) order[i];
+			int handle = snapshot.handle[index];
+			double x = snapshot.x[index];
+			double y = snapshot.y[index];
+			double vx = 0;
+			double vy = 0;
+			Entity entity = physicsSystem.getEntity(handle);
+			if (entity instanceof PhysicalEntity)
+			{
+				vx = ((PhysicalEntity) entity).velocity.x;
+				vy = ((PhysicalEntity) entity).velocity.y;
+			}
+			int entry = addEntity(handle, snapshot.type[index], quantize(snapshot.radius[index], inversePositionPrecision));
+			motion[entry * 4] = quantize(x, inversePositionPrecision);
+			motion[entry * 4 + 1] = quantize(y, inversePositionPrecision);
+			motion[entry * 4 + 2] = quantize(vx, inverseVelocityPrecision);
+			motion[entry * 4 + 3] = quantize(vy, inverseVelocityPrecision);
+			int pointEnd = snapshot.getPointEnd(index);
+			for (int point = snapshot.getPointStart(index); point < pointEnd; point++)
+			{
+				addPoint(quantize(snapshot.pointX[point] - x, inversePositionPrecision),
+						quantize(snapshot.pointY[point] - y, inversePositionPrecision));
+			}
+		}
+	}
+
+	/**
+	 * Rounds value / precision to the nearest int, clamped to the range of an int.
+	 */
+	private static int quantize(double value, double inversePrecision)
+	{
+		long quantized = Math.round(value * inversePrecision);
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, quantized));
+	}
+
+	final void clear()
+	{
+		numEntities = 0;
+		numPoints = 0;
+		pointStart[0] = 0;
+	}
+
+	/**
+	 * Adds an entity, with no points, after those already added. Its motion must be filled in.
+	 *
+	 * @return the index of the entity
+	 */
+	final int addEntity(int handle, int type, int radius)
+	{
+		if (numEntities == handles.length)
+		{
+			int capacity = numEntities * 2;
+			handles = Arrays.copyOf(handles, capacity);
+			types = Arrays.copyOf(types, capacity);
+			radii = Arrays.copyOf(radii, capacity);
+			motion = Arrays.copyOf(motion, capacity * 4);
+			pointStart = Arrays.copyOf(pointStart, capacity + 1);
+		}
+		handles[numEntities] = handle;
+		types[numEntities] = type;
+		radii[numEntities] = radius;
+		numEntities++;
+		pointStart[numEntities] = numPoints;
+		return numEntities - 1;
+	}
+
+	/**
+	 * Adds a point to the last entity added.
+	 */
+	final void addPoint(int x, int y)
+	{
+		if (numPoints == pointX.length)
+		{
+			pointX = Arrays.copyOf(pointX, numPoints * 2);
+			pointY = Arrays.copyOf(pointY, numPoints * 2);
+		}
+		pointX[numPoints] = x;
+		pointY[numPoints] = y;
+		numPoints++;
+		pointStart[numEntities] = numPoints;
+	}
+
+	/**
+	 * Adds a copy of entity i of the given frame, including its points.
+	 *
+	 * @return the index of the entity
+	 */
+	final int addEntity(ReplicationFrame frame, int i)
+	{
+		int entry = addEntity(frame.handles[i], frame.types[i], frame.radii[i]);
+		System.arraycopy(frame.motion, i * 4, motion, entry * 4, 4);
+		for (int point = frame.pointStart[i]; point < frame.pointStart[i + 1]; point++)
+		{
+			addPoint(frame.pointX[point], frame.pointY[point]);
+		}
+		return entry;
+	}
+
+	/**
+	 * Makes this an exact copy of the given frame.
+	 *
+	 * @param frame
+	 */
+	public final void copyFrom(ReplicationFrame frame)
+	{
+		positionPrecision = frame.positionPrecision;
+		velocityPrecision = frame.velocityPrecision;
+		sequence = frame.sequence;
+		time = frame.time;
+		clear();
+		for (int i = 0; i < frame.numEntities; i++)
+		{
+			addEntity(frame, i);
+		}
+	}
+
+	/**
+	 * Is the shape (type, radius and points) of entity i of this frame the same as entity j of the given frame?
+	 */
+	final boolean isSameShape(int i, ReplicationFrame frame, int j)
+	{
+		if (types[i] != frame.types[j] || radii[i] != frame.radii[j])
+		{
+			return false;
+		}
+		int numEntityPoints = pointStart[i + 1] - pointStart[i];
+		if (numEntityPoints != frame.pointStart[j + 1] - frame.pointStart[j])
+		{
+			return false;
+		}
+		for (int k = 0; k < numEntityPoints; k++)
+		{
+			int point = pointStart[i] + k;
+			int otherPoint = frame.pointStart[j] + k;
+			if (pointX[point] != frame.pointX[otherPoint] || pointY[point] != frame.pointY[otherPoint])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	final void setPrecision(double positionPrecision, double velocityPrecision)
+	{
+		this.positionPrecision = positionPrecision;
+		this.velocityPrecision = velocityPrecision;
+	}
+
+	/**
+	 * Fills the given snapshot with every entity in this frame (ex: to draw a decoded frame).
+	 *
+	 * @param snapshot
+	 */
+	public void writeSnapshot(RenderSnapshot snapshot)
+	{
+		long stamp = snapshot.beginWrite();
+		try
+		{
+			snapshot.clear();
+			snapshot.time = time;
+			for (int i = 0; i < numEntities; i++)
+			{
+				double x = getX(i);
+				double y = getY(i);
+				snapshot.addEntity(types[i], handles[i], x, y, getRadius(i));
+				for (int point = pointStart[i]; point < pointStart[i + 1]; point++)
+				{
+					snapshot.addPoint(x + pointX[point] * positionPrecision, y + pointY[point] * positionPrecision);
+				}
+			}
+		}
+		finally
+		{
+			snapshot.endWrite(stamp);
+		}
+	}
+
+	/**
+	 * Finds an entity by handle.
+	 *
+	 * @param handle
+	 * @return its index, or -1 if it is not in the frame.
+	 */
+	public final int find(int handle)
+	{
+		int index = Arrays.binarySearch(handles, 0, numEntities, handle);
+		return index < 0 ? -1 : index;
+	}
+
+	public final int getSequence()
+	{
+		return sequence;
+	}
+
+	public final double getTime()
+	{
+		return time;
+	}
+
+	public final int getNumEntities()
+	{
+		return numEntities;
+	}
+
+	public final int getHandle(int i)
+	{
+		return handles[i];
+	}
+
+	/**
+	 * @return one of the RenderSnapshot entity types.
+	 */
+	public final int getType(int i)
+	{
+		return types[i];
+	}
+
+	public final double getX(int i)
+	{
+		return motion[i * 4] * positionPrecision;
+	}
+
+	public final double getY(int i)
+	{
+		return motion[i * 4 + 1] * positionPrecision;
+	}
+
+	public final double getVelocityX(int i)
+	{
+		return motion[i * 4 + 2] * velocityPrecision;
+	}
+
+	public final double getVelocityY(int i)
+	{
+		return motion[i * 4 + 3] * velocityPrecision;
+	}
+
+	public final double getRadius(int i)
+	{
+		return radii[i] * positionPrecision;
+	}
+
+	public final double getPositionPrecision()
+	{
+		return positionPrecision;
+	}
+
+	public final double getVelocityPrecision()
+	{
+		return velocityPrecision;
+	}
+}
@@ -0,0 +1,201 @@
+package com.pheiffware.lib.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs many independent simulations (ex: a Monte Carlo batch or a parameter sweep), unthrottled, as tasks on a shared
+ * work-stealing pool, rather than giving each its own thread like a SimulationRunner. Idle threads steal waiting
+ * worlds, so a batch keeps every thread of the pool busy without creating more threads than it has.
+ *
+ * Simulations which run their own parallel work should use the same pool (ex: PhysicsSystem.setParallelPool()), as a
+ * separate pool per world would oversubscribe the cores again.
+ *
+ * A failure is only isolated to its simulation if the simulation throws it. PhysicsSystem exits the process on failure
+ * unless PhysicsSystem.setExitOnFailure(false) has been called.
+ *
+ * @author Steve
+ *
+ * @param <SimState>
+ *            The type of state returned from the simulations.
+ */
+public class BatchSimulationRunner<SimState>
+{
+	/**
+	 * The outcome of one simulation in a batch.
+	 *
+	 * @param <SimState>
+	 */
+	public static class WorldResult<SimState>
+	{
+		private final SimState state;
+		private final int numSteps;
+		private final double elapsedSimTime;
+		private final RuntimeException failure;
+
+		public WorldResult(SimState state, int numSteps, double elapsedSimTime, RuntimeException failure)
+		{
+			this.state = state;
+			this.numSteps = numSteps;
+			this.elapsedSimTime = elapsedSimTime;
+			this.failure = failure;
+		}
+
+		/**
+		 * @return the state copied after the last completed time step.
+		 */
+		public final SimState getState()
+		{
+			return state;
+		}
+
+		/**
+		 * @return the number of time steps completed, which is less than requested if the batch was stopped or the
+		 *         simulation failed.
+		 */
+		public final int getNumSteps()
+		{
+			return numSteps;
+		}
+
+		public final double getElapsedSimTime()
+		{
+			return elapsedSimTime;
+		}
+
+		/**
+		 * @return the exception thrown by a time step, or null if the simulation did not fail.
+		 */
+		public final RuntimeException getFailure()
+		{
+			return failure;
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final List<World> worlds = new ArrayList<World>();
+	private volatile boolean stopFlag = false;
+
+	/**
+	 * Runs simulations on the common pool, which has a thread per core (less one).
+	 */
+	public BatchSimulationRunner()
+	{
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool
+	 *            the pool to run simulations on
+	 */
+	public BatchSimulationRunner(ForkJoinPool pool)
+	{
+		if (pool == null)
+		{
+			throw new IllegalArgumentException("A pool is required");
+		}
+		this.pool = pool;
+	}
+
+	/**
+	 * Adds a simulation to the batch. Simulations must not be shared between batches or runners.
+	 *
+	 * @param simulation
+	 * @param timeStep
+	 *            the size of every time step
+	 * @param numSteps
+	 * @return the index of the simulation's result (see run()).
+	 */
+	public final int add(Simulation<SimState> simulation, double timeStep, int numSteps)
+	{
+		if (numSteps < 0)
+		{
+			throw new IllegalArgumentException("Invalid number of steps: " + numSteps);
+		}
+		worlds.add(new World(simulation, timeStep, numSteps));
+		return worlds.size() - 1;
+	}
+
+	public final int getNumSimulations()
+	{
+		return worlds.size();
+	}
+
+	/**
+	 * Runs every simulation added since the last run, in parallel, and blocks until they have all finished. A simulation
+	 * which throws a RuntimeException from a time step stops there, and its exception is recorded in its result, so one
+	 * failure does not lose the rest of the batch (see PhysicsSystem.setExitOnFailure()).
+	 *
+	 * @return the results, in the order the simulations were added.
+	 */
+	public final List<WorldResult<SimState>> run()
+	{
+		stopFlag = false;
+		List<World> batch = new ArrayList<World>(worlds);
+		worlds.clear();
+		for (World world : batch)
+		{
+			pool.execute(world);
+		}
+		for (World world : batch)
+		{
+			world.join();
+		}
+		List<WorldResult<SimState>> results = new ArrayList<WorldResult<SimState>>(batch.size());
+		for (World world : batch)
+		{
+			results.add(world.result);
+		}
+		return results;
+	}
+
+	/**
+	 * Causes a running batch to stop in an orderly manner. Each simulation finishes its current time step and its
+	 * result holds the state at that point. May be called from any thread.
+	 */
+	public final void stop()
+	{
+		stopFlag = true;
+	}
+
+	/**
+	 * Runs one simulation from start to finish.
+	 */
+	@SuppressWarnings("serial")
+	private class World extends RecursiveAction
+	{
+		private final Simulation<SimState> simulation;
+		private final double timeStep;
+		private final int numSteps;
+		private WorldResult<SimState> result;
+
+		public World(Simulation<SimState> simulation, double timeStep, int numSteps)
+		{
+			this.simulation = simulation;
+			this.timeStep = timeStep;
+			this.numSteps = numSteps;
+		}
+
+		@Override
+		protected void compute()
+		{
+			int step = 0;
+			RuntimeException failure = null;
+			try
+			{
+				while (step < numSteps && !stopFlag)
+				{
+					simulation.performTimeStep(timeStep);
+					step++;
+				}
+			}
+			catch (RuntimeException e)
+			{
+				failure = e;
+			}
+			result = new WorldResult<SimState>(simulation.copyState(), step, step * timeStep, failure);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.pheiffware.lib.simulation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for any number of producer threads and a single consumer thread. Producers never block:
+ * offer() fails immediately if the queue is full.
+ *
+ * Each slot carries a sequence number which tells producers and the consumer whose turn it is to use the slot, so the
+ * only contended operation is a compare-and-set of the tail by producers.
+ *
+ * @param <T>
+ */
+public class CommandQueue<T>
+{
+	private final int mask;
+	private final AtomicReferenceArray<T> elements;
+
+	// Slot i is free for the producer claiming position p when sequences[i] == p, and holds an element for the
+	// consumer at position p when sequences[i] == p + 1.
+	private final AtomicLongArray sequences;
+
+	// Next position to be claimed by a producer
+	private final AtomicLong tail = new AtomicLong(0);
+
+	// Next position to be taken by the consumer. Only touched by the consumer thread.
+	private long head = 0;
+
+	/**
+	 * @param capacity
+	 *            rounded up to a power of 2.
+	 */
+	public CommandQueue(int capacity)
+	{
+		if (capacity < 1 || capacity > 1 << 30)
+		{
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+		{
+			size *= 2;
+		}
+		mask = size - 1;
+		elements = new AtomicReferenceArray<T>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+		{
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element. May be called from any thread.
+	 *
+	 * @param element
+	 * @return false if the queue is full, in which case the element was not added.
+	 */
+	public boolean offer(T element)
+	{
+		if (element == null)
+		{
+			throw new NullPointerException();
+		}
+		while (true)
+		{
+			long position = tail.get();
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+			if (difference == 0)
+			{
+				if (tail.compareAndSet(position, position + 1))
+				{
+					elements.lazySet(slot, element);
+					// Publishes the element to the consumer
+					sequences.lazySet(slot, position + 1);
+					return true;
+				}
+			}
+			else if (difference < 0)
+			{
+				// The consumer has not yet taken the element from a full lap ago
+				return false;
+			}
+			// Otherwise another producer claimed this position first, so try again
+		}
+	}
+
+	/**
+	 * Removes the oldest element. Must only be called from the consumer thread.
+	 *
+	 * @return null if the queue is empty (or the next element is still being added).
+	 */
+	public T poll()
+	{
+		int slot = (int) head & mask;
+		if (sequences.get(slot) != head + 1)
+		{
+			return null;
+		}
+		T element = elements.get(slot);
+		elements.lazySet(slot, null);
+		// Frees the slot for the producer which will claim it on the next lap
+		sequences.lazySet(slot, head + mask + 1);
+		head++;
+		return element;
+	}
+
+	public final int getCapacity()
+	{
+		return mask + 1;
+	}
+}
@@ -0,0 +1,60 @@
+package com.pheiffware.lib.simulation;
+
+/**
+ * The 2 most recently published states of a simulation run with a fixed time step, so a renderer can blend between
+ * them. The renderer draws previous and current weighted by getAlpha(), which advances smoothly with real time from
+ * 0 (previous) to 1 (current) over the real time between them (usually one step). This lets the display rate be much
+ * higher than the simulation rate.
+ *
+ * @param <SimState>
+ */
+public class InterpolationFrame<SimState>
+{
+	public final SimState previous;
+	public final SimState current;
+
+	// System.nanoTime() at which alpha is 0
+	private final long startTimeStamp;
+
+	// Real time over which alpha goes from 0 to 1
+	private final double stepNanos;
+
+	/**
+	 * @param previous
+	 * @param current
+	 * @param alpha
+	 *            at the time of construction.
+	 * @param stepNanos
+	 *            real time between previous and current. 0 if the simulation is not running in real time.
+	 */
+	public InterpolationFrame(SimState previous, SimState current, double alpha, double stepNanos)
+	{
+		this.previous = previous;
+		this.current = current;
+		this.stepNanos = stepNanos;
+		startTimeStamp = System.nanoTime() - (long) (alpha * stepNanos);
+	}
+
+	/**
+	 * @return the weight of current at this moment.
+	 */
+	public final double getAlpha()
+	{
+		return getAlpha(System.nanoTime());
+	}
+
+	/**
+	 * @param timeStamp
+	 *            from System.nanoTime()
+	 * @return the weight of current at the given time, from 0 to 1. This stops at 1 if the next frame is late.
+	 */
+	public final double getAlpha(long timeStamp)
+	{
+		if (stepNanos <= 0)
+		{
+			return 1.0;
+		}
+		double alpha = (timeStamp - startTimeStamp) / stepNanos;
+		return Math.max(0.0, Math.min(1.0, alpha));
+	}
+}
@@ -1,5 +1,8 @@
 package com.pheiffware.lib.simulation;
 
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 
 public class RealTimeSimulationRunner<SimState> extends SimulationRunner<SimState>
 {
@@ -7,6 +10,12 @@ public class RealTimeSimulationRunner<SimState> extends SimulationRunner<SimStat
 	private final double minTimeStep;
 	private final double simTimePerSecond;
 
+	// When > 0, the simulation always advances by exactly this much, as many times as real time requires
+	private volatile double fixedTimeStep = 0;
+
+	// The latest pair of states, published in fixed time step mode
+	private final AtomicReference<InterpolationFrame<SimState>> interpolationFrame = new AtomicReference<InterpolationFrame<SimState>>();
+
 	public RealTimeSimulationRunner(Simulation<SimState> simulation, double maxSimTimePerSecond, double maxTimeStep, double minTimeStep)
 	{
 		super(simulation);
@@ -15,13 +24,54 @@ public class RealTimeSimulationRunner<SimState> extends SimulationRunner<SimStat
 		this.simTimePerSecond = maxSimTimePerSecond;
 	}
 
+	/**
+	 * Switches to fixed time step mode, which must be done before the simulation is started. Real time is accumulated
+	 * and the simulation is advanced by exactly fixedTimeStep as many times as needed to keep up (at most maxTimeStep of
+	 * simulation time is added per update, so a slow simulation falls behind rather than spiraling). minTimeStep is not
+	 * used.
+	 *
+	 * After each batch of steps, the state is copied once and published, along with the state published before it, as
+	 * an InterpolationFrame (see getInterpolationFrame()), so the display can be smooth at any frame rate. When a batch
+	 * takes several steps (ex: catching up after a pause), the frame blends across the whole batch, so a ring of reused
+	 * states (ex: PhysicsSnapshotSimulation) advances by exactly one per publish.
+	 *
+	 * @param fixedTimeStep
+	 *            0 returns to variable time steps.
+	 */
+	public final void setFixedTimeStep(double fixedTimeStep)
+	{
+		this.fixedTimeStep = fixedTimeStep;
+	}
+
+	/**
+	 * The latest states for interpolation. Never blocks. Only available in fixed time step mode.
+	 *
+	 * @return null until the simulation has been started in fixed time step mode.
+	 */
+	public final InterpolationFrame<SimState> getInterpolationFrame()
+	{
+		return interpolationFrame.get();
+	}
+
 	protected void runSimulation() throws SimStoppedException
+	{
+		if (fixedTimeStep > 0)
+		{
+			runFixedTimeStep(fixedTimeStep);
+		}
+		else
+		{
+			runVariableTimeStep();
+		}
+	}
+
+	private void runVariableTimeStep() throws SimStoppedException
 	{
 		long lastTimeStamp = System.nanoTime();
 		while (true)
 		{
 			long nextTimeStamp = System.nanoTime();
-			double timeStep = simTimePerSecond * (nextTimeStamp - lastTimeStamp) / 10000000000.0;
+			double timeStep = simTimePerSecond * (nextTimeStamp - lastTimeStamp) / 1000000000.0;
 			lastTimeStamp = nextTimeStamp;
 
 			if (timeStep > maxTimeStep)
@@ -36,4 +86,49 @@ public class RealTimeSimulationRunner<SimState> extends SimulationRunner<SimStat
 			throttleAndHandleSignals(simTimePerSecond);
 		}
 	}
+
+	private void runFixedTimeStep(double fixedTimeStep) throws SimStoppedException
+	{
+		// Real time taken by 1 step
+		double stepNanos = fixedTimeStep / simTimePerSecond * 1000000000.0;
+
+		SimState previous = copyState();
+		SimState current = previous;
+		interpolationFrame.set(new InterpolationFrame<SimState>(previous, current, 1.0, stepNanos));
+
+		double accumulator = 0;
+		long lastTimeStamp = System.nanoTime();
+		while (true)
+		{
+			long nextTimeStamp = System.nanoTime();
+			accumulator += Math.min(maxTimeStep, simTimePerSecond * (nextTimeStamp - lastTimeStamp) / 1000000000.0);
+			lastTimeStamp = nextTimeStamp;
+
+			int numSteps = (int) (accumulator / fixedTimeStep);
+			if (numSteps > 0)
+			{
+				for (int step = 0; step < numSteps; step++)
+				{
+					performTimeStepWithoutPublishing(fixedTimeStep);
+				}
+				accumulator -= numSteps * fixedTimeStep;
+				previous = current;
+				current = copyState();
+				publishState(current);
+
+				// previous is numSteps steps before current. Blending across all of them displays the same time as
+				// blending across the last step would have, 1 step behind the simulation.
+				double alpha = (numSteps - 1 + accumulator / fixedTimeStep) / numSteps;
+				interpolationFrame.set(new InterpolationFrame<SimState>(previous, current, alpha, stepNanos * numSteps));
+			}
+
+			handleSignals();
+			// Sleep until the next step is due
+			double remaining = (fixedTimeStep - accumulator) / simTimePerSecond * 1000000000.0;
+			if (remaining > 0)
+			{
+				LockSupport.parkNanos((long) remaining);
+			}
+		}
+	}
 }
@@ -11,10 +11,11 @@ public interface Simulation<SimState>
 	public void performTimeStep(double elapsedTime);
 
 	/**
-	 * Returns a snap shot of the simulation. SimulationManagers prevents this
-	 * from being called simultaneously with timeStep(). However, the returned
-	 * state must not reference anything touched by timeStep() (which is not static) 
-	 * as after this is called, update will continue to execute.
+	 * Returns a snap shot of the simulation. SimulationRunners call this on the
+	 * simulation thread, between time steps, and publish the result to other
+	 * threads. Therefore, the returned state must not reference anything
+	 * touched by timeStep() (which is not static) as after this is called,
+	 * update will continue to execute.
 	 * 
 	 * This is typically used for rendering the current state of the simulation.  
 	 * 
@@ -25,9 +26,9 @@ public interface Simulation<SimState>
 	public SimState copyState();
 
 	/**
-	 * Used to apply an external input, such as a key press, to the simulation state.  SimulationManagers prevent this
-	 * from being called simultaneously with timeStep().  However, any object passed in should be copied unless it will 
-	 * not be used externally while the simulation is running.
+	 * Used to apply an external input, such as a key press, to the simulation state.  SimulationRunners queue inputs and
+	 * call this on the simulation thread, between time steps.  However, any object passed in should be copied unless it 
+	 * will not be used externally while the simulation is running.
 	 * @param key
 	 * @param value
 	 */
@@ -0,0 +1,12 @@
+package com.pheiffware.lib.simulation;
+
+/**
+ * A change to a simulation submitted from another thread (see SimulationRunner.submit()). Commands are applied on the
+ * simulation thread, between time steps.
+ *
+ * @param <SimState>
+ */
+public interface SimulationCommand<SimState>
+{
+	public void apply(Simulation<SimState> simulation);
+}
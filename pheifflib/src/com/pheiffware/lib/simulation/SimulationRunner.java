@@ -1,5 +1,7 @@
 package com.pheiffware.lib.simulation;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import com.pheiffware.lib.Utils;
 
 /**
@@ -11,27 +13,54 @@ import com.pheiffware.lib.Utils;
  */
 public abstract class SimulationRunner<SimState> implements Runnable
 {
-	private Object lock = new Object();
-	private volatile boolean signalFlag = false;
+	public static final int DEFAULT_COMMAND_QUEUE_CAPACITY = 4096;
+
 	private volatile boolean stopFlag = false;
 
+	// Commands submitted by other threads, applied by the simulation thread before each time step
+	private final CommandQueue<SimulationCommand<SimState>> commandQueue;
+
 	private final Thread updateThread;
 
 	private long realStartTimeStamp;
 	private double elapsedSimTime;
 	private final Simulation<SimState> simulation;
 
+	// The most recently published state. Readers take this without ever blocking the simulation.
+	private final AtomicReference<SimState> publishedState = new AtomicReference<SimState>();
+
+	public static final double DEFAULT_MAX_STALENESS = 0.1;
+
+	// A state is published after any time step which ends this much real time or more after the last one was published
+	private volatile long maxStalenessNanos = (long) (DEFAULT_MAX_STALENESS * 1000000000.0);
+	private long lastPublishTimeStamp;
+
+	// Set by getState() and cleared when a state is published. Asks for a state after the next time step, even if the
+	// published one is not yet maxStaleness old.
+	private volatile boolean stateRequested = true;
+
 	public SimulationRunner(Simulation<SimState> simulation)
+	{
+		this(simulation, DEFAULT_COMMAND_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param simulation
+	 * @param commandQueueCapacity
+	 *            the maximum number of commands which may be waiting to be applied (see submit()).
+	 */
+	public SimulationRunner(Simulation<SimState> simulation, int commandQueueCapacity)
 	{
 		this.simulation = simulation;
+		commandQueue = new CommandQueue<SimulationCommand<SimState>>(commandQueueCapacity);
 		updateThread = new Thread(this);
 	}
 
 	/**
 	 * An extending class overrides this to perform one or more time steps in the desired manner in a background thread.
 	 * This method should call timeStep() to update the time step.
-	 * This method should periodically call handleSignals().  This method allows other threads to get the simulation state 
-	 * or issue a stop.  handleSignals() with throw a SimStoppedException if/when a stop is requested.  It is expected that 
+	 * This method should periodically call handleSignals().  This method allows other threads to issue a stop.  
+	 * handleSignals() with throw a SimStoppedException if/when a stop is requested.  It is expected that 
 	 * this will simply be rethrown.
 	 * 
 	 * @throws SimStoppedException
@@ -45,10 +74,78 @@ public abstract class SimulationRunner<SimState> implements Runnable
 	 */
 	protected final void performTimeStep(double timeStep)
 	{
+		performTimeStepWithoutPublishing(timeStep);
+		long timeStamp = System.nanoTime();
+		if (stateRequested || timeStamp - lastPublishTimeStamp >= maxStalenessNanos)
+		{
+			publishState(timeStamp);
+		}
+	}
+
+	/**
+	 * Updates one time step of given size, without publishing a new state. For runners which decide for themselves
+	 * which states to copy (see copyState() and publishState()).
+	 * 
+	 * @param timeStep
+	 */
+	protected final void performTimeStepWithoutPublishing(double timeStep)
+	{
+		applyCommands();
 		elapsedSimTime += timeStep;
 		simulation.performTimeStep(timeStep);
 	}
 
+	/**
+	 * Copies the simulation's current state.
+	 * 
+	 * @return
+	 */
+	protected final SimState copyState()
+	{
+		return simulation.copyState();
+	}
+
+	/**
+	 * Makes the given state, from copyState(), the state returned by getState().
+	 * 
+	 * @param state
+	 */
+	protected final void publishState(SimState state)
+	{
+		stateRequested = false;
+		publishedState.set(state);
+		lastPublishTimeStamp = System.nanoTime();
+	}
+
+	/**
+	 * Applies, in order, every command which was waiting when this was called. Commands submitted while draining wait
+	 * for the next step, so a steady stream of commands cannot stall the simulation.
+	 */
+	private void applyCommands()
+	{
+		int maxCommands = commandQueue.getCapacity();
+		for (int i = 0; i < maxCommands; i++)
+		{
+			SimulationCommand<SimState> command = commandQueue.poll();
+			if (command == null)
+			{
+				return;
+			}
+			command.apply(simulation);
+		}
+	}
+
+	/**
+	 * Copies the simulation's state and makes it the state returned by getState().
+	 */
+	private void publishState(long timeStamp)
+	{
+		// Cleared before copying, so a request made during the copy is answered by the next step
+		stateRequested = false;
+		publishedState.set(simulation.copyState());
+		lastPublishTimeStamp = timeStamp;
+	}
+
 	/**
 	 * Enforce delay if simulation is running too fast.
 	 * @throws SimStoppedException 
@@ -70,27 +167,14 @@ public abstract class SimulationRunner<SimState> implements Runnable
 	}
 
 	/**
-	 * Should be called periodically while performing the simulation to allow outside threads to interact with the simulation.
-	 * For example: getState() 
+	 * Should be called periodically while performing the simulation to check whether another thread has requested a stop.
 	 * @throws SimStoppedException Will be thrown if a request to stop was made.
 	 */
 	protected final void handleSignals() throws SimStoppedException
 	{
-		if (signalFlag == true)
+		if (stopFlag)
 		{
-			try
-			{
-				// Gives up lock. The requester is expected to call notify()
-				// explicitly when done.
-				lock.wait();
-			}
-			catch (InterruptedException e)
-			{
-			}
-			if (stopFlag)
-			{
-				throw new SimStoppedException();
-			}
+			throw new SimStoppedException();
 		}
 	}
 
@@ -102,45 +186,87 @@ public abstract class SimulationRunner<SimState> implements Runnable
 	{
 		realStartTimeStamp = System.nanoTime();
 		elapsedSimTime = 0.0;
+		if (publishedState.get() == null)
+		{
+			publishState(realStartTimeStamp);
+		}
 		try
 		{
-			synchronized (lock)
-			{
-				runSimulation();
-			}
+			runSimulation();
 		}
 		catch (SimStoppedException e)
 		{
 			// Exits thread.
 		}
+		// Make sure the final state is visible, even if publication was throttled
+		publishState(System.nanoTime());
 	}
 
 	/**
-	 * Gets a snapshot of the simulation.
-	 * @return
+	 * Gets the most recently published snapshot of the simulation. This never blocks and never pauses the simulation,
+	 * so any number of threads may call it as often as they like. States are published by the simulation thread after
+	 * time steps, so the result is behind the simulation, by at most maxStaleness seconds plus one time step (see
+	 * setMaxStaleness()).
+	 * 
+	 * Each call also asks for a state to be published after the next time step, so a reader which polls often sees
+	 * states no older than its polling interval plus one time step. While nobody calls this, states are only copied
+	 * once every maxStaleness.
+	 * 
+	 * @return null if the simulation has not been started.
 	 */
 	public final SimState getState()
 	{
-		SimState state;
-		signalFlag = true;
-		synchronized (lock)
+		if (!stateRequested)
 		{
-			signalFlag = false;
-			state = simulation.copyState();
-			lock.notify();
+			stateRequested = true;
 		}
-		return state;
+		return publishedState.get();
 	}
 
-	public void applyExternalInput(String key, Object value)
+	/**
+	 * Bounds how old the state returned by getState() may be. A state is published after any time step which ends at
+	 * least this much real time after the last one was published, whether or not anyone has asked for it. So the
+	 * published state is at most maxStaleness seconds, plus the real time taken by one time step, older than the
+	 * simulation. States requested by getState() are published in between. Lower values cost more copies while nobody
+	 * is reading. 0 publishes after every time step.
+	 * 
+	 * @param maxStaleness
+	 *            in seconds, DEFAULT_MAX_STALENESS by default
+	 */
+	public final void setMaxStaleness(double maxStaleness)
+	{
+		maxStalenessNanos = (long) (maxStaleness * 1000000000.0);
+	}
+
+	/**
+	 * Queues a command to be applied on the simulation thread before the next time step. This never blocks, so it may be
+	 * called from any number of threads (ex: input or network threads).
+	 * 
+	 * @param command
+	 * @return false if the command queue is full, in which case the command was dropped.
+	 */
+	public final boolean submit(SimulationCommand<SimState> command)
+	{
+		return commandQueue.offer(command);
+	}
+
+	/**
+	 * Queues a call to Simulation.applyExternalInput() (see submit()).
+	 * 
+	 * @param key
+	 * @param value
+	 * @return false if the command queue is full, in which case the input was dropped.
+	 */
+	public boolean applyExternalInput(final String key, final Object value)
 	{
-		signalFlag = true;
-		synchronized (lock)
+		return submit(new SimulationCommand<SimState>()
 		{
-			signalFlag = false;
-			simulation.applyExternalInput(key, value);
-			lock.notify();
-		}
+			@Override
+			public void apply(Simulation<SimState> simulation)
+			{
+				simulation.applyExternalInput(key, value);
+			}
+		});
 	}
 
 	/**
@@ -148,6 +274,8 @@ public abstract class SimulationRunner<SimState> implements Runnable
 	 */
 	public final void start()
 	{
+		// Publish the initial state so getState() has something to return immediately
+		publishState(System.nanoTime());
 		updateThread.start();
 	}
 
@@ -170,13 +298,7 @@ public abstract class SimulationRunner<SimState> implements Runnable
 	 */
 	public final void stop()
 	{
-		signalFlag = true;
-		synchronized (lock)
-		{
-			signalFlag = false;
-			stopFlag = true;
-			lock.notify();
-		}
+		stopFlag = true;
 	}
 
 	/**